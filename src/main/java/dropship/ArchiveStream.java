@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static dropship.Preconditions.checkNotNull;
+
+/**
+ * Writes a tar or zip archive to a channel that need not be seekable, such
+ * as standard output or a socket. Files are sent with
+ * {@link FileChannel#transferTo}, which the OS can turn into a zero-copy
+ * send, so an archive of the local repository's jars never passes through
+ * an intermediate file or through the Java heap. Zip entries are stored
+ * uncompressed for the same reason; jars are compressed already.
+ */
+abstract class ArchiveStream {
+
+  static final String TAR = "tar";
+  static final String ZIP = "zip";
+
+  private static final int FILE_MODE = 0644;
+  private static final int EXECUTABLE_MODE = 0755;
+
+  private final WritableByteChannel out;
+  long position = 0;
+
+  private ArchiveStream(WritableByteChannel out) {
+    this.out = checkNotNull(out, "out");
+  }
+
+  /** Returns an archive in {@code format}, {@link #TAR} or {@link #ZIP}, written to {@code out}. */
+  static ArchiveStream create(String format, WritableByteChannel out) {
+    if (TAR.equalsIgnoreCase(format)) {
+      return new Tar(out);
+    }
+    if (ZIP.equalsIgnoreCase(format)) {
+      return new Zip(out);
+    }
+    throw new DropshipRuntimeException("Unknown archive format \"" + format + "\": use " + TAR + " or " + ZIP);
+  }
+
+  /** Adds {@code file} as {@code name}. */
+  final void add(String name, File file) throws IOException {
+    FileChannel source = new FileInputStream(file).getChannel();
+    try {
+      long size = source.size();
+      header(name, size, FILE_MODE, file.lastModified(), storesCrc() ? crc(file) : 0);
+      long sent = 0;
+      while (sent < size) {
+        long transferred = source.transferTo(sent, size - sent, out);
+        if (transferred <= 0) {
+          throw new IOException(file + " changed while it was being archived");
+        }
+        sent += transferred;
+      }
+      position += size;
+      trailer(size);
+    } finally {
+      source.close();
+    }
+  }
+
+  /** Adds {@code content} as {@code name}. */
+  final void add(String name, byte[] content, boolean executable) throws IOException {
+    CRC32 crc = new CRC32();
+    crc.update(content);
+    header(name, content.length, executable ? EXECUTABLE_MODE : FILE_MODE, System.currentTimeMillis(), crc.getValue());
+    write(ByteBuffer.wrap(content));
+    trailer(content.length);
+  }
+
+  /** Ends the archive; the caller closes the channel. */
+  abstract void finish() throws IOException;
+
+  /** Returns true if entry headers carry a CRC of the data that follows them. */
+  abstract boolean storesCrc();
+
+  /** Writes what goes before an entry's data. */
+  abstract void header(String name, long size, int mode, long lastModified, long crc) throws IOException;
+
+  /** Writes what goes after an entry's data. */
+  abstract void trailer(long size) throws IOException;
+
+  /** Reads {@code file} once for the CRC that must precede its data. */
+  private static long crc(File file) throws IOException {
+    CRC32 crc = new CRC32();
+    InputStream in = new FileInputStream(file);
+    try {
+      byte[] buffer = new byte[65536];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        crc.update(buffer, 0, read);
+      }
+    } finally {
+      in.close();
+    }
+    return crc.getValue();
+  }
+
+  final void write(ByteBuffer buffer) throws IOException {
+    int length = buffer.remaining();
+    while (buffer.hasRemaining()) {
+      out.write(buffer);
+    }
+    position += length;
+  }
+
+  /** A POSIX ustar archive. */
+  private static final class Tar extends ArchiveStream {
+
+    private static final int BLOCK = 512;
+    private static final long MAX_SIZE = 077777777777L;
+
+    Tar(WritableByteChannel out) {
+      super(out);
+    }
+
+    @Override
+    boolean storesCrc() {
+      return false;
+    }
+
+    @Override
+    void header(String name, long size, int mode, long lastModified, long crc) throws IOException {
+      if (size > MAX_SIZE) {
+        throw new IOException(name + " is too large for a tar archive");
+      }
+      byte[] header = new byte[BLOCK];
+      byte[] path = name.getBytes("UTF-8");
+      if (path.length > 100) {
+        // Long paths go in the prefix field, split at a slash
+        int split = name.lastIndexOf('/', name.length() - 1);
+        while (split > 0 && (name.substring(0, split).getBytes("UTF-8").length > 155
+          || name.substring(split + 1).getBytes("UTF-8").length > 100)) {
+          split = name.lastIndexOf('/', split - 1);
+        }
+        if (split <= 0) {
+          throw new IOException(name + " is too long for a tar archive");
+        }
+        put(header, 345, 155, name.substring(0, split).getBytes("UTF-8"));
+        path = name.substring(split + 1).getBytes("UTF-8");
+      }
+      put(header, 0, 100, path);
+      octal(header, 100, 8, mode);
+      octal(header, 108, 8, 0);
+      octal(header, 116, 8, 0);
+      octal(header, 124, 12, size);
+      octal(header, 136, 12, lastModified / 1000);
+      header[156] = '0';
+      put(header, 257, 6, "ustar\0".getBytes("US-ASCII"));
+      put(header, 263, 2, "00".getBytes("US-ASCII"));
+
+      // The checksum is computed with its own field set to spaces
+      for (int i = 148; i < 156; i++) {
+        header[i] = ' ';
+      }
+      long checksum = 0;
+      for (byte b : header) {
+        checksum += b & 0xff;
+      }
+      octal(header, 148, 7, checksum);
+      write(ByteBuffer.wrap(header));
+    }
+
+    @Override
+    void trailer(long size) throws IOException {
+      int padding = (int) ((BLOCK - size % BLOCK) % BLOCK);
+      write(ByteBuffer.allocate(padding));
+    }
+
+    @Override
+    void finish() throws IOException {
+      write(ByteBuffer.allocate(2 * BLOCK));
+    }
+
+    private static void put(byte[] header, int offset, int length, byte[] value) {
+      System.arraycopy(value, 0, header, offset, Math.min(length, value.length));
+    }
+
+    /** Writes {@code value} as zero-padded octal, ending in a NUL, in {@code length} bytes. */
+    private static void octal(byte[] header, int offset, int length, long value) {
+      String digits = Long.toOctalString(value);
+      StringBuilder field = new StringBuilder();
+      for (int i = digits.length(); i < length - 1; i++) {
+        field.append('0');
+      }
+      field.append(digits);
+      for (int i = 0; i < length - 1; i++) {
+        header[offset + i] = (byte) field.charAt(i);
+      }
+      header[offset + length - 1] = 0;
+    }
+  }
+
+  /** A zip archive of stored entries, each preceded by its CRC and size. */
+  private static final class Zip extends ArchiveStream {
+
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_DIRECTORY_ENTRY = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    private static final int VERSION = 20;
+    private static final int UNIX = 3;
+    private static final int UTF8_NAMES = 0x0800;
+    private static final long MAX_SIZE = 0xffffffffL - 1;
+
+    private final List<ByteBuffer> centralDirectory = new ArrayList<ByteBuffer>();
+
+    Zip(WritableByteChannel out) {
+      super(out);
+    }
+
+    @Override
+    boolean storesCrc() {
+      return true;
+    }
+
+    @Override
+    void header(String name, long size, int mode, long lastModified, long crc) throws IOException {
+      if (size > MAX_SIZE || position > MAX_SIZE) {
+        throw new IOException("The archive is too large for zip; use " + TAR);
+      }
+      byte[] path = name.getBytes("UTF-8");
+      int dosTime = dosTime(lastModified);
+
+      ByteBuffer local = ByteBuffer.allocate(30 + path.length).order(ByteOrder.LITTLE_ENDIAN);
+      local.putInt(LOCAL_HEADER).putShort((short) VERSION).putShort((short) UTF8_NAMES).putShort((short) 0)
+        .putInt(dosTime).putInt((int) crc).putInt((int) size).putInt((int) size)
+        .putShort((short) path.length).putShort((short) 0).put(path);
+      local.flip();
+
+      ByteBuffer central = ByteBuffer.allocate(46 + path.length).order(ByteOrder.LITTLE_ENDIAN);
+      central.putInt(CENTRAL_DIRECTORY_ENTRY).putShort((short) (UNIX << 8 | VERSION)).putShort((short) VERSION)
+        .putShort((short) UTF8_NAMES).putShort((short) 0).putInt(dosTime).putInt((int) crc)
+        .putInt((int) size).putInt((int) size).putShort((short) path.length).putShort((short) 0).putShort((short) 0)
+        .putShort((short) 0).putShort((short) 0).putInt((0100000 | mode) << 16).putInt((int) position).put(path);
+      central.flip();
+      centralDirectory.add(central);
+
+      write(local);
+    }
+
+    @Override
+    void trailer(long size) {
+      // Stored entries need no data descriptor
+    }
+
+    @Override
+    void finish() throws IOException {
+      if (centralDirectory.size() >= 0xffff || position > MAX_SIZE) {
+        throw new IOException("The archive is too large for zip; use " + TAR);
+      }
+      long start = position;
+      for (ByteBuffer entry : centralDirectory) {
+        write(entry);
+      }
+      ByteBuffer end = ByteBuffer.allocate(22).order(ByteOrder.LITTLE_ENDIAN);
+      end.putInt(END_OF_CENTRAL_DIRECTORY).putShort((short) 0).putShort((short) 0)
+        .putShort((short) centralDirectory.size()).putShort((short) centralDirectory.size())
+        .putInt((int) (position - start)).putInt((int) start).putShort((short) 0);
+      end.flip();
+      write(end);
+    }
+
+    private static int dosTime(long millis) {
+      Calendar calendar = Calendar.getInstance();
+      calendar.setTimeInMillis(millis);
+      int year = Math.max(1980, calendar.get(Calendar.YEAR));
+      return (year - 1980) << 25
+        | (calendar.get(Calendar.MONTH) + 1) << 21
+        | calendar.get(Calendar.DAY_OF_MONTH) << 16
+        | calendar.get(Calendar.HOUR_OF_DAY) << 11
+        | calendar.get(Calendar.MINUTE) << 5
+        | calendar.get(Calendar.SECOND) >> 1;
+    }
+  }
+}
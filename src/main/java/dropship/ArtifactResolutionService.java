@@ -15,26 +15,53 @@
  */
 package dropship;
 
+import dropship.logging.Logger;
+
+import java.io.File;
+import java.net.MalformedURLException;
 import java.net.URLClassLoader;
+import java.util.List;
 
 import static dropship.Preconditions.checkNotNull;
 import static dropship.Preconditions.checkState;
 
+/**
+ * Where Dropship's launcher meets its resolver. The launcher side (settings,
+ * logging, class loaders and the {@link ClasspathCache}) uses only the JDK;
+ * the resolver, which brings in Aether, the Maven model builder and the
+ * HTTP client, is only created when a request misses the cache, so a cached
+ * launch never loads any of its classes.
+ */
 final class ArtifactResolutionService {
 
+  /** Creates the resolver on first use. */
+  interface ResolverFactory {
+    MavenArtifactResolution.ArtifactResolutionBuilder create();
+  }
+
   private final Settings settings;
-  private final MavenArtifactResolution.ArtifactResolutionBuilder clBuilder;
+  private final ResolverFactory resolverFactory;
+  private final ClasspathCache classpathCache;
+  private final Lifecycle lifecycle;
+  private final Logger logger;
 
+  private MavenArtifactResolution.ArtifactResolutionBuilder clBuilder = null;
   private URLClassLoader classLoader = null;
 
-  ArtifactResolutionService(Settings settings, MavenArtifactResolution.ArtifactResolutionBuilder clBuilder) {
+  ArtifactResolutionService(Settings settings, ResolverFactory resolverFactory, Lifecycle lifecycle, Logger logger) {
     this.settings = checkNotNull(settings, "settings");
-    this.clBuilder = checkNotNull(clBuilder, "class loader builder");
+    this.resolverFactory = checkNotNull(resolverFactory, "resolver factory");
+    this.lifecycle = checkNotNull(lifecycle, "lifecycle");
+    this.logger = checkNotNull(logger, "logger");
+    this.classpathCache = new ClasspathCache(settings, logger);
   }
 
   synchronized URLClassLoader getClassLoader() {
     if (classLoader == null) {
-      classLoader = clBuilder.createClassLoader(settings.groupArtifactString());
+      String gav = settings.groupArtifactString();
+      // A packed repository is resolved from directly, never through the classpath cache
+      List<File> cached = settings.packedRepository() == null ? classpathCache.read(gav) : null;
+      classLoader = cached != null ? createCachedClassLoader(gav, cached) : resolver().createClassLoader(gav);
     }
 
     checkState(classLoader != null, "ClassLoader has not been created");
@@ -42,6 +69,45 @@ final class ArtifactResolutionService {
   }
 
   synchronized void downloadArtifacts() {
-    clBuilder.downloadArtifacts(settings.groupArtifactString());
+    resolver().downloadArtifacts(settings.groupArtifactString());
+  }
+
+  synchronized void collectGarbage() {
+    resolver().collectGarbage();
+  }
+
+  synchronized void packRepository() {
+    resolver().packRepository(settings.groupArtifactString());
+  }
+
+  synchronized void close() {
+    if (clBuilder != null) {
+      clBuilder.close();
+    }
+  }
+
+  private synchronized MavenArtifactResolution.ArtifactResolutionBuilder resolver() {
+    if (clBuilder == null) {
+      clBuilder = resolverFactory.create();
+    }
+    return clBuilder;
+  }
+
+  private URLClassLoader createCachedClassLoader(String gav, List<File> classpath) {
+    logger.info("Building classpath for %s from %d cached URLs", gav, classpath.size());
+    lifecycle.resolutionComplete(classpath);
+
+    RepositoryEviction eviction = new RepositoryEviction(new File(settings.localRepoPath()), settings.repoLockStripes(), logger);
+    eviction.recordAccess(classpath);
+    if (settings.autoCollectRepo() && settings.repoMaxSizeBytes() > 0 && eviction.due(settings.repoCollectIntervalMillis())) {
+      // Finding the versions aliases pin needs the resolver, which the collector thread loads
+      resolver().collectGarbageInBackground(classpath);
+    }
+
+    try {
+      return RecordingClassLoader.forClasspath(classpath, settings, logger);
+    } catch (MalformedURLException e) {
+      throw new DropshipRuntimeException(e.getMessage());
+    }
   }
 }
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import dropship.logging.Logger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static dropship.Preconditions.checkNotNull;
+
+/**
+ * Shortens the first moments of {@code main} by doing its class loading
+ * ahead of it. The first launch of a classpath records which classes are
+ * defined during its first seconds; later launches of the same classpath
+ * read the jars those classes came from into the page cache and load the
+ * classes, in recorded order, on worker threads while {@code main} runs.
+ *
+ * <p>Class lists live in {@code <repo.local-path>/.preload}, one per
+ * classpath, named after a hash of the classpath URLs.</p>
+ */
+final class ClassPreloader {
+
+  private static final int CLASSES_PER_TASK = 64;
+  private static final String JAR = "jar ";
+  private static final String CLASS = "class ";
+
+  private final Settings settings;
+  private final Logger logger;
+  private final File directory;
+
+  ClassPreloader(Settings settings, Logger logger) {
+    this.settings = checkNotNull(settings, "settings");
+    this.logger = checkNotNull(logger, "logger");
+    this.directory = new File(settings.localRepoPath(), ".preload");
+  }
+
+  /**
+   * Preloads from the class list recorded for {@code loader}'s classpath,
+   * or records one if there is none yet. Returns immediately; all work
+   * happens on daemon threads.
+   */
+  void start(final RecordingClassLoader loader) {
+    checkNotNull(loader, "loader");
+    // Recording has to begin before main is loaded; it is dropped if a class list already exists
+    final long started = System.nanoTime();
+    loader.startRecording();
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          if (loader instanceof PipelinedClassLoader) {
+            // the classpath hash needs every jar
+            ((PipelinedClassLoader) loader).awaitComplete();
+          }
+          File classList = new File(directory, classpathHash(loader.getURLs()) + ".classes");
+          if (classList.isFile()) {
+            loader.stopRecording();
+            preload(loader, classList);
+          } else {
+            record(loader, classList, started);
+          }
+        } catch (Exception e) {
+          loader.stopRecording();
+          logger.warn("Class preloading failed: %s", e.getMessage());
+        }
+      }
+    }, "dropship-preload");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private void preload(final ClassLoader loader, File classList) throws IOException {
+    List<String> jars = new ArrayList<String>();
+    List<String> classes = new ArrayList<String>();
+    read(classList, jars, classes);
+    logger.debug("Preloading %d classes from %d jars", classes.size(), jars.size());
+
+    ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, settings.preloadThreads()), new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "dropship-preload");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    for (final String jar : jars) {
+      workers.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            PipelinedResolution.warm(new File(jar));
+          } catch (IOException e) {
+            logger.debug("Could not warm %s: %s", jar, e.getMessage());
+          }
+        }
+      });
+    }
+
+    // Consecutive classes tend to depend on each other, so each task keeps a run of them in order
+    for (int start = 0; start < classes.size(); start += CLASSES_PER_TASK) {
+      final List<String> batch = classes.subList(start, Math.min(classes.size(), start + CLASSES_PER_TASK));
+      workers.execute(new Runnable() {
+        @Override
+        public void run() {
+          for (String name : batch) {
+            try {
+              // Not initialized: static initializers stay in the order the application runs them
+              Class.forName(name, false, loader);
+            } catch (Throwable e) {
+              logger.debug("Could not preload %s: %s", name, e);
+            }
+          }
+        }
+      });
+    }
+    workers.shutdown();
+  }
+
+  /** Saves the recording when the recording window ends, or when the application exits before that. */
+  private void record(final RecordingClassLoader loader, final File classList, long started) throws InterruptedException {
+    final AtomicBoolean saved = new AtomicBoolean(false);
+    Runnable save = new Runnable() {
+      @Override
+      public void run() {
+        if (saved.compareAndSet(false, true)) {
+          try {
+            save(loader, classList);
+          } catch (IOException e) {
+            logger.warn("Could not save the class list: %s", e.getMessage());
+          }
+        }
+      }
+    };
+
+    try {
+      Runtime.getRuntime().addShutdownHook(new Thread(save, "dropship-preload-record"));
+    } catch (IllegalStateException e) {
+      // already shutting down
+      save.run();
+      return;
+    }
+
+    int seconds = settings.preloadRecordSeconds();
+    logger.debug("Recording the classes loaded in the first %d seconds", seconds);
+    long remainingMillis = seconds * 1000L - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+    if (remainingMillis > 0) {
+      Thread.sleep(remainingMillis);
+    }
+    save.run();
+  }
+
+  private void save(RecordingClassLoader loader, File classList) throws IOException {
+    List<Class<?>> classes = loader.stopRecording();
+
+    Set<String> jars = new LinkedHashSet<String>();
+    StringBuilder lines = new StringBuilder("# ").append(settings.groupArtifactString()).append('\n');
+    for (Class<?> type : classes) {
+      File jar = jarOf(type);
+      if (jar != null && jar.isFile() && jars.add(jar.getPath())) {
+        lines.append(JAR).append(jar.getPath()).append('\n');
+      }
+    }
+    for (Class<?> type : classes) {
+      lines.append(CLASS).append(type.getName()).append('\n');
+    }
+
+    Files.replace(classList, lines.toString().getBytes("UTF-8"));
+    logger.info("Recorded %d classes from %d jars to %s", classes.size(), jars.size(), classList);
+  }
+
+  private static void read(File classList, List<String> jars, List<String> classes) throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(classList), "UTF-8"));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.startsWith(JAR)) {
+          jars.add(line.substring(JAR.length()));
+        } else if (line.startsWith(CLASS)) {
+          classes.add(line.substring(CLASS.length()));
+        }
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  private static File jarOf(Class<?> type) {
+    CodeSource source = type.getProtectionDomain().getCodeSource();
+    if (source == null || source.getLocation() == null) {
+      return null;
+    }
+    try {
+      return new File(source.getLocation().toURI());
+    } catch (URISyntaxException e) {
+      return null;
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  /** Returns a hex SHA-1 of the classpath URLs, in order. */
+  static String classpathHash(URL[] classpath) {
+    List<String> entries = new ArrayList<String>();
+    for (URL url : classpath) {
+      entries.add(url.toString());
+    }
+    return classpathHash(entries);
+  }
+
+  /** Returns a hex SHA-1 of the classpath entries, in order. */
+  static String classpathHash(List<String> entries) {
+    try {
+      MessageDigest digest = Files.messageDigest("SHA-1");
+      for (String entry : entries) {
+        digest.update(entry.getBytes("UTF-8"));
+        digest.update((byte) '\n');
+      }
+      return Files.hex(digest.digest());
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
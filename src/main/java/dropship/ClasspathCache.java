@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import dropship.logging.Logger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static dropship.Preconditions.checkNotNull;
+
+/**
+ * Remembers the resolved classpath of each artifact request under
+ * {@code <repo.local-path>/.classpaths}, so a later launch of the same
+ * request can build its class loader without loading the resolver at all.
+ * Only requests for a fixed release version are cached, keyed by the
+ * request, the remote repository and the dependency selection. An entry
+ * is used only while every jar it lists is still in place with the same
+ * size and modification time.
+ *
+ * <p>This class, like everything on the cache hit path, uses only the JDK.</p>
+ */
+final class ClasspathCache {
+
+  private final File directory;
+  private final Settings settings;
+  private final Logger logger;
+
+  ClasspathCache(Settings settings, Logger logger) {
+    this.settings = checkNotNull(settings, "settings");
+    this.logger = checkNotNull(logger, "logger");
+    this.directory = new File(settings.localRepoPath(), ".classpaths");
+  }
+
+  /** Returns the cached classpath of {@code gav}, or null if there is no usable one. */
+  List<File> read(String gav) {
+    File file = cacheFile(gav);
+    if (file == null || !file.isFile()) {
+      return null;
+    }
+    List<File> classpath = new ArrayList<File>();
+    try {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          // <length> <lastModified> <path>; entries in any other format are a miss
+          int space = line.indexOf(' ');
+          int second = space < 0 ? -1 : line.indexOf(' ', space + 1);
+          if (second < 0) {
+            return null;
+          }
+          File jar = new File(line.substring(second + 1));
+          if (!jar.isFile()
+            || jar.length() != Long.parseLong(line.substring(0, space))
+            || jar.lastModified() != Long.parseLong(line.substring(space + 1, second))) {
+            logger.debug("Cached classpath of %s is stale: %s changed", gav, jar);
+            return null;
+          }
+          classpath.add(jar);
+        }
+      } finally {
+        reader.close();
+      }
+    } catch (IOException e) {
+      logger.debug("Could not read cached classpath %s: %s", file, e.getMessage());
+      return null;
+    } catch (NumberFormatException e) {
+      logger.debug("Could not read cached classpath %s: %s", file, e.getMessage());
+      return null;
+    }
+    return classpath;
+  }
+
+  /** Saves the resolved classpath of {@code gav}, if its version is fixed. */
+  void write(String gav, List<File> classpath) {
+    File file = cacheFile(gav);
+    if (file == null) {
+      return;
+    }
+    StringBuilder lines = new StringBuilder();
+    for (File jar : classpath) {
+      String path = jar.getAbsolutePath();
+      if (path.indexOf('\n') >= 0 || path.indexOf('\r') >= 0) {
+        return;
+      }
+      lines.append(jar.length()).append(' ').append(jar.lastModified()).append(' ').append(path).append('\n');
+    }
+    try {
+      Files.replace(file, lines.toString().getBytes("UTF-8"));
+    } catch (IOException e) {
+      logger.debug("Could not cache the classpath of %s: %s", gav, e.getMessage());
+    }
+  }
+
+  /**
+   * Returns the cache file for {@code gav}, or null if caching is off or
+   * {@code gav} names a version range, a snapshot or a LATEST/RELEASE
+   * version, whose classpath can change between launches.
+   */
+  private File cacheFile(String gav) {
+    if (!settings.classpathCache()) {
+      return null;
+    }
+    String version = gav.substring(gav.lastIndexOf(':') + 1);
+    boolean fixed = version.length() > 0
+      && version.indexOf('[') < 0 && version.indexOf('(') < 0 && version.indexOf(',') < 0
+      && !version.endsWith("SNAPSHOT") && !"LATEST".equals(version) && !"RELEASE".equals(version);
+    if (!fixed) {
+      return null;
+    }
+    String remoteUrl = settings.mavenRepoUrl() != null ? settings.mavenRepoUrl() : MavenArtifactResolution.CENTRAL_URL;
+    List<String> key = Arrays.asList(gav, remoteUrl,
+      settings.resolutionScopes().toString(),
+      Boolean.toString(settings.dropOptionalDependencies()),
+      settings.dependencyExclusions().toString());
+    return new File(directory, ClassPreloader.classpathHash(key) + ".classpath");
+  }
+}
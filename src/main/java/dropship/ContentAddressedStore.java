@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import dropship.logging.Logger;
+import org.sonatype.aether.AbstractRepositoryListener;
+import org.sonatype.aether.RepositoryEvent;
+import org.sonatype.aether.RepositoryListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.UUID;
+
+import static dropship.Preconditions.checkNotNull;
+
+/**
+ * Stores artifact files once per distinct content, keyed by SHA-256. Files
+ * in the Maven layout of the local repository and in the download directory
+ * are hard links to the stored blob, so byte-identical jars published under
+ * different coordinates share one inode on disk and one copy in the page
+ * cache.
+ *
+ * <p>Hard links need Java 7 or later and a file system that supports them;
+ * otherwise files are left as they are and downloads fall back to copying.</p>
+ */
+final class ContentAddressedStore {
+
+  /** The store's directory under the local repository. */
+  static final String DIRECTORY = ".sha256";
+
+  private static final Method TO_PATH = method("java.io.File", "toPath");
+  private static final Method CREATE_LINK = createLinkMethod();
+  private static final Object NO_LINK_OPTIONS = noLinkOptions();
+  private static final Method GET_ATTRIBUTE = getAttributeMethod();
+
+  private final File directory;
+  private final Logger logger;
+
+  ContentAddressedStore(File directory, Logger logger) {
+    this.directory = checkNotNull(directory, "directory");
+    this.logger = checkNotNull(logger, "logger");
+  }
+
+  /** Returns a listener that moves every freshly downloaded artifact into the store. */
+  RepositoryListener listener() {
+    return new AbstractRepositoryListener() {
+      @Override
+      public void artifactDownloaded(RepositoryEvent event) {
+        File file = event.getFile() != null ? event.getFile() : event.getArtifact().getFile();
+        if (file != null && event.getException() == null) {
+          try {
+            intern(file);
+          } catch (IOException e) {
+            logger.warn("Could not deduplicate %s: %s", file, e.getMessage());
+          }
+        }
+      }
+    };
+  }
+
+  /**
+   * Makes {@code file} a hard link to the blob holding its content, adding
+   * the blob if this content has not been seen before.
+   *
+   * @return the blob, or {@code null} if hard links are not available
+   */
+  File intern(File file) throws IOException {
+    if (CREATE_LINK == null || !file.isFile()) {
+      return null;
+    }
+
+    File blob = blobFor(sha256(file));
+    if (!blob.exists()) {
+      File parent = blob.getParentFile();
+      if (!parent.isDirectory() && !parent.mkdirs()) {
+        throw new IOException("Could not create " + parent);
+      }
+      if (createLink(blob, file)) {
+        return blob;
+      }
+      if (!blob.exists()) {
+        return null;
+      }
+      // another process stored the same content first
+    }
+
+    if (blob.length() != file.length()) {
+      throw new IOException("Stored blob " + blob + " does not match " + file);
+    }
+
+    // unique, as another process may be linking the same file
+    File temp = new File(file.getParentFile(), file.getName() + ".sha256-link-" + UUID.randomUUID());
+    if (createLink(temp, blob) && temp.renameTo(file)) {
+      logger.debug("Deduplicated %s", file);
+      return blob;
+    }
+    //noinspection ResultOfMethodCallIgnored
+    temp.delete();
+    return null;
+  }
+
+  /**
+   * Places the content of {@code file} at {@code destination} as a hard link
+   * into the store.
+   *
+   * @return false if no link could be made and the caller should copy instead
+   */
+  boolean link(File file, File destination) throws IOException {
+    File blob = intern(file);
+    if (blob == null) {
+      return false;
+    }
+    if (destination.exists() && !destination.delete()) {
+      throw new IOException("Could not replace " + destination);
+    }
+    return createLink(destination, blob);
+  }
+
+  /**
+   * Deletes the blobs that no file outside the store links to any more.
+   *
+   * @return the number of bytes freed
+   */
+  long prune() {
+    long freed = 0;
+    File[] prefixes = directory.listFiles();
+    if (prefixes == null) {
+      return 0;
+    }
+    for (File prefix : prefixes) {
+      File[] blobs = prefix.listFiles();
+      if (blobs == null) {
+        continue;
+      }
+      for (File blob : blobs) {
+        long length = blob.length();
+        if (links(blob) == 1 && blob.delete()) {
+          freed += length;
+          logger.debug("Removed unused blob %s", blob.getName());
+        }
+      }
+    }
+    return freed;
+  }
+
+  /**
+   * Returns the number of hard links to {@code file}, or -1 if that cannot
+   * be told, as on Java 6 or a file system without Unix attributes.
+   */
+  static int links(File file) {
+    if (GET_ATTRIBUTE == null) {
+      return -1;
+    }
+    try {
+      return ((Number) GET_ATTRIBUTE.invoke(null, TO_PATH.invoke(file), "unix:nlink", NO_LINK_OPTIONS)).intValue();
+    } catch (IllegalAccessException e) {
+      return -1;
+    } catch (InvocationTargetException e) {
+      // UnsupportedOperationException without Unix attributes, or the file is gone
+      return -1;
+    }
+  }
+
+  private File blobFor(String sha256) {
+    return new File(new File(directory, sha256.substring(0, 2)), sha256);
+  }
+
+  private static String sha256(File file) throws IOException {
+    return Files.hex(Files.digest(file, "SHA-256"));
+  }
+
+  private static boolean createLink(File link, File existing) {
+    try {
+      CREATE_LINK.invoke(null, TO_PATH.invoke(link), TO_PATH.invoke(existing));
+      return true;
+    } catch (IllegalAccessException e) {
+      return false;
+    } catch (InvocationTargetException e) {
+      // FileAlreadyExistsException, or links are unsupported (e.g. across devices)
+      return false;
+    }
+  }
+
+  private static Method method(String className, String name, Class<?>... parameterTypes) {
+    try {
+      return Class.forName(className).getMethod(name, parameterTypes);
+    } catch (ClassNotFoundException e) {
+      return null;
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+
+  private static Method createLinkMethod() {
+    try {
+      Class<?> path = Class.forName("java.nio.file.Path");
+      return TO_PATH == null ? null : method("java.nio.file.Files", "createLink", path, path);
+    } catch (ClassNotFoundException e) {
+      // Java 6
+      return null;
+    }
+  }
+
+  private static Object noLinkOptions() {
+    try {
+      return Array.newInstance(Class.forName("java.nio.file.LinkOption"), 0);
+    } catch (ClassNotFoundException e) {
+      // Java 6
+      return null;
+    }
+  }
+
+  private static Method getAttributeMethod() {
+    try {
+      Class<?> path = Class.forName("java.nio.file.Path");
+      return TO_PATH == null || NO_LINK_OPTIONS == null ? null
+        : method("java.nio.file.Files", "getAttribute", path, String.class, NO_LINK_OPTIONS.getClass());
+    } catch (ClassNotFoundException e) {
+      // Java 6
+      return null;
+    }
+  }
+}
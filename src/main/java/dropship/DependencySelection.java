@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import org.sonatype.aether.collection.DependencyCollectionContext;
+import org.sonatype.aether.collection.DependencySelector;
+import org.sonatype.aether.graph.Dependency;
+import org.sonatype.aether.util.graph.selector.AndDependencySelector;
+import org.sonatype.aether.util.graph.selector.ExclusionDependencySelector;
+import org.sonatype.aether.util.graph.selector.OptionalDependencySelector;
+import org.sonatype.aether.util.graph.selector.ScopeDependencySelector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import static dropship.Preconditions.checkNotNull;
+
+/**
+ * Decides which dependencies are collected into the runtime classpath:
+ * the scopes to keep, whether optional dependencies are dropped outright,
+ * and {@code groupId[:artifactId]} patterns (with {@code *} wildcards)
+ * whose whole subtree is left out. Applied while the graph is collected,
+ * so excluded subtrees are never fetched.
+ */
+final class DependencySelection {
+
+  private static final List<String> KNOWN_SCOPES = Arrays.asList("compile", "runtime", "provided", "system", "test");
+
+  private final Set<String> excludedScopes;
+  private final boolean dropOptionals;
+  private final List<Pattern> exclusions;
+
+  DependencySelection(List<String> scopes, boolean dropOptionals, List<String> exclusions) {
+    checkNotNull(scopes, "scopes");
+    checkNotNull(exclusions, "exclusions");
+
+    this.excludedScopes = new LinkedHashSet<String>(KNOWN_SCOPES);
+    this.excludedScopes.removeAll(scopes);
+    this.dropOptionals = dropOptionals;
+    this.exclusions = new ArrayList<Pattern>();
+    for (String exclusion : exclusions) {
+      this.exclusions.add(toPattern(exclusion));
+    }
+  }
+
+  static DependencySelection from(Settings settings) {
+    return new DependencySelection(settings.resolutionScopes(), settings.dropOptionalDependencies(), settings.dependencyExclusions());
+  }
+
+  /**
+   * Returns true if a dependency declared at {@code depth} (1 for the root
+   * artifact's own dependencies) should be collected.
+   */
+  boolean selects(String groupId, String artifactId, String scope, boolean optional, int depth) {
+    if (excludedScopes.contains(scope)) {
+      return false;
+    }
+    if (optional && (dropOptionals || depth >= 2)) {
+      return false;
+    }
+    return !excluded(groupId, artifactId);
+  }
+
+  /** Returns the equivalent selector for the Aether dependency collector. */
+  DependencySelector toDependencySelector() {
+    List<DependencySelector> selectors = new ArrayList<DependencySelector>();
+    selectors.add(new ScopeDependencySelector(Collections.<String>emptySet(), excludedScopes));
+    selectors.add(new OptionalDependencySelector());
+    selectors.add(new ExclusionDependencySelector());
+    if (dropOptionals || !exclusions.isEmpty()) {
+      selectors.add(new ConfiguredSelector());
+    }
+    return new AndDependencySelector(selectors.toArray(new DependencySelector[selectors.size()]));
+  }
+
+  private boolean excluded(String groupId, String artifactId) {
+    String key = groupId + ':' + artifactId;
+    for (Pattern exclusion : exclusions) {
+      if (exclusion.matcher(key).matches()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static Pattern toPattern(String exclusion) {
+    String pattern = exclusion.contains(":") ? exclusion : exclusion + ":*";
+    StringBuilder regex = new StringBuilder();
+    for (String literal : pattern.split("\\*", -1)) {
+      if (regex.length() > 0) {
+        regex.append(".*");
+      }
+      regex.append(Pattern.quote(literal));
+    }
+    return Pattern.compile(regex.toString());
+  }
+
+  /** Drops optionals at every depth and anything matching an exclusion pattern. */
+  private final class ConfiguredSelector implements DependencySelector {
+
+    @Override
+    public boolean selectDependency(Dependency dependency) {
+      if (dropOptionals && dependency.isOptional()) {
+        return false;
+      }
+      return !excluded(dependency.getArtifact().getGroupId(), dependency.getArtifact().getArtifactId());
+    }
+
+    @Override
+    public DependencySelector deriveChildSelector(DependencyCollectionContext context) {
+      return this;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof ConfiguredSelector && outer() == ((ConfiguredSelector) o).outer();
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(outer());
+    }
+
+    private DependencySelection outer() {
+      return DependencySelection.this;
+    }
+  }
+}
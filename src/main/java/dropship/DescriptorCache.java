@@ -0,0 +1,415 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import dropship.logging.Logger;
+import org.apache.maven.repository.internal.DefaultArtifactDescriptorReader;
+import org.sonatype.aether.RepositorySystemSession;
+import org.sonatype.aether.artifact.Artifact;
+import org.sonatype.aether.graph.Dependency;
+import org.sonatype.aether.graph.Exclusion;
+import org.sonatype.aether.impl.ArtifactDescriptorReader;
+import org.sonatype.aether.impl.ArtifactResolver;
+import org.sonatype.aether.repository.RemoteRepository;
+import org.sonatype.aether.repository.RepositoryPolicy;
+import org.sonatype.aether.resolution.ArtifactDescriptorException;
+import org.sonatype.aether.resolution.ArtifactDescriptorRequest;
+import org.sonatype.aether.resolution.ArtifactDescriptorResult;
+import org.sonatype.aether.resolution.ArtifactRequest;
+import org.sonatype.aether.resolution.ArtifactResolutionException;
+import org.sonatype.aether.resolution.ArtifactResult;
+import org.sonatype.aether.spi.locator.ServiceLocator;
+import org.sonatype.aether.util.artifact.DefaultArtifact;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static dropship.Preconditions.checkNotNull;
+
+/**
+ * Reads artifact descriptors through Maven's model builder once, then keeps
+ * the effective dependencies, dependency management, repositories and
+ * properties under {@code <repo.local-path>/.models}, so later resolutions
+ * of the same release skip reading, inheriting, importing and
+ * interpolating its POMs.
+ *
+ * <p>An entry records the SHA-1 of every POM the model was built from (the
+ * artifact's own, its parents and any imported BOMs) and the value of each
+ * system property and environment variable those POMs refer to, and is
+ * used only while all of them are unchanged. Snapshots, relocated
+ * artifacts, descriptors that failed to build and POMs with file-based
+ * profile activation are never cached.</p>
+ */
+final class DescriptorCache implements ArtifactDescriptorReader {
+
+  private static final String MAGIC = "DSMODEL1";
+  private static final Pattern EXPRESSION = Pattern.compile("\\$\\{([^}]+)\\}");
+  private static final Pattern ACTIVATION_PROPERTY = Pattern.compile("<property>\\s*<name>\\s*!?\\s*([^<]+?)\\s*</name>");
+  private static final List<String> ACTIVATION_INPUTS = Arrays.asList("java.version", "os.name", "os.arch", "os.version");
+
+  private final DefaultArtifactDescriptorReader delegate;
+  private final Logger logger;
+  private final ThreadLocal<List<File>> readPoms = new ThreadLocal<List<File>>();
+
+  /** Wraps a descriptor reader built from the services of {@code locator}. */
+  DescriptorCache(ServiceLocator locator, Logger logger) {
+    this.logger = checkNotNull(logger, "logger");
+    this.delegate = new DefaultArtifactDescriptorReader();
+    delegate.initService(checkNotNull(locator, "locator"));
+    delegate.setArtifactResolver(new RecordingResolver(locator.getService(ArtifactResolver.class)));
+  }
+
+  @Override
+  public ArtifactDescriptorResult readArtifactDescriptor(RepositorySystemSession session, ArtifactDescriptorRequest request)
+    throws ArtifactDescriptorException {
+
+    File file = cacheFile(session, request);
+    if (file == null) {
+      return delegate.readArtifactDescriptor(session, request);
+    }
+    ArtifactDescriptorResult cached = read(file, session, request);
+    if (cached != null) {
+      return cached;
+    }
+
+    List<File> poms = new ArrayList<File>();
+    readPoms.set(poms);
+    ArtifactDescriptorResult result;
+    try {
+      result = delegate.readArtifactDescriptor(session, request);
+    } finally {
+      readPoms.remove();
+    }
+    if (result.getExceptions().isEmpty() && result.getRelocations().isEmpty() && !poms.isEmpty()) {
+      write(file, session, request, result, poms);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the cache file for {@code request}, or null if its version can
+   * change between launches.
+   */
+  private static File cacheFile(RepositorySystemSession session, ArtifactDescriptorRequest request) {
+    Artifact artifact = request.getArtifact();
+    String version = artifact.getVersion();
+    boolean fixed = version.length() > 0
+      && version.indexOf('[') < 0 && version.indexOf('(') < 0 && version.indexOf(',') < 0
+      && !artifact.isSnapshot() && !"LATEST".equals(version) && !"RELEASE".equals(version);
+    if (!fixed || session.getLocalRepository() == null) {
+      return null;
+    }
+    List<String> key = new ArrayList<String>();
+    key.add(artifact.toString());
+    key.add(String.valueOf(request.getRequestContext()));
+    for (RemoteRepository repository : request.getRepositories()) {
+      key.add(repository.getId() + ' ' + repository.getUrl());
+    }
+    File directory = new File(session.getLocalRepository().getBasedir(), ".models");
+    return new File(directory, ClassPreloader.classpathHash(key) + ".model");
+  }
+
+  /** Returns the cached descriptor in {@code file}, or null if there is none or it is stale. */
+  private ArtifactDescriptorResult read(File file, RepositorySystemSession session, ArtifactDescriptorRequest request) {
+    if (!file.isFile()) {
+      return null;
+    }
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      try {
+        if (!MAGIC.equals(in.readUTF())) {
+          return null;
+        }
+        int poms = in.readInt();
+        for (int i = 0; i < poms; i++) {
+          File pom = new File(in.readUTF());
+          String sha1 = in.readUTF();
+          if (!pom.isFile() || !sha1.equals(sha1(bytes(pom)))) {
+            logger.debug("Cached descriptor of %s is stale: %s changed", request.getArtifact(), pom);
+            return null;
+          }
+        }
+        int properties = in.readInt();
+        for (int i = 0; i < properties; i++) {
+          String name = in.readUTF();
+          String value = in.readBoolean() ? in.readUTF() : null;
+          String current = property(session, name);
+          if (value == null ? current != null : !value.equals(current)) {
+            logger.debug("Cached descriptor of %s is stale: %s changed", request.getArtifact(), name);
+            return null;
+          }
+        }
+
+        ArtifactDescriptorResult result = new ArtifactDescriptorResult(request);
+        result.setArtifact(readArtifact(in));
+        for (int i = in.readInt(); i > 0; i--) {
+          result.addDependency(readDependency(in));
+        }
+        for (int i = in.readInt(); i > 0; i--) {
+          result.addManagedDependency(readDependency(in));
+        }
+        for (int i = in.readInt(); i > 0; i--) {
+          RemoteRepository repository = new RemoteRepository(in.readUTF(), in.readUTF(), in.readUTF());
+          repository.setPolicy(false, new RepositoryPolicy(in.readBoolean(), in.readUTF(), in.readUTF()));
+          repository.setPolicy(true, new RepositoryPolicy(in.readBoolean(), in.readUTF(), in.readUTF()));
+          result.addRepository(repository);
+        }
+        Map<String, Object> descriptorProperties = new LinkedHashMap<String, Object>();
+        for (int i = in.readInt(); i > 0; i--) {
+          String name = in.readUTF();
+          char type = in.readChar();
+          descriptorProperties.put(name, type == 'I' ? Integer.valueOf(in.readInt())
+            : type == 'Z' ? Boolean.valueOf(in.readBoolean()) : type == 'S' ? in.readUTF() : null);
+        }
+        result.setProperties(descriptorProperties);
+        result.setRepository(session.getLocalRepository());
+        return result;
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      logger.debug("Could not read cached descriptor %s: %s", file, e.getMessage());
+      return null;
+    }
+  }
+
+  private void write(File file, RepositorySystemSession session, ArtifactDescriptorRequest request,
+                     ArtifactDescriptorResult result, List<File> poms) {
+    try {
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(buffer);
+      out.writeUTF(MAGIC);
+
+      // The model depends on these POMs and on the properties they refer to
+      Map<String, String> properties = new TreeMap<String, String>();
+      out.writeInt(poms.size());
+      for (File pom : poms) {
+        byte[] content = bytes(pom);
+        String text = new String(content, "UTF-8");
+        if (text.contains("<exists>") || text.contains("<missing>")) {
+          logger.debug("Not caching the descriptor of %s: %s activates a profile by file", request.getArtifact(), pom);
+          return;
+        }
+        Matcher expression = EXPRESSION.matcher(text);
+        while (expression.find()) {
+          properties.put(expression.group(1), property(session, expression.group(1)));
+        }
+        if (text.contains("<activation>")) {
+          for (String name : ACTIVATION_INPUTS) {
+            properties.put(name, property(session, name));
+          }
+          Matcher activation = ACTIVATION_PROPERTY.matcher(text);
+          while (activation.find()) {
+            properties.put(activation.group(1), property(session, activation.group(1)));
+          }
+        }
+        out.writeUTF(pom.getAbsolutePath());
+        out.writeUTF(sha1(content));
+      }
+      out.writeInt(properties.size());
+      for (Map.Entry<String, String> property : properties.entrySet()) {
+        out.writeUTF(property.getKey());
+        out.writeBoolean(property.getValue() != null);
+        if (property.getValue() != null) {
+          out.writeUTF(property.getValue());
+        }
+      }
+
+      writeArtifact(out, result.getArtifact());
+      out.writeInt(result.getDependencies().size());
+      for (Dependency dependency : result.getDependencies()) {
+        writeDependency(out, dependency);
+      }
+      out.writeInt(result.getManagedDependencies().size());
+      for (Dependency dependency : result.getManagedDependencies()) {
+        writeDependency(out, dependency);
+      }
+      out.writeInt(result.getRepositories().size());
+      for (RemoteRepository repository : result.getRepositories()) {
+        out.writeUTF(repository.getId());
+        out.writeUTF(repository.getContentType());
+        out.writeUTF(repository.getUrl());
+        for (boolean snapshot : new boolean[] {false, true}) {
+          RepositoryPolicy policy = repository.getPolicy(snapshot);
+          out.writeBoolean(policy.isEnabled());
+          out.writeUTF(policy.getUpdatePolicy());
+          out.writeUTF(policy.getChecksumPolicy());
+        }
+      }
+      out.writeInt(result.getProperties().size());
+      for (Map.Entry<String, Object> property : result.getProperties().entrySet()) {
+        Object value = property.getValue();
+        out.writeUTF(property.getKey());
+        if (value instanceof Integer) {
+          out.writeChar('I');
+          out.writeInt((Integer) value);
+        } else if (value instanceof Boolean) {
+          out.writeChar('Z');
+          out.writeBoolean((Boolean) value);
+        } else if (value instanceof String) {
+          out.writeChar('S');
+          out.writeUTF((String) value);
+        } else if (value == null) {
+          out.writeChar('N');
+        } else {
+          logger.debug("Not caching the descriptor of %s: property %s is a %s",
+            request.getArtifact(), property.getKey(), value.getClass().getName());
+          return;
+        }
+      }
+      out.close();
+
+      Files.replace(file, buffer.toByteArray());
+    } catch (IOException e) {
+      logger.debug("Could not cache the descriptor of %s: %s", request.getArtifact(), e.getMessage());
+    }
+  }
+
+  /** Returns a property as interpolation sees it: user properties first, then system properties and the environment. */
+  private static String property(RepositorySystemSession session, String name) {
+    String value = session.getUserProperties().get(name);
+    return value != null ? value : session.getSystemProperties().get(name);
+  }
+
+  private static void writeArtifact(DataOutputStream out, Artifact artifact) throws IOException {
+    out.writeUTF(artifact.getGroupId());
+    out.writeUTF(artifact.getArtifactId());
+    out.writeUTF(artifact.getClassifier());
+    out.writeUTF(artifact.getExtension());
+    out.writeUTF(artifact.getVersion());
+    Map<String, String> properties = artifact.getProperties();
+    out.writeInt(properties.size());
+    for (Map.Entry<String, String> property : properties.entrySet()) {
+      out.writeUTF(property.getKey());
+      out.writeUTF(property.getValue());
+    }
+  }
+
+  private static Artifact readArtifact(DataInputStream in) throws IOException {
+    String groupId = in.readUTF();
+    String artifactId = in.readUTF();
+    String classifier = in.readUTF();
+    String extension = in.readUTF();
+    String version = in.readUTF();
+    Map<String, String> properties = new LinkedHashMap<String, String>();
+    for (int i = in.readInt(); i > 0; i--) {
+      properties.put(in.readUTF(), in.readUTF());
+    }
+    return new DefaultArtifact(groupId, artifactId, classifier, extension, version, properties, (File) null);
+  }
+
+  private static void writeDependency(DataOutputStream out, Dependency dependency) throws IOException {
+    writeArtifact(out, dependency.getArtifact());
+    out.writeUTF(dependency.getScope());
+    out.writeBoolean(dependency.isOptional());
+    Collection<Exclusion> exclusions = dependency.getExclusions();
+    out.writeInt(exclusions.size());
+    for (Exclusion exclusion : exclusions) {
+      out.writeUTF(exclusion.getGroupId());
+      out.writeUTF(exclusion.getArtifactId());
+      out.writeUTF(exclusion.getClassifier());
+      out.writeUTF(exclusion.getExtension());
+    }
+  }
+
+  private static Dependency readDependency(DataInputStream in) throws IOException {
+    Artifact artifact = readArtifact(in);
+    String scope = in.readUTF();
+    boolean optional = in.readBoolean();
+    List<Exclusion> exclusions = new ArrayList<Exclusion>();
+    for (int i = in.readInt(); i > 0; i--) {
+      exclusions.add(new Exclusion(in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF()));
+    }
+    return new Dependency(artifact, scope, optional, exclusions);
+  }
+
+  private static byte[] bytes(File file) throws IOException {
+    InputStream in = new FileInputStream(file);
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+  private static String sha1(byte[] content) {
+    return Files.hex(Files.digest(content, "SHA-1"));
+  }
+
+  /**
+   * Notes the POM files resolved while this thread builds a model, which
+   * are the artifact's own POM, its parents and its imported BOMs.
+   */
+  private final class RecordingResolver implements ArtifactResolver {
+
+    private final ArtifactResolver resolver;
+
+    RecordingResolver(ArtifactResolver resolver) {
+      this.resolver = checkNotNull(resolver, "resolver");
+    }
+
+    @Override
+    public ArtifactResult resolveArtifact(RepositorySystemSession session, ArtifactRequest request)
+      throws ArtifactResolutionException {
+      return record(resolver.resolveArtifact(session, request));
+    }
+
+    @Override
+    public List<ArtifactResult> resolveArtifacts(RepositorySystemSession session, Collection<? extends ArtifactRequest> requests)
+      throws ArtifactResolutionException {
+      List<ArtifactResult> results = resolver.resolveArtifacts(session, requests);
+      for (ArtifactResult result : results) {
+        record(result);
+      }
+      return results;
+    }
+
+    private ArtifactResult record(ArtifactResult result) {
+      List<File> poms = readPoms.get();
+      if (poms != null && result.getArtifact() != null && result.getArtifact().getFile() != null) {
+        if (result.getArtifact().isSnapshot()) {
+          // A snapshot parent or BOM may be updated remotely; never cache what depends on one
+          poms.clear();
+          readPoms.remove();
+        } else {
+          poms.add(result.getArtifact().getFile());
+        }
+      }
+      return result;
+    }
+  }
+}
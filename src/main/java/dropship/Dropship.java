@@ -18,11 +18,14 @@ package dropship;
 import dropship.logging.Logger;
 import dropship.logging.LoggingModule;
 
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.URLClassLoader;
 import java.util.List;
-import java.util.Properties;
 
 import static dropship.Preconditions.checkNotNull;
 
@@ -39,17 +42,27 @@ public final class Dropship {
    * or implicit via an alias.
    */
   public static void main(String[] args) throws Exception {
-    DropshipModule module = new DropshipModule(args);
+    final DropshipModule module = new DropshipModule(args);
     LoggingModule logging = new LoggingModule();
     SettingsModule settingsModule = new SettingsModule();
 
-    Logger logger = logging.provideLogger(module.provideDateFormat(), module.provideJvmName(), module.provideLoggerDestination());
-    Settings settings = settingsModule.provideSettings(logger, module.provideArgs());
-    ArtifactResolutionService artifactService = new ArtifactResolutionService(settings, module.provideArtifactResolutionBuilder(settings, logger));
+    final Logger logger = logging.provideLogger(module.provideDateFormat(), module.provideJvmName(), module.provideLoggerDestination());
+    final Settings settings = settingsModule.provideSettings(logger, module.provideArgs());
+    final Lifecycle lifecycle = settings.serveRepoMode() || settings.gcRepoMode() || settings.packRepoMode() ? Lifecycle.none(settings, logger) : Lifecycle.discover(settings, logger);
+    ArtifactResolutionService artifactService = new ArtifactResolutionService(settings,
+      new ArtifactResolutionService.ResolverFactory() {
+        @Override
+        public MavenArtifactResolution.ArtifactResolutionBuilder create() {
+          return module.provideArtifactResolutionBuilder(settings, logger).withLifecycle(lifecycle);
+        }
+      },
+      lifecycle,
+      logger);
 
     Dropship dropship = new Dropship(
       settings,
       artifactService,
+      lifecycle,
       logger
     );
 
@@ -64,32 +77,89 @@ public final class Dropship {
   private final Settings settings;
   private final Logger logger;
   private final ArtifactResolutionService artifactResolutionService;
+  private final Lifecycle lifecycle;
 
-  Dropship(Settings settings, ArtifactResolutionService artifactResolutionService, Logger logger) {
+  Dropship(Settings settings, ArtifactResolutionService artifactResolutionService, Lifecycle lifecycle, Logger logger) {
     this.settings = checkNotNull(settings, "settings");
     this.artifactResolutionService = checkNotNull(artifactResolutionService, "artifact resolution service");
+    this.lifecycle = checkNotNull(lifecycle, "lifecycle");
     this.logger = checkNotNull(logger, "logger");
   }
 
   private void run() throws Exception {
     logger.info("Starting Dropship v%s", settings.dropshipVersion());
 
+    if (settings.serveRepoMode()) {
+      String upstream = settings.mavenRepoUrl() != null ? settings.mavenRepoUrl() : MavenArtifactResolution.CENTRAL_URL;
+      RepositoryProxy proxy = new RepositoryProxy(new File(settings.localRepoPath()), upstream, new PooledHttpTransport(settings, logger), logger);
+      // the server's threads keep the JVM running after run() returns
+      proxy.start(settings.serveRepoPort());
+      return;
+    }
+
+    if (settings.gcRepoMode()) {
+      try {
+        artifactResolutionService.collectGarbage();
+      } finally {
+        artifactResolutionService.close();
+      }
+      return;
+    }
+
+    if (settings.packRepoMode()) {
+      try {
+        artifactResolutionService.packRepository();
+      } finally {
+        artifactResolutionService.close();
+      }
+      return;
+    }
+
     if (settings.downloadMode()) {
-      artifactResolutionService.downloadArtifacts();
+      try {
+        artifactResolutionService.downloadArtifacts();
+      } finally {
+        artifactResolutionService.close();
+      }
       // download mode doesn't build a classloader, exit w/ 0
       System.exit(0);
     }
 
-    URLClassLoader loader = artifactResolutionService.getClassLoader();
+    if (settings.superviseMode()) {
+      URLClassLoader loader;
+      try {
+        loader = artifactResolutionService.getClassLoader();
+        if (loader instanceof PipelinedClassLoader) {
+          ((PipelinedClassLoader) loader).awaitComplete();
+        }
+      } finally {
+        artifactResolutionService.close();
+      }
+      System.exit(new Supervisor(settings, logger).supervise(Supervisor.classpathOf(loader)));
+    }
+
+    URLClassLoader loader;
+    try {
+      loader = artifactResolutionService.getClassLoader();
+    } finally {
+      artifactResolutionService.close();
+    }
 
    if (loader == null) {
       logger.warn("Could not create class loader; shutting down");
       System.exit(1);
     }
 
+    lifecycle.classLoaderBuilt(loader);
+    trimHeap();
+
     setupThreadDefaults(loader);
     setupExitHook();
 
+    if (settings.preloadClasses() && loader instanceof RecordingClassLoader) {
+      new ClassPreloader(settings, logger).start((RecordingClassLoader) loader);
+    }
+
     logger.info("Loading main class %s", settings.mainClassName());
 
     Class<?> mainClass = loader.loadClass(settings.mainClassName());
@@ -99,32 +169,53 @@ public final class Dropship {
     try {
       List<String> commandLineArguments = settings.commandLineArguments();
       String[] args = commandLineArguments.toArray(new String[commandLineArguments.size()]);
-      preRun(settings.asProperties(), settings.groupArtifactString(), mainClass, mainMethod, args);
+      lifecycle.beforeMain(mainClass, mainMethod, args);
 
       logger.info("Invoking main method of %s", mainClass.getName());
       System.setProperty("dropship.running", "true");
       mainMethod.invoke(null, (Object) args);
     } catch (InvocationTargetException e) {
       Throwable cause = e.getCause();
-      onError(cause);
+      lifecycle.onError(cause);
       if (cause instanceof RuntimeException) {
         throw (RuntimeException) cause;
       } else {
         throw new RuntimeException(cause);
       }
     } catch (Exception e) {
-      onError(e);
+      lifecycle.onError(e);
       throw e;
     }
   }
 
+  /**
+   * Resolution state is unreachable once the resolution service is closed.
+   * Reports the heap left in use before main runs and, with
+   * {@code dropship.trim-heap}, collects it first, so a small heap is sized
+   * for the application rather than for Dropship.
+   */
+  private void trimHeap() {
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    if (!settings.trimHeapBeforeMain()) {
+      MemoryUsage usage = memory.getHeapMemoryUsage();
+      logger.info("%d KB of heap in use after resolution, %d KB committed",
+        usage.getUsed() / 1024, usage.getCommitted() / 1024);
+      return;
+    }
+    long before = memory.getHeapMemoryUsage().getUsed();
+    System.gc();
+    MemoryUsage after = memory.getHeapMemoryUsage();
+    logger.info("Released %d KB after resolution; %d KB of heap in use, %d KB committed",
+      Math.max(0, before - after.getUsed()) / 1024, after.getUsed() / 1024, after.getCommitted() / 1024);
+  }
+
   private void setupThreadDefaults(ClassLoader loader) {
     Thread.currentThread().setContextClassLoader(loader);
     final Thread.UncaughtExceptionHandler priorHandler = Thread.getDefaultUncaughtExceptionHandler();
     Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
       @Override
       public void uncaughtException(Thread t, Throwable e) {
-        onError(e);
+        lifecycle.onError(e);
         if (priorHandler != null) {
           priorHandler.uncaughtException(t, e);
         } else {
@@ -135,32 +226,14 @@ public final class Dropship {
   }
 
   private void setupExitHook() {
+    if (!lifecycle.hasListeners()) {
+      return;
+    }
     Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
       @Override
       public void run() {
-        onExit();
+        lifecycle.onExit();
       }
     }));
   }
-
-  @SuppressWarnings("UnusedParameters")
-  private void preRun(Properties properties,
-                      String groupArtifactString,
-                      Class<?> mainClass,
-                      Method mainMethod,
-                      Object[] arguments) {
-
-    // Here for agents
-  }
-
-  @SuppressWarnings("UnusedParameters")
-  private void onError(Throwable e) {
-
-    // Here for agents
-  }
-
-  private void onExit() {
-
-    // Here for agents
-  }
 }
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/** File digests and atomic file replacement shared by the caches and the repository code. */
+final class Files {
+
+  private Files() {}
+
+  /**
+   * Replaces {@code file} with {@code content} by writing a temporary file
+   * beside it and renaming that over it, so readers in other processes see
+   * either the old content or the new, never a partial write. Creates the
+   * parent directory if needed.
+   */
+  static void replace(File file, byte[] content) throws IOException {
+    File directory = file.getAbsoluteFile().getParentFile();
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create " + directory);
+    }
+    File temp = File.createTempFile(file.getName(), ".tmp", directory);
+    try {
+      OutputStream out = new FileOutputStream(temp);
+      try {
+        out.write(content);
+      } finally {
+        out.close();
+      }
+    } catch (IOException e) {
+      //noinspection ResultOfMethodCallIgnored
+      temp.delete();
+      throw e;
+    }
+    if (!temp.renameTo(file)) {
+      //noinspection ResultOfMethodCallIgnored
+      temp.delete();
+      throw new IOException("Could not write " + file);
+    }
+  }
+
+  /** Returns the {@code algorithm} digest of the content of {@code file}, such as SHA-1. */
+  static byte[] digest(File file, String algorithm) throws IOException {
+    MessageDigest digest = messageDigest(algorithm);
+    InputStream in = new FileInputStream(file);
+    try {
+      byte[] buffer = new byte[64 * 1024];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        digest.update(buffer, 0, read);
+      }
+    } finally {
+      in.close();
+    }
+    return digest.digest();
+  }
+
+  /** Returns the {@code algorithm} digest of {@code content}, such as SHA-1. */
+  static byte[] digest(byte[] content, String algorithm) {
+    return messageDigest(algorithm).digest(content);
+  }
+
+  static MessageDigest messageDigest(String algorithm) {
+    try {
+      return MessageDigest.getInstance(algorithm);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(algorithm + " is not available", e);
+    }
+  }
+
+  /** Returns {@code bytes} as lower case hex. */
+  static String hex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return hex.toString();
+  }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import dropship.logging.Logger;
+import org.sonatype.aether.RepositorySystemSession;
+import org.sonatype.aether.artifact.Artifact;
+import org.sonatype.aether.metadata.Metadata;
+import org.sonatype.aether.repository.LocalArtifactRegistration;
+import org.sonatype.aether.repository.LocalArtifactRequest;
+import org.sonatype.aether.repository.LocalArtifactResult;
+import org.sonatype.aether.repository.LocalMetadataRegistration;
+import org.sonatype.aether.repository.LocalMetadataRequest;
+import org.sonatype.aether.repository.LocalMetadataResult;
+import org.sonatype.aether.repository.LocalRepository;
+import org.sonatype.aether.repository.LocalRepositoryManager;
+import org.sonatype.aether.repository.RemoteRepository;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static dropship.Preconditions.checkNotNull;
+
+/**
+ * Answers whether an artifact is in the local repository, and from which
+ * remote repositories it may be used, from an index kept in
+ * {@code <repo.local-path>/.index} instead of checking the file and reading
+ * the origin tracking file ({@code _maven.repositories}) beside it each
+ * time. That takes one {@code stat} per artifact rather than half a dozen
+ * system calls and a file lock.
+ *
+ * <p>The index is a log of lines appended as artifacts are installed or
+ * found by the wrapped manager, so processes sharing a repository add to
+ * it without coordinating. An entry is trusted only while its file keeps
+ * the modification time it was indexed with; otherwise it is dropped and
+ * the wrapped manager is asked. The index only ever answers yes when the
+ * wrapped manager answered yes for the same file and origin, so at worst
+ * it falls back to the usual probing.</p>
+ */
+final class IndexedLocalRepositoryManager implements LocalRepositoryManager {
+
+  private static final String ADD = "+";
+  private static final String REMOVE = "-";
+  private static final String LOCAL = "";
+  private static final int MIN_LINES_TO_COMPACT = 256;
+
+  private final LocalRepositoryManager delegate;
+  private final File basedir;
+  private final File indexFile;
+  private final Logger logger;
+  private Map<String, Entry> entries = null;
+  private int lines = 0;
+
+  IndexedLocalRepositoryManager(LocalRepositoryManager delegate, Logger logger) {
+    this.delegate = checkNotNull(delegate, "delegate");
+    this.logger = checkNotNull(logger, "logger");
+    this.basedir = delegate.getRepository().getBasedir();
+    this.indexFile = new File(basedir, ".index");
+  }
+
+  @Override
+  public LocalRepository getRepository() {
+    return delegate.getRepository();
+  }
+
+  @Override
+  public String getPathForLocalArtifact(Artifact artifact) {
+    return delegate.getPathForLocalArtifact(artifact);
+  }
+
+  @Override
+  public String getPathForRemoteArtifact(Artifact artifact, RemoteRepository repository, String context) {
+    return delegate.getPathForRemoteArtifact(artifact, repository, context);
+  }
+
+  @Override
+  public String getPathForLocalMetadata(Metadata metadata) {
+    return delegate.getPathForLocalMetadata(metadata);
+  }
+
+  @Override
+  public String getPathForRemoteMetadata(Metadata metadata, RemoteRepository repository, String context) {
+    return delegate.getPathForRemoteMetadata(metadata, repository, context);
+  }
+
+  @Override
+  public LocalArtifactResult find(RepositorySystemSession session, LocalArtifactRequest request) {
+    for (RemoteRepository repository : request.getRepositories()) {
+      if (repository.isRepositoryManager()) {
+        // Origins of repository managers are keyed by request context, which the index does not track
+        return delegate.find(session, request);
+      }
+    }
+
+    String path = delegate.getPathForLocalArtifact(request.getArtifact());
+    long modified = -1;
+    RemoteRepository origin = null;
+    synchronized (this) {
+      Entry entry = entries().get(path);
+      if (entry != null) {
+        if (entry.origins.contains(LOCAL)) {
+          modified = entry.modified;
+        }
+        for (RemoteRepository repository : request.getRepositories()) {
+          if (entry.origins.contains(repository.getId())) {
+            modified = entry.modified;
+            origin = repository;
+            break;
+          }
+        }
+      }
+    }
+    if (modified >= 0) {
+      File file = new File(basedir, path);
+      if (file.lastModified() == modified) {
+        LocalArtifactResult result = new LocalArtifactResult(request);
+        result.setFile(file);
+        result.setAvailable(true);
+        result.setRepository(origin);
+        return result;
+      }
+      logger.debug("Index entry for %s is stale", path);
+      forget(path);
+    }
+
+    LocalArtifactResult result = delegate.find(session, request);
+    if (result.isAvailable() && result.getFile() != null) {
+      remember(path, result.getFile().lastModified(), result.getRepository() != null ? result.getRepository().getId() : LOCAL);
+    }
+    return result;
+  }
+
+  @Override
+  public void add(RepositorySystemSession session, LocalArtifactRegistration request) {
+    delegate.add(session, request);
+    String path = delegate.getPathForLocalArtifact(request.getArtifact());
+    File file = new File(basedir, path);
+    long modified = file.lastModified();
+    if (modified != 0) {
+      remember(path, modified, request.getRepository() != null ? request.getRepository().getId() : LOCAL);
+    }
+  }
+
+  @Override
+  public LocalMetadataResult find(RepositorySystemSession session, LocalMetadataRequest request) {
+    return delegate.find(session, request);
+  }
+
+  @Override
+  public void add(RepositorySystemSession session, LocalMetadataRegistration request) {
+    delegate.add(session, request);
+  }
+
+  @Override
+  public String toString() {
+    return delegate.toString();
+  }
+
+  private synchronized void remember(String path, long modified, String origin) {
+    Entry entry = entries().get(path);
+    if (entry != null && entry.modified == modified && entry.origins.contains(origin)) {
+      return;
+    }
+    if (path.indexOf('\n') >= 0 || path.indexOf('\t') >= 0 || origin.indexOf('\t') >= 0 || origin.indexOf('\n') >= 0) {
+      return;
+    }
+    apply(ADD, modified, origin, path);
+    append(ADD + '\t' + modified + '\t' + origin + '\t' + path + '\n');
+  }
+
+  private synchronized void forget(String path) {
+    if (entries().containsKey(path)) {
+      apply(REMOVE, 0, LOCAL, path);
+      append(REMOVE + "\t0\t\t" + path + '\n');
+    }
+  }
+
+  private void apply(String operation, long modified, String origin, String path) {
+    if (REMOVE.equals(operation)) {
+      entries.remove(path);
+      return;
+    }
+    Entry entry = entries.get(path);
+    if (entry == null || entry.modified != modified) {
+      // A new file starts over with only the origin it was indexed with
+      entry = new Entry(modified);
+      entries.put(path, entry);
+    }
+    entry.origins.add(origin);
+  }
+
+  /** Appends {@code line} in a single write, so lines from other processes never interleave with it. */
+  private void append(String line) {
+    try {
+      OutputStream out = new FileOutputStream(indexFile, true);
+      try {
+        out.write(line.getBytes("UTF-8"));
+      } finally {
+        out.close();
+      }
+      lines++;
+    } catch (IOException e) {
+      logger.debug("Could not update %s: %s", indexFile, e.getMessage());
+    }
+  }
+
+  /** Returns the index, reading it on first use. Called with the monitor held. */
+  private Map<String, Entry> entries() {
+    if (entries != null) {
+      return entries;
+    }
+    entries = new HashMap<String, Entry>();
+    try {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), "UTF-8"));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          String[] fields = line.split("\t", 4);
+          if (fields.length == 4) {
+            try {
+              apply(fields[0], Long.parseLong(fields[1]), fields[2], fields[3]);
+              lines++;
+            } catch (NumberFormatException e) {
+              // A line torn by a crash; the artifact is simply not indexed
+            }
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    } catch (FileNotFoundException e) {
+      return entries;
+    } catch (IOException e) {
+      logger.debug("Could not read %s: %s", indexFile, e.getMessage());
+      return entries;
+    }
+    if (lines >= MIN_LINES_TO_COMPACT && lines > 2 * entries.size()) {
+      compact();
+    }
+    return entries;
+  }
+
+  /**
+   * Rewrites the log with one line per live origin. Lines another process
+   * appends meanwhile may be lost, which costs it nothing but a lookup.
+   */
+  private void compact() {
+    StringBuilder log = new StringBuilder();
+    int count = 0;
+    for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+      for (String origin : entry.getValue().origins) {
+        log.append(ADD).append('\t').append(entry.getValue().modified).append('\t')
+          .append(origin).append('\t').append(entry.getKey()).append('\n');
+        count++;
+      }
+    }
+    try {
+      Files.replace(indexFile, log.toString().getBytes("UTF-8"));
+      logger.debug("Compacted %s from %d to %d lines", indexFile, lines, count);
+      lines = count;
+    } catch (IOException e) {
+      logger.debug("Could not compact %s: %s", indexFile, e.getMessage());
+    }
+  }
+
+  private static final class Entry {
+
+    final long modified;
+    final Set<String> origins = new HashSet<String>();
+
+    Entry(long modified) {
+      this.modified = modified;
+    }
+  }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import dropship.logging.Logger;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+import static dropship.Preconditions.checkNotNull;
+
+/**
+ * Delivers lifecycle events to the {@link LifecycleListener}s found on
+ * {@code dropship.additional-paths}. With no listeners every method returns
+ * straight away, without building an event.
+ */
+final class Lifecycle {
+
+  private final Settings settings;
+  private final Logger logger;
+  private final List<LifecycleListener> listeners;
+  private final long startNanoTime;
+
+  Lifecycle(Settings settings, Logger logger, List<LifecycleListener> listeners) {
+    this.settings = checkNotNull(settings, "settings");
+    this.logger = checkNotNull(logger, "logger");
+    this.listeners = checkNotNull(listeners, "listeners");
+    this.startNanoTime = System.nanoTime();
+  }
+
+  /** Returns a lifecycle without listeners. */
+  static Lifecycle none(Settings settings, Logger logger) {
+    return new Lifecycle(settings, logger, Collections.<LifecycleListener>emptyList());
+  }
+
+  /** Loads the listeners registered on {@code dropship.additional-paths}. */
+  static Lifecycle discover(Settings settings, Logger logger) {
+    List<String> paths = settings.additionalClasspathPaths();
+    if (paths.isEmpty()) {
+      return none(settings, logger);
+    }
+
+    List<URL> urls = new ArrayList<URL>();
+    for (String path : paths) {
+      try {
+        urls.add(new File(path).toURI().toURL());
+      } catch (MalformedURLException e) {
+        logger.warn("Ignoring additional path %s: %s", path, e.getMessage());
+      }
+    }
+
+    // Listeners see Dropship's own classes, including this SPI, through the parent
+    ClassLoader loader = new URLClassLoader(urls.toArray(new URL[urls.size()]), Lifecycle.class.getClassLoader());
+    List<LifecycleListener> listeners = new ArrayList<LifecycleListener>();
+    Iterator<LifecycleListener> found = ServiceLoader.load(LifecycleListener.class, loader).iterator();
+    while (true) {
+      try {
+        if (!found.hasNext()) {
+          break;
+        }
+        LifecycleListener listener = found.next();
+        logger.info("Notifying %s of lifecycle events", listener.getClass().getName());
+        listeners.add(listener);
+      } catch (ServiceConfigurationError e) {
+        logger.warn("Could not load a lifecycle listener: %s", e.getMessage());
+      }
+    }
+    return new Lifecycle(settings, logger, listeners);
+  }
+
+  void resolutionComplete(List<File> classpath) {
+    if (listeners.isEmpty()) {
+      return;
+    }
+    LifecycleEvent event = event();
+    List<File> files = Collections.unmodifiableList(new ArrayList<File>(classpath));
+    for (LifecycleListener listener : listeners) {
+      try {
+        listener.resolutionComplete(event, files);
+      } catch (Throwable e) {
+        failed(listener, e);
+      }
+    }
+  }
+
+  void classLoaderBuilt(ClassLoader loader) {
+    if (listeners.isEmpty()) {
+      return;
+    }
+    LifecycleEvent event = event();
+    for (LifecycleListener listener : listeners) {
+      try {
+        listener.classLoaderBuilt(event, loader);
+      } catch (Throwable e) {
+        failed(listener, e);
+      }
+    }
+  }
+
+  void beforeMain(Class<?> mainClass, Method mainMethod, String[] arguments) {
+    if (listeners.isEmpty()) {
+      return;
+    }
+    LifecycleEvent event = event();
+    for (LifecycleListener listener : listeners) {
+      try {
+        listener.beforeMain(event, mainClass, mainMethod, arguments);
+      } catch (Throwable e) {
+        failed(listener, e);
+      }
+    }
+  }
+
+  void onError(Throwable error) {
+    if (listeners.isEmpty()) {
+      return;
+    }
+    LifecycleEvent event = event();
+    for (LifecycleListener listener : listeners) {
+      try {
+        listener.onError(event, error);
+      } catch (Throwable e) {
+        failed(listener, e);
+      }
+    }
+  }
+
+  void onExit() {
+    if (listeners.isEmpty()) {
+      return;
+    }
+    LifecycleEvent event = event();
+    for (LifecycleListener listener : listeners) {
+      try {
+        listener.onExit(event);
+      } catch (Throwable e) {
+        failed(listener, e);
+      }
+    }
+  }
+
+  /** Returns true if an event would reach at least one listener. */
+  boolean hasListeners() {
+    return !listeners.isEmpty();
+  }
+
+  private LifecycleEvent event() {
+    long now = System.nanoTime();
+    return new LifecycleEvent(settings.groupArtifactString(), startNanoTime, now, settings.asProperties());
+  }
+
+  private void failed(LifecycleListener listener, Throwable e) {
+    logger.warn("Lifecycle listener %s failed: %s", listener.getClass().getName(), e);
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import java.util.Properties;
+
+import static dropship.Preconditions.checkNotNull;
+
+/**
+ * When a {@link LifecycleListener} event happened, and the settings in
+ * effect at that moment. Times come from {@link System#nanoTime()}, so they
+ * are only meaningful relative to each other within one JVM.
+ */
+public final class LifecycleEvent {
+
+  private final String groupArtifactString;
+  private final long startNanoTime;
+  private final long nanoTime;
+  private final Properties properties;
+
+  LifecycleEvent(String groupArtifactString, long startNanoTime, long nanoTime, Properties properties) {
+    this.groupArtifactString = checkNotNull(groupArtifactString, "group artifact string");
+    this.startNanoTime = startNanoTime;
+    this.nanoTime = nanoTime;
+    this.properties = checkNotNull(properties, "properties");
+  }
+
+  /** Returns the artifact being run, as {@code group:artifact:version}. */
+  public String groupArtifactString() {
+    return groupArtifactString;
+  }
+
+  /** Returns the {@link System#nanoTime()} at which Dropship started. */
+  public long startNanoTime() {
+    return startNanoTime;
+  }
+
+  /** Returns the {@link System#nanoTime()} at which the event happened. */
+  public long nanoTime() {
+    return nanoTime;
+  }
+
+  /** Returns the nanoseconds between Dropship starting and the event. */
+  public long elapsedNanos() {
+    return nanoTime - startNanoTime;
+  }
+
+  /** Returns a snapshot of Dropship's properties and the system properties. */
+  public Properties properties() {
+    return properties;
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.List;
+
+/**
+ * Receives Dropship's startup and shutdown events, for profilers, metrics
+ * emitters and other agents. Implementations are found with
+ * {@link java.util.ServiceLoader}: list the implementing class in a
+ * {@code META-INF/services/dropship.LifecycleListener} file in a jar or
+ * directory named by {@code dropship.additional-paths}. Implementations
+ * need a public no-argument constructor.
+ *
+ * <p>Every method does nothing by default, so a listener overrides only the
+ * events it cares about. Exceptions thrown by a listener are logged and
+ * otherwise ignored.</p>
+ */
+public abstract class LifecycleListener {
+
+  /**
+   * Called once the classpath has been resolved; with
+   * {@code dropship.pipelined-startup} this may happen after
+   * {@link #beforeMain} and on another thread.
+   *
+   * @param classpath the resolved artifacts, in classpath order
+   */
+  public void resolutionComplete(LifecycleEvent event, List<File> classpath) {
+  }
+
+  /** Called once the class loader for the application exists. */
+  public void classLoaderBuilt(LifecycleEvent event, ClassLoader loader) {
+  }
+
+  /** Called just before {@code mainMethod} is invoked. */
+  public void beforeMain(LifecycleEvent event, Class<?> mainClass, Method mainMethod, String[] arguments) {
+  }
+
+  /** Called when the main method, or any thread without its own handler, throws. */
+  public void onError(LifecycleEvent event, Throwable error) {
+  }
+
+  /** Called from a shutdown hook when the JVM exits. */
+  public void onExit(LifecycleEvent event) {
+  }
+}
@@ -17,16 +17,13 @@ package dropship;
 
 import dropship.logging.Logger;
 import org.apache.maven.repository.internal.MavenRepositorySystemSession;
-import org.codehaus.plexus.DefaultPlexusContainer;
-import org.codehaus.plexus.PlexusContainerException;
-import org.codehaus.plexus.component.repository.exception.ComponentLookupException;
 import org.sonatype.aether.RepositorySystem;
 import org.sonatype.aether.RepositorySystemSession;
 import org.sonatype.aether.artifact.Artifact;
 import org.sonatype.aether.collection.CollectRequest;
+import org.sonatype.aether.collection.DependencySelector;
 import org.sonatype.aether.collection.DependencyCollectionException;
 import org.sonatype.aether.graph.Dependency;
-import org.sonatype.aether.graph.DependencyFilter;
 import org.sonatype.aether.graph.DependencyNode;
 import org.sonatype.aether.repository.LocalRepository;
 import org.sonatype.aether.repository.LocalRepositoryManager;
@@ -37,47 +34,55 @@ import org.sonatype.aether.resolution.DependencyRequest;
 import org.sonatype.aether.resolution.DependencyResolutionException;
 import org.sonatype.aether.resolution.VersionRangeResolutionException;
 import org.sonatype.aether.transfer.ArtifactNotFoundException;
-import org.sonatype.aether.util.DefaultRepositorySystemSession;
 import org.sonatype.aether.util.artifact.DefaultArtifact;
-import org.sonatype.aether.util.filter.ScopeDependencyFilter;
 import org.sonatype.aether.util.graph.PreorderNodeListGenerator;
+import org.sonatype.aether.util.listener.ChainedRepositoryListener;
 
-import javax.net.ssl.HostnameVerifier;
-import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLSession;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.X509TrustManager;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.nio.channels.FileChannel;
-import java.security.GeneralSecurityException;
-import java.security.cert.X509Certificate;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 
 import static dropship.Preconditions.checkArgument;
 import static dropship.Preconditions.checkNotNull;
 
 final class MavenArtifactResolution {
 
+  static final String CENTRAL_URL = "http://repo1.maven.org/maven2/";
+
   static class ArtifactResolutionBuilder {
 
-    private static final String COMPILE_SCOPE = "compile";
-    private static final ClassLoader SHARE_NOTHING = null;
+    private static final String DEPENDENCIES_LAYER = "dependencies";
+    private static final String SNAPSHOT_DEPENDENCIES_LAYER = "snapshot-dependencies";
+    private static final String APPLICATION_LAYER = "application";
+    private static final String LAYER_INDEX = "layers.idx";
 
     private final Settings settings;
     private final Logger logger;
     private final List<RemoteRepository> repositories;
     private final File localRepositoryDirectory;
+    private final ContentAddressedStore store;
+    private final RepositoryEviction eviction;
+    private final ClasspathCache classpathCache;
+
+    private Lifecycle lifecycle;
+    private PipelinedResolution pipeline = null;
 
     private ArtifactResolutionBuilder(Settings settings, Logger logger, RemoteRepository... repositories) {
       this.settings = checkNotNull(settings, "settings");
@@ -87,6 +92,18 @@ final class MavenArtifactResolution {
 
       this.repositories = Arrays.asList(repositories);
       this.localRepositoryDirectory = new File(settings.localRepoPath());
+      this.store = settings.contentAddressedStore()
+        ? new ContentAddressedStore(new File(localRepositoryDirectory, ContentAddressedStore.DIRECTORY), logger)
+        : null;
+      this.eviction = new RepositoryEviction(localRepositoryDirectory, settings.repoLockStripes(), logger);
+      this.classpathCache = new ClasspathCache(settings, logger);
+      this.lifecycle = Lifecycle.none(settings, logger);
+    }
+
+    /** Reports resolution events to {@code lifecycle}'s listeners. */
+    ArtifactResolutionBuilder withLifecycle(Lifecycle lifecycle) {
+      this.lifecycle = checkNotNull(lifecycle, "lifecycle");
+      return this;
     }
 
     /**
@@ -110,7 +127,13 @@ final class MavenArtifactResolution {
       throws VersionRangeResolutionException, ArtifactNotFoundException {
       try {
         logger.info("Resolving dependencies");
-        List<Artifact> artifacts = collectDependenciesIntoArtifacts(request);
+        List<Artifact> artifacts = resolveArtifacts(request);
+        resolutionComplete(artifacts);
+
+        if (settings.streamedDownload()) {
+          streamArtifacts(artifacts, request.getRoot().getArtifact());
+          return;
+        }
 
         final File downloadDir = new File(settings.localDownloadPath());
 
@@ -118,11 +141,18 @@ final class MavenArtifactResolution {
           throw new DropshipRuntimeException("Could not create the local download directory " + settings.localDownloadPath());
         }
 
-        for (Artifact artifact : artifacts) {
-          logger.info("Copying " + artifact.getFile().getName() + " to " + settings.localDownloadPath());
-          copy(artifact.getFile(), new File(downloadDir, artifact.getFile().getName()));
+        List<String> classpath = new ArrayList<String>();
+        if (settings.layeredDownload()) {
+          classpath.addAll(downloadLayers(artifacts, request.getRoot().getArtifact(), downloadDir));
+        } else {
+          for (Artifact artifact : artifacts) {
+            place(artifact.getFile(), downloadDir);
+            classpath.add(artifact.getFile().getName());
+          }
         }
 
+        new StandaloneLauncher(settings, logger).write(downloadDir, classpath);
+
       } catch (Exception e) {
         Throwable rootCause = e;
         while (rootCause.getCause() != null) {
@@ -147,6 +177,164 @@ final class MavenArtifactResolution {
       }
     }
 
+    /**
+     * Splits artifacts into layer directories that change at different rates,
+     * so container image builds can reuse the layers that did not change, and
+     * lists them in {@code layers.idx} in the order they should be added.
+     *
+     * @param root the requested artifact, which alone goes into the application layer
+     * @return the artifacts' paths relative to {@code downloadDir}, in classpath order
+     */
+    private List<String> downloadLayers(List<Artifact> artifacts, Artifact root, File downloadDir) throws IOException {
+      List<String> classpath = new ArrayList<String>();
+      Map<String, List<File>> layers = layers(artifacts, root, classpath);
+
+      for (Map.Entry<String, List<File>> layer : layers.entrySet()) {
+        File layerDir = new File(downloadDir, layer.getKey());
+        if (!layerDir.exists() && !layerDir.mkdirs()) {
+          throw new DropshipRuntimeException("Could not create the layer directory " + layerDir);
+        }
+
+        Set<String> names = new HashSet<String>();
+        for (File file : layer.getValue()) {
+          place(file, layerDir);
+          names.add(file.getName());
+        }
+
+        // Leftovers from an earlier download would make the layer differ from this resolution
+        for (File existing : layerDir.listFiles()) {
+          if (!names.contains(existing.getName()) && existing.isFile() && !existing.delete()) {
+            throw new DropshipRuntimeException("Could not remove stale file " + existing);
+          }
+        }
+      }
+
+      logger.info("Writing layer index to %s", new File(downloadDir, LAYER_INDEX));
+      FileOutputStream out = new FileOutputStream(new File(downloadDir, LAYER_INDEX));
+      try {
+        out.write(layerIndex(layers));
+      } finally {
+        out.close();
+      }
+      return classpath;
+    }
+
+    /**
+     * Sorts artifacts into layers, adding each one's path within its layer
+     * to {@code classpath} in classpath order. The requested artifact is
+     * picked by its coordinates rather than its place in the list, which
+     * differs between the resolvers, and may have been requested with a
+     * version range.
+     */
+    private static Map<String, List<File>> layers(List<Artifact> artifacts, Artifact root, List<String> classpath) {
+      Map<String, List<File>> layers = new LinkedHashMap<String, List<File>>();
+      layers.put(DEPENDENCIES_LAYER, new ArrayList<File>());
+      layers.put(SNAPSHOT_DEPENDENCIES_LAYER, new ArrayList<File>());
+      layers.put(APPLICATION_LAYER, new ArrayList<File>());
+
+      for (Artifact artifact : artifacts) {
+        boolean requested = artifact.getGroupId().equals(root.getGroupId())
+          && artifact.getArtifactId().equals(root.getArtifactId())
+          && artifact.getClassifier().equals(root.getClassifier())
+          && artifact.getExtension().equals(root.getExtension());
+        String layer = requested ? APPLICATION_LAYER : artifact.isSnapshot() ? SNAPSHOT_DEPENDENCIES_LAYER : DEPENDENCIES_LAYER;
+        layers.get(layer).add(artifact.getFile());
+        classpath.add(layer + '/' + artifact.getFile().getName());
+      }
+      return layers;
+    }
+
+    /** Returns the {@code layers.idx} listing of {@code layers}. */
+    private static byte[] layerIndex(Map<String, List<File>> layers) throws IOException {
+      StringBuilder index = new StringBuilder();
+      for (Map.Entry<String, List<File>> layer : layers.entrySet()) {
+        index.append("- \"").append(layer.getKey()).append("\":\n");
+        for (File file : layer.getValue()) {
+          index.append("  - \"").append(layer.getKey()).append('/').append(file.getName()).append("\"\n");
+        }
+      }
+      return index.toString().getBytes("UTF-8");
+    }
+
+    /**
+     * Streams the artifacts, laid out as a download directory would be,
+     * and the launcher files as a tar or zip archive to standard output or
+     * a socket. Each jar is sent straight from the local repository, so
+     * nothing is written to disk on the way.
+     */
+    private void streamArtifacts(List<Artifact> artifacts, Artifact root) throws IOException {
+      String target = settings.localDownloadPath();
+      String format = settings.downloadArchiveFormat();
+      WritableByteChannel out = openStream(target);
+      try {
+        ArchiveStream archive = ArchiveStream.create(format, out);
+        logger.info("Streaming %d artifacts as a %s archive to %s",
+          artifacts.size(), format, "-".equals(target) ? "standard output" : target);
+
+        List<String> classpath = new ArrayList<String>();
+        if (settings.layeredDownload()) {
+          Map<String, List<File>> layers = layers(artifacts, root, classpath);
+          for (Map.Entry<String, List<File>> layer : layers.entrySet()) {
+            for (File file : layer.getValue()) {
+              archive.add(layer.getKey() + '/' + file.getName(), file);
+            }
+          }
+          archive.add(LAYER_INDEX, layerIndex(layers), false);
+        } else {
+          for (Artifact artifact : artifacts) {
+            archive.add(artifact.getFile().getName(), artifact.getFile());
+            classpath.add(artifact.getFile().getName());
+          }
+        }
+
+        for (Map.Entry<String, byte[]> file : new StandaloneLauncher(settings, logger).files(classpath).entrySet()) {
+          archive.add(file.getKey(), file.getValue(), StandaloneLauncher.LAUNCHER_SCRIPT.equals(file.getKey()));
+        }
+        archive.finish();
+      } finally {
+        out.close();
+      }
+    }
+
+    /** Opens standard output for {@code -}, or a connection for {@code tcp://host:port}. */
+    private static WritableByteChannel openStream(String target) throws IOException {
+      if ("-".equals(target)) {
+        return new FileOutputStream(FileDescriptor.out).getChannel();
+      }
+      String address = target.substring("tcp://".length());
+      int colon = address.lastIndexOf(':');
+      if (colon <= 0) {
+        throw new DropshipRuntimeException("Must specify a host and port to download to: tcp://host:port");
+      }
+      try {
+        return SocketChannel.open(new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))));
+      } catch (NumberFormatException e) {
+        throw new DropshipRuntimeException("Invalid port in " + target);
+      }
+    }
+
+    /** Puts {@code source} into {@code directory}, leaving an identical earlier copy untouched. */
+    private void place(File source, File directory) throws IOException {
+      File destination = new File(directory, source.getName());
+      if (destination.isFile()
+        && destination.length() == source.length()
+        && destination.lastModified() == source.lastModified()) {
+        logger.info(source.getName() + " in " + directory + " is up to date");
+        return;
+      }
+
+      if (store != null && store.link(source, destination)) {
+        logger.info("Linked " + source.getName() + " into " + directory);
+        return;
+      }
+
+      logger.info("Copying " + source.getName() + " to " + directory);
+      copy(source, destination);
+      // Keeping the timestamp lets the next download recognise an unchanged file
+      //noinspection ResultOfMethodCallIgnored
+      destination.setLastModified(source.lastModified());
+    }
+
     private void copy(File source, File destination) throws IOException {
       if (!destination.exists()) {
         if (!destination.createNewFile()) {
@@ -186,21 +374,25 @@ final class MavenArtifactResolution {
       throws VersionRangeResolutionException, ArtifactNotFoundException {
 
       try {
+        if (settings.packedRepository() != null) {
+          return createPackedClassLoader(groupArtifactVersion);
+        }
+
+        if ((settings.pipelinedStartup() || settings.lazyFetch()) && !settings.offlineMode()) {
+          return createPipelinedClassLoader(groupArtifactVersion, request);
+        }
+
         logger.info("Resolving dependencies");
-        List<Artifact> artifacts = collectDependenciesIntoArtifacts(request);
+        List<Artifact> artifacts = resolveArtifacts(request);
+        resolutionComplete(artifacts);
 
         logger.info("Building classpath for %s from %d URLs", groupArtifactVersion, artifacts.size());
-        List<URL> urls = new ArrayList<URL>();
+        List<File> files = new ArrayList<File>();
         for (Artifact artifact : artifacts) {
-          urls.add(artifact.getFile().toURI().toURL());
+          files.add(artifact.getFile());
         }
-
-        for (String path : settings.additionalClasspathPaths()) {
-          logger.info("Adding \"%s\" to classpath", path);
-          urls.add(new File(path).toURI().toURL());
-        }
-
-        return new URLClassLoader(urls.toArray(new URL[urls.size()]), SHARE_NOTHING);
+        classpathCache.write(groupArtifactVersion, files);
+        return RecordingClassLoader.forClasspath(files, settings, logger);
       } catch (Exception e) {
         Throwable rootCause = e;
         while (rootCause.getCause() != null) {
@@ -225,9 +417,264 @@ final class MavenArtifactResolution {
       }
     }
 
+    /**
+     * Resolves from the packed repository named by {@code repo.pack}, never
+     * contacting a remote repository, and returns a class loader that reads
+     * the jars straight out of the pack.
+     */
+    private URLClassLoader createPackedClassLoader(String groupArtifactVersion) throws Exception {
+      File packFile = settings.packedRepository();
+      PackedRepository pack;
+      try {
+        pack = PackedRepository.open(packFile);
+      } catch (IOException e) {
+        throw new DropshipRuntimeException("Could not open packed repository " + packFile + ": " + e.getMessage());
+      }
+
+      logger.info("Resolving dependencies from %s", packFile);
+      List<Artifact> artifacts;
+      try {
+        OfflineArtifactResolution offline = new OfflineArtifactResolution(
+          pack, repositories, assembleSystemProps(), DependencySelection.from(settings));
+        artifacts = offline.resolve(new DefaultArtifact(groupArtifactVersion));
+      } catch (OfflineArtifactResolution.UnsupportedGraphException e) {
+        throw new DropshipRuntimeException("Could not resolve " + groupArtifactVersion + " from " + packFile + ": " + e.getMessage());
+      }
+
+      List<File> classpath = new ArrayList<File>();
+      List<String> jarPaths = new ArrayList<String>();
+      for (Artifact artifact : artifacts) {
+        if ("jar".equals(artifact.getExtension())) {
+          classpath.add(artifact.getFile());
+          jarPaths.add(pack.pathOf(artifact.getFile()));
+        }
+      }
+      // The files only exist inside the pack; there is nothing in the local repository to record or evict
+      lifecycle.resolutionComplete(classpath);
+
+      logger.info("Building classpath for %s from %d packed jars", groupArtifactVersion, jarPaths.size());
+      return new PackedClassLoader(pack, jarPaths, RecordingClassLoader.additionalUrls(settings, logger));
+    }
+
+    /**
+     * Collects the dependency graph, then returns a class loader right away
+     * while the artifacts are resolved in the background. Each jar joins the
+     * classpath as soon as it and every jar before it are ready.
+     */
+    private URLClassLoader createPipelinedClassLoader(String groupArtifactVersion, CollectRequest request) throws Exception {
+      logger.info("Collecting dependencies");
+      RepositorySystem repositorySystem = newRepositorySystem();
+      RepositorySystemSession session = newSession(repositorySystem);
+      DependencyNode root = repositorySystem.collectDependencies(session, request).getRoot();
+
+      PreorderNodeListGenerator nlg = new PreorderNodeListGenerator();
+      root.accept(nlg);
+      List<DependencyNode> nodes = new ArrayList<DependencyNode>();
+      for (DependencyNode node : nlg.getNodes()) {
+        if (node.getDependency() != null) {
+          nodes.add(node);
+        }
+      }
+
+      final List<URL> additionalUrls = RecordingClassLoader.additionalUrls(settings, logger);
+
+      logger.info("Building classpath for %s from %d URLs as they resolve", groupArtifactVersion, nodes.size());
+      final PipelinedClassLoader loader = new PipelinedClassLoader(nodes.size(), additionalUrls);
+      final String gav = groupArtifactVersion;
+      PipelinedResolution.Completion completion = new PipelinedResolution.Completion() {
+        @Override
+        public void resolved(List<File> classpath) {
+          classpathResolved(classpath);
+          classpathCache.write(gav, classpath);
+          loader.indexResources(classpath, additionalUrls, settings, logger);
+        }
+      };
+      PackageHints hints = settings.lazyFetch() ? packageHints(nodes) : null;
+      final PipelinedResolution resolution =
+        new PipelinedResolution(repositorySystem, session, nodes, loader, completion, hints, logger, settings.pipelineThreads());
+      if (hints != null) {
+        loader.useHints(hints, new PipelinedClassLoader.Fetcher() {
+          @Override
+          public void fetch(int index) {
+            resolution.fetch(index);
+          }
+        });
+      }
+      pipeline = resolution;
+      pipeline.start();
+      return loader;
+    }
+
+    /**
+     * Returns the package hints for a collected graph, read from an earlier
+     * launch if there was one, or null if the graph has snapshots.
+     */
+    private PackageHints packageHints(List<DependencyNode> nodes) {
+      List<String> coordinates = new ArrayList<String>();
+      for (DependencyNode node : nodes) {
+        Artifact artifact = node.getDependency().getArtifact();
+        if (artifact.isSnapshot()) {
+          return null;
+        }
+        coordinates.add(artifact.toString());
+      }
+      PackageHints hints = new PackageHints(new File(localRepositoryDirectory, ".packages"), coordinates, logger);
+      if (hints.load()) {
+        logger.info("Fetching jars as their packages are first used");
+      }
+      return hints;
+    }
+
+    private void resolutionComplete(List<Artifact> artifacts) {
+      List<File> classpath = new ArrayList<File>();
+      for (Artifact artifact : artifacts) {
+        classpath.add(artifact.getFile());
+      }
+      classpathResolved(classpath);
+    }
+
+    private void classpathResolved(List<File> classpath) {
+      lifecycle.resolutionComplete(classpath);
+      eviction.recordAccess(classpath);
+      if (settings.autoCollectRepo() && settings.repoMaxSizeBytes() > 0 && eviction.due(settings.repoCollectIntervalMillis())) {
+        collectGarbageInBackground(classpath);
+      }
+    }
+
+    /**
+     * Evicts least recently used artifacts on a background thread, never
+     * touching {@code classpath}.
+     */
+    void collectGarbageInBackground(final List<File> classpath) {
+      final long maxSize = settings.repoMaxSizeBytes();
+      if (maxSize > 0) {
+        Thread collector = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              List<File> keep = pinnedVersionDirectories();
+              for (File file : classpath) {
+                keep.add(file.getParentFile());
+              }
+              eviction.collect(maxSize, keep);
+            } catch (Exception e) {
+              logger.warn("Could not evict artifacts from the local repository: %s", e.getMessage());
+            }
+          }
+        }, "dropship-repo-gc");
+        collector.setDaemon(true);
+        collector.start();
+      }
+    }
+
+    /**
+     * Evicts least recently used artifacts until the local repository fits
+     * in {@code repo.max-size}, keeping every version pinned by an alias.
+     */
+    public void collectGarbage() {
+      long maxSize = settings.repoMaxSizeBytes();
+      if (maxSize <= 0) {
+        throw new DropshipRuntimeException("No size limit for the local repository: use --gc-repo=<size> or set repo.max-size");
+      }
+      try {
+        eviction.collect(maxSize, pinnedVersionDirectories());
+      } catch (IOException e) {
+        throw new DropshipRuntimeException("Could not evict artifacts from " + localRepositoryDirectory + ": " + e.getMessage());
+      }
+    }
+
+    /**
+     * Returns the version directories of pinned artifacts and, where the
+     * local repository has their POMs, of their dependencies.
+     */
+    private List<File> pinnedVersionDirectories() {
+      List<File> pinned = new ArrayList<File>();
+      DependencySelection selection = DependencySelection.from(settings);
+      for (String gav : settings.pinnedArtifacts()) {
+        DefaultArtifact artifact = new DefaultArtifact(gav);
+        pinned.add(RepositoryEviction.versionDirectory(
+          localRepositoryDirectory, artifact.getGroupId(), artifact.getArtifactId(), artifact.getBaseVersion()));
+        try {
+          OfflineArtifactResolution offline = new OfflineArtifactResolution(
+            localRepositoryDirectory, repositories, assembleSystemProps(), selection);
+          for (Artifact dependency : offline.resolve(artifact)) {
+            pinned.add(dependency.getFile().getParentFile());
+          }
+        } catch (Exception e) {
+          logger.debug("Keeping only %s itself: %s", gav, e.getMessage());
+        }
+      }
+      return pinned;
+    }
+
+    /**
+     * Packs the local repository into the file given by {@code --pack-repo}.
+     * Given an artifact, resolves it, then packs just the files resolving it
+     * reads (POMs, metadata and jars), which is all a launch from the pack
+     * needs; otherwise packs every file in the local repository.
+     *
+     * @param gav the group:artifact:version whose graph to pack, or "" for the whole repository
+     */
+    public void packRepository(String gav) {
+      File out = new File(settings.packRepoPath());
+      List<String> paths = new ArrayList<String>();
+      if (gav.length() == 0) {
+        listRepository(localRepositoryDirectory, "", paths);
+      } else {
+        try {
+          logger.info("Resolving dependencies");
+          resolveArtifacts(createCollectRequestForGAV(gav));
+
+          // Replays resolution against the local repository to learn which files it reads
+          OfflineArtifactResolution offline = new OfflineArtifactResolution(
+            localRepositoryDirectory, repositories, assembleSystemProps(), DependencySelection.from(settings));
+          offline.resolve(new DefaultArtifact(gav));
+          String prefix = localRepositoryDirectory.getPath() + File.separator;
+          for (File file : offline.accessedFiles()) {
+            paths.add(file.getPath().substring(prefix.length()).replace(File.separatorChar, '/'));
+          }
+        } catch (OfflineArtifactResolution.UnsupportedGraphException e) {
+          throw new DropshipRuntimeException("Cannot pack " + gav + ": " + e.getMessage());
+        } catch (DependencyCollectionException e) {
+          throw new DropshipRuntimeException(e.getMessage());
+        } catch (ArtifactResolutionException e) {
+          throw new DropshipRuntimeException(e.getMessage());
+        } catch (DependencyResolutionException e) {
+          throw new DropshipRuntimeException(e.getMessage());
+        }
+      }
+
+      logger.info("Packing %d files into %s", paths.size(), out);
+      try {
+        long size = PackedRepository.write(localRepositoryDirectory, paths, out);
+        logger.info("Packed %d KB into %s", size / 1024, out);
+      } catch (IOException e) {
+        throw new DropshipRuntimeException("Could not pack " + localRepositoryDirectory + " into " + out + ": " + e.getMessage());
+      }
+    }
+
+    /** Adds the path of every file under {@code dir}, skipping Dropship's own dot directories. */
+    private static void listRepository(File dir, String prefix, List<String> paths) {
+      File[] children = dir.listFiles();
+      if (children == null) {
+        return;
+      }
+      for (File child : children) {
+        if (child.getName().startsWith(".")) {
+          continue;
+        }
+        if (child.isDirectory()) {
+          listRepository(child, prefix + child.getName() + '/', paths);
+        } else if (child.isFile()) {
+          paths.add(prefix + child.getName());
+        }
+      }
+    }
+
     private CollectRequest createCollectRequestForGAV(String gav) {
       DefaultArtifact artifact = new DefaultArtifact(gav);
-      Dependency dependency = new Dependency(artifact, COMPILE_SCOPE);
+      // No scope for the root: the session's DependencySelection decides which scopes are collected
+      Dependency dependency = new Dependency(artifact, null);
 
       CollectRequest collectRequest = new CollectRequest();
       collectRequest.setRoot(dependency);
@@ -238,16 +685,31 @@ final class MavenArtifactResolution {
       return collectRequest;
     }
 
+    private List<Artifact> resolveArtifacts(CollectRequest collectRequest)
+      throws DependencyCollectionException, ArtifactResolutionException, DependencyResolutionException {
+
+      if (settings.offlineMode()) {
+        try {
+          OfflineArtifactResolution offline = new OfflineArtifactResolution(
+            localRepositoryDirectory, repositories, assembleSystemProps(), DependencySelection.from(settings));
+          return offline.resolve(collectRequest.getRoot().getArtifact());
+        } catch (OfflineArtifactResolution.UnsupportedGraphException e) {
+          logger.info("Falling back to full offline resolution: %s", e.getMessage());
+        }
+      }
+
+      return collectDependenciesIntoArtifacts(collectRequest);
+    }
+
     private List<Artifact> collectDependenciesIntoArtifacts(CollectRequest collectRequest)
-      throws PlexusContainerException, ComponentLookupException, DependencyCollectionException, ArtifactResolutionException, DependencyResolutionException {
+      throws DependencyCollectionException, ArtifactResolutionException, DependencyResolutionException {
 
       RepositorySystem repositorySystem = newRepositorySystem();
       RepositorySystemSession session = newSession(repositorySystem);
       DependencyNode node = repositorySystem.collectDependencies(session, collectRequest).getRoot();
 
-      DependencyFilter filter = new ScopeDependencyFilter();
-
-      DependencyRequest request = new DependencyRequest(node, filter);
+      // The session's selector already left out what should not be on the classpath
+      DependencyRequest request = new DependencyRequest(node, null);
 
       repositorySystem.resolveDependencies(session, request);
 
@@ -258,51 +720,34 @@ final class MavenArtifactResolution {
       return nlg.getArtifacts(false);
     }
 
-    private RepositorySystem newRepositorySystem() throws PlexusContainerException, ComponentLookupException {
-      if (settings.insecure()) {
-        logger.warn("Disabling strict SSL certificate checking!");
-
-        // Create a trust manager that does not validate certificate chains
-        TrustManager[] trustAllCerts = new TrustManager[]{
-          new X509TrustManager() {
-            public java.security.cert.X509Certificate[] getAcceptedIssuers() {
-              return new X509Certificate[0];
-            }
-
-            public void checkClientTrusted(X509Certificate[] certs, String authType) {}
-
-            public void checkServerTrusted(X509Certificate[] certs, String authType) {}
-          }
-        };
+    private RepositorySystem newRepositorySystem() {
+      return RepositorySystemProvider.get(settings, logger);
+    }
 
-        try {
-          SSLContext sc = SSLContext.getInstance("SSL");
-          sc.init(null, trustAllCerts, new java.security.SecureRandom());
-          HttpsURLConnection.setDefaultSSLSocketFactory(sc.getSocketFactory());
-          HttpsURLConnection.setDefaultHostnameVerifier(
-            new HostnameVerifier() {
-              public boolean verify(String hostname, SSLSession session) {
-                return true;
-              }
-            }
-          );
-        } catch (GeneralSecurityException e) {
-          e.printStackTrace();
-        }
+    /** Releases the shared repository system once resolution is complete. */
+    public void close() {
+      if (pipeline != null) {
+        // artifacts may still be downloading for the class loader
+        pipeline.closeWhenDone();
+      } else {
+        RepositorySystemProvider.shutdown();
       }
-
-      return new DefaultPlexusContainer().lookup(RepositorySystem.class);
     }
 
     private RepositorySystemSession newSession(RepositorySystem system) {
       LocalRepository localRepo = new LocalRepository(localRepositoryDirectory);
       LocalRepositoryManager localRepositoryManager = system.newLocalRepositoryManager(localRepo);
+      if (settings.repoIndex()) {
+        localRepositoryManager = new IndexedLocalRepositoryManager(localRepositoryManager, logger);
+      }
 
       Map<String, String> systemProps = assembleSystemProps();
+      DependencySelector selector = DependencySelection.from(settings).toDependencySelector();
 
       if (settings.offlineMode()) {
-        DefaultRepositorySystemSession session = new DefaultRepositorySystemSession();
+        MavenRepositorySystemSession session = new MavenRepositorySystemSession();
         session.setOffline(true);
+        session.setDependencySelector(selector);
         session.setSystemProperties(systemProps);
         session.setLocalRepositoryManager(localRepositoryManager);
         return session;
@@ -310,7 +755,10 @@ final class MavenArtifactResolution {
 
       MavenRepositorySystemSession session = new MavenRepositorySystemSession();
       session.setOffline(false);
-      session.setRepositoryListener(logger.listener());
+      session.setDependencySelector(selector);
+      session.setRepositoryListener(store != null
+        ? new ChainedRepositoryListener(logger.listener(), store.listener())
+        : logger.listener());
       session.setChecksumPolicy(RepositoryPolicy.CHECKSUM_POLICY_FAIL);
       session.setIgnoreInvalidArtifactDescriptor(false);
       session.setIgnoreMissingArtifactDescriptor(false);
@@ -353,7 +801,7 @@ final class MavenArtifactResolution {
   }
 
   static ArtifactResolutionBuilder usingCentralRepo(Settings settings, Logger logger) {
-    RemoteRepository central = new RemoteRepository("central", "default", "http://repo1.maven.org/maven2/");
+    RemoteRepository central = new RemoteRepository("central", "default", CENTRAL_URL);
     return new ArtifactResolutionBuilder(settings, logger, central);
   }
 
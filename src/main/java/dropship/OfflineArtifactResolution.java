@@ -0,0 +1,831 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import org.sonatype.aether.artifact.Artifact;
+import org.sonatype.aether.repository.RemoteRepository;
+import org.sonatype.aether.util.artifact.DefaultArtifact;
+import org.sonatype.aether.util.version.GenericVersionScheme;
+import org.sonatype.aether.version.InvalidVersionSpecificationException;
+import org.sonatype.aether.version.Version;
+import org.sonatype.aether.version.VersionConstraint;
+import org.sonatype.aether.version.VersionScheme;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static dropship.Preconditions.checkNotNull;
+
+/**
+ * Resolves a dependency graph using nothing but the POMs already cached in
+ * the local repository. This avoids booting the Plexus container and the
+ * Maven model builder when running offline. It mirrors the behavior of a
+ * {@link org.apache.maven.repository.internal.MavenRepositorySystemSession}:
+ * the configured {@link DependencySelection} decides which scopes, optionals
+ * and artifacts are kept (by default test and provided scopes are skipped
+ * and transitive optionals are dropped),
+ * the root's dependency management applies to transitive dependencies,
+ * and version conflicts are mediated nearest-wins.
+ *
+ * <p>Anything outside of that subset (transitive version ranges, snapshots,
+ * relocations, system scope, profiles that alter dependencies, unresolvable
+ * properties, missing files) raises {@link UnsupportedGraphException}, and
+ * callers are expected to fall back to the full resolution engine.</p>
+ */
+final class OfflineArtifactResolution {
+
+  /** Thrown when the graph uses a feature this resolver does not model. */
+  static final class UnsupportedGraphException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    UnsupportedGraphException(String message) {
+      super(message);
+    }
+  }
+
+  private static final Pattern PROPERTY = Pattern.compile("\\$\\{([^}]+)\\}");
+  private static final String LOCAL_REPOSITORY_ID = "";
+  private static final int MAX_INTERPOLATION_DEPTH = 16;
+
+  private final File localRepositoryDirectory;
+  private final PackedRepository pack;
+  private final Collection<String> repositoryIds;
+  private final Map<String, String> systemProps;
+  private final DependencySelection selection;
+  private final VersionScheme versionScheme = new GenericVersionScheme();
+  private final Map<String, Pom> rawPoms = new HashMap<String, Pom>();
+  private final Map<String, Pom> effectivePoms = new HashMap<String, Pom>();
+  private final Set<File> accessedFiles = new LinkedHashSet<File>();
+  private DocumentBuilder documentBuilder;
+
+  OfflineArtifactResolution(File localRepositoryDirectory, List<RemoteRepository> repositories, Map<String, String> systemProps,
+                            DependencySelection selection) {
+    this(localRepositoryDirectory, null, repositories, systemProps, selection);
+  }
+
+  /** Resolves from the files packed in {@code pack} rather than from a directory. */
+  OfflineArtifactResolution(PackedRepository pack, List<RemoteRepository> repositories, Map<String, String> systemProps,
+                            DependencySelection selection) {
+    this(checkNotNull(pack, "pack").root(), pack, repositories, systemProps, selection);
+  }
+
+  private OfflineArtifactResolution(File localRepositoryDirectory, PackedRepository pack, List<RemoteRepository> repositories,
+                                    Map<String, String> systemProps, DependencySelection selection) {
+    this.localRepositoryDirectory = checkNotNull(localRepositoryDirectory, "local repository directory");
+    this.pack = pack;
+    this.systemProps = checkNotNull(systemProps, "system props");
+    this.selection = checkNotNull(selection, "selection");
+    this.repositoryIds = new HashSet<String>();
+    this.repositoryIds.add(LOCAL_REPOSITORY_ID);
+    for (RemoteRepository repository : checkNotNull(repositories, "repositories")) {
+      this.repositoryIds.add(repository.getId());
+    }
+  }
+
+  /**
+   * Resolves {@code root} and its runtime dependencies, returning artifacts
+   * in the same order as a preorder walk of the mediated dependency graph.
+   */
+  List<Artifact> resolve(Artifact root) throws UnsupportedGraphException {
+    checkNotNull(root, "root");
+
+    String version = resolveRootVersion(root);
+    Dep rootDep = new Dep(root.getGroupId(), root.getArtifactId(), version, root.getExtension(), root.getClassifier(), "compile", false);
+    Pom rootPom = effectivePom(rootDep.groupId, rootDep.artifactId, version);
+
+    Map<String, Dep> managed = new HashMap<String, Dep>();
+    for (Dep dep : rootPom.managed) {
+      String key = dep.conflictKey();
+      if (!managed.containsKey(key)) {
+        managed.put(key, dep);
+      }
+    }
+
+    GraphNode rootNode = new GraphNode(null, rootDep, 0);
+    expand(rootNode, rootPom, managed, Collections.<String>emptySet(), new HashSet<String>());
+    mediate(rootNode);
+
+    List<Artifact> artifacts = new ArrayList<Artifact>();
+    collect(rootNode, artifacts);
+    return artifacts;
+  }
+
+  /**
+   * Returns every file in the local repository that resolution has read,
+   * metadata and POMs included, which is what it takes to resolve the same
+   * graph again.
+   */
+  Set<File> accessedFiles() {
+    return new LinkedHashSet<File>(accessedFiles);
+  }
+
+  private String resolveRootVersion(Artifact root) throws UnsupportedGraphException {
+    String version = root.getVersion();
+    if (version.startsWith("[") || version.startsWith("(")) {
+      VersionConstraint constraint = parseConstraint(version);
+      Version highest = null;
+      for (String candidate : localVersions(root.getGroupId(), root.getArtifactId())) {
+        Version parsed = parseVersion(candidate);
+        if (constraint.containsVersion(parsed) && (highest == null || parsed.compareTo(highest) > 0)) {
+          highest = parsed;
+        }
+      }
+      if (highest == null) {
+        throw new UnsupportedGraphException("No local versions of " + root + " within specified range");
+      }
+      version = highest.toString();
+    }
+    checkSupportedVersion(root.getGroupId() + ':' + root.getArtifactId(), version);
+    return version;
+  }
+
+  private Collection<String> localVersions(String groupId, String artifactId) throws UnsupportedGraphException {
+    Collection<String> versions = new LinkedHashSet<String>();
+    File dir = new File(localRepositoryDirectory, groupId.replace('.', '/') + '/' + artifactId);
+    for (String repositoryId : repositoryIds) {
+      String name = LOCAL_REPOSITORY_ID.equals(repositoryId) ? "maven-metadata-local.xml" : "maven-metadata-" + repositoryId + ".xml";
+      File metadata = new File(dir, name);
+      if (!isFile(metadata)) {
+        continue;
+      }
+      Element versioning = child(parse(metadata).getDocumentElement(), "versioning");
+      Element versionList = versioning != null ? child(versioning, "versions") : null;
+      if (versionList != null) {
+        for (Element element : children(versionList, "version")) {
+          versions.add(element.getTextContent().trim());
+        }
+      }
+    }
+    return versions;
+  }
+
+  private void expand(GraphNode node, Pom pom, Map<String, Dep> managed, Set<String> exclusions, Set<String> path)
+    throws UnsupportedGraphException {
+
+    String id = node.dep.groupId + ':' + node.dep.artifactId + ':' + node.dep.version;
+    if (!path.add(id)) {
+      throw new UnsupportedGraphException("Dependency cycle through " + id);
+    }
+
+    int childDepth = node.depth + 1;
+    for (Dep declared : pom.dependencies) {
+      if (!selection.selects(declared.groupId, declared.artifactId, declared.scope, declared.optional, childDepth)) {
+        continue;
+      }
+      if (exclusions.contains(declared.groupId + ':' + declared.artifactId)
+        || exclusions.contains(declared.groupId + ":*")
+        || exclusions.contains("*:" + declared.artifactId)
+        || exclusions.contains("*:*")) {
+        continue;
+      }
+      if ("system".equals(declared.scope)) {
+        throw new UnsupportedGraphException("System scoped dependency " + declared);
+      }
+
+      Dep dep = declared;
+      Dep management = managed.get(declared.conflictKey());
+      if (management != null) {
+        dep = declared.copy();
+        if (childDepth >= 2 && management.version.length() > 0) {
+          dep.version = management.version;
+        }
+        dep.exclusions.addAll(management.exclusions);
+      }
+      checkSupportedVersion(dep.groupId + ':' + dep.artifactId, dep.version);
+
+      GraphNode child = new GraphNode(node, dep, childDepth);
+      node.children.add(child);
+
+      Set<String> childExclusions = exclusions;
+      if (!dep.exclusions.isEmpty()) {
+        childExclusions = new HashSet<String>(exclusions);
+        childExclusions.addAll(dep.exclusions);
+      }
+      expand(child, effectivePom(dep.groupId, dep.artifactId, dep.version), managed, childExclusions, path);
+    }
+
+    path.remove(id);
+  }
+
+  /**
+   * Applies nearest-wins mediation one conflict group at a time, parents
+   * before children, so that losers pruned from one group no longer count
+   * towards the groups below them.
+   */
+  private void mediate(GraphNode root) throws UnsupportedGraphException {
+    for (String key : sortConflictKeys(root)) {
+      List<GraphNode> occurrences = new ArrayList<GraphNode>();
+      findOccurrences(root, key, occurrences);
+
+      GraphNode winner = null;
+      for (GraphNode candidate : occurrences) {
+        if (winner == null
+          || candidate.depth < winner.depth
+          || (candidate.depth == winner.depth && candidate.parent == winner.parent
+              && parseVersion(candidate.dep.version).compareTo(parseVersion(winner.dep.version)) > 0)) {
+          winner = candidate;
+        }
+      }
+
+      boolean kept = false;
+      for (GraphNode candidate : occurrences) {
+        if (candidate.parent == null) {
+          continue;
+        }
+        if (!kept && candidate.depth == winner.depth && candidate.dep.version.equals(winner.dep.version)) {
+          kept = true;
+        } else {
+          candidate.parent.children.remove(candidate);
+        }
+      }
+    }
+  }
+
+  private List<String> sortConflictKeys(GraphNode root) throws UnsupportedGraphException {
+    Map<String, Set<String>> edges = new LinkedHashMap<String, Set<String>>();
+    collectConflictEdges(root, edges);
+
+    Map<String, Integer> inDegree = new HashMap<String, Integer>();
+    for (String key : edges.keySet()) {
+      if (!inDegree.containsKey(key)) {
+        inDegree.put(key, 0);
+      }
+      for (String target : edges.get(key)) {
+        Integer degree = inDegree.get(target);
+        inDegree.put(target, degree == null ? 1 : degree + 1);
+      }
+    }
+
+    List<String> sorted = new ArrayList<String>();
+    LinkedList<String> ready = new LinkedList<String>();
+    for (String key : edges.keySet()) {
+      if (inDegree.get(key) == 0) {
+        ready.add(key);
+      }
+    }
+    while (!ready.isEmpty()) {
+      String key = ready.removeFirst();
+      sorted.add(key);
+      for (String target : edges.get(key)) {
+        int degree = inDegree.get(target) - 1;
+        inDegree.put(target, degree);
+        if (degree == 0) {
+          ready.add(target);
+        }
+      }
+    }
+
+    if (sorted.size() != edges.size()) {
+      throw new UnsupportedGraphException("Cyclic conflict groups");
+    }
+    return sorted;
+  }
+
+  private void collectConflictEdges(GraphNode node, Map<String, Set<String>> edges) {
+    String key = node.dep.conflictKey();
+    Set<String> targets = edges.get(key);
+    if (targets == null) {
+      targets = new LinkedHashSet<String>();
+      edges.put(key, targets);
+    }
+    for (GraphNode child : node.children) {
+      String childKey = child.dep.conflictKey();
+      if (!childKey.equals(key)) {
+        targets.add(childKey);
+      }
+      collectConflictEdges(child, edges);
+    }
+  }
+
+  private void findOccurrences(GraphNode node, String key, List<GraphNode> occurrences) {
+    if (node.dep.conflictKey().equals(key)) {
+      occurrences.add(node);
+    }
+    for (GraphNode child : node.children) {
+      findOccurrences(child, key, occurrences);
+    }
+  }
+
+  private void collect(GraphNode node, List<Artifact> artifacts) throws UnsupportedGraphException {
+    Dep dep = node.dep;
+    DefaultArtifact artifact = new DefaultArtifact(dep.groupId, dep.artifactId, dep.classifier, dep.extension, dep.version);
+    artifacts.add(artifact.setFile(availableFile(artifact)));
+    for (GraphNode child : node.children) {
+      collect(child, artifacts);
+    }
+  }
+
+  private Pom effectivePom(String groupId, String artifactId, String version) throws UnsupportedGraphException {
+    String id = groupId + ':' + artifactId + ':' + version;
+    Pom effective = effectivePoms.get(id);
+    if (effective != null) {
+      return effective;
+    }
+
+    // Assemble the inheritance chain from the topmost parent down
+    LinkedList<Pom> lineage = new LinkedList<Pom>();
+    Pom current = rawPom(groupId, artifactId, version);
+    lineage.addFirst(current);
+    while (current.parent != null) {
+      Dep parent = current.parent;
+      if (lineage.size() > MAX_INTERPOLATION_DEPTH) {
+        throw new UnsupportedGraphException("Parent chain too deep for " + id);
+      }
+      current = rawPom(parent.groupId, parent.artifactId, parent.version);
+      lineage.addFirst(current);
+    }
+
+    effective = new Pom();
+    Map<String, String> properties = new HashMap<String, String>();
+    Map<String, Dep> dependencies = new LinkedHashMap<String, Dep>();
+    Map<String, Dep> managed = new LinkedHashMap<String, Dep>();
+    for (Pom pom : lineage) {
+      if (pom.groupId != null) {
+        effective.groupId = pom.groupId;
+      }
+      if (pom.version != null) {
+        effective.version = pom.version;
+      }
+      effective.artifactId = pom.artifactId;
+      effective.parent = pom.parent;
+      properties.putAll(pom.properties);
+    }
+
+    // Inherited declarations follow the child's own, which win on conflicting keys
+    for (Iterator<Pom> it = lineage.descendingIterator(); it.hasNext(); ) {
+      Pom pom = it.next();
+      for (Dep dep : pom.dependencies) {
+        if (!dependencies.containsKey(dep.managementKey())) {
+          dependencies.put(dep.managementKey(), dep);
+        }
+      }
+      for (Dep dep : pom.managed) {
+        if (!managed.containsKey(dep.managementKey())) {
+          managed.put(dep.managementKey(), dep);
+        }
+      }
+    }
+
+    Map<String, String> builtins = new HashMap<String, String>();
+    builtins.put("groupId", effective.groupId);
+    builtins.put("artifactId", effective.artifactId);
+    builtins.put("version", effective.version);
+    if (effective.parent != null) {
+      builtins.put("parent.groupId", effective.parent.groupId);
+      builtins.put("parent.artifactId", effective.parent.artifactId);
+      builtins.put("parent.version", effective.parent.version);
+    }
+
+    // Interpolate, expand imported BOMs, then inject management into dependencies
+    List<Dep> effectiveManaged = new ArrayList<Dep>();
+    for (Dep dep : managed.values()) {
+      Dep interpolated = interpolate(dep, builtins, properties);
+      if ("import".equals(interpolated.scope) && "pom".equals(interpolated.type)) {
+        effectiveManaged.addAll(effectivePom(interpolated.groupId, interpolated.artifactId, interpolated.version).managed);
+      } else {
+        effectiveManaged.add(interpolated);
+      }
+    }
+    Map<String, Dep> managedByKey = new HashMap<String, Dep>();
+    for (Dep dep : effectiveManaged) {
+      if (!managedByKey.containsKey(dep.managementKey())) {
+        managedByKey.put(dep.managementKey(), dep);
+      }
+    }
+    effective.managed.addAll(effectiveManaged);
+
+    for (Dep declared : dependencies.values()) {
+      Dep dep = interpolate(declared, builtins, properties);
+      Dep management = managedByKey.get(dep.managementKey());
+      if (management != null) {
+        if (dep.version.length() == 0) {
+          dep.version = management.version;
+        }
+        if (dep.scope.length() == 0) {
+          dep.scope = management.scope;
+        }
+        if (dep.exclusions.isEmpty()) {
+          dep.exclusions.addAll(management.exclusions);
+        }
+      }
+      effective.dependencies.add(dep);
+    }
+
+    effectivePoms.put(id, effective);
+    return effective;
+  }
+
+  private Dep interpolate(Dep dep, Map<String, String> builtins, Map<String, String> properties)
+    throws UnsupportedGraphException {
+
+    Dep result = new Dep(
+      interpolate(dep.groupId, builtins, properties),
+      interpolate(dep.artifactId, builtins, properties),
+      interpolate(dep.version, builtins, properties),
+      null,
+      interpolate(dep.classifier, builtins, properties),
+      interpolate(dep.scope, builtins, properties),
+      "true".equals(interpolate(dep.optionalText, builtins, properties))
+    );
+    result.type = interpolate(dep.type, builtins, properties);
+    result.extension = extensionOf(result.type);
+    if (result.classifier.length() == 0) {
+      result.classifier = classifierOf(result.type);
+    }
+    for (String exclusion : dep.exclusions) {
+      result.exclusions.add(interpolate(exclusion, builtins, properties));
+    }
+    return result;
+  }
+
+  private String interpolate(String value, Map<String, String> builtins, Map<String, String> properties)
+    throws UnsupportedGraphException {
+
+    String result = value;
+    for (int i = 0; i < MAX_INTERPOLATION_DEPTH && result.contains("${"); i++) {
+      Matcher matcher = PROPERTY.matcher(result);
+      StringBuffer buffer = new StringBuffer();
+      while (matcher.find()) {
+        String replacement = lookup(matcher.group(1), builtins, properties);
+        if (replacement == null) {
+          throw new UnsupportedGraphException("Cannot interpolate " + value);
+        }
+        matcher.appendReplacement(buffer, Matcher.quoteReplacement(replacement));
+      }
+      matcher.appendTail(buffer);
+      result = buffer.toString();
+    }
+    if (result.contains("${")) {
+      throw new UnsupportedGraphException("Cannot interpolate " + value);
+    }
+    return result;
+  }
+
+  private String lookup(String name, Map<String, String> builtins, Map<String, String> properties) {
+    for (String prefix : new String[]{"project.", "pom."}) {
+      if (name.startsWith(prefix) && builtins.containsKey(name.substring(prefix.length()))) {
+        return builtins.get(name.substring(prefix.length()));
+      }
+    }
+    if (properties.containsKey(name)) {
+      return properties.get(name);
+    }
+    if (systemProps.containsKey(name)) {
+      return systemProps.get(name);
+    }
+    return builtins.get(name);
+  }
+
+  private Pom rawPom(String groupId, String artifactId, String version) throws UnsupportedGraphException {
+    String id = groupId + ':' + artifactId + ':' + version;
+    Pom pom = rawPoms.get(id);
+    if (pom != null) {
+      return pom;
+    }
+
+    checkSupportedVersion(groupId + ':' + artifactId, version);
+    File file = availableFile(new DefaultArtifact(groupId, artifactId, "pom", version));
+    Element project = parse(file).getDocumentElement();
+
+    if (child(project, "profiles") != null) {
+      for (Element profile : children(child(project, "profiles"), "profile")) {
+        if (child(profile, "dependencies") != null
+          || child(profile, "dependencyManagement") != null
+          || child(profile, "properties") != null) {
+          throw new UnsupportedGraphException("Profile affecting dependencies in " + id);
+        }
+      }
+    }
+    Element distributionManagement = child(project, "distributionManagement");
+    if (distributionManagement != null && child(distributionManagement, "relocation") != null) {
+      throw new UnsupportedGraphException("Relocated artifact " + id);
+    }
+
+    pom = new Pom();
+    pom.groupId = text(project, "groupId", null);
+    pom.artifactId = text(project, "artifactId", artifactId);
+    pom.version = text(project, "version", null);
+
+    Element parent = child(project, "parent");
+    if (parent != null) {
+      pom.parent = new Dep(text(parent, "groupId", ""), text(parent, "artifactId", ""), text(parent, "version", ""), "pom", "", "", false);
+    }
+
+    Element properties = child(project, "properties");
+    if (properties != null) {
+      NodeList nodes = properties.getChildNodes();
+      for (int i = 0; i < nodes.getLength(); i++) {
+        if (nodes.item(i) instanceof Element) {
+          Element property = (Element) nodes.item(i);
+          pom.properties.put(property.getTagName(), property.getTextContent().trim());
+        }
+      }
+    }
+
+    Element dependencies = child(project, "dependencies");
+    if (dependencies != null) {
+      for (Element element : children(dependencies, "dependency")) {
+        pom.dependencies.add(parseDependency(element));
+      }
+    }
+
+    Element dependencyManagement = child(project, "dependencyManagement");
+    if (dependencyManagement != null && child(dependencyManagement, "dependencies") != null) {
+      for (Element element : children(child(dependencyManagement, "dependencies"), "dependency")) {
+        pom.managed.add(parseDependency(element));
+      }
+    }
+
+    rawPoms.put(id, pom);
+    return pom;
+  }
+
+  private static Dep parseDependency(Element element) {
+    Dep dep = new Dep(
+      text(element, "groupId", ""),
+      text(element, "artifactId", ""),
+      text(element, "version", ""),
+      null,
+      text(element, "classifier", ""),
+      text(element, "scope", ""),
+      false
+    );
+    dep.type = text(element, "type", "jar");
+    dep.optionalText = text(element, "optional", "false");
+    Element exclusions = child(element, "exclusions");
+    if (exclusions != null) {
+      for (Element exclusion : children(exclusions, "exclusion")) {
+        dep.exclusions.add(text(exclusion, "groupId", "*") + ':' + text(exclusion, "artifactId", "*"));
+      }
+    }
+    return dep;
+  }
+
+  private File availableFile(Artifact artifact) throws UnsupportedGraphException {
+    String version = artifact.getVersion();
+    StringBuilder path = new StringBuilder()
+      .append(artifact.getGroupId().replace('.', '/')).append('/')
+      .append(artifact.getArtifactId()).append('/')
+      .append(version).append('/')
+      .append(artifact.getArtifactId()).append('-').append(version);
+    if (artifact.getClassifier().length() > 0) {
+      path.append('-').append(artifact.getClassifier());
+    }
+    path.append('.').append(artifact.getExtension());
+
+    File file = new File(localRepositoryDirectory, path.toString());
+    if (!isFile(file)) {
+      throw new UnsupportedGraphException("Not in local repository: " + artifact);
+    }
+
+    // Honor the same origin tracking as the enhanced local repository manager
+    File tracking = new File(file.getParentFile(), "_maven.repositories");
+    if (isFile(tracking)) {
+      Properties props = new Properties();
+      try {
+        InputStream in = open(tracking);
+        try {
+          props.load(in);
+        } finally {
+          in.close();
+        }
+      } catch (IOException e) {
+        throw new UnsupportedGraphException("Could not read " + tracking + ": " + e.getMessage());
+      }
+      boolean tracked = false;
+      for (Object key : props.keySet()) {
+        String entry = key.toString();
+        if (entry.startsWith(file.getName() + '>')) {
+          tracked = true;
+          if (repositoryIds.contains(entry.substring(file.getName().length() + 1))) {
+            return file;
+          }
+        }
+      }
+      if (tracked) {
+        throw new UnsupportedGraphException("Not available from configured repositories: " + artifact);
+      }
+    }
+    return file;
+  }
+
+  private void checkSupportedVersion(String coordinates, String version) throws UnsupportedGraphException {
+    if (version == null || version.length() == 0) {
+      throw new UnsupportedGraphException("Missing version for " + coordinates);
+    }
+    if (version.startsWith("[") || version.startsWith("(")) {
+      throw new UnsupportedGraphException("Version range for " + coordinates);
+    }
+    if (version.endsWith("SNAPSHOT") || "LATEST".equals(version) || "RELEASE".equals(version)) {
+      throw new UnsupportedGraphException("Non-fixed version " + version + " for " + coordinates);
+    }
+  }
+
+  private Version parseVersion(String version) throws UnsupportedGraphException {
+    try {
+      return versionScheme.parseVersion(version);
+    } catch (InvalidVersionSpecificationException e) {
+      throw new UnsupportedGraphException(e.getMessage());
+    }
+  }
+
+  private VersionConstraint parseConstraint(String constraint) throws UnsupportedGraphException {
+    try {
+      return versionScheme.parseVersionConstraint(constraint);
+    } catch (InvalidVersionSpecificationException e) {
+      throw new UnsupportedGraphException(e.getMessage());
+    }
+  }
+
+  private Document parse(File file) throws UnsupportedGraphException {
+    try {
+      if (documentBuilder == null) {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(false);
+        factory.setValidating(false);
+        factory.setExpandEntityReferences(false);
+        documentBuilder = factory.newDocumentBuilder();
+      }
+      InputStream in = open(file);
+      try {
+        return documentBuilder.parse(in, file.toURI().toString());
+      } finally {
+        in.close();
+      }
+    } catch (Exception e) {
+      throw new UnsupportedGraphException("Could not parse " + file + ": " + e.getMessage());
+    }
+  }
+
+  /** Returns true if {@code file} is in the local repository, noting that it was read. */
+  private boolean isFile(File file) {
+    boolean present = pack != null ? pack.contains(pack.pathOf(file)) : file.isFile();
+    if (present) {
+      accessedFiles.add(file);
+    }
+    return present;
+  }
+
+  private InputStream open(File file) throws IOException {
+    return pack != null ? pack.open(pack.pathOf(file)) : new FileInputStream(file);
+  }
+
+  private static Element child(Element parent, String name) {
+    NodeList nodes = parent.getChildNodes();
+    for (int i = 0; i < nodes.getLength(); i++) {
+      Node node = nodes.item(i);
+      if (node instanceof Element && name.equals(((Element) node).getTagName())) {
+        return (Element) node;
+      }
+    }
+    return null;
+  }
+
+  private static List<Element> children(Element parent, String name) {
+    List<Element> elements = new ArrayList<Element>();
+    NodeList nodes = parent.getChildNodes();
+    for (int i = 0; i < nodes.getLength(); i++) {
+      Node node = nodes.item(i);
+      if (node instanceof Element && name.equals(((Element) node).getTagName())) {
+        elements.add((Element) node);
+      }
+    }
+    return elements;
+  }
+
+  private static String text(Element parent, String name, String defaultValue) {
+    Element element = child(parent, name);
+    return element != null ? element.getTextContent().trim() : defaultValue;
+  }
+
+  private static String extensionOf(String type) throws UnsupportedGraphException {
+    if ("jar".equals(type) || "pom".equals(type) || "war".equals(type) || "ear".equals(type)
+      || "rar".equals(type) || "par".equals(type)) {
+      return type;
+    }
+    if ("test-jar".equals(type) || "ejb-client".equals(type) || "ejb".equals(type)
+      || "maven-plugin".equals(type) || "javadoc".equals(type) || "java-source".equals(type)) {
+      return "jar";
+    }
+    throw new UnsupportedGraphException("Unknown dependency type " + type);
+  }
+
+  private static String classifierOf(String type) {
+    if ("test-jar".equals(type)) {
+      return "tests";
+    } else if ("ejb-client".equals(type)) {
+      return "client";
+    } else if ("javadoc".equals(type)) {
+      return "javadoc";
+    } else if ("java-source".equals(type)) {
+      return "sources";
+    }
+    return "";
+  }
+
+  private static final class Pom {
+    String groupId;
+    String artifactId;
+    String version;
+    Dep parent;
+    final Map<String, String> properties = new LinkedHashMap<String, String>();
+    final List<Dep> dependencies = new ArrayList<Dep>();
+    final List<Dep> managed = new ArrayList<Dep>();
+  }
+
+  private static final class Dep {
+    String groupId;
+    String artifactId;
+    String version;
+    String type;
+    String extension;
+    String classifier;
+    String scope;
+    String optionalText;
+    boolean optional;
+    final Set<String> exclusions = new LinkedHashSet<String>();
+
+    Dep(String groupId, String artifactId, String version, String extension, String classifier, String scope, boolean optional) {
+      this.groupId = groupId;
+      this.artifactId = artifactId;
+      this.version = version;
+      this.type = extension;
+      this.extension = extension;
+      this.classifier = classifier;
+      this.scope = scope;
+      this.optional = optional;
+      this.optionalText = String.valueOf(optional);
+    }
+
+    Dep copy() {
+      Dep copy = new Dep(groupId, artifactId, version, extension, classifier, scope, optional);
+      copy.type = type;
+      copy.exclusions.addAll(exclusions);
+      return copy;
+    }
+
+    /** Key used by the model builder to merge declarations and management. */
+    String managementKey() {
+      return groupId + ':' + artifactId + ':' + type + ':' + classifier;
+    }
+
+    /** Key used by Aether to group conflicting versions of the same artifact. */
+    String conflictKey() {
+      return groupId + ':' + artifactId + ':' + extension + ':' + classifier;
+    }
+
+    @Override
+    public String toString() {
+      return groupId + ':' + artifactId + ':' + version;
+    }
+  }
+
+  private static final class GraphNode {
+    final GraphNode parent;
+    final Dep dep;
+    final int depth;
+    final List<GraphNode> children = new ArrayList<GraphNode>();
+
+    GraphNode(GraphNode parent, Dep dep, int depth) {
+      this.parent = parent;
+      this.dep = dep;
+      this.depth = depth;
+    }
+  }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import dropship.logging.Logger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static dropship.Preconditions.checkNotNull;
+
+/**
+ * What an earlier launch of the same dependency graph learned about its
+ * jars: the packages each one holds, and the order in which the
+ * application first needed them. With these, {@link PipelinedClassLoader}
+ * can fetch the one jar a class lives in instead of waiting for every jar
+ * ahead of it, and {@link PipelinedResolution} downloads the jars the
+ * application needs first ahead of the rest.
+ *
+ * <p>Hints are saved to {@code <repo.local-path>/.packages}, named after a
+ * hash of the graph's artifact coordinates, and are only kept for graphs
+ * without snapshots, whose jars cannot change under the same
+ * coordinates.</p>
+ */
+final class PackageHints {
+
+  private static final String JAR = "jar ";
+  private static final String USED = "used";
+  private static final char PACKAGE = '/';
+
+  private final File hintsFile;
+  private final List<String> coordinates;
+  private final Logger logger;
+
+  // Read from the previous launch
+  private Map<String, int[]> slotsByPackage = null;
+  private List<Integer> previousUseOrder = new ArrayList<Integer>();
+
+  // Learned by this launch
+  private final List<Set<String>> packages;
+  private final Set<Integer> useOrder = new LinkedHashSet<Integer>();
+
+  PackageHints(File directory, List<String> coordinates, Logger logger) {
+    checkNotNull(directory, "directory");
+    this.coordinates = new ArrayList<String>(checkNotNull(coordinates, "coordinates"));
+    this.logger = checkNotNull(logger, "logger");
+    this.hintsFile = new File(directory, ClassPreloader.classpathHash(this.coordinates) + ".hints");
+    this.packages = new ArrayList<Set<String>>();
+    for (int i = 0; i < this.coordinates.size(); i++) {
+      packages.add(null);
+    }
+  }
+
+  /** Reads the hints of an earlier launch, returning false if there are none. */
+  synchronized boolean load() {
+    if (!hintsFile.isFile()) {
+      return false;
+    }
+    Map<String, Set<Integer>> read = new HashMap<String, Set<Integer>>();
+    List<Integer> used = new ArrayList<Integer>();
+    try {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(hintsFile), "UTF-8"));
+      try {
+        int slot = -1;
+        String line;
+        while ((line = reader.readLine()) != null) {
+          if (line.startsWith(JAR)) {
+            slot++;
+            if (slot >= coordinates.size() || !line.substring(JAR.length()).equals(coordinates.get(slot))) {
+              return false;
+            }
+          } else if (slot >= 0 && line.length() > 0 && line.charAt(0) == PACKAGE) {
+            String name = line.substring(1);
+            if (!read.containsKey(name)) {
+              read.put(name, new TreeSet<Integer>());
+            }
+            read.get(name).add(slot);
+          } else if (line.startsWith(USED)) {
+            for (String index : Settings.split(line.substring(USED.length()).trim().replace(' ', ','))) {
+              int usedSlot = Integer.parseInt(index);
+              if (usedSlot >= 0 && usedSlot < coordinates.size()) {
+                used.add(usedSlot);
+              }
+            }
+          }
+        }
+        if (slot != coordinates.size() - 1) {
+          return false;
+        }
+      } finally {
+        reader.close();
+      }
+    } catch (IOException e) {
+      logger.debug("Could not read package hints %s: %s", hintsFile, e.getMessage());
+      return false;
+    } catch (NumberFormatException e) {
+      logger.debug("Could not read package hints %s: %s", hintsFile, e.getMessage());
+      return false;
+    }
+
+    slotsByPackage = new HashMap<String, int[]>();
+    for (Map.Entry<String, Set<Integer>> entry : read.entrySet()) {
+      int[] slots = new int[entry.getValue().size()];
+      int i = 0;
+      for (int slot : entry.getValue()) {
+        slots[i++] = slot;
+      }
+      slotsByPackage.put(entry.getKey(), slots);
+    }
+    previousUseOrder = used;
+    logger.debug("Read package hints %s", hintsFile);
+    return true;
+  }
+
+  /**
+   * Returns the classpath slots whose jars held the package of
+   * {@code entryName} last time, in classpath order, or null if the hints
+   * say nothing about it.
+   */
+  synchronized int[] slotsFor(String entryName) {
+    if (slotsByPackage == null) {
+      return null;
+    }
+    return slotsByPackage.get(packageOf(entryName));
+  }
+
+  /** Returns the slots the previous launch needed, in the order it first needed them. */
+  synchronized List<Integer> priorityOrder() {
+    return new ArrayList<Integer>(previousUseOrder);
+  }
+
+  /** Notes the packages of the jar in {@code slot}. */
+  synchronized void recordPackages(int slot, Set<String> entryNames) {
+    Set<String> names = new TreeSet<String>();
+    for (String entryName : entryNames) {
+      names.add(packageOf(entryName));
+    }
+    packages.set(slot, names);
+  }
+
+  /** Notes that the application needed the jar in {@code slot}. */
+  synchronized void recordUse(int slot) {
+    useOrder.add(slot);
+  }
+
+  /** Saves what this launch learned, keeping the earlier use order after this launch's. */
+  synchronized void save() {
+    StringBuilder lines = new StringBuilder();
+    for (int slot = 0; slot < coordinates.size(); slot++) {
+      if (packages.get(slot) == null) {
+        return;
+      }
+      lines.append(JAR).append(coordinates.get(slot)).append('\n');
+      for (String name : packages.get(slot)) {
+        if (name.indexOf('\n') >= 0 || name.indexOf('\r') >= 0) {
+          return;
+        }
+        lines.append(PACKAGE).append(name).append('\n');
+      }
+    }
+    Set<Integer> used = new LinkedHashSet<Integer>(useOrder);
+    used.addAll(previousUseOrder);
+    lines.append(USED);
+    for (int slot : used) {
+      lines.append(' ').append(slot);
+    }
+    lines.append('\n');
+
+    try {
+      Files.replace(hintsFile, lines.toString().getBytes("UTF-8"));
+    } catch (IOException e) {
+      logger.debug("Could not save package hints: %s", e.getMessage());
+    }
+  }
+
+  /** Returns the directory part of an entry name, such as {@code org/example/}, or "" at the root. */
+  static String packageOf(String entryName) {
+    int slash = entryName.lastIndexOf('/', entryName.length() - 2);
+    return slash >= 0 ? entryName.substring(0, slash + 1) : "";
+  }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.security.CodeSigner;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.Manifest;
+
+import static dropship.Preconditions.checkArgument;
+import static dropship.Preconditions.checkNotNull;
+
+/**
+ * A class loader that reads classes and resources straight out of the jars
+ * in a {@link PackedRepository}, so a launch from a pack never copies or
+ * opens a jar file. Resources are addressed by {@code dropshippack:} URLs,
+ * such as {@code dropshippack:/junit/junit/4.11/junit-4.11.jar!/LICENSE.txt}.
+ * The protocol's {@link dropship.dropshippack.Handler} is registered through
+ * {@code java.protocol.handler.pkgs}, so such a URL can also be rebuilt from
+ * its string, as libraries that scan the classpath do. Additional classpath
+ * paths are searched after every packed jar, as usual.
+ *
+ * <p>Jar signatures are not verified, so classes from a signed jar are
+ * defined without signers.</p>
+ */
+final class PackedClassLoader extends RecordingClassLoader {
+
+  static {
+    try {
+      registerAsParallelCapable();
+    } catch (NoSuchMethodError e) {
+      // Java 6
+    }
+    registerProtocol();
+  }
+
+  static final String PROTOCOL = "dropshippack";
+  private static final String HANDLER_PACKAGES = "java.protocol.handler.pkgs";
+  private static final ClassLoader SHARE_NOTHING = null;
+
+  private final PackedJar[] jars;
+  private final URL[] jarUrls;
+  private final Map<String, PackedJar> jarsByPath = new HashMap<String, PackedJar>();
+  private final URLStreamHandler handler = new Handler();
+
+  /**
+   * @param jarPaths the packed paths of the classpath's jars, in order
+   * @param additionalUrls paths searched after every jar
+   */
+  PackedClassLoader(PackedRepository pack, List<String> jarPaths, List<URL> additionalUrls) throws MalformedURLException {
+    super(additionalUrls.toArray(new URL[additionalUrls.size()]), SHARE_NOTHING);
+    checkNotNull(pack, "pack");
+    this.jars = new PackedJar[jarPaths.size()];
+    this.jarUrls = new URL[jarPaths.size()];
+    for (int i = 0; i < jars.length; i++) {
+      String path = jarPaths.get(i);
+      checkArgument(pack.contains(path), path + " is not in " + pack.root());
+      jars[i] = new PackedJar(path, pack.entry(path));
+      jarUrls[i] = new URL(PROTOCOL, "", -1, "/" + ResourceIndex.encode(path), handler);
+      dropship.dropshippack.Handler.register(ResourceIndex.encode(path), handler);
+      jarsByPath.put(path, jars[i]);
+    }
+  }
+
+  @Override
+  public URL[] getURLs() {
+    List<URL> urls = new ArrayList<URL>();
+    Collections.addAll(urls, jarUrls);
+    Collections.addAll(urls, super.getURLs());
+    return urls.toArray(new URL[urls.size()]);
+  }
+
+  @Override
+  protected Class<?> findClass(String name) throws ClassNotFoundException {
+    String entryName = name.replace('.', '/') + ".class";
+    try {
+      for (int i = 0; i < jars.length; i++) {
+        byte[] bytes = jars[i].read(entryName);
+        if (bytes != null) {
+          return record(defineClass(name, bytes, i));
+        }
+      }
+    } catch (IOException e) {
+      throw new ClassNotFoundException(name, e);
+    }
+    return super.findClass(name);
+  }
+
+  @Override
+  public URL findResource(String name) {
+    try {
+      for (int i = 0; i < jars.length; i++) {
+        if (jars[i].contains(name)) {
+          return resourceUrl(i, name);
+        }
+      }
+    } catch (IOException e) {
+      return null;
+    }
+    return super.findResource(name);
+  }
+
+  @Override
+  public Enumeration<URL> findResources(String name) throws IOException {
+    List<URL> urls = new ArrayList<URL>();
+    for (int i = 0; i < jars.length; i++) {
+      if (jars[i].contains(name)) {
+        urls.add(resourceUrl(i, name));
+      }
+    }
+    urls.addAll(Collections.list(super.findResources(name)));
+    return Collections.enumeration(urls);
+  }
+
+  private URL resourceUrl(int jar, String name) throws MalformedURLException {
+    return new URL(PROTOCOL, "", -1, jarUrls[jar].getFile() + "!/" + ResourceIndex.encode(name), handler);
+  }
+
+  private Class<?> defineClass(String name, byte[] bytes, int jar) throws IOException {
+    int dot = name.lastIndexOf('.');
+    if (dot > 0 && getPackage(name.substring(0, dot)) == null) {
+      Manifest manifest = jars[jar].manifest();
+      try {
+        if (manifest != null) {
+          definePackage(name.substring(0, dot), manifest, jarUrls[jar]);
+        } else {
+          definePackage(name.substring(0, dot), null, null, null, null, null, null, null);
+        }
+      } catch (IllegalArgumentException e) {
+        // Defined by another thread in the meantime
+      }
+    }
+    return defineClass(name, bytes, 0, bytes.length, new CodeSource(jarUrls[jar], (CodeSigner[]) null));
+  }
+
+  /**
+   * Adds this package to the packages the JDK searches for protocol
+   * handlers, leaving the one-shot {@link URL#setURLStreamHandlerFactory}
+   * to the application.
+   */
+  private static void registerProtocol() {
+    String packages = System.getProperty(HANDLER_PACKAGES);
+    if (packages == null || packages.trim().isEmpty()) {
+      System.setProperty(HANDLER_PACKAGES, "dropship");
+    } else if (!Arrays.asList(packages.split("\\|")).contains("dropship")) {
+      System.setProperty(HANDLER_PACKAGES, packages + "|dropship");
+    }
+  }
+
+  /** Reverses {@link ResourceIndex#encode(String)}. */
+  static String decode(String encoded) throws IOException {
+    if (encoded.indexOf('%') < 0) {
+      return encoded;
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    for (int i = 0; i < encoded.length(); i++) {
+      char c = encoded.charAt(i);
+      if (c == '%' && i + 2 < encoded.length()) {
+        bytes.write(Integer.parseInt(encoded.substring(i + 1, i + 3), 16));
+        i += 2;
+      } else {
+        bytes.write(encoded.substring(i, i + 1).getBytes("UTF-8"));
+      }
+    }
+    return bytes.toString("UTF-8");
+  }
+
+  /** Opens the {@code dropshippack:} URLs of this loader's jars. */
+  private final class Handler extends URLStreamHandler {
+
+    @Override
+    protected URLConnection openConnection(final URL url) throws IOException {
+      String file = url.getFile();
+      int separator = file.indexOf("!/");
+      final PackedJar jar = jarsByPath.get(decode(file.substring(1, separator < 0 ? file.length() : separator)));
+      if (jar == null || separator < 0) {
+        throw new FileNotFoundException(url.toString());
+      }
+      final String entryName = decode(file.substring(separator + 2));
+      return new URLConnection(url) {
+        @Override
+        public void connect() {
+          connected = true;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+          InputStream in = jar.open(entryName);
+          if (in == null) {
+            throw new FileNotFoundException(url.toString());
+          }
+          return in;
+        }
+      };
+    }
+  }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the entries of a jar held in a {@link PackedRepository} straight
+ * from the mapped pack, by way of the jar's central directory, without
+ * copying the jar out to a file first. Zip64 jars, whose central directory
+ * this does not understand, are rejected.
+ */
+final class PackedJar {
+
+  private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+  private static final int CENTRAL_DIRECTORY_ENTRY = 0x02014b50;
+  private static final int LOCAL_HEADER = 0x04034b50;
+  private static final int STORED = 0;
+  private static final int DEFLATED = 8;
+
+  private final String path;
+  private final ByteBuffer jar;
+  private Map<String, Entry> entries = null;
+  private Manifest manifest = null;
+  private boolean manifestRead = false;
+
+  /**
+   * @param path the jar's path in the pack, for error messages
+   * @param jar the jar's bytes
+   */
+  PackedJar(String path, ByteBuffer jar) {
+    this.path = path;
+    this.jar = jar.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /** Returns true if the jar holds {@code name}, or a directory of that name. */
+  synchronized boolean contains(String name) throws IOException {
+    Map<String, Entry> all = entries();
+    return all.containsKey(name) || (!name.endsWith("/") && all.containsKey(name + "/"));
+  }
+
+  /** Returns the bytes of {@code name}, or null if the jar does not hold it. */
+  synchronized byte[] read(String name) throws IOException {
+    Entry entry = entries().get(name);
+    if (entry == null) {
+      return null;
+    }
+    int local = entry.localHeaderOffset;
+    if (jar.getInt(local) != LOCAL_HEADER) {
+      throw new IOException("Corrupt entry " + name + " in " + path);
+    }
+    int start = local + 30 + (jar.getShort(local + 26) & 0xffff) + (jar.getShort(local + 28) & 0xffff);
+    byte[] compressed = new byte[entry.compressedSize];
+    ByteBuffer data = jar.duplicate();
+    data.position(start);
+    data.get(compressed);
+    if (entry.method == STORED) {
+      return compressed;
+    }
+    if (entry.method != DEFLATED) {
+      throw new IOException("Unsupported compression of " + name + " in " + path);
+    }
+
+    Inflater inflater = new Inflater(true);
+    try {
+      // A raw inflater needs one byte past the end of the data
+      byte[] input = new byte[compressed.length + 1];
+      System.arraycopy(compressed, 0, input, 0, compressed.length);
+      inflater.setInput(input);
+      byte[] bytes = new byte[entry.size];
+      int inflated = 0;
+      while (inflated < bytes.length) {
+        int count = inflater.inflate(bytes, inflated, bytes.length - inflated);
+        if (count == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+          throw new IOException("Truncated entry " + name + " in " + path);
+        }
+        inflated += count;
+      }
+      return bytes;
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupt entry " + name + " in " + path + ": " + e.getMessage());
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /** Opens {@code name}, or returns null if the jar does not hold it. */
+  InputStream open(String name) throws IOException {
+    byte[] bytes = read(name);
+    return bytes != null ? new ByteArrayInputStream(bytes) : null;
+  }
+
+  /** Returns the jar's manifest, or null if it has none. */
+  synchronized Manifest manifest() throws IOException {
+    if (!manifestRead) {
+      byte[] bytes = read(JarFile.MANIFEST_NAME);
+      manifest = bytes != null ? new Manifest(new ByteArrayInputStream(bytes)) : null;
+      manifestRead = true;
+    }
+    return manifest;
+  }
+
+  // Called with the monitor held
+  private Map<String, Entry> entries() throws IOException {
+    if (entries != null) {
+      return entries;
+    }
+    int end = -1;
+    for (int i = jar.limit() - 22; i >= Math.max(0, jar.limit() - 22 - 0xffff); i--) {
+      if (jar.getInt(i) == END_OF_CENTRAL_DIRECTORY) {
+        end = i;
+        break;
+      }
+    }
+    if (end < 0) {
+      throw new IOException(path + " is not a jar");
+    }
+    int count = jar.getShort(end + 10) & 0xffff;
+    long directoryOffset = jar.getInt(end + 16) & 0xffffffffL;
+    if (count == 0xffff || directoryOffset == 0xffffffffL) {
+      throw new IOException(path + " is a zip64 jar, which cannot be read from a pack");
+    }
+
+    Map<String, Entry> read = new HashMap<String, Entry>(count * 2);
+    int position = (int) directoryOffset;
+    for (int i = 0; i < count; i++) {
+      if (jar.getInt(position) != CENTRAL_DIRECTORY_ENTRY) {
+        throw new IOException("Corrupt central directory in " + path);
+      }
+      int nameLength = jar.getShort(position + 28) & 0xffff;
+      byte[] name = new byte[nameLength];
+      ByteBuffer names = jar.duplicate();
+      names.position(position + 46);
+      names.get(name);
+      read.put(new String(name, "UTF-8"), new Entry(
+        jar.getShort(position + 10) & 0xffff,
+        jar.getInt(position + 20),
+        jar.getInt(position + 24),
+        jar.getInt(position + 42)));
+      position += 46 + nameLength + (jar.getShort(position + 30) & 0xffff) + (jar.getShort(position + 32) & 0xffff);
+    }
+    entries = read;
+    return entries;
+  }
+
+  private static final class Entry {
+
+    final int method;
+    final int compressedSize;
+    final int size;
+    final int localHeaderOffset;
+
+    Entry(int method, int compressedSize, int size, int localHeaderOffset) {
+      this.method = method;
+      this.compressedSize = compressedSize;
+      this.size = size;
+      this.localHeaderOffset = localHeaderOffset;
+    }
+  }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+
+import static dropship.Preconditions.checkNotNull;
+
+/**
+ * A Maven repository packed into one file: a sorted index of repository
+ * paths (such as {@code junit/junit/4.11/junit-4.11.jar}) followed by the
+ * files themselves, back to back. The file is memory mapped read-only, so
+ * opening it costs one {@code open} and one {@code mmap} however many
+ * artifacts it holds, and only the pages that are read come off disk.
+ *
+ * <p>The pack stands in for a local repository directory: {@link #root()}
+ * is a directory-like {@link File} under which every packed path appears,
+ * for code that addresses artifacts by file. No file crosses a 1 GB
+ * boundary, so each gigabyte can be mapped on its own.</p>
+ */
+final class PackedRepository {
+
+  private static final byte[] MAGIC = { 'D', 'S', 'P', 'A', 'C', 'K', '1', '\n' };
+  static final long SEGMENT_SIZE = 1L << 30;
+
+  private final File file;
+  private final ByteBuffer[] segments;
+  private final String[] paths;
+  private final long[] offsets;
+  private final long[] lengths;
+
+  private PackedRepository(File file, ByteBuffer[] segments, String[] paths, long[] offsets, long[] lengths) {
+    this.file = file;
+    this.segments = segments;
+    this.paths = paths;
+    this.offsets = offsets;
+    this.lengths = lengths;
+  }
+
+  /** Maps the pack in {@code file}. */
+  static PackedRepository open(File file) throws IOException {
+    checkNotNull(file, "file");
+    RandomAccessFile access = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = access.getChannel();
+      long size = channel.size();
+      ByteBuffer[] segments = new ByteBuffer[(int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+      for (int i = 0; i < segments.length; i++) {
+        long start = i * SEGMENT_SIZE;
+        segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+      }
+      // The mappings stay valid once the file is closed
+
+      ByteBuffer index = segments.length > 0 ? segments[0].duplicate() : ByteBuffer.allocate(0);
+      byte[] magic = new byte[MAGIC.length];
+      if (index.remaining() >= MAGIC.length + 4) {
+        index.get(magic);
+      }
+      if (!Arrays.equals(MAGIC, magic)) {
+        throw new IOException(file + " is not a packed repository");
+      }
+      int count = index.getInt();
+      String[] paths = new String[count];
+      long[] offsets = new long[count];
+      long[] lengths = new long[count];
+      for (int i = 0; i < count; i++) {
+        byte[] name = new byte[index.getInt()];
+        index.get(name);
+        paths[i] = new String(name, "UTF-8");
+        offsets[i] = index.getLong();
+        lengths[i] = index.getLong();
+      }
+      return new PackedRepository(file, segments, paths, offsets, lengths);
+    } finally {
+      access.close();
+    }
+  }
+
+  /**
+   * Packs the files at {@code paths}, relative to {@code root}, into
+   * {@code out}, returning the number of bytes written.
+   */
+  static long write(File root, Collection<String> paths, File out) throws IOException {
+    List<String> sorted = new ArrayList<String>(new TreeSet<String>(paths));
+    List<byte[]> names = new ArrayList<byte[]>();
+    long indexSize = MAGIC.length + 4;
+    for (String path : sorted) {
+      byte[] name = path.getBytes("UTF-8");
+      names.add(name);
+      indexSize += 4 + name.length + 8 + 8;
+    }
+    if (indexSize > SEGMENT_SIZE) {
+      throw new IOException("Too many files to pack");
+    }
+
+    long[] offsets = new long[sorted.size()];
+    long[] lengths = new long[sorted.size()];
+    long offset = indexSize;
+    for (int i = 0; i < sorted.size(); i++) {
+      long length = new File(root, sorted.get(i)).length();
+      if (length > SEGMENT_SIZE) {
+        throw new IOException(sorted.get(i) + " is too large to pack");
+      }
+      if (offset / SEGMENT_SIZE != (offset + length - 1) / SEGMENT_SIZE) {
+        offset = (offset / SEGMENT_SIZE + 1) * SEGMENT_SIZE;
+      }
+      offsets[i] = offset;
+      lengths[i] = length;
+      offset += length;
+    }
+
+    File directory = out.getAbsoluteFile().getParentFile();
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create " + directory);
+    }
+    File temp = File.createTempFile(out.getName(), ".tmp", directory);
+    try {
+      FileOutputStream stream = new FileOutputStream(temp);
+      try {
+        DataOutputStream index = new DataOutputStream(stream);
+        index.write(MAGIC);
+        index.writeInt(sorted.size());
+        for (int i = 0; i < sorted.size(); i++) {
+          index.writeInt(names.get(i).length);
+          index.write(names.get(i));
+          index.writeLong(offsets[i]);
+          index.writeLong(lengths[i]);
+        }
+        index.flush();
+
+        FileChannel channel = stream.getChannel();
+        for (int i = 0; i < sorted.size(); i++) {
+          channel.position(offsets[i]);
+          FileChannel source = new FileInputStream(new File(root, sorted.get(i))).getChannel();
+          try {
+            long copied = 0;
+            while (copied < lengths[i]) {
+              long transferred = source.transferTo(copied, lengths[i] - copied, channel);
+              if (transferred <= 0) {
+                throw new IOException(sorted.get(i) + " changed while it was being packed");
+              }
+              copied += transferred;
+            }
+          } finally {
+            source.close();
+          }
+        }
+      } finally {
+        stream.close();
+      }
+      if (!temp.renameTo(out)) {
+        throw new IOException("Could not write " + out);
+      }
+    } finally {
+      //noinspection ResultOfMethodCallIgnored
+      temp.delete();
+    }
+    return offset;
+  }
+
+  /** Returns a directory-like file under which every packed path appears. */
+  File root() {
+    return file;
+  }
+
+  /** Returns the packed path of {@code file} under {@link #root()}, or null if it is not under it. */
+  String pathOf(File file) {
+    String prefix = this.file.getPath() + File.separator;
+    String path = file.getPath();
+    return path.startsWith(prefix) ? path.substring(prefix.length()).replace(File.separatorChar, '/') : null;
+  }
+
+  /** Returns every packed path, sorted. */
+  List<String> paths() {
+    return Arrays.asList(paths);
+  }
+
+  boolean contains(String path) {
+    return path != null && Arrays.binarySearch(paths, path) >= 0;
+  }
+
+  /** Returns a read-only view of the packed file at {@code path}, or null if there is none. */
+  ByteBuffer entry(String path) {
+    int i = path != null ? Arrays.binarySearch(paths, path) : -1;
+    if (i < 0) {
+      return null;
+    }
+    ByteBuffer segment = segments[(int) (offsets[i] / SEGMENT_SIZE)].duplicate();
+    int start = (int) (offsets[i] % SEGMENT_SIZE);
+    segment.limit(start + (int) lengths[i]);
+    segment.position(start);
+    return segment.slice();
+  }
+
+  /** Opens the packed file at {@code path}. */
+  InputStream open(String path) throws FileNotFoundException {
+    ByteBuffer entry = entry(path);
+    if (entry == null) {
+      throw new FileNotFoundException(path + " is not in " + file);
+    }
+    return new BufferInputStream(entry);
+  }
+
+  /** Reads a buffer from its position to its limit. */
+  static final class BufferInputStream extends InputStream {
+
+    private final ByteBuffer buffer;
+
+    BufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+      if (length == 0) {
+        return 0;
+      }
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      int read = Math.min(length, buffer.remaining());
+      buffer.get(bytes, offset, read);
+      return read;
+    }
+
+    @Override
+    public long skip(long count) {
+      int skipped = (int) Math.max(0, Math.min(count, buffer.remaining()));
+      buffer.position(buffer.position() + skipped);
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+  }
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.security.CodeSource;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Set;
+import java.util.jar.Manifest;
+
+import static dropship.Preconditions.checkArgument;
+import static dropship.Preconditions.checkNotNull;
+
+/**
+ * A class loader whose jars arrive while it is already in use. The final
+ * classpath order is fixed up front, but jars are only added to the
+ * underlying {@link java.net.URLClassLoader} as an unbroken prefix of that order, as
+ * each one becomes ready. A lookup waits only until the first jar that
+ * contains the requested name is part of the prefix, so it finds exactly
+ * what a fully built class loader would, without waiting for the jars that
+ * come after it.
+ *
+ * <p>Given {@link PackageHints} from an earlier launch, a lookup instead
+ * fetches the jars that held the requested package last time, ahead of
+ * their turn, and loads from the first of them that has the name, without
+ * waiting for the jars before it.</p>
+ */
+final class PipelinedClassLoader extends RecordingClassLoader {
+
+  static {
+    try {
+      registerAsParallelCapable();
+    } catch (NoSuchMethodError e) {
+      // Java 6
+    }
+  }
+
+  private static final ClassLoader SHARE_NOTHING = null;
+
+  private final Object lock = new Object();
+  private final URL[] urls;
+  private final boolean[] arrived;
+  private final Set<?>[] entries;
+  private final List<URL> additionalUrls;
+  private int appended = 0;
+  private volatile boolean complete = false;
+  private Throwable failure = null;
+  private volatile PackageHints hints = null;
+  private volatile Fetcher fetcher = null;
+
+  /**
+   * @param size number of jars in the final classpath
+   * @param additionalUrls paths appended after every jar is in place
+   */
+  PipelinedClassLoader(int size, List<URL> additionalUrls) {
+    super(new URL[0], SHARE_NOTHING);
+    this.urls = new URL[size];
+    this.arrived = new boolean[size];
+    this.entries = new Set<?>[size];
+    this.additionalUrls = checkNotNull(additionalUrls, "additional urls");
+    if (size == 0) {
+      appendReady();
+    }
+  }
+
+  /** Fetches the jar at a classpath index ahead of its turn. */
+  interface Fetcher {
+    void fetch(int index);
+  }
+
+  /** Looks names up in the jars {@code hints} name, fetching them with {@code fetcher}. */
+  void useHints(PackageHints hints, Fetcher fetcher) {
+    this.fetcher = checkNotNull(fetcher, "fetcher");
+    this.hints = checkNotNull(hints, "hints");
+  }
+
+  /**
+   * Marks the jar at {@code index} in classpath order as ready.
+   *
+   * @param jar the jar, or null if the artifact at {@code index} is not
+   *            an archive and stays off the classpath
+   * @param entryNames the names of every entry in the jar
+   */
+  void ready(int index, File jar, Set<String> entryNames) throws MalformedURLException {
+    checkArgument(index >= 0 && index < urls.length, "No classpath slot " + index);
+    URL url = jar != null ? jar.toURI().toURL() : null;
+    synchronized (lock) {
+      urls[index] = url;
+      arrived[index] = true;
+      entries[index] = entryNames;
+      appendReady();
+    }
+  }
+
+  /** Stops waiting for jars that will never arrive. */
+  void failed(Throwable cause) {
+    synchronized (lock) {
+      if (failure == null) {
+        failure = cause;
+      }
+      lock.notifyAll();
+    }
+  }
+
+  /** Returns true once every jar has been added. */
+  boolean isComplete() {
+    return complete;
+  }
+
+  /** Waits until every jar has been added, or resolution has failed. */
+  void awaitComplete() throws ClassNotFoundException {
+    if (complete) {
+      return;
+    }
+    synchronized (lock) {
+      while (!complete && failure == null) {
+        await();
+      }
+      checkNotFailed("the classpath");
+    }
+  }
+
+  @Override
+  protected Class<?> findClass(String name) throws ClassNotFoundException {
+    if (!complete) {
+      String entryName = name.replace('.', '/') + ".class";
+      int jar = hintedJarContaining(entryName);
+      if (jar >= 0) {
+        return record(defineClass(name, jar, entryName));
+      }
+      awaitJarContaining(entryName);
+    }
+    return super.findClass(name);
+  }
+
+  @Override
+  public URL findResource(String name) {
+    if (!complete) {
+      try {
+        int jar = hintedJarContaining(name);
+        if (jar >= 0) {
+          return new URL("jar:" + urls[jar] + "!/" + ResourceIndex.encode(name));
+        }
+        awaitJarContaining(name);
+      } catch (ClassNotFoundException e) {
+        return null;
+      } catch (MalformedURLException e) {
+        return null;
+      }
+    }
+    return super.findResource(name);
+  }
+
+  @Override
+  public Enumeration<URL> findResources(String name) throws IOException {
+    try {
+      awaitComplete();
+    } catch (ClassNotFoundException e) {
+      throw new IOException(e.getMessage());
+    }
+    return super.findResources(name);
+  }
+
+  /**
+   * Returns the index of the first jar the hints name for the package of
+   * {@code entryName} that holds it, fetching each one as needed, or -1 if
+   * the hints do not help and the lookup should wait for the classpath in
+   * order.
+   */
+  private int hintedJarContaining(String entryName) throws ClassNotFoundException {
+    PackageHints packageHints = hints;
+    int[] jars = packageHints != null ? packageHints.slotsFor(entryName) : null;
+    if (jars == null) {
+      return -1;
+    }
+    for (int jar : jars) {
+      fetcher.fetch(jar);
+      synchronized (lock) {
+        while (!arrived[jar] && failure == null) {
+          await();
+        }
+        checkNotFailed(entryName);
+        if (complete) {
+          return -1;
+        }
+        if (entries[jar].contains(entryName)) {
+          packageHints.recordUse(jar);
+          return jar;
+        }
+      }
+    }
+    return -1;
+  }
+
+  /** Defines a class from the jar at {@code jar}, which may not be on the classpath yet. */
+  private Class<?> defineClass(String name, int jar, String entryName) throws ClassNotFoundException {
+    URL jarUrl = urls[jar];
+    try {
+      JarURLConnection connection = (JarURLConnection) new URL("jar:" + jarUrl + "!/" + ResourceIndex.encode(entryName)).openConnection();
+      byte[] bytes = read(connection.getInputStream());
+      int dot = name.lastIndexOf('.');
+      if (dot > 0 && getPackage(name.substring(0, dot)) == null) {
+        Manifest manifest = connection.getManifest();
+        try {
+          if (manifest != null) {
+            definePackage(name.substring(0, dot), manifest, jarUrl);
+          } else {
+            definePackage(name.substring(0, dot), null, null, null, null, null, null, null);
+          }
+        } catch (IllegalArgumentException e) {
+          // Defined by another thread in the meantime
+        }
+      }
+      CodeSource source = new CodeSource(jarUrl, connection.getJarEntry().getCodeSigners());
+      return defineClass(name, bytes, 0, bytes.length, source);
+    } catch (IOException e) {
+      throw new ClassNotFoundException(name, e);
+    }
+  }
+
+  private static byte[] read(InputStream in) throws IOException {
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Waits until the first jar containing {@code entryName} has been added,
+   * or, if no jar contains it, until the classpath is complete.
+   */
+  private void awaitJarContaining(String entryName) throws ClassNotFoundException {
+    synchronized (lock) {
+      for (int i = 0; i < urls.length && !complete; i++) {
+        while (appended <= i && failure == null) {
+          await();
+        }
+        checkNotFailed(entryName);
+        if (!complete && entries[i].contains(entryName)) {
+          if (hints != null) {
+            hints.recordUse(i);
+          }
+          return;
+        }
+      }
+      while (!complete && failure == null) {
+        await();
+      }
+      checkNotFailed(entryName);
+    }
+  }
+
+  // Called with the lock held
+  private void appendReady() {
+    while (appended < urls.length && arrived[appended]) {
+      if (urls[appended] != null) {
+        addURL(urls[appended]);
+      }
+      appended++;
+    }
+    if (appended == urls.length && !complete) {
+      for (URL url : additionalUrls) {
+        addURL(url);
+      }
+      // The jar indexes are only needed while the classpath is incomplete
+      for (int i = 0; i < entries.length; i++) {
+        entries[i] = null;
+      }
+      complete = true;
+    }
+    lock.notifyAll();
+  }
+
+  // Called with the lock held
+  private void checkNotFailed(String name) throws ClassNotFoundException {
+    if (failure != null && !complete) {
+      throw new ClassNotFoundException(name + " (classpath could not be resolved: " + failure.getMessage() + ")", failure);
+    }
+  }
+
+  // Called with the lock held
+  private void await() throws ClassNotFoundException {
+    try {
+      lock.wait();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ClassNotFoundException("Interrupted while waiting for the classpath");
+    }
+  }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import dropship.logging.Logger;
+import org.sonatype.aether.RepositorySystem;
+import org.sonatype.aether.RepositorySystemSession;
+import org.sonatype.aether.artifact.Artifact;
+import org.sonatype.aether.graph.DependencyNode;
+import org.sonatype.aether.resolution.ArtifactRequest;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static dropship.Preconditions.checkNotNull;
+
+/**
+ * Resolves the artifacts of an already collected dependency graph one by
+ * one, in classpath order, on a few worker threads. As soon as an artifact
+ * has been downloaded and verified, its jar is indexed and read once to
+ * warm the page cache, and handed to a {@link PipelinedClassLoader}, so
+ * class loading overlaps with the downloads still in flight.
+ *
+ * <p>With {@link PackageHints}, the jars an earlier launch needed first are
+ * downloaded first, the class loader can fetch any jar on the thread that
+ * needs it, and what this launch learns is saved for the next one.</p>
+ */
+final class PipelinedResolution {
+
+  // Dropped once every artifact is resolved, so the graph does not outlive startup
+  private volatile RepositorySystem system;
+  private volatile RepositorySystemSession session;
+  private volatile List<DependencyNode> nodes;
+  private final PipelinedClassLoader loader;
+  private final Completion completion;
+  private final PackageHints hints;
+  private final Logger logger;
+  private final ExecutorService workers;
+  private final AtomicInteger remaining;
+
+  private final boolean[] claimed;
+  private final List<Integer> order;
+  private int next = 0;
+  private boolean shutdownWhenDone = false;
+  private boolean done = false;
+
+  /**
+   * @param hints what an earlier launch learned about these jars, or null
+   *              to resolve them in classpath order
+   */
+  PipelinedResolution(RepositorySystem system, RepositorySystemSession session, List<DependencyNode> nodes,
+                      PipelinedClassLoader loader, Completion completion, PackageHints hints, Logger logger, int threads) {
+    this.system = checkNotNull(system, "system");
+    this.session = checkNotNull(session, "session");
+    this.nodes = checkNotNull(nodes, "nodes");
+    this.loader = checkNotNull(loader, "loader");
+    this.completion = checkNotNull(completion, "completion");
+    this.hints = hints;
+    this.logger = checkNotNull(logger, "logger");
+    this.remaining = new AtomicInteger(nodes.size());
+    this.claimed = new boolean[nodes.size()];
+    this.order = new ArrayList<Integer>();
+    if (hints != null) {
+      order.addAll(hints.priorityOrder());
+    }
+    for (int i = 0; i < nodes.size(); i++) {
+      order.add(i);
+    }
+    this.workers = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "dropship-pipeline");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /** Told about the classpath once every artifact has been resolved. */
+  interface Completion {
+    void resolved(List<File> classpath);
+  }
+
+  /**
+   * Queues every artifact; the ones an earlier launch needed first are
+   * started first, then the rest in classpath order.
+   */
+  void start() {
+    for (int i = 0; i < claimed.length; i++) {
+      workers.execute(new Runnable() {
+        @Override
+        public void run() {
+          int index = claimNext();
+          if (index >= 0) {
+            resolve(index);
+          }
+        }
+      });
+    }
+    workers.shutdown();
+    if (claimed.length == 0) {
+      finish();
+    }
+  }
+
+  /**
+   * Resolves the artifact at {@code index} on the calling thread, unless a
+   * worker has already started on it.
+   */
+  void fetch(int index) {
+    if (claim(index)) {
+      resolve(index);
+    }
+  }
+
+  private synchronized boolean claim(int index) {
+    if (claimed[index]) {
+      return false;
+    }
+    claimed[index] = true;
+    return true;
+  }
+
+  private synchronized int claimNext() {
+    while (next < order.size()) {
+      int index = order.get(next++);
+      if (claim(index)) {
+        return index;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Releases the repository system once every artifact has been resolved,
+   * or right away if that has already happened.
+   */
+  synchronized void closeWhenDone() {
+    if (done) {
+      RepositorySystemProvider.shutdown();
+    } else {
+      shutdownWhenDone = true;
+    }
+  }
+
+  private void resolve(int index) {
+    DependencyNode node = nodes.get(index);
+    try {
+      Artifact artifact = system.resolveArtifact(session, new ArtifactRequest(node)).getArtifact();
+      node.setArtifact(artifact);
+      // A pom or other non-archive dependency is resolved, but has nothing to load classes from
+      File jar = isArchive(artifact) ? artifact.getFile() : null;
+      Set<String> entryNames = jar != null ? indexAndWarm(jar) : Collections.<String>emptySet();
+      if (hints != null) {
+        hints.recordPackages(index, entryNames);
+      }
+      loader.ready(index, jar, entryNames);
+    } catch (Exception e) {
+      logger.warn("Could not resolve %s: %s", node.getDependency(), e.getMessage());
+      loader.failed(e);
+    } finally {
+      if (remaining.decrementAndGet() == 0) {
+        finish();
+      }
+    }
+  }
+
+  /** Called by whichever thread resolves the last artifact. */
+  private void finish() {
+    if (loader.isComplete()) {
+      List<File> classpath = new ArrayList<File>();
+      for (DependencyNode node : nodes) {
+        classpath.add(node.getDependency().getArtifact().getFile());
+      }
+      completion.resolved(classpath);
+      if (hints != null) {
+        hints.save();
+      }
+    }
+
+    synchronized (this) {
+      system = null;
+      session = null;
+      nodes = null;
+      done = true;
+      if (shutdownWhenDone) {
+        RepositorySystemProvider.shutdown();
+      }
+    }
+  }
+
+  /** Returns true if {@code artifact} is a jar, zip or class directory that belongs on the classpath. */
+  static boolean isArchive(Artifact artifact) {
+    String extension = artifact.getExtension();
+    return "jar".equals(extension) || "zip".equals(extension) || (artifact.getFile() != null && artifact.getFile().isDirectory());
+  }
+
+  /** Reads the entry names of {@code jar}, then streams it once so it is in the page cache. */
+  static Set<String> indexAndWarm(File jar) throws IOException {
+    Set<String> names = new HashSet<String>();
+    if (jar.isDirectory()) {
+      return names;
+    }
+
+    ZipFile zip = new ZipFile(jar);
+    try {
+      Enumeration<? extends ZipEntry> entries = zip.entries();
+      while (entries.hasMoreElements()) {
+        names.add(entries.nextElement().getName());
+      }
+    } finally {
+      zip.close();
+    }
+
+    warm(jar);
+    return names;
+  }
+
+  /** Reads {@code jar} once, front to back, so later reads come from the page cache. */
+  static void warm(File jar) throws IOException {
+    InputStream in = new FileInputStream(jar);
+    try {
+      byte[] buffer = new byte[64 * 1024];
+      //noinspection StatementWithEmptyBody
+      while (in.read(buffer) != -1) {
+        // only touching the pages
+      }
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import dropship.logging.Logger;
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLContexts;
+import org.apache.http.conn.ssl.TrustStrategy;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+import org.apache.maven.wagon.authentication.AuthenticationInfo;
+import org.apache.maven.wagon.proxy.ProxyInfo;
+import org.apache.maven.wagon.repository.Repository;
+
+import javax.net.ssl.SSLContext;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+
+import static dropship.Preconditions.checkNotNull;
+
+/**
+ * A pooled, keep-alive HTTP client shared by every {@link PooledHttpWagon}
+ * in the process. All HTTPS connections come from one {@link SSLContext},
+ * so TLS sessions are resumed rather than renegotiated, and the insecure
+ * mode only affects this client rather than the JVM-wide defaults.
+ */
+final class PooledHttpTransport {
+
+  private final PoolingHttpClientConnectionManager connectionManager;
+  private final CloseableHttpClient client;
+  private final int connectTimeoutMillis;
+  private final int readTimeoutMillis;
+  private final ResumableDownloads downloads;
+
+  PooledHttpTransport(Settings settings, Logger logger) {
+    checkNotNull(settings, "settings");
+    checkNotNull(logger, "logger");
+
+    SSLConnectionSocketFactory sslSocketFactory;
+    if (settings.insecure()) {
+      logger.warn("Disabling strict SSL certificate checking!");
+      sslSocketFactory = new SSLConnectionSocketFactory(trustAllContext(), SSLConnectionSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
+    } else {
+      sslSocketFactory = new SSLConnectionSocketFactory(SSLContexts.createDefault(), SSLConnectionSocketFactory.BROWSER_COMPATIBLE_HOSTNAME_VERIFIER);
+    }
+
+    Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+      .register("http", PlainConnectionSocketFactory.getSocketFactory())
+      .register("https", sslSocketFactory)
+      .build();
+
+    this.connectionManager = new PoolingHttpClientConnectionManager(registry);
+    this.connectionManager.setMaxTotal(settings.httpMaxConnections());
+    this.connectionManager.setDefaultMaxPerRoute(settings.httpMaxConnectionsPerRepository());
+    this.connectTimeoutMillis = settings.httpConnectTimeoutMillis();
+    this.readTimeoutMillis = settings.httpReadTimeoutMillis();
+    this.downloads = new ResumableDownloads(
+      new File(settings.localRepoPath(), ".partial"),
+      settings.httpResumableMinBytes(),
+      settings.httpDownloadSegments(),
+      settings.httpSegmentMinBytes()
+    );
+
+    final long keepAliveMillis = settings.httpKeepAliveMillis();
+    this.client = HttpClients.custom()
+      .setConnectionManager(connectionManager)
+      .setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+        @Override
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+          HeaderElementIterator it = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+          while (it.hasNext()) {
+            HeaderElement element = it.nextElement();
+            if ("timeout".equalsIgnoreCase(element.getName()) && element.getValue() != null) {
+              try {
+                return Math.min(Long.parseLong(element.getValue()) * 1000, keepAliveMillis);
+              } catch (NumberFormatException ignored) {
+                // fall through to the configured keep-alive
+              }
+            }
+          }
+          return keepAliveMillis;
+        }
+      })
+      // Connections carry no per-user state, so any request may reuse any pooled connection
+      .disableConnectionState()
+      .build();
+
+    logger.debug("HTTP connection pool: %d total, %d per repository", settings.httpMaxConnections(), settings.httpMaxConnectionsPerRepository());
+  }
+
+  /**
+   * Fetches {@code url} in full, resuming a previously interrupted download
+   * of the same resource when one was left behind.
+   */
+  ResumableDownloads.Download download(String url, HttpClientContext context) throws IOException {
+    return downloads.open(client, context, url);
+  }
+
+  /**
+   * Returns a request context carrying the timeouts, proxy and credentials
+   * for a single wagon session against {@code repository}.
+   */
+  HttpClientContext newContext(Repository repository, AuthenticationInfo authentication, ProxyInfo proxy, int wagonTimeoutMillis) {
+    RequestConfig.Builder config = RequestConfig.custom()
+      .setConnectTimeout(wagonTimeoutMillis > 0 ? Math.min(wagonTimeoutMillis, connectTimeoutMillis) : connectTimeoutMillis)
+      .setSocketTimeout(readTimeoutMillis)
+      .setConnectionRequestTimeout(readTimeoutMillis);
+
+    CredentialsProvider credentials = new BasicCredentialsProvider();
+    URI uri = URI.create(repository.getUrl());
+    if (authentication != null && authentication.getUserName() != null) {
+      credentials.setCredentials(
+        new AuthScope(uri.getHost(), uri.getPort()),
+        new UsernamePasswordCredentials(authentication.getUserName(), authentication.getPassword())
+      );
+    }
+    if (proxy != null && proxy.getHost() != null) {
+      config.setProxy(new HttpHost(proxy.getHost(), proxy.getPort()));
+      if (proxy.getUserName() != null) {
+        credentials.setCredentials(
+          new AuthScope(proxy.getHost(), proxy.getPort()),
+          new UsernamePasswordCredentials(proxy.getUserName(), proxy.getPassword())
+        );
+      }
+    }
+
+    HttpClientContext context = HttpClientContext.create();
+    context.setRequestConfig(config.build());
+    context.setCredentialsProvider(credentials);
+    return context;
+  }
+
+  /** Closes every pooled connection. */
+  void close() {
+    try {
+      client.close();
+    } catch (IOException e) {
+      // best effort during shutdown
+    } finally {
+      connectionManager.shutdown();
+    }
+  }
+
+  private static SSLContext trustAllContext() {
+    try {
+      return SSLContexts.custom().loadTrustMaterial(null, new TrustStrategy() {
+        @Override
+        public boolean isTrusted(X509Certificate[] chain, String authType) {
+          return true;
+        }
+      }).build();
+    } catch (GeneralSecurityException e) {
+      throw new DropshipRuntimeException("Could not create insecure SSL context: " + e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.maven.wagon.ConnectionException;
+import org.apache.maven.wagon.InputData;
+import org.apache.maven.wagon.OutputData;
+import org.apache.maven.wagon.ResourceDoesNotExistException;
+import org.apache.maven.wagon.StreamWagon;
+import org.apache.maven.wagon.TransferFailedException;
+import org.apache.maven.wagon.authorization.AuthorizationException;
+import org.apache.maven.wagon.resource.Resource;
+
+import java.io.IOException;
+
+import static dropship.Preconditions.checkNotNull;
+
+/**
+ * Read-only HTTP(S) wagon that borrows connections from a shared
+ * {@link PooledHttpTransport} instead of opening one per request.
+ */
+final class PooledHttpWagon extends StreamWagon {
+
+  private final PooledHttpTransport transport;
+  private HttpClientContext context = null;
+
+  PooledHttpWagon(PooledHttpTransport transport) {
+    this.transport = checkNotNull(transport, "transport");
+  }
+
+  @Override
+  protected void openConnectionInternal() {
+    context = transport.newContext(getRepository(), getAuthenticationInfo(), getProxyInfo(), getTimeout());
+  }
+
+  @Override
+  public void closeConnection() throws ConnectionException {
+    // Connections go back to the shared pool as each response is consumed
+    context = null;
+  }
+
+  @Override
+  public void fillInputData(InputData inputData)
+    throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException {
+
+    Resource resource = inputData.getResource();
+    String url = urlFor(resource.getName());
+
+    ResumableDownloads.Download download;
+    try {
+      download = transport.download(url, context);
+    } catch (ResumableDownloads.StatusException e) {
+      switch (e.status) {
+        case HttpStatus.SC_NOT_FOUND:
+          throw new ResourceDoesNotExistException("Unable to locate resource in repository: " + url);
+        case HttpStatus.SC_UNAUTHORIZED:
+        case HttpStatus.SC_FORBIDDEN:
+        case HttpStatus.SC_PROXY_AUTHENTICATION_REQUIRED:
+          throw new AuthorizationException("Not authorized (" + e.status + ") to access " + url);
+        default:
+          throw new TransferFailedException("Failed to transfer " + url + ". Return code is: " + e.status);
+      }
+    } catch (IOException e) {
+      throw new TransferFailedException("Could not transfer " + url + ": " + e.getMessage(), e);
+    }
+
+    resource.setContentLength(download.length);
+    if (download.lastModified > 0) {
+      resource.setLastModified(download.lastModified);
+    }
+    inputData.setInputStream(download.content);
+  }
+
+  @Override
+  public void fillOutputData(OutputData outputData) throws TransferFailedException {
+    throw new TransferFailedException("Dropship does not deploy artifacts: " + outputData.getResource().getName());
+  }
+
+  private String urlFor(String resourceName) {
+    String base = getRepository().getUrl();
+    return base.endsWith("/") ? base + resourceName : base + '/' + resourceName;
+  }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import dropship.logging.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * The class loader Dropship hands to the application. It can record, in
+ * order, every class it defines while recording is switched on, which is
+ * what {@link ClassPreloader} replays on later launches. Given a
+ * {@link ResourceIndex}, it answers resource lookups from the index rather
+ * than by searching every jar.
+ */
+class RecordingClassLoader extends URLClassLoader {
+
+  static {
+    try {
+      // Lets the preloader and the application load different classes at once, as URLClassLoader does
+      registerAsParallelCapable();
+    } catch (NoSuchMethodError e) {
+      // Java 6: class loading stays serialized on the loader
+    }
+  }
+
+  private static final ClassLoader SHARE_NOTHING = null;
+
+  private volatile List<Class<?>> recorded = null;
+  private volatile ResourceIndex resourceIndex = null;
+  private volatile URLClassLoader unindexed = null;
+
+  RecordingClassLoader(URL[] urls, ClassLoader parent) {
+    super(urls, parent);
+  }
+
+  /**
+   * Returns a loader for {@code jars} followed by the additional paths in
+   * {@code settings}, indexing its resources if that is switched on.
+   */
+  static RecordingClassLoader forClasspath(List<File> jars, Settings settings, Logger logger) throws MalformedURLException {
+    List<URL> urls = new ArrayList<URL>();
+    for (File jar : jars) {
+      urls.add(jar.toURI().toURL());
+    }
+    List<URL> additionalUrls = additionalUrls(settings, logger);
+    urls.addAll(additionalUrls);
+
+    RecordingClassLoader loader = new RecordingClassLoader(urls.toArray(new URL[urls.size()]), SHARE_NOTHING);
+    loader.indexResources(jars, additionalUrls, settings, logger);
+    return loader;
+  }
+
+  /** Returns the URLs of the additional paths in {@code settings}, which go after every jar. */
+  static List<URL> additionalUrls(Settings settings, Logger logger) throws MalformedURLException {
+    List<URL> urls = new ArrayList<URL>();
+    for (String path : settings.additionalClasspathPaths()) {
+      logger.info("Adding \"%s\" to classpath", path);
+      urls.add(new File(path).toURI().toURL());
+    }
+    return urls;
+  }
+
+  /** Starts recording the classes defined by this loader. */
+  final void startRecording() {
+    recorded = new ArrayList<Class<?>>();
+  }
+
+  /** Stops recording, returning the classes defined since {@link #startRecording()}. */
+  final List<Class<?>> stopRecording() {
+    List<Class<?>> classes = recorded;
+    recorded = null;
+    if (classes == null) {
+      return new ArrayList<Class<?>>();
+    }
+    synchronized (classes) {
+      return new ArrayList<Class<?>>(classes);
+    }
+  }
+
+  /**
+   * Looks resources up in an index of {@code jars}, kept under the local
+   * repository, when {@code dropship.resource-index} is on.
+   */
+  final void indexResources(List<File> jars, List<URL> additionalUrls, Settings settings, Logger logger) {
+    if (!settings.resourceIndex()) {
+      return;
+    }
+    try {
+      useResourceIndex(new ResourceIndex(new File(settings.localRepoPath(), ".resources"), jars, logger), additionalUrls);
+    } catch (MalformedURLException e) {
+      logger.warn("Could not index resources: %s", e.getMessage());
+    }
+  }
+
+  /**
+   * Looks resources up in {@code index}, which covers the jars at the start
+   * of the classpath, and then directly in {@code unindexedUrls}, the rest
+   * of it.
+   */
+  final void useResourceIndex(ResourceIndex index, List<URL> unindexedUrls) {
+    unindexed = new URLClassLoader(unindexedUrls.toArray(new URL[unindexedUrls.size()]), SHARE_NOTHING);
+    resourceIndex = index;
+  }
+
+  @Override
+  public URL findResource(String name) {
+    ResourceIndex index = resourceIndex;
+    if (index == null || !index.isReady()) {
+      return super.findResource(name);
+    }
+    URL url = index.findResource(name);
+    return url != null ? url : unindexed.findResource(name);
+  }
+
+  @Override
+  public Enumeration<URL> findResources(String name) throws IOException {
+    ResourceIndex index = resourceIndex;
+    if (index == null || !index.isReady()) {
+      return super.findResources(name);
+    }
+    List<URL> urls = index.findResources(name);
+    urls.addAll(Collections.list(unindexed.findResources(name)));
+    return Collections.enumeration(urls);
+  }
+
+  @Override
+  protected Class<?> findClass(String name) throws ClassNotFoundException {
+    return record(super.findClass(name));
+  }
+
+  /** Adds {@code type} to the recorded classes if recording is on. */
+  final Class<?> record(Class<?> type) {
+    List<Class<?>> classes = recorded;
+    if (classes != null) {
+      //noinspection SynchronizationOnLocalVariableOrMethodParameter
+      synchronized (classes) {
+        classes.add(type);
+      }
+    }
+    return type;
+  }
+}
@@ -0,0 +1,590 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import dropship.logging.Logger;
+import org.sonatype.aether.SyncContext;
+import org.sonatype.aether.util.artifact.DefaultArtifact;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static dropship.Preconditions.checkNotNull;
+
+/**
+ * Keeps the local repository under a size cap by deleting the least
+ * recently used artifact versions. Every resolution appends the version
+ * directories it used to an access log in one write; a collection reads
+ * the log, falls back to file times for versions it has never seen, and
+ * deletes whole version directories, oldest first, until the repository
+ * fits. A parent POM counts as used whenever a version inheriting from it
+ * is. Directories starting with {@code .} at the top of the repository
+ * belong to Dropship. Entries of its caches, which are rebuilt when
+ * missing, count towards the cap and are deleted least recently modified
+ * first along with versions; the rest is left alone.
+ *
+ * <p>With {@code repo.content-addressed}, artifact files are hard links
+ * into the {@link ContentAddressedStore}, so deleting one frees nothing
+ * until the last link to its blob goes. A version's size is its share of
+ * each blob, and after deleting, blobs nothing links to are removed and
+ * only they are counted as freed.</p>
+ *
+ * <p>Each version is deleted holding the {@link RepositoryLocks} stripe a
+ * resolution of it takes, so no process sharing the repository resolves a
+ * version while its files go.</p>
+ */
+final class RepositoryEviction {
+
+  private static final String ACCESS_LOG = ".access";
+  private static final String COLLECTED_STAMP = ".collected";
+  private static final long COMPACT_LOG_BYTES = 4 * 1024 * 1024;
+  private static final Pattern PARENT = Pattern.compile("<parent>(.*?)</parent>", Pattern.DOTALL);
+  private static final List<String> CACHES = Arrays.asList(
+    ".partial", ".models", ".snapshots", ".classpaths", ".packages", ".resources", ".preload", ".index");
+
+  private final File root;
+  private final Logger logger;
+  private final File accessLog;
+  private final RepositoryLocks locks;
+  private final ContentAddressedStore store;
+
+  RepositoryEviction(File root, int lockStripes, Logger logger) {
+    this.root = checkNotNull(root, "root").getAbsoluteFile();
+    this.logger = checkNotNull(logger, "logger");
+    this.accessLog = new File(this.root, ACCESS_LOG);
+    this.locks = new RepositoryLocks(lockStripes, logger);
+    this.store = new ContentAddressedStore(new File(this.root, ContentAddressedStore.DIRECTORY), logger);
+  }
+
+  /** Records that the version directories holding {@code files} were just used. */
+  void recordAccess(Collection<File> files) {
+    if (!root.isDirectory()) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    StringBuilder lines = new StringBuilder();
+    for (File file : files) {
+      String version = relative(file.getAbsoluteFile().getParentFile());
+      if (version != null) {
+        lines.append(now).append(' ').append(version).append('\n');
+      }
+    }
+
+    try {
+      synchronized (RepositoryEviction.class) {
+        FileLock lock = lockAccessLog();
+        try {
+          OutputStream out = new FileOutputStream(accessLog, true);
+          try {
+            out.write(lines.toString().getBytes("UTF-8"));
+          } finally {
+            out.close();
+          }
+          if (accessLog.length() > COMPACT_LOG_BYTES) {
+            writeAccessLog(readAccessLog());
+          }
+        } finally {
+          lock.channel().close();
+        }
+      }
+    } catch (IOException e) {
+      logger.debug("Could not record artifact access: %s", e.getMessage());
+    }
+  }
+
+  /** Returns true if no collection has run in the last {@code intervalMillis}. */
+  boolean due(long intervalMillis) {
+    File stamp = new File(root, COLLECTED_STAMP);
+    return !stamp.exists() || stamp.lastModified() + intervalMillis < System.currentTimeMillis();
+  }
+
+  /**
+   * Deletes least recently used versions until the repository holds at most
+   * {@code maxBytes} of artifacts and caches.
+   *
+   * @param keep version directories that must not be deleted
+   * @return the number of bytes freed
+   */
+  long collect(long maxBytes, Collection<File> keep) throws IOException {
+    if (!root.isDirectory()) {
+      return 0;
+    }
+    touchStamp();
+
+    Set<String> kept = new HashSet<String>();
+    for (File dir : keep) {
+      String version = relative(dir.getAbsoluteFile());
+      if (version != null) {
+        kept.add(version);
+      }
+    }
+
+    Map<String, Long> lastAccess;
+    synchronized (RepositoryEviction.class) {
+      FileLock lock = lockAccessLog();
+      try {
+        lastAccess = readAccessLog();
+      } finally {
+        lock.channel().close();
+      }
+    }
+
+    List<Version> versions = new ArrayList<Version>();
+    scan(root, true, lastAccess, versions);
+    scanCaches(versions);
+    long total = 0;
+    Map<String, Version> byPath = new HashMap<String, Version>();
+    for (Version version : versions) {
+      total += version.bytes;
+      byPath.put(version.path, version);
+    }
+
+    // A parent POM is needed as long as any version that inherits from it
+    for (Version version : versions) {
+      if (version.cache) {
+        continue;
+      }
+      for (String parent : parents(version.path)) {
+        Version inherited = byPath.get(parent);
+        if (inherited != null) {
+          inherited.lastUsed = Math.max(inherited.lastUsed, version.lastUsed);
+        }
+      }
+    }
+    for (String path : new ArrayList<String>(kept)) {
+      kept.addAll(parents(path));
+    }
+
+    Collections.sort(versions, new Comparator<Version>() {
+      @Override
+      public int compare(Version a, Version b) {
+        return a.lastUsed < b.lastUsed ? -1 : a.lastUsed == b.lastUsed ? 0 : 1;
+      }
+    });
+
+    long freed = 0;
+    // Deleted versions' shares of linked blobs, freed by pruning afterwards if nothing else links to them
+    long estimated = 0;
+    int evicted = 0;
+    int evictedEntries = 0;
+    for (Version version : versions) {
+      if (total - freed - estimated <= maxBytes) {
+        break;
+      }
+      if (kept.contains(version.path)) {
+        continue;
+      }
+      if (version.cache) {
+        long bytes = size(new File(root, version.path));
+        if (delete(new File(root, version.path))) {
+          freed += bytes;
+          evictedEntries++;
+          logger.debug("Evicted cached %s", version.path);
+        }
+        continue;
+      }
+      // Hold the stripe a resolution of this version would, so none reads it while it goes
+      SyncContext lock = lockVersion(version.path);
+      try {
+        long bytes = deleteVersion(new File(root, version.path));
+        if (bytes >= 0) {
+          freed += bytes;
+          estimated += Math.max(0, version.bytes - bytes);
+          evicted++;
+          logger.debug("Evicted %s", version.path);
+        }
+      } finally {
+        if (lock != null) {
+          lock.release();
+        }
+      }
+    }
+    freed += store.prune();
+
+    synchronized (RepositoryEviction.class) {
+      FileLock lock = lockAccessLog();
+      try {
+        // Re-read to keep what resolutions appended while we were scanning
+        Map<String, Long> current = readAccessLog();
+        Iterator<String> paths = current.keySet().iterator();
+        while (paths.hasNext()) {
+          if (!new File(root, paths.next()).isDirectory()) {
+            paths.remove();
+          }
+        }
+        writeAccessLog(current);
+      } finally {
+        lock.channel().close();
+      }
+    }
+
+    logger.info("Local repository holds %d KB of artifacts and caches; evicted %d versions and %d cache entries (%d KB) to fit %d KB",
+      total / 1024, evicted, evictedEntries, freed / 1024, maxBytes / 1024);
+    return freed;
+  }
+
+  private void scan(File dir, boolean top, Map<String, Long> lastAccess, List<Version> versions) {
+    File[] children = dir.listFiles();
+    if (children == null) {
+      return;
+    }
+
+    String filePrefix = dir.getParentFile() != null ? versionFilePrefix(dir.getParentFile().getName(), dir.getName()) : null;
+    long bytes = 0;
+    long newest = 0;
+    boolean isVersion = false;
+    for (File child : children) {
+      if (child.isDirectory()) {
+        if (!(top && child.getName().startsWith("."))) {
+          scan(child, false, lastAccess, versions);
+        }
+      } else if (!top) {
+        // A file linked into the content-addressed store shares its blob with the other links to it
+        int links = ContentAddressedStore.links(child);
+        bytes += links > 1 ? child.length() / (links - 1) : child.length();
+        newest = Math.max(newest, child.lastModified());
+        isVersion |= filePrefix != null && child.getName().startsWith(filePrefix);
+      }
+    }
+
+    if (isVersion) {
+      String path = relative(dir);
+      Long accessed = lastAccess.get(path);
+      versions.add(new Version(path, bytes, accessed != null ? Math.max(accessed, newest) : newest, false));
+    }
+  }
+
+  /**
+   * Returns how the files of a version directory start: {@code <artifactId>-<version>},
+   * or {@code <artifactId>-<base>-} for a snapshot, whose builds are named by
+   * timestamp. Matching only the artifactId would take an artifact directory
+   * such as {@code org/apache/maven/maven-core}, with its
+   * {@code maven-metadata-*.xml}, for a version.
+   */
+  private static String versionFilePrefix(String artifactId, String version) {
+    String snapshot = "SNAPSHOT";
+    return artifactId + '-' + (version.endsWith('-' + snapshot)
+      ? version.substring(0, version.length() - snapshot.length()) : version);
+  }
+
+  /** Adds each entry of Dropship's caches as a candidate, last used when it was last modified. */
+  private void scanCaches(List<Version> versions) {
+    for (String name : CACHES) {
+      File cache = new File(root, name);
+      File[] entries = cache.isDirectory() ? cache.listFiles() : cache.isFile() ? new File[] { cache } : null;
+      if (entries == null) {
+        continue;
+      }
+      for (File entry : entries) {
+        versions.add(new Version(relative(entry), size(entry), newest(entry), true));
+      }
+    }
+  }
+
+  private static long size(File file) {
+    File[] children = file.listFiles();
+    if (children == null) {
+      return file.length();
+    }
+    long bytes = 0;
+    for (File child : children) {
+      bytes += size(child);
+    }
+    return bytes;
+  }
+
+  private static long newest(File file) {
+    long newest = file.lastModified();
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        newest = Math.max(newest, newest(child));
+      }
+    }
+    return newest;
+  }
+
+  /** Deletes a cache entry, and everything under it if it is a directory. */
+  private static boolean delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    return file.delete();
+  }
+
+  /**
+   * Deletes a version directory, and its artifact's metadata once no
+   * versions are left.
+   *
+   * @return the bytes freed by files that had no other link, or -1 if the
+   *         version could not be deleted
+   */
+  private long deleteVersion(File version) {
+    long freed = 0;
+    File[] files = version.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (!file.isFile()) {
+          continue;
+        }
+        long length = file.length();
+        boolean linked = ContentAddressedStore.links(file) > 1;
+        if (!file.delete()) {
+          logger.warn("Could not delete %s", file);
+          return -1;
+        }
+        freed += linked ? 0 : length;
+      }
+    }
+    if (!version.delete()) {
+      return -1;
+    }
+
+    File artifact = version.getParentFile();
+    File[] remaining = artifact.listFiles();
+    boolean versionsLeft = false;
+    if (remaining != null) {
+      for (File file : remaining) {
+        versionsLeft |= file.isDirectory();
+      }
+      if (!versionsLeft) {
+        for (File file : remaining) {
+          long length = file.length();
+          if (file.delete()) {
+            freed += length;
+          }
+        }
+      }
+    }
+
+    // Remove directories left empty, up to the repository root
+    for (File dir = artifact; dir != null && !dir.equals(root); dir = dir.getParentFile()) {
+      String[] left = dir.list();
+      if (left == null || left.length > 0 || !dir.delete()) {
+        break;
+      }
+    }
+    return freed;
+  }
+
+  /**
+   * Takes the {@link RepositoryLocks} stripe of the version directory at
+   * {@code path}, or returns null if the path is not a Maven layout version.
+   */
+  private SyncContext lockVersion(String path) {
+    int versionSlash = path.lastIndexOf('/');
+    int artifactSlash = versionSlash > 0 ? path.lastIndexOf('/', versionSlash - 1) : -1;
+    if (artifactSlash <= 0) {
+      return null;
+    }
+    return locks.lockArtifact(root, new DefaultArtifact(path.substring(0, artifactSlash).replace('/', '.'),
+      path.substring(artifactSlash + 1, versionSlash), null, "pom", path.substring(versionSlash + 1)));
+  }
+
+  /**
+   * Locks the access log against other processes using this repository;
+   * this process's threads are kept apart by synchronizing on the class.
+   * Closing the lock's channel releases it.
+   */
+  private FileLock lockAccessLog() throws IOException {
+    RandomAccessFile file = new RandomAccessFile(new File(root, ACCESS_LOG + ".lock"), "rw");
+    try {
+      return RepositoryLocks.lock(file.getChannel(), "the access log", logger);
+    } catch (InterruptedException e) {
+      file.close();
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the access log");
+    } catch (IOException e) {
+      file.close();
+      throw e;
+    }
+  }
+
+  private Map<String, Long> readAccessLog() throws IOException {
+    Map<String, Long> lastAccess = new HashMap<String, Long>();
+    if (!accessLog.isFile()) {
+      return lastAccess;
+    }
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(accessLog), "UTF-8"));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        int space = line.indexOf(' ');
+        if (space <= 0) {
+          continue;
+        }
+        try {
+          long time = Long.parseLong(line.substring(0, space));
+          String path = line.substring(space + 1);
+          Long previous = lastAccess.get(path);
+          if (previous == null || previous < time) {
+            lastAccess.put(path, time);
+          }
+        } catch (NumberFormatException e) {
+          // a torn line from an interrupted append
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return lastAccess;
+  }
+
+  private void writeAccessLog(Map<String, Long> lastAccess) throws IOException {
+    StringBuilder lines = new StringBuilder();
+    for (Map.Entry<String, Long> entry : lastAccess.entrySet()) {
+      lines.append(entry.getValue()).append(' ').append(entry.getKey()).append('\n');
+    }
+    Files.replace(accessLog, lines.toString().getBytes("UTF-8"));
+  }
+
+  private void touchStamp() throws IOException {
+    File stamp = new File(root, COLLECTED_STAMP);
+    if (!stamp.exists()) {
+      new FileOutputStream(stamp).close();
+    }
+    //noinspection ResultOfMethodCallIgnored
+    stamp.setLastModified(System.currentTimeMillis());
+  }
+
+  /** Returns {@code dir} relative to the repository root, with '/' separators, or null if outside it. */
+  private String relative(File dir) {
+    String path = dir.getPath();
+    String rootPath = root.getPath() + File.separator;
+    if (!path.startsWith(rootPath)) {
+      return null;
+    }
+    return path.substring(rootPath.length()).replace(File.separatorChar, '/');
+  }
+
+  /** Returns the directory of an artifact version in the Maven layout. */
+  static File versionDirectory(File root, String groupId, String artifactId, String version) {
+    return new File(root, groupId.replace('.', '/') + '/' + artifactId + '/' + version);
+  }
+
+  /** Returns the parent POM chain of a version, as relative version directories. */
+  private List<String> parents(String version) {
+    List<String> parents = new ArrayList<String>();
+    File dir = new File(root, version);
+    while (parents.size() < 32) {
+      File pom = pomIn(dir);
+      if (pom == null) {
+        break;
+      }
+      String parent;
+      try {
+        parent = parentOf(pom);
+      } catch (IOException e) {
+        break;
+      }
+      if (parent == null || parents.contains(parent)) {
+        break;
+      }
+      parents.add(parent);
+      dir = new File(root, parent);
+    }
+    return parents;
+  }
+
+  private static File pomIn(File dir) {
+    File[] poms = dir.listFiles();
+    if (poms != null) {
+      for (File pom : poms) {
+        if (pom.getName().endsWith(".pom")) {
+          return pom;
+        }
+      }
+    }
+    return null;
+  }
+
+  /** Returns the version directory of the POM's {@code <parent>}, or null if it has none. */
+  private static String parentOf(File pom) throws IOException {
+    String content = read(pom);
+    Matcher parent = PARENT.matcher(content);
+    if (!parent.find()) {
+      return null;
+    }
+    String groupId = element(parent.group(1), "groupId");
+    String artifactId = element(parent.group(1), "artifactId");
+    String version = element(parent.group(1), "version");
+    if (groupId == null || artifactId == null || version == null) {
+      return null;
+    }
+    return groupId.replace('.', '/') + '/' + artifactId + '/' + version;
+  }
+
+  private static String element(String xml, String name) {
+    Matcher matcher = Pattern.compile("<" + name + ">\\s*([^<\\s]+)\\s*</" + name + ">").matcher(xml);
+    return matcher.find() ? matcher.group(1) : null;
+  }
+
+  private static String read(File file) throws IOException {
+    InputStream in = new FileInputStream(file);
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+      return out.toString("UTF-8");
+    } finally {
+      in.close();
+    }
+  }
+
+  /** An artifact version, or with {@code cache} set an entry of one of Dropship's caches. */
+  private static final class Version {
+    final String path;
+    final long bytes;
+    final boolean cache;
+    long lastUsed;
+
+    Version(String path, long bytes, long lastUsed, boolean cache) {
+      this.path = path;
+      this.bytes = bytes;
+      this.lastUsed = lastUsed;
+      this.cache = cache;
+    }
+  }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import dropship.logging.Logger;
+import org.sonatype.aether.RepositorySystemSession;
+import org.sonatype.aether.SyncContext;
+import org.sonatype.aether.artifact.Artifact;
+import org.sonatype.aether.impl.SyncContextFactory;
+import org.sonatype.aether.metadata.Metadata;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static dropship.Preconditions.checkArgument;
+import static dropship.Preconditions.checkNotNull;
+
+/**
+ * Coordinates processes that share one local repository. Aether takes a
+ * {@link SyncContext} around every artifact and metadata resolution; here
+ * each artifact version and each metadata file hashes onto one of a fixed
+ * number of lock files under {@code <local repo>/.locks}, which is held with
+ * an OS file lock for the whole check-download-install sequence. A process
+ * that wants an artifact another process is downloading therefore waits,
+ * then finds it installed and reuses it instead of fetching it again.
+ * Downloads themselves land in uniquely named temporary files that Aether
+ * renames into place once their checksums are verified.
+ *
+ * <p>Within the process, each stripe is a reentrant lock, and the file lock
+ * is held while any thread holds the stripe. Stripes are always taken in
+ * order, artifacts before metadata, as Aether resolves versions while it
+ * holds an artifact's lock.</p>
+ *
+ * <p>If the lock files cannot be created, e.g. on a read-only repository,
+ * only threads of this process are coordinated.</p>
+ */
+final class RepositoryLocks implements SyncContextFactory {
+
+  static final String LOCK_DIRECTORY = ".locks";
+  private static final long MAX_POLL_MILLIS = 50;
+
+  /** One set of stripes per repository in this process, as the JVM allows a single file lock per file. */
+  private static final ConcurrentMap<File, Stripes> repositories = new ConcurrentHashMap<File, Stripes>();
+
+  private final int stripes;
+  private final Logger logger;
+
+  RepositoryLocks(int stripes, Logger logger) {
+    checkArgument(stripes > 0, "repo.lock-stripes must be positive");
+    this.stripes = stripes;
+    this.logger = checkNotNull(logger, "logger");
+  }
+
+  @Override
+  public SyncContext newInstance(RepositorySystemSession session, boolean shared) {
+    return new Context(stripes(new File(session.getLocalRepository().getBasedir().getAbsoluteFile(), LOCK_DIRECTORY)));
+  }
+
+  /**
+   * Takes the stripe that resolutions of {@code artifact} take in the local
+   * repository {@code localRepository}, for code outside Aether that changes
+   * the artifact's files. Releasing the returned context releases it.
+   */
+  SyncContext lockArtifact(File localRepository, Artifact artifact) {
+    Context context = new Context(stripes(new File(localRepository.getAbsoluteFile(), LOCK_DIRECTORY)));
+    context.acquire(Collections.singleton(artifact), null);
+    return context;
+  }
+
+  private Stripes stripes(File directory) {
+    Stripes repository = repositories.get(directory);
+    if (repository == null) {
+      Stripes created = new Stripes(directory, stripes, logger);
+      repository = repositories.putIfAbsent(directory, created);
+      if (repository == null) {
+        repository = created;
+      }
+    }
+    return repository;
+  }
+
+  /**
+   * Locks {@code channel}'s file against other processes, waiting as long as
+   * it takes. Polls rather than blocks: the kernel detects deadlocks between
+   * whole processes, so a blocking lock fails spuriously when threads of two
+   * processes wait on each other's unrelated locks.
+   */
+  static FileLock lock(FileChannel channel, String waitingFor, Logger logger) throws IOException, InterruptedException {
+    long pause = 1;
+    FileLock fileLock;
+    while ((fileLock = channel.tryLock()) == null) {
+      if (pause == 1) {
+        logger.info("Waiting for another process to finish with %s", waitingFor);
+      }
+      Thread.sleep(pause);
+      pause = Math.min(pause * 2, MAX_POLL_MILLIS);
+    }
+    return fileLock;
+  }
+
+  /** The artifact and metadata stripes of one repository. */
+  private static final class Stripes {
+    final Stripe[] artifacts;
+    final Stripe[] metadata;
+
+    Stripes(File directory, int count, Logger logger) {
+      this.artifacts = new Stripe[count];
+      this.metadata = new Stripe[count];
+      for (int i = 0; i < count; i++) {
+        artifacts[i] = new Stripe(new File(directory, "artifact-" + i + ".lock"), logger);
+        metadata[i] = new Stripe(new File(directory, "metadata-" + i + ".lock"), logger);
+      }
+    }
+
+    Stripe artifact(Artifact artifact) {
+      return artifacts[index(artifact.getGroupId() + ':' + artifact.getArtifactId() + ':' + artifact.getBaseVersion(), artifacts.length)];
+    }
+
+    Stripe metadata(Metadata metadata) {
+      return this.metadata[index(metadata.getGroupId() + ':' + metadata.getArtifactId() + ':' + metadata.getVersion() + ':' + metadata.getType(), this.metadata.length)];
+    }
+
+    private static int index(String key, int count) {
+      return (key.hashCode() & Integer.MAX_VALUE) % count;
+    }
+  }
+
+  /** A reentrant lock that also holds a file lock while any thread of this process holds it. */
+  private static final class Stripe implements Comparable<Stripe> {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final File file;
+    private final Logger logger;
+
+    // guarded by lock
+    private RandomAccessFile channel = null;
+
+    Stripe(File file, Logger logger) {
+      this.file = file;
+      this.logger = logger;
+    }
+
+    void acquire(String waitingFor) {
+      lock.lock();
+      if (lock.getHoldCount() > 1) {
+        return;
+      }
+      try {
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+          throw new IOException("Could not create " + parent);
+        }
+        channel = new RandomAccessFile(file, "rw");
+        lock(channel.getChannel(), waitingFor, logger);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        closeChannel();
+      } catch (IOException e) {
+        logger.debug("Could not lock %s, coordinating with this process only: %s", file, e.getMessage());
+        closeChannel();
+      }
+    }
+
+    void release() {
+      try {
+        if (lock.getHoldCount() == 1) {
+          closeChannel();
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    private void closeChannel() {
+      if (channel != null) {
+        try {
+          // releases the file lock
+          channel.close();
+        } catch (IOException e) {
+          // nothing else to release
+        }
+        channel = null;
+      }
+    }
+
+    @Override
+    public int compareTo(Stripe other) {
+      return file.getName().compareTo(other.file.getName());
+    }
+  }
+
+  /** The stripes taken by one Aether operation, released together. */
+  private static final class Context implements SyncContext {
+    private final Stripes repository;
+    private final List<Stripe> held = new ArrayList<Stripe>();
+
+    Context(Stripes repository) {
+      this.repository = repository;
+    }
+
+    @Override
+    public void acquire(Collection<? extends Artifact> artifacts, Collection<? extends Metadata> metadatas) {
+      // artifact-N sorts before metadata-N, and both by name, which is a fixed order across processes
+      SortedSet<Stripe> stripes = new TreeSet<Stripe>();
+      StringBuilder names = new StringBuilder();
+      if (artifacts != null) {
+        for (Artifact artifact : artifacts) {
+          stripes.add(repository.artifact(artifact));
+          names.append(names.length() > 0 ? ", " : "").append(artifact);
+        }
+      }
+      if (metadatas != null) {
+        for (Metadata metadata : metadatas) {
+          stripes.add(repository.metadata(metadata));
+          names.append(names.length() > 0 ? ", " : "").append(metadata);
+        }
+      }
+      for (Stripe stripe : stripes) {
+        stripe.acquire(names.toString());
+        held.add(stripe);
+      }
+    }
+
+    @Override
+    public void release() {
+      for (int i = held.size() - 1; i >= 0; i--) {
+        held.get(i).release();
+      }
+      held.clear();
+    }
+  }
+}
@@ -0,0 +1,387 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import dropship.logging.Logger;
+import org.apache.http.HttpStatus;
+import org.apache.maven.wagon.repository.Repository;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static dropship.Preconditions.checkNotNull;
+import static dropship.Preconditions.checkState;
+
+/**
+ * A caching, Maven-layout HTTP repository backed by the local repository.
+ * Files already present locally are served directly; anything else is
+ * fetched from the upstream repository once, no matter how many clients ask
+ * for it at the same time, and streamed to every waiting client while it is
+ * still downloading. Checksum files are passed through from upstream like
+ * any other file, never computed here, so a client still notices a cached
+ * file that does not match what upstream published. {@code maven-metadata.xml}
+ * is always refreshed from upstream, falling back to the cached copy if
+ * upstream cannot be reached.
+ */
+final class RepositoryProxy {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final File localRepository;
+  private final String upstreamUrl;
+  private final PooledHttpTransport transport;
+  private final Logger logger;
+  private final ConcurrentMap<String, Fetch> inFlight = new ConcurrentHashMap<String, Fetch>();
+  private final ExecutorService fetchers = Executors.newCachedThreadPool();
+  private final AtomicInteger upstreamRequests = new AtomicInteger();
+
+  private HttpServer server = null;
+
+  RepositoryProxy(File localRepository, String upstreamUrl, PooledHttpTransport transport, Logger logger) {
+    this.localRepository = checkNotNull(localRepository, "local repository");
+    checkNotNull(upstreamUrl, "upstream url");
+    this.upstreamUrl = upstreamUrl.endsWith("/") ? upstreamUrl : upstreamUrl + '/';
+    this.transport = checkNotNull(transport, "transport");
+    this.logger = checkNotNull(logger, "logger");
+  }
+
+  /** Starts serving on {@code port} (0 picks a free port) and returns the bound address. */
+  synchronized InetSocketAddress start(int port) throws IOException {
+    checkState(server == null, "Repository proxy is already running");
+    server = HttpServer.create(new InetSocketAddress(port), 0);
+    server.createContext("/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          serve(exchange);
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.start();
+    logger.info("Serving %s as a cache of %s on port %d", localRepository, upstreamUrl, server.getAddress().getPort());
+    return server.getAddress();
+  }
+
+  synchronized void stop() {
+    if (server != null) {
+      server.stop(0);
+      server = null;
+    }
+    fetchers.shutdownNow();
+    transport.close();
+  }
+
+  /** Returns how many requests have been sent upstream so far. */
+  int upstreamRequests() {
+    return upstreamRequests.get();
+  }
+
+  private void serve(HttpExchange exchange) throws IOException {
+    String method = exchange.getRequestMethod();
+    boolean head = "HEAD".equals(method);
+    if (!head && !"GET".equals(method)) {
+      exchange.sendResponseHeaders(HttpStatus.SC_METHOD_NOT_ALLOWED, -1);
+      return;
+    }
+
+    String path = exchange.getRequestURI().getPath();
+    while (path.startsWith("/")) {
+      path = path.substring(1);
+    }
+    if (path.isEmpty() || path.endsWith("/") || ("/" + path + "/").contains("/../")) {
+      exchange.sendResponseHeaders(HttpStatus.SC_NOT_FOUND, -1);
+      return;
+    }
+
+    File file = new File(localRepository, path);
+    boolean metadata = isMetadata(path);
+
+    if (!metadata && file.isFile()) {
+      sendFile(exchange, file, head);
+      return;
+    }
+
+    Fetch fetch = fetch(path, file);
+    if (!fetch.awaitStart()) {
+      if (fetch.failure != null && metadata && file.isFile()) {
+        logger.warn("Serving cached %s: %s", path, fetch.failure.getMessage());
+        sendFile(exchange, file, head);
+      } else if (fetch.failure != null) {
+        logger.warn("Could not fetch %s: %s", path, fetch.failure.getMessage());
+        exchange.sendResponseHeaders(HttpStatus.SC_BAD_GATEWAY, -1);
+      } else {
+        exchange.sendResponseHeaders(HttpStatus.SC_NOT_FOUND, -1);
+      }
+      return;
+    }
+
+    stream(exchange, fetch, head);
+  }
+
+  /** Joins the in-flight fetch of {@code path}, or starts one. */
+  private Fetch fetch(String path, File target) {
+    Fetch fetch = inFlight.get(path);
+    if (fetch == null) {
+      Fetch created = new Fetch(path, target);
+      fetch = inFlight.putIfAbsent(path, created);
+      if (fetch == null) {
+        fetch = created;
+        fetchers.execute(created);
+      }
+    }
+    return fetch;
+  }
+
+  private void stream(HttpExchange exchange, Fetch fetch, boolean head) throws IOException {
+    if (head) {
+      if (fetch.length >= 0) {
+        exchange.getResponseHeaders().set("Content-Length", String.valueOf(fetch.length));
+      }
+      exchange.sendResponseHeaders(HttpStatus.SC_OK, -1);
+      return;
+    }
+
+    InputStream in = fetch.open();
+    try {
+      exchange.sendResponseHeaders(HttpStatus.SC_OK, fetch.length >= 0 ? fetch.length : 0);
+      OutputStream out = exchange.getResponseBody();
+      byte[] buffer = new byte[BUFFER_SIZE];
+      long sent = 0;
+      long available;
+      while ((available = fetch.awaitBytesBeyond(sent)) > sent) {
+        int read = in.read(buffer, 0, (int) Math.min(buffer.length, available - sent));
+        if (read == -1) {
+          throw new IOException("Cached file ended early: " + fetch.path);
+        }
+        out.write(buffer, 0, read);
+        sent += read;
+      }
+      out.flush();
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void sendFile(HttpExchange exchange, File file, boolean head) throws IOException {
+    if (head) {
+      exchange.getResponseHeaders().set("Content-Length", String.valueOf(file.length()));
+      exchange.sendResponseHeaders(HttpStatus.SC_OK, -1);
+      return;
+    }
+
+    InputStream in = new FileInputStream(file);
+    try {
+      exchange.sendResponseHeaders(HttpStatus.SC_OK, file.length());
+      OutputStream out = exchange.getResponseBody();
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+      out.flush();
+    } finally {
+      in.close();
+    }
+  }
+
+  private static boolean isMetadata(String path) {
+    String name = path.substring(path.lastIndexOf('/') + 1);
+    return name.startsWith("maven-metadata.xml");
+  }
+
+  /** Opens {@code path} upstream, or returns {@code null} if upstream does not have it. */
+  private Upstream openUpstream(String path) throws IOException {
+    upstreamRequests.incrementAndGet();
+    String url = upstreamUrl + path;
+    if (url.startsWith("file:")) {
+      File file = new File(URI.create(url));
+      try {
+        return new Upstream(new FileInputStream(file), file.length());
+      } catch (FileNotFoundException e) {
+        return null;
+      }
+    }
+
+    try {
+      ResumableDownloads.Download download = transport.download(url,
+        transport.newContext(new Repository("upstream", upstreamUrl), null, null, 0));
+      return new Upstream(download.content, download.length);
+    } catch (ResumableDownloads.StatusException e) {
+      if (e.status == HttpStatus.SC_NOT_FOUND) {
+        return null;
+      }
+      throw e;
+    }
+  }
+
+  private static final class Upstream {
+    final InputStream content;
+    final long length;
+
+    Upstream(InputStream content, long length) {
+      this.content = content;
+      this.length = length;
+    }
+  }
+
+  /**
+   * A single upstream download into a temporary file next to its final
+   * location. Clients read the temporary file as it grows, and the file is
+   * renamed into place once complete.
+   */
+  private final class Fetch implements Runnable {
+    final String path;
+    final File target;
+    final File temp;
+
+    long length = -1;
+    private long written = 0;
+    private boolean started = false;
+    private boolean finished = false;
+    private boolean renamed = false;
+    IOException failure = null;
+
+    Fetch(String path, File target) {
+      this.path = path;
+      this.target = target;
+      this.temp = new File(target.getPath() + ".proxy-" + UUID.randomUUID());
+    }
+
+    @Override
+    public void run() {
+      try {
+        Upstream upstream = openUpstream(path);
+        if (upstream == null) {
+          finish(null);
+          return;
+        }
+
+        InputStream in = upstream.content;
+        try {
+          File parent = temp.getParentFile();
+          if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create " + parent);
+          }
+          OutputStream out = new FileOutputStream(temp);
+          try {
+            synchronized (this) {
+              length = upstream.length;
+              started = true;
+              notifyAll();
+            }
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+              out.write(buffer, 0, read);
+              synchronized (this) {
+                written += read;
+                notifyAll();
+              }
+            }
+          } finally {
+            out.close();
+          }
+        } finally {
+          in.close();
+        }
+
+        if (length >= 0 && written != length) {
+          throw new IOException("Expected " + length + " bytes but received " + written);
+        }
+
+        synchronized (this) {
+          if (!temp.renameTo(target)) {
+            throw new IOException("Could not move " + temp + " to " + target);
+          }
+          renamed = true;
+        }
+        logger.info("Cached %s (%d bytes)", path, written);
+        finish(null);
+      } catch (IOException e) {
+        //noinspection ResultOfMethodCallIgnored
+        temp.delete();
+        finish(e);
+      } catch (RuntimeException e) {
+        //noinspection ResultOfMethodCallIgnored
+        temp.delete();
+        finish(new IOException(e));
+      }
+    }
+
+    private synchronized void finish(IOException failure) {
+      this.failure = failure;
+      this.finished = true;
+      inFlight.remove(path, this);
+      notifyAll();
+    }
+
+    /** Waits for the upstream response; returns false if there is nothing to stream. */
+    synchronized boolean awaitStart() throws IOException {
+      while (!started && !finished) {
+        waitForProgress();
+      }
+      return started;
+    }
+
+    /** Opens the downloaded bytes, wherever they currently live. */
+    synchronized InputStream open() throws IOException {
+      return new FileInputStream(renamed ? target : temp);
+    }
+
+    /**
+     * Waits until more than {@code sent} bytes are on disk or the download
+     * ends, and returns the number of bytes on disk.
+     */
+    synchronized long awaitBytesBeyond(long sent) throws IOException {
+      while (written <= sent && !finished) {
+        waitForProgress();
+      }
+      if (written <= sent && failure != null) {
+        throw failure;
+      }
+      return written;
+    }
+
+    private void waitForProgress() throws IOException {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for " + path);
+      }
+    }
+  }
+}
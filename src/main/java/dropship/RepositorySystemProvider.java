@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import dropship.logging.Logger;
+import org.apache.maven.repository.internal.MavenServiceLocator;
+import org.apache.maven.wagon.Wagon;
+import org.apache.maven.wagon.providers.file.FileWagon;
+import org.sonatype.aether.RepositorySystem;
+import org.sonatype.aether.connector.wagon.WagonProvider;
+import org.sonatype.aether.connector.wagon.WagonRepositoryConnectorFactory;
+import org.sonatype.aether.impl.ArtifactDescriptorReader;
+import org.sonatype.aether.impl.SyncContextFactory;
+import org.sonatype.aether.spi.connector.RepositoryConnectorFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static dropship.Preconditions.checkNotNull;
+import static dropship.Preconditions.checkState;
+
+/**
+ * Holds the process-wide {@link RepositorySystem}. The system is wired
+ * explicitly through a {@link MavenServiceLocator} instead of booting a
+ * Plexus container, and is built at most once until {@link #shutdown()}.
+ * Its {@link RepositoryLocks} keep processes sharing a local repository
+ * from downloading the same artifact at once.
+ */
+final class RepositorySystemProvider {
+
+  private static RepositorySystem repositorySystem = null;
+  private static ManualWagonProvider wagonProvider = null;
+
+  private RepositorySystemProvider() {}
+
+  /**
+   * Returns the shared repository system, building it on first use. HTTP
+   * transport, locking, snapshot and model cache settings are taken from
+   * the {@code settings} of that first use.
+   */
+  static synchronized RepositorySystem get(Settings settings, Logger logger) {
+    if (repositorySystem == null) {
+      wagonProvider = new ManualWagonProvider(new PooledHttpTransport(settings, logger));
+
+      MavenServiceLocator locator = new MavenServiceLocator();
+      locator.setServices(WagonProvider.class, wagonProvider);
+      locator.setServices(SyncContextFactory.class, new RepositoryLocks(settings.repoLockStripes(), logger));
+      locator.addService(RepositoryConnectorFactory.class, WagonRepositoryConnectorFactory.class);
+      if (SnapshotResolution.enabled(settings)) {
+        new SnapshotResolution(settings, logger).install(locator);
+      }
+      if (settings.modelCache()) {
+        locator.setServices(ArtifactDescriptorReader.class, new DescriptorCache(locator, logger));
+      }
+
+      repositorySystem = locator.getService(RepositorySystem.class);
+    }
+
+    checkState(repositorySystem != null, "RepositorySystem has not been created");
+    return repositorySystem;
+  }
+
+  /**
+   * Disconnects any wagons still held by connectors, closes pooled HTTP
+   * connections and drops the shared repository system. A later call to
+   * {@link #get(Settings, Logger)} builds a fresh one.
+   */
+  static synchronized void shutdown() {
+    if (wagonProvider != null) {
+      wagonProvider.disconnectAll();
+    }
+    wagonProvider = null;
+    repositorySystem = null;
+  }
+
+  /** Creates wagons by protocol without a Plexus lookup. */
+  private static final class ManualWagonProvider implements WagonProvider {
+
+    private final PooledHttpTransport transport;
+    private final List<Wagon> wagons = new ArrayList<Wagon>();
+
+    ManualWagonProvider(PooledHttpTransport transport) {
+      this.transport = checkNotNull(transport, "transport");
+    }
+
+    @Override
+    public synchronized Wagon lookup(String roleHint) throws Exception {
+      Wagon wagon;
+      if ("http".equals(roleHint) || "https".equals(roleHint)) {
+        wagon = new PooledHttpWagon(transport);
+      } else if ("file".equals(roleHint)) {
+        wagon = new FileWagon();
+      } else {
+        throw new IllegalArgumentException("Unsupported repository protocol " + roleHint);
+      }
+      wagons.add(wagon);
+      return wagon;
+    }
+
+    @Override
+    public synchronized void release(Wagon wagon) {
+      wagons.remove(wagon);
+    }
+
+    synchronized void disconnectAll() {
+      for (Wagon wagon : wagons) {
+        try {
+          wagon.disconnect();
+        } catch (Exception e) {
+          // best effort during shutdown
+        }
+      }
+      wagons.clear();
+      transport.close();
+    }
+  }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import dropship.logging.Logger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static dropship.Preconditions.checkNotNull;
+
+/**
+ * Maps every entry name on a classpath of jars to the jars that contain it,
+ * so resource lookups open only those jars instead of scanning all of
+ * them. The index is written once per classpath to
+ * {@code <repo.local-path>/.resources}, named after a hash of the jar URLs,
+ * and records each jar's size and modification time; a changed jar makes
+ * the index stale and it is rebuilt.
+ *
+ * <p>The index is read the first time a resource is looked up. If there is
+ * none yet, it is built on a background thread and lookups scan the jars
+ * until it is ready.</p>
+ */
+final class ResourceIndex {
+
+  private static final String JAR = "jar ";
+  private static final char ENTRY = '/';
+
+  private final File indexFile;
+  private final List<File> jars;
+  private final URL[] jarUrls;
+  private final Logger logger;
+  private final AtomicBoolean opened = new AtomicBoolean(false);
+
+  /** Entry name to the index of the one jar holding it, or an {@code int[]} of several, in classpath order. */
+  private volatile Map<String, Object> entries = null;
+
+  ResourceIndex(File directory, List<File> jars, Logger logger) throws MalformedURLException {
+    checkNotNull(directory, "directory");
+    this.jars = new ArrayList<File>(checkNotNull(jars, "jars"));
+    this.logger = checkNotNull(logger, "logger");
+    this.jarUrls = new URL[jars.size()];
+    for (int i = 0; i < jarUrls.length; i++) {
+      jarUrls[i] = jars.get(i).toURI().toURL();
+    }
+    this.indexFile = new File(directory, ClassPreloader.classpathHash(jarUrls) + ".index");
+  }
+
+  /**
+   * Returns true if lookups can be answered from the index, reading it on
+   * the first call or starting to build it if there is no usable one.
+   */
+  boolean isReady() {
+    if (entries != null) {
+      return true;
+    }
+    if (opened.compareAndSet(false, true)) {
+      try {
+        entries = read();
+      } catch (IOException e) {
+        logger.debug("Could not read resource index %s: %s", indexFile, e.getMessage());
+      }
+      if (entries == null) {
+        buildInBackground();
+      }
+    }
+    return entries != null;
+  }
+
+  /** Returns the URL of {@code name} in the first jar holding it, or null. */
+  URL findResource(String name) {
+    int[] holders = holders(name);
+    return holders.length > 0 ? entryUrl(holders[0], name) : null;
+  }
+
+  /** Returns the URLs of {@code name} in every jar holding it, in classpath order. */
+  List<URL> findResources(String name) {
+    List<URL> urls = new ArrayList<URL>();
+    for (int jar : holders(name)) {
+      addIfNotNull(urls, entryUrl(jar, name));
+    }
+    return urls;
+  }
+
+  /** Returns the jars holding {@code name}, which as in a ZipFile lookup may also be a directory entry. */
+  private int[] holders(String name) {
+    int[] files = jarsOf(entries.get(name));
+    if (name.endsWith("/")) {
+      return files;
+    }
+    int[] directories = jarsOf(entries.get(name + '/'));
+    if (directories.length == 0) {
+      return files;
+    }
+    TreeSet<Integer> merged = new TreeSet<Integer>();
+    for (int jar : files) {
+      merged.add(jar);
+    }
+    for (int jar : directories) {
+      merged.add(jar);
+    }
+    int[] holders = new int[merged.size()];
+    int i = 0;
+    for (int jar : merged) {
+      holders[i++] = jar;
+    }
+    return holders;
+  }
+
+  private static int[] jarsOf(Object holders) {
+    if (holders == null) {
+      return new int[0];
+    }
+    return holders instanceof Integer ? new int[] { (Integer) holders } : (int[]) holders;
+  }
+
+  private static void addIfNotNull(List<URL> urls, URL url) {
+    if (url != null) {
+      urls.add(url);
+    }
+  }
+
+  private URL entryUrl(int jar, String name) {
+    try {
+      // The form URLClassLoader hands out for a jar entry
+      return new URL("jar:" + jarUrls[jar] + "!/" + encode(name));
+    } catch (MalformedURLException e) {
+      return null;
+    }
+  }
+
+  private void buildInBackground() {
+    Thread builder = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          Map<String, Object> built = build();
+          if (built != null) {
+            entries = built;
+          }
+        } catch (IOException e) {
+          logger.debug("Could not index resources: %s", e.getMessage());
+        }
+      }
+    }, "dropship-resource-index");
+    builder.setDaemon(true);
+    builder.start();
+  }
+
+  /** Returns the saved index, or null if there is none or a jar has changed since it was written. */
+  private Map<String, Object> read() throws IOException {
+    if (!indexFile.isFile()) {
+      return null;
+    }
+    Map<String, Object> read = new HashMap<String, Object>();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), "UTF-8"));
+    try {
+      int jar = -1;
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.startsWith(JAR)) {
+          jar++;
+          if (jar >= jars.size() || !line.equals(header(jars.get(jar)))) {
+            logger.debug("Resource index %s is stale", indexFile);
+            return null;
+          }
+        } else if (jar >= 0 && line.length() > 0 && line.charAt(0) == ENTRY) {
+          add(read, line.substring(1), jar);
+        }
+      }
+      if (jar != jars.size() - 1) {
+        return null;
+      }
+    } finally {
+      reader.close();
+    }
+    logger.debug("Read resource index %s", indexFile);
+    return read;
+  }
+
+  /**
+   * Lists every jar's entries and saves them. Files that are not jars or
+   * zips, such as the POM of a pom dependency, hold no entries, as
+   * URLClassLoader finds nothing in them either. Returns null if a jar's
+   * manifest adds a {@code Class-Path}, as URLClassLoader would search
+   * those jars too, or if an entry name cannot be saved as a line.
+   */
+  private Map<String, Object> build() throws IOException {
+    long start = System.nanoTime();
+    Map<String, Object> built = new HashMap<String, Object>();
+    StringBuilder lines = new StringBuilder();
+    for (int jar = 0; jar < jars.size(); jar++) {
+      File file = jars.get(jar);
+      if (file.isDirectory()) {
+        logger.debug("Not indexing resources: %s is a directory", file);
+        return null;
+      }
+      lines.append(header(file)).append('\n');
+      if (!isArchive(file)) {
+        continue;
+      }
+      ZipFile zip = new ZipFile(file);
+      try {
+        if (hasClassPath(zip)) {
+          logger.debug("Not indexing resources: %s has a manifest Class-Path", file);
+          return null;
+        }
+        Enumeration<? extends ZipEntry> zipEntries = zip.entries();
+        while (zipEntries.hasMoreElements()) {
+          String name = zipEntries.nextElement().getName();
+          if (name.indexOf('\n') >= 0 || name.indexOf('\r') >= 0) {
+            logger.debug("Not indexing resources: %s has an entry with a line break in its name", file);
+            return null;
+          }
+          add(built, name, jar);
+          lines.append(ENTRY).append(name).append('\n');
+        }
+      } finally {
+        zip.close();
+      }
+    }
+
+    Files.replace(indexFile, lines.toString().getBytes("UTF-8"));
+    logger.debug("Indexed %d resource names from %d jars in %dms", built.size(), jars.size(), (System.nanoTime() - start) / 1000000);
+    return built;
+  }
+
+  private static boolean isArchive(File file) {
+    String name = file.getName().toLowerCase(Locale.ENGLISH);
+    return name.endsWith(".jar") || name.endsWith(".zip");
+  }
+
+  private static boolean hasClassPath(ZipFile zip) throws IOException {
+    ZipEntry entry = zip.getEntry("META-INF/MANIFEST.MF");
+    if (entry == null) {
+      return false;
+    }
+    InputStream in = zip.getInputStream(entry);
+    try {
+      return new Manifest(in).getMainAttributes().getValue(Attributes.Name.CLASS_PATH) != null;
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void add(Map<String, Object> entries, String name, int jar) {
+    Object holders = entries.get(name);
+    if (holders == null) {
+      entries.put(name, jar);
+    } else if (holders instanceof Integer) {
+      if ((Integer) holders != jar) {
+        entries.put(name, new int[] { (Integer) holders, jar });
+      }
+    } else {
+      int[] previous = (int[]) holders;
+      if (previous[previous.length - 1] != jar) {
+        int[] more = new int[previous.length + 1];
+        System.arraycopy(previous, 0, more, 0, previous.length);
+        more[previous.length] = jar;
+        entries.put(name, more);
+      }
+    }
+  }
+
+  private static String header(File jar) {
+    return JAR + jar.length() + ' ' + jar.lastModified() + ' ' + jar.getAbsolutePath();
+  }
+
+  /** Percent-encodes an entry name the way URLClassLoader does for the URLs it returns. */
+  static String encode(String name) throws MalformedURLException {
+    StringBuilder encoded = null;
+    for (int i = 0; i < name.length(); i += Character.charCount(name.codePointAt(i))) {
+      char c = name.charAt(i);
+      boolean plain = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+        || "/-_.!~*'()@:$&+=,;".indexOf(c) >= 0;
+      if (plain) {
+        if (encoded != null) {
+          encoded.append(c);
+        }
+        continue;
+      }
+      if (encoded == null) {
+        encoded = new StringBuilder(name.substring(0, i));
+      }
+      try {
+        for (byte b : new String(Character.toChars(name.codePointAt(i))).getBytes("UTF-8")) {
+          encoded.append('%').append(Character.toUpperCase(Character.forDigit((b >> 4) & 0xf, 16)))
+            .append(Character.toUpperCase(Character.forDigit(b & 0xf, 16)));
+        }
+      } catch (IOException e) {
+        throw new MalformedURLException(e.getMessage());
+      }
+    }
+    return encoded != null ? encoded.toString() : name;
+  }
+}
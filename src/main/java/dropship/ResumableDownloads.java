@@ -0,0 +1,437 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.protocol.BasicHttpContext;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static dropship.Preconditions.checkNotNull;
+
+/**
+ * Downloads large resources so that an interrupted transfer can pick up
+ * where it stopped. Bytes received so far are kept in a partial directory
+ * next to the local repository, and the next attempt asks the server for
+ * the remainder with a {@code Range} request guarded by {@code If-Range}.
+ * Optionally, large resources are fetched as parallel ranged segments.
+ *
+ * <p>Callers always receive the complete content as a single stream; the
+ * partial files are removed once that stream has been read to the end, so
+ * checksum verification happens on the finished download only.</p>
+ */
+final class ResumableDownloads {
+
+  /** Thrown when the server answers with an unexpected HTTP status. */
+  static final class StatusException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    final int status;
+
+    StatusException(int status, String url) {
+      super("Unexpected HTTP status " + status + " for " + url);
+      this.status = status;
+    }
+  }
+
+  /** The complete content of a resource. */
+  static final class Download {
+    final InputStream content;
+    final long length;
+    final long lastModified;
+
+    Download(InputStream content, long length, long lastModified) {
+      this.content = content;
+      this.length = length;
+      this.lastModified = lastModified;
+    }
+  }
+
+  private static final class ResourceChangedException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    ResourceChangedException(String url) {
+      super("Resource changed while resuming: " + url);
+    }
+  }
+
+  private final File directory;
+  private final long resumableMinBytes;
+  private final int segments;
+  private final long segmentMinBytes;
+
+  ResumableDownloads(File directory, long resumableMinBytes, int segments, long segmentMinBytes) {
+    this.directory = checkNotNull(directory, "directory");
+    this.resumableMinBytes = resumableMinBytes;
+    this.segments = Math.max(1, segments);
+    this.segmentMinBytes = segmentMinBytes;
+  }
+
+  Download open(CloseableHttpClient client, HttpClientContext context, String url) throws IOException {
+    Partial partial = new Partial(url);
+    try {
+      if (partial.load()) {
+        return partial.segments > 1 ? segmented(client, context, url, partial) : resume(client, context, url, partial);
+      }
+    } catch (ResourceChangedException e) {
+      partial.delete();
+    }
+    return fresh(client, context, url, partial);
+  }
+
+  private Download fresh(CloseableHttpClient client, HttpClientContext context, String url, Partial partial) throws IOException {
+    CloseableHttpResponse response = client.execute(new HttpGet(url), context);
+    int status = response.getStatusLine().getStatusCode();
+    if (status != HttpStatus.SC_OK) {
+      response.close();
+      throw new StatusException(status, url);
+    }
+    return fromFullResponse(client, context, url, partial, response);
+  }
+
+  private Download fromFullResponse(CloseableHttpClient client, HttpClientContext context, String url, Partial partial,
+                                    CloseableHttpResponse response) throws IOException {
+    HttpEntity entity = response.getEntity();
+    long length = entity.getContentLength();
+    long lastModified = lastModified(response);
+    String validator = validator(response);
+
+    if (length < 0 || length < resumableMinBytes || validator == null) {
+      return new Download(entity.getContent(), length, lastModified);
+    }
+
+    Header acceptRanges = response.getFirstHeader("Accept-Ranges");
+    boolean ranges = acceptRanges != null && "bytes".equalsIgnoreCase(acceptRanges.getValue());
+    boolean split = segments > 1 && ranges && length >= segmentMinBytes;
+
+    partial.start(validator, length, lastModified, split ? segments : 1);
+    if (split) {
+      response.close();
+      return segmented(client, context, url, partial);
+    }
+    InputStream content = new RecordingInputStream(entity.getContent(), partial, 0);
+    return new Download(new CompletingInputStream(content, partial), length, lastModified);
+  }
+
+  private Download resume(CloseableHttpClient client, HttpClientContext context, String url, Partial partial) throws IOException {
+    long have = partial.segmentFile(0).length();
+    HttpGet get = new HttpGet(url);
+    get.setHeader("Range", "bytes=" + have + "-");
+    get.setHeader("If-Range", partial.validator);
+
+    CloseableHttpResponse response = client.execute(get, context);
+    int status = response.getStatusLine().getStatusCode();
+    if (status == HttpStatus.SC_OK) {
+      // The resource changed, so the server sent all of it
+      partial.delete();
+      return fromFullResponse(client, context, url, partial, response);
+    }
+    if (status != HttpStatus.SC_PARTIAL_CONTENT) {
+      response.close();
+      if (status == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE) {
+        throw new ResourceChangedException(url);
+      }
+      throw new StatusException(status, url);
+    }
+
+    InputStream content = new SequenceInputStream(
+      new FileInputStream(partial.segmentFile(0)),
+      new RecordingInputStream(response.getEntity().getContent(), partial, 0)
+    );
+    return new Download(new CompletingInputStream(content, partial), partial.length, partial.lastModified);
+  }
+
+  private Download segmented(final CloseableHttpClient client, final HttpClientContext context, final String url,
+                             final Partial partial) throws IOException {
+    ExecutorService executor = Executors.newFixedThreadPool(partial.segments);
+    try {
+      List<Future<Void>> results = new ArrayList<Future<Void>>();
+      for (int i = 0; i < partial.segments; i++) {
+        final int segment = i;
+        results.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            fetchSegment(client, context, url, partial, segment);
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> result : results) {
+        result.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while downloading " + url);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+
+    List<InputStream> streams = new ArrayList<InputStream>();
+    for (int i = 0; i < partial.segments; i++) {
+      streams.add(new FileInputStream(partial.segmentFile(i)));
+    }
+    InputStream content = new SequenceInputStream(Collections.enumeration(streams));
+    return new Download(new CompletingInputStream(content, partial), partial.length, partial.lastModified);
+  }
+
+  private void fetchSegment(CloseableHttpClient client, HttpClientContext context, String url, Partial partial, int segment)
+    throws IOException {
+
+    long segmentSize = (partial.length + partial.segments - 1) / partial.segments;
+    long start = segment * segmentSize;
+    long end = Math.min(partial.length, start + segmentSize) - 1;
+    long have = partial.segmentFile(segment).length();
+    if (start + have > end) {
+      return;
+    }
+
+    HttpGet get = new HttpGet(url);
+    get.setHeader("Range", "bytes=" + (start + have) + "-" + end);
+    get.setHeader("If-Range", partial.validator);
+
+    CloseableHttpResponse response = client.execute(get, HttpClientContext.adapt(new BasicHttpContext(context)));
+    try {
+      int status = response.getStatusLine().getStatusCode();
+      if (status == HttpStatus.SC_OK) {
+        throw new ResourceChangedException(url);
+      }
+      if (status != HttpStatus.SC_PARTIAL_CONTENT) {
+        throw new StatusException(status, url);
+      }
+      InputStream in = response.getEntity().getContent();
+      OutputStream out = new FileOutputStream(partial.segmentFile(segment), true);
+      try {
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+          out.write(buffer, 0, read);
+        }
+      } finally {
+        out.close();
+        in.close();
+      }
+    } finally {
+      response.close();
+    }
+  }
+
+  private static String validator(CloseableHttpResponse response) {
+    Header etag = response.getFirstHeader("ETag");
+    if (etag != null && !etag.getValue().startsWith("W/")) {
+      return etag.getValue();
+    }
+    Header lastModified = response.getFirstHeader("Last-Modified");
+    return lastModified != null ? lastModified.getValue() : null;
+  }
+
+  private static long lastModified(CloseableHttpResponse response) {
+    Header header = response.getFirstHeader("Last-Modified");
+    if (header != null) {
+      Date date = DateUtils.parseDate(header.getValue());
+      if (date != null) {
+        return date.getTime();
+      }
+    }
+    return 0;
+  }
+
+  /** On-disk state of one interrupted download. */
+  private final class Partial {
+    private final String name;
+    String validator;
+    long length;
+    long lastModified;
+    int segments;
+
+    Partial(String url) {
+      this.name = sha1(url);
+    }
+
+    File metaFile() {
+      return new File(directory, name + ".meta");
+    }
+
+    File segmentFile(int segment) {
+      return new File(directory, name + ".part" + segment);
+    }
+
+    boolean load() throws IOException {
+      File meta = metaFile();
+      if (!meta.isFile()) {
+        return false;
+      }
+      Properties properties = new Properties();
+      InputStream in = new FileInputStream(meta);
+      try {
+        properties.load(in);
+      } finally {
+        in.close();
+      }
+      validator = properties.getProperty("validator");
+      length = Long.parseLong(properties.getProperty("length", "-1"));
+      lastModified = Long.parseLong(properties.getProperty("last-modified", "0"));
+      segments = Integer.parseInt(properties.getProperty("segments", "1"));
+      return validator != null && length > 0 && segments > 0;
+    }
+
+    void start(String validator, long length, long lastModified, int segments) throws IOException {
+      delete();
+      if (!directory.isDirectory() && !directory.mkdirs()) {
+        throw new IOException("Could not create partial download directory " + directory);
+      }
+      this.validator = validator;
+      this.length = length;
+      this.lastModified = lastModified;
+      this.segments = segments;
+
+      Properties properties = new Properties();
+      properties.setProperty("validator", validator);
+      properties.setProperty("length", String.valueOf(length));
+      properties.setProperty("last-modified", String.valueOf(lastModified));
+      properties.setProperty("segments", String.valueOf(segments));
+      OutputStream out = new FileOutputStream(metaFile());
+      try {
+        properties.store(out, null);
+      } finally {
+        out.close();
+      }
+    }
+
+    void delete() {
+      //noinspection ResultOfMethodCallIgnored
+      metaFile().delete();
+      for (int i = 0; segmentFile(i).exists(); i++) {
+        //noinspection ResultOfMethodCallIgnored
+        segmentFile(i).delete();
+      }
+    }
+  }
+
+  /** Appends every byte read to a partial segment file. */
+  private static final class RecordingInputStream extends FilterInputStream {
+    private final OutputStream record;
+
+    RecordingInputStream(InputStream in, Partial partial, int segment) throws IOException {
+      super(in);
+      this.record = new FileOutputStream(partial.segmentFile(segment), true);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b != -1) {
+        record.write(b);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int read = super.read(b, off, len);
+      if (read > 0) {
+        record.write(b, off, read);
+      }
+      return read;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        record.close();
+      } finally {
+        super.close();
+      }
+    }
+  }
+
+  /** Removes the partial files once the whole resource has been read. */
+  private static final class CompletingInputStream extends FilterInputStream {
+    private final Partial partial;
+    private long read = 0;
+
+    CompletingInputStream(InputStream in, Partial partial) {
+      super(in);
+      this.partial = partial;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b != -1) {
+        read++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int count = super.read(b, off, len);
+      if (count > 0) {
+        read += count;
+      }
+      return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        if (read >= partial.length) {
+          partial.delete();
+        }
+      }
+    }
+  }
+
+  private static String sha1(String value) {
+    try {
+      return Files.hex(Files.digest(value.getBytes("UTF-8"), "SHA-1"));
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -108,10 +108,119 @@ public abstract class Settings {
     return loadProperty("repo.local-path", ".m2/repository");
   }
 
+  /** Returns true if artifact files should be hard links into a SHA-256 keyed store. */
+  boolean contentAddressedStore() {
+    return "true".equalsIgnoreCase(loadProperty("repo.content-addressed", "false"));
+  }
+
+  /**
+   * Returns how many lock files guard the local repository against other
+   * processes sharing it; artifacts hash onto one of these stripes.
+   */
+  int repoLockStripes() {
+    return Integer.parseInt(loadProperty("repo.lock-stripes", "64"));
+  }
+
   String dropshipVersion() {
     return loadProperty("dropship.x-artifact-version", "0.0");
   }
 
+  /**
+   * Returns the JVM options for the child JVM in supervisor mode and for the
+   * launcher script generated in download mode, split as {@link #splitOptions}
+   * does so both see the same options.
+   */
+  List<String> jvmOptions() {
+    return splitOptions(artifactProperty("jvm-options", ""));
+  }
+
+  /** Returns the dependency scopes collected into the classpath. */
+  List<String> resolutionScopes() {
+    return split(artifactProperty("scopes", "compile,runtime"));
+  }
+
+  /** Returns true if optional dependencies should be dropped, including the artifact's own. */
+  boolean dropOptionalDependencies() {
+    return "true".equalsIgnoreCase(artifactProperty("exclude-optional", "false"));
+  }
+
+  /** Returns {@code groupId[:artifactId]} patterns of dependencies to leave out, with their subtrees. */
+  List<String> dependencyExclusions() {
+    return split(artifactProperty("exclusions", ""));
+  }
+
+  /** Parses a comma separated list, ignoring blank entries. */
+  static List<String> split(String value) {
+    List<String> tokens = new ArrayList<String>();
+    Scanner tokenizer = new Scanner(value).useDelimiter(",");
+    while (tokenizer.hasNext()) {
+      String token = tokenizer.next().trim();
+      if (!token.isEmpty()) {
+        tokens.add(token);
+      }
+    }
+    return tokens;
+  }
+
+  /**
+   * Splits a command line into words the way {@code sh} does, without
+   * expansions: words are separated by whitespace, single quotes keep
+   * everything up to the next single quote, double quotes do the same but
+   * drop a backslash before {@code "}, {@code \}, {@code $} or a backquote,
+   * and a backslash outside quotes keeps the next character.
+   */
+  static List<String> splitOptions(String value) {
+    List<String> words = new ArrayList<String>();
+    StringBuilder word = null;
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (Character.isWhitespace(c)) {
+        if (word != null) {
+          words.add(word.toString());
+          word = null;
+        }
+        continue;
+      }
+      if (word == null) {
+        word = new StringBuilder();
+      }
+      if (c == '\'') {
+        int end = value.indexOf('\'', i + 1);
+        if (end < 0) {
+          throw new DropshipRuntimeException("Unterminated quote in " + value);
+        }
+        word.append(value, i + 1, end);
+        i = end;
+      } else if (c == '"') {
+        for (i++; i < value.length() && value.charAt(i) != '"'; i++) {
+          if (value.charAt(i) == '\\' && i + 1 < value.length() && "\"\\$`".indexOf(value.charAt(i + 1)) >= 0) {
+            i++;
+          }
+          word.append(value.charAt(i));
+        }
+        if (i == value.length()) {
+          throw new DropshipRuntimeException("Unterminated quote in " + value);
+        }
+      } else if (c == '\\' && i + 1 < value.length()) {
+        word.append(value.charAt(++i));
+      } else {
+        word.append(c);
+      }
+    }
+    if (word != null) {
+      words.add(word.toString());
+    }
+    return words;
+  }
+
+  /**
+   * Loads a setting that may be given per alias as {@code alias.<name>.<key>},
+   * falling back to {@code dropship.<key>}.
+   */
+  String artifactProperty(String key, String defaultValue) {
+    return loadProperty("dropship." + key, defaultValue);
+  }
+
   List<String> additionalClasspathPaths() {
     String additionalClasspathPathsString = loadProperty("dropship.additional-paths");
     if (additionalClasspathPathsString != null) {
@@ -126,6 +235,237 @@ public abstract class Settings {
     }
   }
 
+  /** Returns the maximum number of pooled HTTP connections across all repositories. */
+  int httpMaxConnections() {
+    return Integer.parseInt(loadProperty("repo.http.max-connections", "32"));
+  }
+
+  /** Returns the maximum number of pooled HTTP connections to a single repository host. */
+  int httpMaxConnectionsPerRepository() {
+    return Integer.parseInt(loadProperty("repo.http.max-connections-per-repo", "8"));
+  }
+
+  /** Returns how long an idle pooled HTTP connection is kept open, unless the server asks for less. */
+  long httpKeepAliveMillis() {
+    return Long.parseLong(loadProperty("repo.http.keep-alive-ms", "30000"));
+  }
+
+  int httpConnectTimeoutMillis() {
+    return Integer.parseInt(loadProperty("repo.http.connect-timeout-ms", "10000"));
+  }
+
+  int httpReadTimeoutMillis() {
+    return Integer.parseInt(loadProperty("repo.http.read-timeout-ms", "60000"));
+  }
+
+  /** Downloads at least this large keep partial content and resume with range requests. */
+  long httpResumableMinBytes() {
+    return Long.parseLong(loadProperty("repo.http.resumable-min-bytes", "1048576"));
+  }
+
+  int httpDownloadSegments() {
+    return Integer.parseInt(loadProperty("repo.http.download-segments", "1"));
+  }
+
+  long httpSegmentMinBytes() {
+    return Long.parseLong(loadProperty("repo.http.segment-min-bytes", "16777216"));
+  }
+
+  /**
+   * Returns true if the class loader should be handed out while artifacts
+   * are still downloading, adding each jar as soon as it is ready.
+   */
+  boolean pipelinedStartup() {
+    return "true".equalsIgnoreCase(loadProperty("dropship.pipelined-startup", "false"));
+  }
+
+  /** Returns the number of artifacts resolved at once by a pipelined startup. */
+  int pipelineThreads() {
+    return Integer.parseInt(loadProperty("dropship.pipeline-threads", "4"));
+  }
+
+  /**
+   * Returns true if the classes loaded early in a previous launch of the
+   * same classpath should be loaded ahead of the application.
+   */
+  boolean preloadClasses() {
+    return "true".equalsIgnoreCase(artifactProperty("preload-classes", "false"));
+  }
+
+  /**
+   * Returns true if the resolved classpath of a fixed release version
+   * should be remembered and reused without starting the resolver.
+   */
+  boolean classpathCache() {
+    return "true".equalsIgnoreCase(artifactProperty("classpath-cache", "false"));
+  }
+
+  /**
+   * Returns true if the effective dependencies of release POMs should be
+   * remembered and reused without building their models again.
+   */
+  boolean modelCache() {
+    return "true".equalsIgnoreCase(artifactProperty("model-cache", "false"));
+  }
+
+  /**
+   * Returns how long the build a snapshot resolved to is reused without
+   * checking the remote repositories for a newer one, or 0 to always check.
+   */
+  long snapshotTtlMillis() {
+    return Long.parseLong(artifactProperty("snapshot-ttl-seconds", "0")) * 1000L;
+  }
+
+  /** Returns the snapshot builds to use instead of the latest, as {@code group:artifact:timestamped-version}. */
+  List<String> snapshotPins() {
+    return split(artifactProperty("snapshot-pins", ""));
+  }
+
+  /**
+   * Returns true if a new snapshot build whose remote checksum matches the
+   * newest local build should be copied from it rather than downloaded.
+   */
+  boolean snapshotReuse() {
+    return "true".equalsIgnoreCase(artifactProperty("snapshot-reuse", "false"));
+  }
+
+  /**
+   * Returns true if the pipelined class loader should fetch the jar a
+   * package lived in last time as soon as it is used, rather than in
+   * classpath order.
+   */
+  boolean lazyFetch() {
+    return "true".equalsIgnoreCase(artifactProperty("lazy-fetch", "false"));
+  }
+
+  /**
+   * Returns true if resource lookups should be answered from an index of
+   * the classpath's jars, saved for later launches.
+   */
+  boolean resourceIndex() {
+    return "true".equalsIgnoreCase(artifactProperty("resource-index", "false"));
+  }
+
+  /** Returns how long the first launch of a classpath records the classes it loads. */
+  int preloadRecordSeconds() {
+    return Integer.parseInt(loadProperty("dropship.preload-record-seconds", "10"));
+  }
+
+  int preloadThreads() {
+    return Integer.parseInt(loadProperty("dropship.preload-threads", "2"));
+  }
+
+  /**
+   * Returns true if the heap should be collected once resolution state has
+   * been released, just before the main class is loaded.
+   */
+  boolean trimHeapBeforeMain() {
+    return "true".equalsIgnoreCase(loadProperty("dropship.trim-heap", "false"));
+  }
+
+  /** Returns the most the local repository's artifacts may occupy, or 0 for no limit. */
+  long repoMaxSizeBytes() {
+    return parseSize(loadProperty("repo.max-size", "0"));
+  }
+
+  /**
+   * Returns true if resolution should look artifacts up in an index of the
+   * local repository rather than probing each file and its origins.
+   */
+  boolean repoIndex() {
+    return "true".equalsIgnoreCase(loadProperty("repo.index", "false"));
+  }
+
+  /** Returns true if launches should evict least recently used artifacts down to {@link #repoMaxSizeBytes()}. */
+  boolean autoCollectRepo() {
+    return "true".equalsIgnoreCase(loadProperty("repo.auto-gc", "false"));
+  }
+
+  /** Returns how often, at most, a launch evicts artifacts from the local repository. */
+  long repoCollectIntervalMillis() {
+    return Long.parseLong(loadProperty("repo.gc-interval-hours", "24")) * 60 * 60 * 1000;
+  }
+
+  /** Returns true if dropship should evict artifacts from the local repository, then exit. */
+  public boolean gcRepoMode() {
+    return false;
+  }
+
+  /**
+   * Returns the {@code group:artifact:version} of every artifact pinned to an
+   * exact version, by an alias or by a {@code group:artifact = version} entry.
+   */
+  List<String> pinnedArtifacts() {
+    Properties properties = loadBootstrapPropertiesUnchecked();
+    List<String> pinned = new ArrayList<String>();
+    for (String key : properties.stringPropertyNames()) {
+      String value = properties.getProperty(key).trim();
+      String groupArtifactVersion = null;
+      if (key.startsWith("alias.") && value.contains("/")) {
+        groupArtifactVersion = value.substring(0, value.indexOf('/'));
+        if (groupArtifactVersion.split(":").length == 2) {
+          String version = properties.getProperty(groupArtifactVersion);
+          groupArtifactVersion = version != null ? groupArtifactVersion + ':' + version.trim() : null;
+        }
+      } else if (key.split(":").length == 2) {
+        groupArtifactVersion = key + ':' + value;
+      }
+
+      if (groupArtifactVersion != null
+        && groupArtifactVersion.split(":").length == 3
+        && !groupArtifactVersion.matches(".*[\\[\\](),].*")) {
+        pinned.add(groupArtifactVersion);
+      }
+    }
+    return pinned;
+  }
+
+  /** Parses a byte count with an optional {@code k}, {@code m}, {@code g} or {@code t} suffix. */
+  static long parseSize(String size) {
+    String value = size.trim().toLowerCase();
+    long unit = 1;
+    if (value.endsWith("b")) {
+      value = value.substring(0, value.length() - 1);
+    }
+    if (value.endsWith("k")) {
+      unit = 1024L;
+    } else if (value.endsWith("m")) {
+      unit = 1024L * 1024;
+    } else if (value.endsWith("g")) {
+      unit = 1024L * 1024 * 1024;
+    } else if (value.endsWith("t")) {
+      unit = 1024L * 1024 * 1024 * 1024;
+    }
+    if (unit > 1) {
+      value = value.substring(0, value.length() - 1);
+    }
+    try {
+      return Long.parseLong(value.trim()) * unit;
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid size: " + size);
+    }
+  }
+
+  /**
+   * Returns the packed repository, written by {@code --pack-repo}, that
+   * launches resolve and load classes from instead of the local repository,
+   * or null to use the local repository.
+   */
+  File packedRepository() {
+    String path = loadProperty("repo.pack");
+    return path != null && path.length() > 0 ? new File(path) : null;
+  }
+
+  /** Returns true if dropship should pack the local repository into one file, then exit. */
+  public boolean packRepoMode() {
+    return false;
+  }
+
+  /** Returns the file that pack-repo mode writes. */
+  String packRepoPath() {
+    return "";
+  }
+
   /** Returns true if dropship should ignore bad ssl certs. */
   public boolean insecure() {
     return "true".equalsIgnoreCase(loadProperty("dropship.insecure", "false"));
@@ -146,6 +486,62 @@ public abstract class Settings {
     return "";
   }
 
+  /**
+   * Returns true if download mode should split artifacts into layer
+   * directories (third-party releases, snapshots, the root artifact).
+   */
+  public boolean layeredDownload() {
+    return "true".equalsIgnoreCase(loadProperty("dropship.download-layered", "false"));
+  }
+
+  /**
+   * Returns true if download mode should stream an archive to standard
+   * output ({@code --download=-}) or to a socket
+   * ({@code --download=tcp://host:port}) instead of filling a directory.
+   */
+  public boolean streamedDownload() {
+    String path = localDownloadPath();
+    return "-".equals(path) || path.startsWith("tcp://");
+  }
+
+  /** Returns the format, {@code tar} or {@code zip}, of a streamed download. */
+  String downloadArchiveFormat() {
+    return loadProperty("dropship.download-archive", ArchiveStream.TAR);
+  }
+
+  /**
+   * Returns true if dropship should run the main class in a child JVM and
+   * relaunch it when it fails, rather than run it in this one.
+   */
+  public boolean superviseMode() {
+    return "true".equalsIgnoreCase(artifactProperty("supervise", "false"));
+  }
+
+  /** Returns the wait before the second of several quick restarts; later ones double it. */
+  long superviseBackoffMillis() {
+    return Long.parseLong(artifactProperty("supervise-backoff-ms", "100"));
+  }
+
+  /** Returns the longest wait between restarts, and how long a child must run to reset the backoff. */
+  long superviseMaxBackoffMillis() {
+    return Long.parseLong(artifactProperty("supervise-max-backoff-ms", "30000"));
+  }
+
+  /** Returns how many times a supervised child is restarted before giving up, or 0 for no limit. */
+  int superviseMaxRestarts() {
+    return Integer.parseInt(artifactProperty("supervise-max-restarts", "0"));
+  }
+
+  /** Returns true if dropship should serve its local repository as a caching proxy. */
+  public boolean serveRepoMode() {
+    return false;
+  }
+
+  /** Returns the port to serve the local repository on in serve-repo mode. */
+  int serveRepoPort() {
+    return Integer.parseInt(loadProperty("repo.serve-port", "8080"));
+  }
+
   public final Properties asProperties() {
     Properties properties = new Properties();
     properties.putAll(loadBootstrapPropertiesUnchecked());
@@ -269,24 +665,32 @@ public abstract class Settings {
   static final class DownloadModeArguments extends Settings {
 
     private final String localDownloadDir;
+    private final boolean layered;
+    private final String archiveFormat;
     private final Settings delegate;
 
     // TODO : scope
     public DownloadModeArguments(Logger logger, Settings delegate, List<String> options) {
       super(logger, delegate.offlineMode());
 
-      // parse --download=/some/local/path
+      // parse --download=/some/local/path and --archive=tar|zip
       String path = null;
+      String archiveFormat = null;
       for (String option : options) {
         if (option.startsWith("--download=")) {
           path = option.substring("--download=".length());
         }
+        if (option.startsWith("--archive=")) {
+          archiveFormat = option.substring("--archive=".length());
+        }
       }
       checkArgument(
         path != null && !path.isEmpty(),
         "Must specify a local download directory"
       );
       this.localDownloadDir = path;
+      this.layered = options.contains("--layered");
+      this.archiveFormat = archiveFormat;
       this.delegate = checkNotNull(delegate, "delegate");
     }
 
@@ -319,6 +723,231 @@ public abstract class Settings {
     public String localDownloadPath() {
       return this.localDownloadDir;
     }
+
+    @Override
+    String artifactProperty(String key, String defaultValue) {
+      return delegate.artifactProperty(key, defaultValue);
+    }
+
+    @Override
+    public boolean layeredDownload() {
+      return this.layered || super.layeredDownload();
+    }
+
+    @Override
+    String downloadArchiveFormat() {
+      return archiveFormat != null ? archiveFormat : super.downloadArchiveFormat();
+    }
+  }
+
+  static final class SuperviseArguments extends Settings {
+
+    private final Settings delegate;
+
+    public SuperviseArguments(Logger logger, Settings delegate) {
+      super(logger, delegate.offlineMode());
+      this.delegate = checkNotNull(delegate, "delegate");
+    }
+
+    @Override
+    String requestedArtifact() {
+      return delegate.requestedArtifact();
+    }
+
+    @Override
+    String resolveArtifact(String request) {
+      return delegate.resolveArtifact(request);
+    }
+
+    @Override
+    public String mainClassName() {
+      return delegate.mainClassName();
+    }
+
+    @Override
+    List<String> commandLineArguments() {
+      return delegate.commandLineArguments();
+    }
+
+    @Override
+    String artifactProperty(String key, String defaultValue) {
+      return delegate.artifactProperty(key, defaultValue);
+    }
+
+    @Override
+    public boolean superviseMode() {
+      return true;
+    }
+  }
+
+  static final class ServeRepoArguments extends Settings {
+
+    private final Integer port;
+
+    public ServeRepoArguments(Logger logger, List<String> options, boolean offline) {
+      super(logger, offline);
+
+      // parse --serve-repo[=port]
+      Integer port = null;
+      for (String option : options) {
+        if (option.startsWith("--serve-repo=")) {
+          String value = option.substring("--serve-repo=".length());
+          try {
+            port = Integer.valueOf(value);
+          } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid port for --serve-repo: " + value);
+          }
+        }
+      }
+      this.port = port;
+    }
+
+    @Override
+    String requestedArtifact() {
+      return "";
+    }
+
+    @Override
+    String resolveArtifact(String request) {
+      return request;
+    }
+
+    @Override
+    public String mainClassName() {
+      return "";
+    }
+
+    @Override
+    List<String> commandLineArguments() {
+      return new LinkedList<String>();
+    }
+
+    @Override
+    public boolean serveRepoMode() {
+      return true;
+    }
+
+    @Override
+    int serveRepoPort() {
+      return port != null ? port : super.serveRepoPort();
+    }
+  }
+
+  static final class GcRepoArguments extends Settings {
+
+    private final Long maxSize;
+
+    public GcRepoArguments(Logger logger, List<String> options, boolean offline) {
+      super(logger, offline);
+
+      // parse --gc-repo[=size]
+      Long maxSize = null;
+      for (String option : options) {
+        if (option.startsWith("--gc-repo=")) {
+          maxSize = parseSize(option.substring("--gc-repo=".length()));
+        }
+      }
+      this.maxSize = maxSize;
+    }
+
+    @Override
+    String requestedArtifact() {
+      return "";
+    }
+
+    @Override
+    String resolveArtifact(String request) {
+      return request;
+    }
+
+    @Override
+    public String mainClassName() {
+      return "";
+    }
+
+    @Override
+    List<String> commandLineArguments() {
+      return new LinkedList<String>();
+    }
+
+    @Override
+    public boolean gcRepoMode() {
+      return true;
+    }
+
+    @Override
+    long repoMaxSizeBytes() {
+      return maxSize != null ? maxSize : super.repoMaxSizeBytes();
+    }
+  }
+
+  static final class PackRepoArguments extends Settings {
+
+    private final String packPath;
+    private final Settings delegate;
+
+    /**
+     * @param delegate the settings of the artifact whose graph is packed,
+     *                 or null to pack the whole local repository
+     */
+    public PackRepoArguments(Logger logger, Settings delegate, List<String> options, boolean offline) {
+      super(logger, offline);
+
+      // parse --pack-repo=/some/file
+      String path = null;
+      for (String option : options) {
+        if (option.startsWith("--pack-repo=")) {
+          path = option.substring("--pack-repo=".length());
+        }
+      }
+      checkArgument(
+        path != null && !path.isEmpty(),
+        "Must specify a file to pack the repository into"
+      );
+      this.packPath = path;
+      this.delegate = delegate;
+    }
+
+    @Override
+    String requestedArtifact() {
+      return delegate != null ? delegate.requestedArtifact() : "";
+    }
+
+    @Override
+    String resolveArtifact(String request) {
+      return delegate != null ? delegate.resolveArtifact(request) : request;
+    }
+
+    @Override
+    public String mainClassName() {
+      return delegate != null ? delegate.mainClassName() : "";
+    }
+
+    @Override
+    List<String> commandLineArguments() {
+      return delegate != null ? delegate.commandLineArguments() : new LinkedList<String>();
+    }
+
+    @Override
+    String artifactProperty(String key, String defaultValue) {
+      return delegate != null ? delegate.artifactProperty(key, defaultValue) : super.artifactProperty(key, defaultValue);
+    }
+
+    @Override
+    public boolean packRepoMode() {
+      return true;
+    }
+
+    @Override
+    String packRepoPath() {
+      return packPath;
+    }
+
+    @Override
+    File packedRepository() {
+      // Packing reads the local repository, never an earlier pack
+      return null;
+    }
   }
 
   static final class ExplicitArtifactArguments extends Settings {
@@ -333,7 +962,8 @@ public abstract class Settings {
       checkArgument(!args.isEmpty(), "Must specify groupId:artifactId[:version]");
       this.requestedArtifact = args.get(0);
       if (download) {
-        this.mainClassName = "";
+        // A main class is optional in download mode; it only goes into the generated launcher
+        this.mainClassName = args.size() >= 2 ? args.get(1) : "";
         this.args = new LinkedList<String>();
       } else {
         checkArgument(args.size() >= 2, "Must specify groupId:artifactId[:version] and a main class name!");
@@ -414,6 +1044,11 @@ public abstract class Settings {
     List<String> commandLineArguments() {
       return new ArrayList<String>(args);
     }
+
+    @Override
+    String artifactProperty(String key, String defaultValue) {
+      return loadProperty("alias." + alias + '.' + key, super.artifactProperty(key, defaultValue));
+    }
   }
 
 }
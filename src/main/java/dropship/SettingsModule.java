@@ -40,7 +40,25 @@ class SettingsModule {
       "                      maven repo." + line +
       "--download=local_dir  Downloads all resolved dependencies to local_dir, then" + line +
       "                      exits. Dropship will not attempt to run a main class, " + line +
-      "                      so no main class argument is required." + line + line +
+      "                      so no main class argument is required. A given main" + line +
+      "                      class goes into the generated run.sh and launcher.jar." + line +
+      "                      --download=- streams it all as a tar to stdout instead," + line +
+      "                      and --download=tcp://host:port sends it to a socket." + line +
+      "--archive=tar|zip     The archive format of a streamed download." + line +
+      "--layered             With --download, splits artifacts into dependencies/," + line +
+      "                      snapshot-dependencies/ and application/ directories and" + line +
+      "                      writes a layers.idx manifest, for container image layers." + line +
+      "--supervise           Runs the main class in a child JVM and relaunches it," + line +
+      "                      with backoff, whenever it exits with an error." + line +
+      "--serve-repo[=port]   Serves the local repo over HTTP as a caching proxy of" + line +
+      "                      repo.remote-url, so other Dropship instances can use it" + line +
+      "                      as their repo.remote-url. No GAV is required." + line +
+      "--gc-repo[=size]      Evicts least recently used artifacts from the local repo" + line +
+      "                      until it fits in size (e.g. 20g), or in repo.max-size," + line +
+      "                      then exits. Aliased versions are kept. No GAV is required." + line +
+      "--pack-repo=file      Packs the local repo into file, a single indexed file" + line +
+      "                      that repo.pack can point launches at, then exits. With" + line +
+      "                      a GAV, packs only what resolving it needs." + line + line +
 
       "GAV: a maven [group:artifact:[version]] string. If you omit the version, " + line +
       "     Dropship will automatically run the latest version of the artifact." + line +
@@ -53,8 +71,14 @@ class SettingsModule {
       "java -jar dropship.jar mygroup:myartifact mygroup.myartifact.Main args..." + line +
       "java -jar dropship.jar myalias" + line +
       "java -jar dropship.jar --download=/tmp/dir/ mygroup:myartifact:1.5 " + line +
+      "java -jar dropship.jar --download=/tmp/dir/ --layered mygroup:myartifact:1.5 " + line +
+      "java -jar dropship.jar --download=- mygroup:myartifact:1.5 | tar xf - -C /tmp/dir" + line +
       "java -jar dropship.jar --offline mygroup:myartifact " + line +
-      "java -jar dropship.jar --offline --download=/tmp/dir/ mygroup:myartifact";
+      "java -jar dropship.jar --supervise myalias" + line +
+      "java -jar dropship.jar --offline --download=/tmp/dir/ mygroup:myartifact" + line +
+      "java -jar dropship.jar --serve-repo=8080" + line +
+      "java -jar dropship.jar --gc-repo=20g" + line +
+      "java -jar dropship.jar --pack-repo=/tmp/repo.pack mygroup:myartifact:1.5";
   }
 
   Settings provideSettings(Logger logger, List<String> args) {
@@ -69,6 +93,9 @@ class SettingsModule {
     List<String> options = new ArrayList<String>();
     boolean offlineMode = false;
     boolean downloadMode = false;
+    boolean serveRepoMode = false;
+    boolean gcRepoMode = false;
+    boolean packRepoMode = false;
     for (String arg : args) {
       if ("--offline".equals(arg)) {
         offlineMode = true;
@@ -78,11 +105,32 @@ class SettingsModule {
         if (arg.startsWith("--download=")) {
           downloadMode = true;
         }
+        if ("--serve-repo".equals(arg) || arg.startsWith("--serve-repo=")) {
+          serveRepoMode = true;
+        }
+        if ("--gc-repo".equals(arg) || arg.startsWith("--gc-repo=")) {
+          gcRepoMode = true;
+        }
+        if (arg.startsWith("--pack-repo=")) {
+          packRepoMode = true;
+        }
       } else {
         nonOptions.add(arg);
       }
     }
 
+    if (serveRepoMode) {
+      return new Settings.ServeRepoArguments(logger, options, offlineMode);
+    }
+
+    if (gcRepoMode) {
+      return new Settings.GcRepoArguments(logger, options, offlineMode);
+    }
+
+    if (packRepoMode && nonOptions.isEmpty()) {
+      return new Settings.PackRepoArguments(logger, null, options, offlineMode);
+    }
+
     if (nonOptions.isEmpty()) {
       System.out.println(usage);
       System.exit(1);
@@ -92,13 +140,18 @@ class SettingsModule {
     // the original 'group:artifact[:version] classname' mode, rather than 'alias' mode
     Settings settings;
     if (nonOptions.get(0).contains(":")) {
-      settings = new Settings.ExplicitArtifactArguments(logger, nonOptions, offlineMode, downloadMode);
+      // Like download mode, packing runs no main class, so none is required
+      settings = new Settings.ExplicitArtifactArguments(logger, nonOptions, offlineMode, downloadMode || packRepoMode);
     } else {
       settings = new Settings.AliasArguments(logger, nonOptions, offlineMode);
     }
 
-    if (downloadMode) {
+    if (packRepoMode) {
+      settings = new Settings.PackRepoArguments(logger, settings, options, offlineMode);
+    } else if (downloadMode) {
       settings = new DownloadModeArguments(logger, settings, options);
+    } else if (options.contains("--supervise")) {
+      settings = new Settings.SuperviseArguments(logger, settings);
     }
 
     return settings;
@@ -0,0 +1,405 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import dropship.logging.Logger;
+import org.apache.maven.repository.internal.DefaultVersionResolver;
+import org.sonatype.aether.RepositorySystemSession;
+import org.sonatype.aether.artifact.Artifact;
+import org.sonatype.aether.impl.ArtifactResolver;
+import org.sonatype.aether.impl.RemoteRepositoryManager;
+import org.sonatype.aether.impl.VersionResolver;
+import org.sonatype.aether.impl.internal.DefaultArtifactResolver;
+import org.sonatype.aether.impl.internal.DefaultServiceLocator;
+import org.sonatype.aether.repository.LocalArtifactRegistration;
+import org.sonatype.aether.repository.LocalRepositoryManager;
+import org.sonatype.aether.repository.RemoteRepository;
+import org.sonatype.aether.repository.RepositoryPolicy;
+import org.sonatype.aether.resolution.ArtifactRequest;
+import org.sonatype.aether.resolution.ArtifactResolutionException;
+import org.sonatype.aether.resolution.ArtifactResult;
+import org.sonatype.aether.resolution.VersionRequest;
+import org.sonatype.aether.resolution.VersionResolutionException;
+import org.sonatype.aether.resolution.VersionResult;
+import org.sonatype.aether.spi.connector.ArtifactDownload;
+import org.sonatype.aether.spi.connector.MetadataDownload;
+import org.sonatype.aether.spi.connector.RepositoryConnector;
+import org.sonatype.aether.util.artifact.DefaultArtifact;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static dropship.Preconditions.checkNotNull;
+
+/**
+ * Cuts the repository traffic of {@code -SNAPSHOT} dependencies, which the
+ * resolver otherwise checks for a new build on every launch.
+ *
+ * <ul>
+ *   <li>A snapshot pinned by {@code dropship.snapshot-pins} always resolves
+ *   to its pinned build.</li>
+ *   <li>With {@code dropship.snapshot-ttl-seconds}, the build a snapshot
+ *   resolved to is remembered under {@code <repo.local-path>/.snapshots}
+ *   and reused for that long without fetching its
+ *   {@code maven-metadata.xml}.</li>
+ *   <li>With {@code dropship.snapshot-reuse}, a new build that is not in the
+ *   local repository yet is checked against the newest build that is: if
+ *   the remote checksum of the new build matches, the local copy is reused
+ *   and the jar is not downloaded again.</li>
+ * </ul>
+ *
+ * <p>A build whose number is unchanged is never downloaded twice in any
+ * case, because each build is kept under its own timestamped name.</p>
+ */
+final class SnapshotResolution {
+
+  private static final String SNAPSHOT = "SNAPSHOT";
+
+  private final long ttlMillis;
+  private final boolean reuse;
+  private final Map<String, String> pins;
+  private final Logger logger;
+
+  SnapshotResolution(Settings settings, Logger logger) {
+    this.logger = checkNotNull(logger, "logger");
+    this.ttlMillis = settings.snapshotTtlMillis();
+    this.reuse = settings.snapshotReuse();
+    this.pins = pins(settings.snapshotPins());
+  }
+
+  /** Returns true if any snapshot setting is on. */
+  static boolean enabled(Settings settings) {
+    return settings.snapshotTtlMillis() > 0 || settings.snapshotReuse() || !settings.snapshotPins().isEmpty();
+  }
+
+  /**
+   * Replaces the version and artifact resolvers of {@code locator}. Call
+   * before any other service is looked up, so every service that resolves
+   * versions or artifacts is given these.
+   */
+  void install(DefaultServiceLocator locator) {
+    DefaultVersionResolver versionResolver = new DefaultVersionResolver();
+    versionResolver.initService(locator);
+    Versions versions = new Versions(versionResolver);
+    locator.setServices(VersionResolver.class, versions);
+    if (reuse) {
+      DefaultArtifactResolver artifactResolver = new DefaultArtifactResolver();
+      artifactResolver.initService(locator);
+      locator.setServices(ArtifactResolver.class,
+        new Artifacts(artifactResolver, versions, locator.getService(RemoteRepositoryManager.class)));
+    }
+  }
+
+  /** Maps {@code group:artifact:1.0-SNAPSHOT} to the pinned build of each {@code group:artifact:timestamped-version}. */
+  private static Map<String, String> pins(List<String> pinned) {
+    Map<String, String> pins = new HashMap<String, String>();
+    for (String gav : pinned) {
+      DefaultArtifact artifact;
+      try {
+        artifact = new DefaultArtifact(gav);
+      } catch (IllegalArgumentException e) {
+        throw new DropshipRuntimeException("Invalid snapshot pin " + gav + ": use group:artifact:timestamped-version");
+      }
+      if (!artifact.isSnapshot() || artifact.getVersion().equals(artifact.getBaseVersion())) {
+        throw new DropshipRuntimeException("Snapshot pin " + gav + " does not name a timestamped build, such as 1.0-20140101.120000-1");
+      }
+      pins.put(key(artifact), artifact.getVersion());
+    }
+    return pins;
+  }
+
+  private static String key(Artifact artifact) {
+    return artifact.getGroupId() + ':' + artifact.getArtifactId() + ':' + artifact.getBaseVersion();
+  }
+
+  /** Resolves snapshots from pins and from recently resolved builds before asking the repositories. */
+  final class Versions implements VersionResolver {
+
+    private final VersionResolver resolver;
+
+    Versions(VersionResolver resolver) {
+      this.resolver = checkNotNull(resolver, "resolver");
+    }
+
+    @Override
+    public VersionResult resolveVersion(RepositorySystemSession session, VersionRequest request)
+      throws VersionResolutionException {
+
+      Artifact artifact = request.getArtifact();
+      if (!artifact.getVersion().endsWith(SNAPSHOT)) {
+        return resolver.resolveVersion(session, request);
+      }
+
+      String pinned = pins.get(key(artifact));
+      if (pinned != null) {
+        VersionResult result = new VersionResult(request);
+        result.setVersion(pinned);
+        return result;
+      }
+
+      File file = ttlMillis > 0 ? cacheFile(session, request) : null;
+      if (file == null) {
+        return resolver.resolveVersion(session, request);
+      }
+      VersionResult cached = read(file, request);
+      if (cached != null) {
+        return cached;
+      }
+      VersionResult result = resolver.resolveVersion(session, request);
+      if (result.getRepository() instanceof RemoteRepository && !artifact.getVersion().equals(result.getVersion())) {
+        write(file, result.getVersion() + '\t' + result.getRepository().getId());
+      }
+      return result;
+    }
+
+    private File cacheFile(RepositorySystemSession session, VersionRequest request) {
+      if (session.getLocalRepository() == null) {
+        return null;
+      }
+      // Each classifier and extension is listed with its own build in the snapshot metadata
+      Artifact artifact = request.getArtifact();
+      List<String> key = new ArrayList<String>();
+      key.add(key(artifact) + ':' + artifact.getClassifier() + ':' + artifact.getExtension());
+      for (RemoteRepository repository : request.getRepositories()) {
+        key.add(repository.getId() + ' ' + repository.getUrl());
+      }
+      File directory = new File(session.getLocalRepository().getBasedir(), ".snapshots");
+      return new File(directory, ClassPreloader.classpathHash(key) + ".version");
+    }
+
+    /** Returns the build remembered in {@code file}, or null if there is none or it is older than the TTL. */
+    private VersionResult read(File file, VersionRequest request) {
+      long age = System.currentTimeMillis() - file.lastModified();
+      if (age < 0 || age >= ttlMillis) {
+        return null;
+      }
+      try {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+          String line = reader.readLine();
+          int tab = line != null ? line.indexOf('\t') : -1;
+          if (tab < 0) {
+            return null;
+          }
+          String repositoryId = line.substring(tab + 1);
+          for (RemoteRepository repository : request.getRepositories()) {
+            if (repository.getId().equals(repositoryId)) {
+              VersionResult result = new VersionResult(request);
+              result.setVersion(line.substring(0, tab));
+              result.setRepository(repository);
+              logger.debug("Using %s for %s, resolved %d s ago", result.getVersion(), request.getArtifact(), age / 1000);
+              return result;
+            }
+          }
+          return null;
+        } finally {
+          reader.close();
+        }
+      } catch (IOException e) {
+        return null;
+      }
+    }
+
+    private void write(File file, String content) {
+      try {
+        Files.replace(file, (content + '\n').getBytes("UTF-8"));
+      } catch (IOException e) {
+        logger.debug("Could not remember snapshot version in %s: %s", file, e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Before a new snapshot build is downloaded, fetches its remote checksum
+   * and, if it matches the newest build already in the local repository,
+   * installs a copy of that build under the new name instead.
+   */
+  final class Artifacts implements ArtifactResolver {
+
+    private final ArtifactResolver resolver;
+    private final VersionResolver versions;
+    private final RemoteRepositoryManager remoteRepositoryManager;
+
+    Artifacts(ArtifactResolver resolver, VersionResolver versions, RemoteRepositoryManager remoteRepositoryManager) {
+      this.resolver = checkNotNull(resolver, "resolver");
+      this.versions = checkNotNull(versions, "versions");
+      this.remoteRepositoryManager = checkNotNull(remoteRepositoryManager, "remoteRepositoryManager");
+    }
+
+    @Override
+    public ArtifactResult resolveArtifact(RepositorySystemSession session, ArtifactRequest request)
+      throws ArtifactResolutionException {
+      reuseUnchangedBuild(session, request);
+      return resolver.resolveArtifact(session, request);
+    }
+
+    @Override
+    public List<ArtifactResult> resolveArtifacts(RepositorySystemSession session, Collection<? extends ArtifactRequest> requests)
+      throws ArtifactResolutionException {
+      for (ArtifactRequest request : requests) {
+        reuseUnchangedBuild(session, request);
+      }
+      return resolver.resolveArtifacts(session, requests);
+    }
+
+    private void reuseUnchangedBuild(RepositorySystemSession session, ArtifactRequest request) {
+      Artifact artifact = request.getArtifact();
+      if (!artifact.isSnapshot() || session.isOffline() || session.getLocalRepositoryManager() == null) {
+        return;
+      }
+      try {
+        VersionResult version = versions.resolveVersion(session,
+          new VersionRequest(artifact, request.getRepositories(), request.getRequestContext()));
+        if (version.getVersion().equals(artifact.getBaseVersion())) {
+          return;
+        }
+        // A request for a timestamped build, as for the POM, may come from any of the request repositories
+        List<RemoteRepository> repositories = version.getRepository() instanceof RemoteRepository
+          ? Collections.singletonList((RemoteRepository) version.getRepository())
+          : request.getRepositories();
+        if (repositories.isEmpty()) {
+          return;
+        }
+        Artifact build = artifact.setVersion(version.getVersion());
+        LocalRepositoryManager local = session.getLocalRepositoryManager();
+        File target = new File(local.getRepository().getBasedir(),
+          local.getPathForRemoteArtifact(build, repositories.get(0), request.getRequestContext()));
+        if (target.exists()) {
+          return;
+        }
+        File previous = newestBuild(target, build);
+        if (previous == null) {
+          return;
+        }
+
+        String previousSha1 = sha1(previous);
+        RemoteRepository repository = null;
+        for (RemoteRepository candidate : repositories) {
+          String remoteSha1 = remoteSha1(session, candidate, build, request.getRequestContext(), target.getParentFile());
+          if (remoteSha1 != null) {
+            repository = previousSha1.equals(remoteSha1) ? candidate : null;
+            break;
+          }
+        }
+        if (repository == null) {
+          return;
+        }
+        copy(previous, target);
+        local.add(session, new LocalArtifactRegistration(build.setFile(target), repository,
+          Collections.singleton(request.getRequestContext())));
+        logger.info("Reusing %s for %s: its checksum is unchanged", previous.getName(), build);
+      } catch (Exception e) {
+        // Fall back to downloading the build as usual
+        logger.debug("Could not reuse an earlier build of %s: %s", artifact, e.getMessage());
+      }
+    }
+
+    /** Returns the local file of the newest other timestamped build beside {@code target}, or null. */
+    private File newestBuild(File target, Artifact build) {
+      String base = build.getBaseVersion();
+      String prefix = build.getArtifactId() + '-' + base.substring(0, base.length() - SNAPSHOT.length());
+      String suffix = (build.getClassifier().length() > 0 ? "-" + build.getClassifier() : "") + '.' + build.getExtension();
+      Pattern buildName = Pattern.compile(Pattern.quote(prefix) + "\\d{8}\\.\\d{6}-(\\d+)" + Pattern.quote(suffix));
+      File newest = null;
+      int newestNumber = -1;
+      File[] siblings = target.getParentFile().listFiles();
+      if (siblings != null) {
+        for (File sibling : siblings) {
+          Matcher matcher = buildName.matcher(sibling.getName());
+          if (matcher.matches() && sibling.isFile()) {
+            int number = Integer.parseInt(matcher.group(1));
+            if (number > newestNumber) {
+              newest = sibling;
+              newestNumber = number;
+            }
+          }
+        }
+      }
+      return newest;
+    }
+
+    /** Downloads the {@code .sha1} of {@code build}, returning it in lower case hex, or null if there is none. */
+    private String remoteSha1(RepositorySystemSession session, RemoteRepository repository, Artifact build,
+                              String context, File directory) throws Exception {
+      Artifact checksum = new DefaultArtifact(build.getGroupId(), build.getArtifactId(), build.getClassifier(),
+        build.getExtension() + ".sha1", build.getVersion());
+      File temp = File.createTempFile(build.getArtifactId() + '-' + build.getVersion(), ".sha1.tmp", directory);
+      try {
+        ArtifactDownload download = new ArtifactDownload(checksum, context, temp, RepositoryPolicy.CHECKSUM_POLICY_IGNORE);
+        RepositoryConnector connector = remoteRepositoryManager.getRepositoryConnector(session, repository);
+        try {
+          connector.get(Collections.singletonList(download), Collections.<MetadataDownload>emptyList());
+        } finally {
+          connector.close();
+        }
+        if (download.getException() != null) {
+          return null;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(temp), "UTF-8"));
+        try {
+          String line = reader.readLine();
+          return line != null && line.trim().length() >= 40 ? line.trim().substring(0, 40).toLowerCase() : null;
+        } finally {
+          reader.close();
+        }
+      } finally {
+        //noinspection ResultOfMethodCallIgnored
+        temp.delete();
+      }
+    }
+
+    private void copy(File from, File to) throws IOException {
+      File temp = File.createTempFile(to.getName(), ".tmp", to.getParentFile());
+      FileChannel in = new FileInputStream(from).getChannel();
+      try {
+        FileChannel out = new FileOutputStream(temp).getChannel();
+        try {
+          long size = in.size();
+          long copied = 0;
+          while (copied < size) {
+            copied += in.transferTo(copied, size - copied, out);
+          }
+        } finally {
+          out.close();
+        }
+      } finally {
+        in.close();
+      }
+      if (!temp.renameTo(to)) {
+        //noinspection ResultOfMethodCallIgnored
+        temp.delete();
+        throw new IOException("Could not write " + to);
+      }
+    }
+  }
+
+  private static String sha1(File file) throws IOException {
+    return Files.hex(Files.digest(file, "SHA-1"));
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import dropship.logging.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import static dropship.Preconditions.checkNotNull;
+
+/**
+ * Writes the files that let a download directory, or a streamed download
+ * once it is unpacked, start its application without Dropship: the
+ * resolved classpath in order, a manifest-only jar whose {@code Class-Path}
+ * points at the downloaded jars, and a launcher script carrying the
+ * configured JVM options.
+ */
+final class StandaloneLauncher {
+
+  static final String CLASSPATH_FILE = "classpath.txt";
+  static final String LAUNCHER_JAR = "launcher.jar";
+  static final String LAUNCHER_SCRIPT = "run.sh";
+
+  private final Settings settings;
+  private final Logger logger;
+
+  StandaloneLauncher(Settings settings, Logger logger) {
+    this.settings = checkNotNull(settings, "settings");
+    this.logger = checkNotNull(logger, "logger");
+  }
+
+  /**
+   * @param directory the download directory
+   * @param classpath downloaded jars in classpath order, relative to {@code directory}
+   */
+  void write(File directory, List<String> classpath) throws IOException {
+    for (Map.Entry<String, byte[]> file : files(classpath).entrySet()) {
+      File destination = new File(directory, file.getKey());
+      logger.info("Writing %s", destination);
+      write(destination, file.getValue());
+      if (LAUNCHER_SCRIPT.equals(file.getKey()) && !destination.setExecutable(true)) {
+        logger.warn("Could not make %s executable", destination);
+      }
+    }
+  }
+
+  /**
+   * Returns the launcher files by name, {@link #LAUNCHER_SCRIPT} being
+   * the one that must be executable.
+   *
+   * @param classpath downloaded jars in classpath order, relative to where the files go
+   */
+  Map<String, byte[]> files(List<String> classpath) throws IOException {
+    Map<String, byte[]> files = new LinkedHashMap<String, byte[]>();
+    List<String> additionalPaths = settings.additionalClasspathPaths();
+
+    StringBuilder lines = new StringBuilder();
+    for (String entry : classpath) {
+      lines.append(entry).append('\n');
+    }
+    for (String path : additionalPaths) {
+      lines.append(path).append('\n');
+    }
+    files.put(CLASSPATH_FILE, lines.toString().getBytes("UTF-8"));
+
+    String mainClassName = settings.mainClassName();
+    files.put(LAUNCHER_JAR, launcherJar(classpath, mainClassName));
+
+    if (mainClassName == null || mainClassName.isEmpty()) {
+      logger.info("No main class given, so no launcher script will be written");
+      return files;
+    }
+
+    StringBuilder jvmOptions = new StringBuilder();
+    for (String option : settings.jvmOptions()) {
+      // Quoted so sh passes exactly the words the supervisor would
+      jvmOptions.append(" '").append(option.replace("'", "'\\''")).append('\'');
+    }
+    StringBuilder cp = new StringBuilder("$DIR/").append(LAUNCHER_JAR);
+    for (String path : additionalPaths) {
+      cp.append(':').append(path);
+    }
+    files.put(LAUNCHER_SCRIPT, (
+      "#!/bin/sh\n" +
+      "# Generated by Dropship " + settings.dropshipVersion() + " for " + settings.groupArtifactString() + "\n" +
+      "DIR=$(cd \"$(dirname \"$0\")\" && pwd)\n" +
+      "exec java" + jvmOptions + " $JAVA_OPTS -cp \"" + cp + "\" " + mainClassName + " \"$@\"\n").getBytes("UTF-8"));
+    return files;
+  }
+
+  private byte[] launcherJar(List<String> classpath, String mainClassName) throws IOException {
+    StringBuilder classPath = new StringBuilder();
+    for (String entry : classpath) {
+      if (classPath.length() > 0) {
+        classPath.append(' ');
+      }
+      classPath.append(entry.replace(File.separatorChar, '/').replace(" ", "%20"));
+    }
+
+    Manifest manifest = new Manifest();
+    Attributes attributes = manifest.getMainAttributes();
+    attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+    attributes.put(new Attributes.Name("Created-By"), "Dropship " + settings.dropshipVersion());
+    attributes.put(Attributes.Name.CLASS_PATH, classPath.toString());
+    if (mainClassName != null && !mainClassName.isEmpty()) {
+      attributes.put(Attributes.Name.MAIN_CLASS, mainClassName);
+    }
+
+    ByteArrayOutputStream jar = new ByteArrayOutputStream();
+    new JarOutputStream(jar, manifest).close();
+    return jar.toByteArray();
+  }
+
+  private static void write(File file, byte[] content) throws IOException {
+    OutputStream out = new FileOutputStream(file);
+    try {
+      out.write(content);
+    } finally {
+      out.close();
+    }
+  }
+}
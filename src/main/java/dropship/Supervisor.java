@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import dropship.logging.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static dropship.Preconditions.checkNotNull;
+
+/**
+ * Runs the main class in a child JVM on an already resolved classpath and
+ * relaunches it whenever it fails. The supervising process resolves once
+ * and stays up, so a restart costs only the child's JVM startup: no
+ * resolution, no repository access, no Dropship startup. The first restart
+ * after a crash is immediate; restarts after further quick crashes back
+ * off exponentially, and a child that stays up longer than the longest
+ * backoff starts the sequence over.
+ *
+ * <p>The child gets this JVM's own options, except a debugger agent, then
+ * {@code dropship.jvm-options}, split as the generated launcher script
+ * splits them. It sees {@code dropship.running} set as it would in process,
+ * and can read its restart count from the {@code dropship.restarts} system
+ * property. Each launch is recorded as a use of its jars for repository
+ * eviction.</p>
+ *
+ * <p>Lifecycle listeners run in this process, not in the child: they hear
+ * that resolution completed, but not about the child's class loader, main
+ * method, errors or exit.</p>
+ */
+final class Supervisor {
+
+  private final Settings settings;
+  private final Logger logger;
+  private final Object lock = new Object();
+  private Process child = null;
+  private boolean stopping = false;
+  private volatile int restarts = 0;
+  private volatile long totalDowntimeMillis = 0;
+
+  Supervisor(Settings settings, Logger logger) {
+    this.settings = checkNotNull(settings, "settings");
+    this.logger = checkNotNull(logger, "logger");
+  }
+
+  /** Returns the classpath of {@code loader} as local files, in order. */
+  static List<File> classpathOf(URLClassLoader loader) {
+    List<File> classpath = new ArrayList<File>();
+    for (URL url : loader.getURLs()) {
+      if (!"file".equals(url.getProtocol())) {
+        throw new DropshipRuntimeException("Cannot supervise a classpath that is not made of local files: " + url);
+      }
+      try {
+        classpath.add(new File(url.toURI()));
+      } catch (URISyntaxException e) {
+        throw new DropshipRuntimeException("Cannot supervise a classpath entry of " + url + ": " + e.getMessage());
+      }
+    }
+    return classpath;
+  }
+
+  /**
+   * Runs the main class on {@code classpath} until it exits normally, the
+   * supervisor is shut down, or it has been restarted
+   * {@code dropship.supervise-max-restarts} times.
+   *
+   * @return the exit code of the last child
+   */
+  int supervise(List<File> classpath) throws IOException, InterruptedException {
+    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+      @Override
+      public void run() {
+        stop();
+      }
+    }, "dropship-supervisor-shutdown"));
+
+    RepositoryEviction eviction = new RepositoryEviction(new File(settings.localRepoPath()), settings.repoLockStripes(), logger);
+    long initialBackoff = settings.superviseBackoffMillis();
+    long maxBackoff = settings.superviseMaxBackoffMillis();
+    int maxRestarts = settings.superviseMaxRestarts();
+    long backoff = 0;
+    long exitedAt = -1;
+
+    while (true) {
+      for (File entry : classpath) {
+        if (!entry.exists()) {
+          throw new DropshipRuntimeException("Cannot relaunch: " + entry + " is gone from the classpath");
+        }
+      }
+      eviction.recordAccess(classpath);
+
+      Process process;
+      synchronized (lock) {
+        if (stopping) {
+          return 1;
+        }
+        process = start(classpath);
+        child = process;
+      }
+      long startedAt = System.currentTimeMillis();
+      if (exitedAt >= 0) {
+        totalDowntimeMillis += startedAt - exitedAt;
+        logger.info("Restart %d: child relaunched %d ms after it exited", restarts, startedAt - exitedAt);
+      } else {
+        logger.info("Supervising %s in a child JVM", settings.mainClassName());
+      }
+
+      int exit = process.waitFor();
+      exitedAt = System.currentTimeMillis();
+      long ranMillis = exitedAt - startedAt;
+      synchronized (lock) {
+        child = null;
+        if (stopping) {
+          return exit;
+        }
+      }
+      if (exit == 0) {
+        logger.info("Child exited normally after %d ms; %s", ranMillis, summary());
+        return 0;
+      }
+      if (maxRestarts > 0 && restarts >= maxRestarts) {
+        logger.warn("Child exited with %d after %d ms; giving up after %s", exit, ranMillis, summary());
+        return exit;
+      }
+
+      if (ranMillis > maxBackoff) {
+        // It was up long enough to count as recovered
+        backoff = 0;
+      }
+      logger.warn("Child exited with %d after %d ms; restarting in %d ms", exit, ranMillis, backoff);
+      Thread.sleep(backoff);
+      backoff = backoff == 0 ? initialBackoff : Math.min(backoff * 2, maxBackoff);
+      restarts++;
+    }
+  }
+
+  /** Returns how many times the child has been restarted. */
+  int restarts() {
+    return restarts;
+  }
+
+  /** Stops restarting and ends the current child, waiting for it to exit. */
+  void stop() {
+    Process process;
+    synchronized (lock) {
+      stopping = true;
+      process = child;
+    }
+    if (process != null) {
+      process.destroy();
+      try {
+        process.waitFor();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      logger.info("Supervisor stopped; %s", summary());
+    }
+  }
+
+  private String summary() {
+    return restarts == 1 ? "1 restart, down " + totalDowntimeMillis + " ms"
+      : restarts + " restarts, down " + (restarts > 0 ? totalDowntimeMillis / restarts : 0) + " ms on average";
+  }
+
+  // Called with the lock held
+  private Process start(List<File> classpath) throws IOException {
+    List<String> command = new ArrayList<String>();
+    command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+    for (String argument : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+      // A debugger agent would fail to bind the port this JVM already holds
+      if (!argument.startsWith("-agentlib:jdwp") && !argument.startsWith("-Xrunjdwp")) {
+        command.add(argument);
+      }
+    }
+    command.addAll(settings.jvmOptions());
+    command.add("-Ddropship.running=true");
+    command.add("-Ddropship.restarts=" + restarts);
+
+    StringBuilder cp = new StringBuilder();
+    for (File entry : classpath) {
+      if (cp.length() > 0) {
+        cp.append(File.pathSeparatorChar);
+      }
+      cp.append(entry.getPath());
+    }
+    command.add("-cp");
+    command.add(cp.toString());
+    command.add(settings.mainClassName());
+    command.addAll(settings.commandLineArguments());
+
+    ProcessBuilder builder = new ProcessBuilder(command);
+    boolean inherited = inheritIO(builder);
+    Process process = builder.start();
+    if (!inherited) {
+      pump(process.getInputStream(), System.out);
+      pump(process.getErrorStream(), System.err);
+    }
+    return process;
+  }
+
+  /** Lets the child use this process's standard streams, which needs Java 7. */
+  private static boolean inheritIO(ProcessBuilder builder) {
+    try {
+      Method inheritIO = ProcessBuilder.class.getMethod("inheritIO");
+      inheritIO.invoke(builder);
+      return true;
+    } catch (Exception e) {
+      return false;
+    }
+  }
+
+  /** Copies a child's output to ours on a daemon thread, for Java 6. */
+  private static void pump(final InputStream in, final PrintStream out) {
+    Thread pump = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        byte[] buffer = new byte[8192];
+        try {
+          int read;
+          while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+            out.flush();
+          }
+        } catch (IOException e) {
+          // The child has gone
+        }
+      }
+    }, "dropship-supervisor-output");
+    pump.setDaemon(true);
+    pump.start();
+  }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship.dropshippack;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Opens {@code dropshippack:} URLs however they were made, including from
+ * their string form. The JDK finds this class by its package and name once
+ * {@code dropship} is on {@code java.protocol.handler.pkgs}, and it passes
+ * each URL on to the handler of the packed class loader that holds its jar.
+ */
+public final class Handler extends URLStreamHandler {
+
+  private static final ConcurrentMap<String, URLStreamHandler> jars = new ConcurrentHashMap<String, URLStreamHandler>();
+
+  /**
+   * Makes {@code handler} open the URLs of the packed jar at the encoded
+   * path {@code jar}; the latest loader to register a path serves it.
+   */
+  public static void register(String jar, URLStreamHandler handler) {
+    jars.put(jar, handler);
+  }
+
+  @Override
+  protected URLConnection openConnection(URL url) throws IOException {
+    String file = url.getFile();
+    int separator = file.indexOf("!/");
+    URLStreamHandler handler = jars.get(file.substring(1, separator < 0 ? file.length() : separator));
+    if (handler == null) {
+      throw new FileNotFoundException(url.toString());
+    }
+    return new URL(null, url.toString(), handler).openConnection();
+  }
+}
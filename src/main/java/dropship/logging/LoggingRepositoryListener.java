@@ -19,21 +19,34 @@ import org.sonatype.aether.AbstractRepositoryListener;
 import org.sonatype.aether.RepositoryEvent;
 import org.sonatype.aether.artifact.Artifact;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 import static dropship.Preconditions.checkNotNull;
 
 class LoggingRepositoryListener extends AbstractRepositoryListener {
 
-  private final Map<String, Long> startTimes = new HashMap<String, Long>();
+  private final Map<String, Long> startTimes = new ConcurrentHashMap<String, Long>();
   private final Logger logger;
 
   LoggingRepositoryListener(Logger logger) {
     this.logger = checkNotNull(logger, "logger");
   }
 
+  /*
+   * The loggers hand out listeners through these, so that only resolution,
+   * and not a launch from the classpath cache, loads the Aether types.
+   */
+
+  static AbstractRepositoryListener logging(Logger logger) {
+    return new LoggingRepositoryListener(logger);
+  }
+
+  static AbstractRepositoryListener silent() {
+    return new AbstractRepositoryListener() {};
+  }
+
   private String artifactAsString(Artifact artifact) {
     return artifact.getGroupId() + ':' + artifact.getArtifactId() + ':' + artifact.getVersion();
   }
@@ -81,7 +81,7 @@ final class TerseLogger extends Logger {
    */
   @Override
   public AbstractRepositoryListener listener() {
-    return new AbstractRepositoryListener() {};
+    return LoggingRepositoryListener.silent();
   }
 
   @Override
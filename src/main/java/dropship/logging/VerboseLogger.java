@@ -25,7 +25,7 @@ import static dropship.Preconditions.checkNotNull;
 
 final class VerboseLogger extends Logger {
 
-  private final LoggingRepositoryListener listener;
+  private AbstractRepositoryListener listener = null;
   private final SimpleDateFormat dateFormat;
   private final String jvmName;
   private final PrintStream destination;
@@ -34,7 +34,6 @@ final class VerboseLogger extends Logger {
                 String jvmName,
                 PrintStream destination) {
 
-    this.listener = new LoggingRepositoryListener(this);
     this.dateFormat = checkNotNull(dateFormat, "date format");
     this.jvmName = checkNotNull(jvmName, "jvm name");
     this.destination = checkNotNull(destination, "destination");
@@ -50,7 +49,10 @@ final class VerboseLogger extends Logger {
    * and download.
    */
   @Override
-  public AbstractRepositoryListener listener() {
+  public synchronized AbstractRepositoryListener listener() {
+    if (listener == null) {
+      listener = LoggingRepositoryListener.logging(this);
+    }
     return listener;
   }
 
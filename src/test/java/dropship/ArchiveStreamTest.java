@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import static dropship.TestRepositories.delete;
+import static dropship.TestRepositories.tempDir;
+import static org.fest.assertions.Assertions.assertThat;
+
+public class ArchiveStreamTest {
+
+  private static final String LONG_NAME =
+    "a-directory-name-long-enough-to-need-the-ustar-prefix-field/" +
+    "and-a-file-name-that-still-fits-in-the-name-field-of-the-header-on-its-own.jar";
+
+  private File dir;
+
+  @Before public void setup() throws IOException {
+    dir = tempDir("dropship-archive");
+  }
+
+  @After public void cleanup() {
+    delete(dir);
+  }
+
+  @Test
+  public void writesATarOfFilesAndGeneratedContent() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ArchiveStream tar = ArchiveStream.create("tar", Channels.newChannel(out));
+    tar.add("lib/a.jar", file("a.jar", 1000));
+    tar.add(LONG_NAME, file("b.jar", 512));
+    tar.add("run.sh", "#!/bin/sh\n".getBytes("UTF-8"), true);
+    tar.finish();
+
+    byte[] archive = out.toByteArray();
+    assertThat(archive.length % 512).isEqualTo(0);
+    Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+    Map<String, String> modes = new LinkedHashMap<String, String>();
+    int offset = 0;
+    while (archive[offset] != 0) {
+      String name = field(archive, offset, 100);
+      String prefix = field(archive, offset + 345, 155);
+      if (prefix.length() > 0) {
+        name = prefix + '/' + name;
+      }
+      assertThat(field(archive, offset + 257, 6)).isEqualTo("ustar");
+      long checksum = Long.parseLong(field(archive, offset + 148, 7), 8);
+      long sum = 0;
+      for (int i = 0; i < 512; i++) {
+        sum += i >= 148 && i < 156 ? ' ' : archive[offset + i] & 0xff;
+      }
+      assertThat(checksum).isEqualTo(sum);
+
+      int size = Integer.parseInt(field(archive, offset + 124, 12), 8);
+      entries.put(name, Arrays.copyOfRange(archive, offset + 512, offset + 512 + size));
+      modes.put(name, field(archive, offset + 100, 8));
+      offset += 512 + (size + 511) / 512 * 512;
+    }
+
+    assertThat(new ArrayList<String>(entries.keySet())).containsExactly("lib/a.jar", LONG_NAME, "run.sh");
+    assertThat(entries.get("lib/a.jar")).isEqualTo(content(1000));
+    assertThat(entries.get(LONG_NAME)).isEqualTo(content(512));
+    assertThat(new String(entries.get("run.sh"), "UTF-8")).isEqualTo("#!/bin/sh\n");
+    assertThat(modes.get("lib/a.jar")).isEqualTo("0000644");
+    assertThat(modes.get("run.sh")).isEqualTo("0000755");
+    assertThat(archive.length - offset).isEqualTo(1024);
+  }
+
+  @Test
+  public void writesAZipOfStoredEntries() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ArchiveStream zip = ArchiveStream.create("zip", Channels.newChannel(out));
+    zip.add("lib/a.jar", file("a.jar", 70000));
+    zip.add("classpath.txt", "lib/a.jar\n".getBytes("UTF-8"), false);
+    zip.finish();
+
+    ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()));
+    try {
+      ZipEntry entry = in.getNextEntry();
+      assertThat(entry.getName()).isEqualTo("lib/a.jar");
+      assertThat(entry.getMethod()).isEqualTo(ZipEntry.STORED);
+      assertThat(read(in)).isEqualTo(content(70000));
+      entry = in.getNextEntry();
+      assertThat(entry.getName()).isEqualTo("classpath.txt");
+      assertThat(new String(read(in), "UTF-8")).isEqualTo("lib/a.jar\n");
+      assertThat(in.getNextEntry()).isNull();
+    } finally {
+      in.close();
+    }
+
+    File archive = new File(dir, "out.zip");
+    FileOutputStream file = new FileOutputStream(archive);
+    try {
+      file.write(out.toByteArray());
+    } finally {
+      file.close();
+    }
+    ZipFile zipFile = new ZipFile(archive);
+    try {
+      assertThat(zipFile.size()).isEqualTo(2);
+      assertThat(read(zipFile.getInputStream(zipFile.getEntry("lib/a.jar")))).isEqualTo(content(70000));
+    } finally {
+      zipFile.close();
+    }
+  }
+
+  private File file(String name, int size) throws IOException {
+    File file = new File(dir, name);
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(content(size));
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+
+  private static byte[] content(int size) {
+    byte[] content = new byte[size];
+    for (int i = 0; i < size; i++) {
+      content[i] = (byte) (i * 31);
+    }
+    return content;
+  }
+
+  private static String field(byte[] header, int offset, int length) throws IOException {
+    int end = offset;
+    while (end < offset + length && header[end] != 0) {
+      end++;
+    }
+    return new String(header, offset, end - offset, "UTF-8");
+  }
+
+  private static byte[] read(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import dropship.logging.Logger;
+import dropship.logging.LoggingModule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static dropship.TestRepositories.delete;
+import static dropship.TestRepositories.read;
+import static dropship.TestRepositories.tempDir;
+import static org.fest.assertions.Assertions.assertThat;
+
+public class ClassPreloaderTest {
+
+  private static final String FIRST = First.class.getName();
+  private static final String SECOND = Second.class.getName();
+  private static final String UNUSED = Unused.class.getName();
+
+  private final Logger logger = new LoggingModule().provideLogger(new SimpleDateFormat(), "myvm", System.err);
+  private File dir;
+  private File jar;
+  private Settings settings;
+
+  @Before public void setup() throws IOException {
+    dir = tempDir("dropship-preload");
+    System.setProperty("repo.local-path", new File(dir, "repo").getPath());
+    System.setProperty("dropship.preload-record-seconds", "1");
+    settings = new SettingsModule().provideSettings(logger, Arrays.asList("g:a:1.0", "Main"));
+    jar = new File(dir, "classes.jar");
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+    try {
+      for (Class<?> type : Arrays.asList(First.class, Second.class, Unused.class)) {
+        String entry = type.getName().replace('.', '/') + ".class";
+        out.putNextEntry(new ZipEntry(entry));
+        out.write(bytes(getClass().getClassLoader().getResourceAsStream(entry)));
+        out.closeEntry();
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  @After public void cleanup() {
+    System.clearProperty("repo.local-path");
+    System.clearProperty("dropship.preload-record-seconds");
+    delete(dir);
+  }
+
+  @Test
+  public void replaysTheRecordedClassesForTheSameClasspath() throws Exception {
+    URL[] classpath = { jar.toURI().toURL() };
+    File classList = new File(dir, "repo/.preload/" + ClassPreloader.classpathHash(classpath) + ".classes");
+
+    WatchedClassLoader recording = new WatchedClassLoader(classpath);
+    new ClassPreloader(settings, logger).start(recording);
+    recording.loadClass(FIRST);
+    recording.loadClass(SECOND);
+    awaitFile(classList);
+    assertThat(read(classList)).contains("jar " + jar.getPath() + "\n")
+      .endsWith("class " + FIRST + "\nclass " + SECOND + "\n");
+
+    WatchedClassLoader replaying = new WatchedClassLoader(classpath);
+    new ClassPreloader(settings, logger).start(replaying);
+    assertThat(replaying.awaitFound(2)).containsOnly(FIRST, SECOND);
+    Thread.sleep(200);
+    assertThat(replaying.found()).containsOnly(FIRST, SECOND);
+  }
+
+  @Test
+  public void aChangedClasspathIgnoresTheStaleList() throws Exception {
+    URL[] classpath = { jar.toURI().toURL() };
+    URL[] changed = { jar.toURI().toURL(), new File(dir, "extra/").toURI().toURL() };
+    assertThat(ClassPreloader.classpathHash(changed)).isNotEqualTo(ClassPreloader.classpathHash(classpath));
+    File stale = new File(dir, "repo/.preload/" + ClassPreloader.classpathHash(classpath) + ".classes");
+    TestRepositories.write(mkdirs(stale), "jar " + jar.getPath() + "\nclass " + UNUSED + "\n");
+
+    WatchedClassLoader loader = new WatchedClassLoader(changed);
+    new ClassPreloader(settings, logger).start(loader);
+    loader.loadClass(FIRST);
+    awaitFile(new File(dir, "repo/.preload/" + ClassPreloader.classpathHash(changed) + ".classes"));
+
+    assertThat(loader.found()).containsOnly(FIRST);
+  }
+
+  public static final class First {
+  }
+
+  public static final class Second {
+  }
+
+  public static final class Unused {
+  }
+
+  /** Remembers the name of every class it finds. */
+  private static final class WatchedClassLoader extends RecordingClassLoader {
+    private final List<String> found = Collections.synchronizedList(new ArrayList<String>());
+
+    WatchedClassLoader(URL[] urls) {
+      super(urls, null);
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+      Class<?> type = super.findClass(name);
+      found.add(name);
+      return type;
+    }
+
+    List<String> found() {
+      synchronized (found) {
+        return new ArrayList<String>(found);
+      }
+    }
+
+    List<String> awaitFound(int count) throws InterruptedException {
+      for (int i = 0; i < 500 && found.size() < count; i++) {
+        Thread.sleep(10);
+      }
+      return found();
+    }
+  }
+
+  private static File mkdirs(File file) {
+    assertThat(file.getParentFile().mkdirs()).isTrue();
+    return file;
+  }
+
+  private static void awaitFile(File file) throws InterruptedException {
+    for (int i = 0; i < 500 && !file.isFile(); i++) {
+      Thread.sleep(10);
+    }
+    assertThat(file.isFile()).isTrue();
+  }
+
+  private static byte[] bytes(InputStream in) throws IOException {
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+}
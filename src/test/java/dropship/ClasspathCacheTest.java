@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import dropship.logging.Logger;
+import dropship.logging.LoggingModule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.List;
+
+import static dropship.TestRepositories.delete;
+import static dropship.TestRepositories.tempDir;
+import static org.fest.assertions.Assertions.assertThat;
+
+public class ClasspathCacheTest {
+
+  private final Logger logger = new LoggingModule().provideLogger(new SimpleDateFormat(), "myvm", System.err);
+  private File dir;
+
+  @Before public void setup() throws IOException {
+    dir = tempDir("dropship-classpaths");
+    System.setProperty("repo.local-path", dir.getPath());
+    System.setProperty("dropship.classpath-cache", "true");
+  }
+
+  @After public void cleanup() {
+    System.clearProperty("repo.local-path");
+    System.clearProperty("dropship.classpath-cache");
+    delete(dir);
+  }
+
+  @Test
+  public void reusesTheClasspathOfAFixedVersionUntilAJarChanges() throws IOException {
+    ClasspathCache cache = new ClasspathCache(settings(), logger);
+    File first = file("a.jar", "a");
+    File second = file("b.jar", "bb");
+    List<File> classpath = Arrays.asList(first, second);
+
+    assertThat(cache.read("g:a:1.0")).isNull();
+    cache.write("g:a:1.0", classpath);
+    assertThat(cache.read("g:a:1.0")).isEqualTo(classpath);
+    assertThat(cache.read("g:a:1.1")).isNull();
+
+    file("b.jar", "changed");
+    assertThat(cache.read("g:a:1.0")).isNull();
+  }
+
+  @Test
+  public void aJarRewrittenWithTheSameSizeIsStale() throws IOException {
+    ClasspathCache cache = new ClasspathCache(settings(), logger);
+    File jar = file("a.jar", "a");
+    assertThat(jar.setLastModified(1000000000000L)).isTrue();
+    cache.write("g:a:1.0", Arrays.asList(jar));
+    assertThat(cache.read("g:a:1.0")).containsExactly(jar);
+
+    file("a.jar", "b");
+    assertThat(jar.setLastModified(1000000005000L)).isTrue();
+    assertThat(cache.read("g:a:1.0")).isNull();
+  }
+
+  @Test
+  public void anEntryWithoutModificationTimesIsAMiss() throws IOException {
+    ClasspathCache cache = new ClasspathCache(settings(), logger);
+    File jar = file("a.jar", "a");
+    cache.write("g:a:1.0", Arrays.asList(jar));
+    File entry = new File(dir, ".classpaths").listFiles()[0];
+    Files.replace(entry, (jar.length() + " " + jar.getAbsolutePath() + "\n").getBytes("UTF-8"));
+    assertThat(cache.read("g:a:1.0")).isNull();
+  }
+
+  @Test
+  public void neverCachesMovingVersionsOrWhenSwitchedOff() throws IOException {
+    ClasspathCache cache = new ClasspathCache(settings(), logger);
+    List<File> classpath = Arrays.asList(file("a.jar", "a"));
+    for (String gav : Arrays.asList("g:a:[1.0,2.0)", "g:a:1.0-SNAPSHOT", "g:a:LATEST")) {
+      cache.write(gav, classpath);
+      assertThat(cache.read(gav)).as(gav).isNull();
+    }
+
+    cache.write("g:a:1.0", classpath);
+    System.clearProperty("dropship.classpath-cache");
+    assertThat(new ClasspathCache(settings(), logger).read("g:a:1.0")).isNull();
+  }
+
+  private Settings settings() {
+    return new SettingsModule().provideSettings(logger, Arrays.asList("g:a:1.0", "Main"));
+  }
+
+  private File file(String name, String content) throws IOException {
+    File file = new File(dir, name);
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(content.getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import dropship.logging.LoggingModule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+
+import static dropship.TestRepositories.delete;
+import static dropship.TestRepositories.tempDir;
+import static org.fest.assertions.Assertions.assertThat;
+
+public class ContentAddressedStoreTest {
+
+  private File root;
+  private ContentAddressedStore store;
+
+  @Before public void setup() throws IOException {
+    root = tempDir("dropship-cas");
+    store = new ContentAddressedStore(new File(root, ".sha256"),
+      new LoggingModule().provideLogger(new SimpleDateFormat(), "myvm", System.err));
+  }
+
+  @After public void cleanup() {
+    delete(root);
+  }
+
+  @Test
+  public void identicalArtifactsShareOneBlob() throws IOException {
+    File first = write("g/a/1/a-1.jar", "same bytes");
+    File second = write("g/b/2/b-2.jar", "same bytes");
+    File other = write("g/c/1/c-1.jar", "other bytes");
+
+    File blob = store.intern(first);
+    assertThat(store.intern(second)).isEqualTo(blob);
+    assertThat(store.intern(other)).isNotEqualTo(blob);
+
+    assertThat(Files.isSameFile(first.toPath(), second.toPath())).isTrue();
+    assertThat(Files.isSameFile(first.toPath(), other.toPath())).isFalse();
+    assertThat(Files.readAllBytes(second.toPath())).isEqualTo("same bytes".getBytes("UTF-8"));
+  }
+
+  @Test
+  public void downloadsAreLinkedRatherThanCopied() throws IOException {
+    File artifact = write("g/a/1/a-1.jar", "jar");
+    File destination = write("download/a-1.jar", "stale");
+
+    assertThat(store.link(artifact, destination)).isTrue();
+    assertThat(Files.isSameFile(artifact.toPath(), destination.toPath())).isTrue();
+  }
+
+  private File write(String path, String content) throws IOException {
+    File file = new File(root, path);
+    assertThat(file.getParentFile().isDirectory() || file.getParentFile().mkdirs()).isTrue();
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(content.getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import dropship.logging.Logger;
+import dropship.logging.LoggingModule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static dropship.TestRepositories.delete;
+import static dropship.TestRepositories.dep;
+import static dropship.TestRepositories.install;
+import static dropship.TestRepositories.tempDir;
+import static org.fest.assertions.Assertions.assertThat;
+
+public class DependencySelectionTest {
+
+  private final Logger logger = new LoggingModule().provideLogger(new SimpleDateFormat(), "myvm", System.err);
+  private File dir;
+
+  @Before public void setup() throws IOException {
+    dir = tempDir("dropship-selection");
+    File remote = new File(dir, "remote");
+    assertThat(remote.mkdirs()).isTrue();
+    System.setProperty("repo.remote-url", remote.toURI().toString());
+    System.setProperty("repo.local-path", new File(dir, "local").getPath());
+  }
+
+  @After public void cleanup() {
+    System.clearProperty("repo.remote-url");
+    System.clearProperty("repo.local-path");
+    System.clearProperty("dropship.exclude-optional");
+    System.clearProperty("dropship.exclusions");
+    RepositorySystemProvider.shutdown();
+    delete(dir);
+  }
+
+  @Test
+  public void theCollectorNeverVisitsExcludedSubtreesOrDroppedOptionals() throws Exception {
+    System.setProperty("dropship.exclude-optional", "true");
+    System.setProperty("dropship.exclusions", "g:excluded");
+    File local = new File(dir, "local");
+    install(local, "g", "root", "1",
+      dep("g", "kept", "1"),
+      dep("g", "excluded", "1"),
+      dep("g", "optional", "1", "<optional>true</optional>"));
+    install(local, "g", "kept", "1", dep("g", "deep", "1"));
+    install(local, "g", "deep", "1");
+    install(local, "g", "excluded", "1", dep("g", "under-excluded", "1"));
+    // g:under-excluded and g:optional are in neither repository, so resolving either would fail
+
+    Settings settings = new SettingsModule().provideSettings(logger, Arrays.asList("g:root:1", "Main"));
+    MavenArtifactResolution.ArtifactResolutionBuilder resolution =
+      MavenArtifactResolution.using(settings, logger, settings.mavenRepoUrl());
+    try {
+      URLClassLoader loader = resolution.createClassLoader("g:root:1");
+      List<String> jars = new ArrayList<String>();
+      for (URL url : loader.getURLs()) {
+        jars.add(new File(url.toURI()).getName());
+      }
+      assertThat(jars).containsExactly("root-1.jar", "kept-1.jar", "deep-1.jar");
+    } finally {
+      resolution.close();
+    }
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import dropship.logging.Logger;
+import dropship.logging.LoggingModule;
+import org.apache.maven.repository.internal.MavenRepositorySystemSession;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonatype.aether.RepositorySystem;
+import org.sonatype.aether.artifact.Artifact;
+import org.sonatype.aether.collection.CollectRequest;
+import org.sonatype.aether.graph.Dependency;
+import org.sonatype.aether.graph.DependencyNode;
+import org.sonatype.aether.repository.LocalRepository;
+import org.sonatype.aether.repository.RemoteRepository;
+import org.sonatype.aether.util.artifact.DefaultArtifact;
+import org.sonatype.aether.util.graph.PreorderNodeListGenerator;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static dropship.TestRepositories.delete;
+import static dropship.TestRepositories.dep;
+import static dropship.TestRepositories.install;
+import static dropship.TestRepositories.installRaw;
+import static dropship.TestRepositories.tempDir;
+import static dropship.TestRepositories.write;
+import static org.fest.assertions.Assertions.assertThat;
+
+public class DescriptorCacheTest {
+
+  private File repo;
+  private Logger logger;
+  private Map<String, String> systemProperties;
+
+  @Before public void setup() throws IOException {
+    logger = new LoggingModule().provideLogger(new SimpleDateFormat(), "myvm", System.err);
+    repo = tempDir("dropship-models");
+    System.setProperty("dropship.model-cache", "true");
+    systemProperties = new HashMap<String, String>();
+    systemProperties.put("c.version", "1");
+    systemProperties.put("unrelated", "a");
+  }
+
+  @After public void cleanup() {
+    System.clearProperty("dropship.model-cache");
+    RepositorySystemProvider.shutdown();
+    delete(repo);
+  }
+
+  @Test
+  public void reusesEffectiveModelsUntilAPomOrAReferencedPropertyChanges() throws Exception {
+    installRaw(repo, "g", "parent", "1", "pom",
+      "<dependencyManagement><dependencies>" +
+      dep("g", "bom", "1", "<type>pom</type><scope>import</scope>") +
+      "</dependencies></dependencyManagement>");
+    installRaw(repo, "g", "bom", "1", "pom",
+      "<dependencyManagement><dependencies>" + dep("g", "d", "2") + "</dependencies></dependencyManagement>");
+    installRaw(repo, "g", "root", "1", "jar",
+      "<parent><groupId>g</groupId><artifactId>parent</artifactId><version>1</version></parent>" +
+      "<dependencies>" + dep("g", "b", "1") + dep("g", "c", "${c.version}") + "</dependencies>");
+    install(repo, "g", "b", "1", dep("g", "d", "1", "<exclusions><exclusion><groupId>g</groupId>" +
+      "<artifactId>e</artifactId></exclusion></exclusions>"));
+    install(repo, "g", "c", "1");
+    install(repo, "g", "c", "2");
+    install(repo, "g", "d", "1");
+    install(repo, "g", "d", "2");
+
+    List<String> first = collect("g:root:1");
+    assertThat(first).containsExactly("g:root:1", "g:b:1", "g:d:2", "g:c:1");
+    File[] models = new File(repo, ".models").listFiles();
+    assertThat(models).isNotNull();
+    assertThat(models.length).isEqualTo(4);
+
+    // Served from the cache: nothing is rewritten, and unreferenced properties do not matter
+    for (File model : models) {
+      assertThat(model.setLastModified(0)).isTrue();
+    }
+    systemProperties.put("unrelated", "b");
+    assertThat(collect("g:root:1")).isEqualTo(first);
+    for (File model : models) {
+      assertThat(model.lastModified()).as(model.getName()).isEqualTo(0);
+    }
+
+    installRaw(repo, "g", "bom", "1", "pom",
+      "<dependencyManagement><dependencies>" + dep("g", "d", "1") + "</dependencies></dependencyManagement>");
+    assertThat(collect("g:root:1")).containsExactly("g:root:1", "g:b:1", "g:d:1", "g:c:1");
+
+    systemProperties.put("c.version", "2");
+    assertThat(collect("g:root:1")).containsExactly("g:root:1", "g:b:1", "g:d:1", "g:c:2");
+  }
+
+  private List<String> collect(String gav) throws Exception {
+    Settings settings = new SettingsModule().provideSettings(logger, Arrays.asList("--offline", gav, "Main"));
+    RepositorySystem system = RepositorySystemProvider.get(settings, logger);
+    MavenRepositorySystemSession session = new MavenRepositorySystemSession();
+    session.setOffline(true);
+    session.setSystemProperties(systemProperties);
+    session.setLocalRepositoryManager(system.newLocalRepositoryManager(new LocalRepository(repo)));
+
+    CollectRequest request = new CollectRequest();
+    request.setRoot(new Dependency(new DefaultArtifact(gav), "compile"));
+    request.addRepository(new RemoteRepository("central", "default", "http://localhost/"));
+    DependencyNode node = system.collectDependencies(session, request).getRoot();
+
+    PreorderNodeListGenerator nlg = new PreorderNodeListGenerator();
+    node.accept(nlg);
+    List<String> coordinates = new ArrayList<String>();
+    for (Artifact artifact : nlg.getArtifacts(true)) {
+      coordinates.add(artifact.getGroupId() + ':' + artifact.getArtifactId() + ':' + artifact.getVersion());
+    }
+    return coordinates;
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import dropship.logging.Logger;
+import dropship.logging.LoggingModule;
+import org.apache.maven.repository.internal.MavenRepositorySystemSession;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonatype.aether.artifact.Artifact;
+import org.sonatype.aether.impl.internal.EnhancedLocalRepositoryManager;
+import org.sonatype.aether.repository.LocalArtifactRegistration;
+import org.sonatype.aether.repository.LocalArtifactRequest;
+import org.sonatype.aether.repository.LocalArtifactResult;
+import org.sonatype.aether.repository.RemoteRepository;
+import org.sonatype.aether.util.artifact.DefaultArtifact;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+
+import static dropship.TestRepositories.delete;
+import static dropship.TestRepositories.read;
+import static dropship.TestRepositories.tempDir;
+import static dropship.TestRepositories.write;
+import static org.fest.assertions.Assertions.assertThat;
+
+public class IndexedLocalRepositoryManagerTest {
+
+  private final MavenRepositorySystemSession session = new MavenRepositorySystemSession();
+  private final RemoteRepository central = new RemoteRepository("central", "default", "http://localhost/");
+  private final RemoteRepository other = new RemoteRepository("other", "default", "http://localhost/other/");
+  private final Artifact artifact = new DefaultArtifact("g:a:1.0");
+  private File repo;
+  private File jar;
+  private Logger logger;
+
+  @Before public void setup() throws IOException {
+    logger = new LoggingModule().provideLogger(new SimpleDateFormat(), "myvm", System.err);
+    repo = tempDir("dropship-index");
+    jar = new File(repo, "g/a/1.0/a-1.0.jar");
+    assertThat(jar.getParentFile().mkdirs()).isTrue();
+    write(jar, "jar");
+    assertThat(jar.setLastModified(1000000000000L)).isTrue();
+    write(new File(jar.getParentFile(), "_maven.repositories"), "a-1.0.jar>central=\n");
+  }
+
+  @After public void cleanup() {
+    delete(repo);
+  }
+
+  @Test
+  public void answersFromTheIndexWhileTheFileIsUnchanged() throws IOException {
+    IndexedLocalRepositoryManager manager = manager();
+    assertThat(find(manager, central).isAvailable()).isTrue();
+    assertThat(find(manager, other).isAvailable()).isFalse();
+    assertThat(new File(repo, ".index").isFile()).isTrue();
+
+    // The tracking file is no longer read, by this manager or the next one to load the index
+    write(new File(jar.getParentFile(), "_maven.repositories"), "a-1.0.jar>other=\n");
+    LocalArtifactResult indexed = find(manager(), central);
+    assertThat(indexed.isAvailable()).isTrue();
+    assertThat(indexed.getFile()).isEqualTo(jar);
+    assertThat(indexed.getRepository()).isSameAs(central);
+
+    // Once the file changes, the entry is dropped and the tracking file is read again
+    assertThat(jar.setLastModified(1100000000000L)).isTrue();
+    assertThat(find(manager, central).isAvailable()).isFalse();
+    assertThat(find(manager(), other).isAvailable()).isTrue();
+  }
+
+  @Test
+  public void installsAreIndexedAsTheyAreAdded() throws IOException {
+    Artifact installed = new DefaultArtifact("g:b:2.0");
+    File file = new File(repo, "g/b/2.0/b-2.0.jar");
+    assertThat(file.getParentFile().mkdirs()).isTrue();
+    write(file, "installed");
+    manager().add(session, new LocalArtifactRegistration(installed));
+    assertThat(read(new File(repo, ".index"))).contains("\tg/b/2.0/b-2.0.jar\n");
+
+    // Installed locally, so it is available whichever repositories are asked for
+    LocalArtifactRequest request = new LocalArtifactRequest(installed, Collections.singletonList(other), null);
+    LocalArtifactResult found = manager().find(session, request);
+    assertThat(found.isAvailable()).isTrue();
+    assertThat(found.getRepository()).isNull();
+
+    assertThat(file.delete()).isTrue();
+    assertThat(manager().find(session, request).isAvailable()).isFalse();
+  }
+
+  private IndexedLocalRepositoryManager manager() {
+    return new IndexedLocalRepositoryManager(new EnhancedLocalRepositoryManager(repo), logger);
+  }
+
+  private LocalArtifactResult find(IndexedLocalRepositoryManager manager, RemoteRepository repository) {
+    return manager.find(session, new LocalArtifactRequest(artifact, Collections.singletonList(repository), null));
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import dropship.logging.Logger;
+import dropship.logging.LoggingModule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static dropship.TestRepositories.delete;
+import static dropship.TestRepositories.dep;
+import static dropship.TestRepositories.install;
+import static dropship.TestRepositories.read;
+import static dropship.TestRepositories.tempDir;
+import static dropship.TestRepositories.write;
+import static org.fest.assertions.Assertions.assertThat;
+
+public class LayeredDownloadTest {
+
+  private final Logger logger = new LoggingModule().provideLogger(new SimpleDateFormat(), "myvm", System.err);
+  private File dir;
+
+  @Before public void setup() throws IOException {
+    dir = tempDir("dropship-layers");
+    File remote = new File(dir, "remote");
+    assertThat(remote.mkdirs()).isTrue();
+    System.setProperty("repo.remote-url", remote.toURI().toString());
+    System.setProperty("repo.local-path", new File(dir, "local").getPath());
+  }
+
+  @After public void cleanup() {
+    System.clearProperty("repo.remote-url");
+    System.clearProperty("repo.local-path");
+    RepositorySystemProvider.shutdown();
+    delete(dir);
+  }
+
+  @Test
+  public void splitsArtifactsIntoStableLayers() throws Exception {
+    installApplication();
+    File download = new File(dir, "download");
+    File leftover = new File(download, "dependencies/lib-0.9.jar");
+    assertThat(leftover.getParentFile().mkdirs()).isTrue();
+    write(leftover, "");
+
+    download(download);
+
+    assertThat(leftover.exists()).isFalse();
+    assertLayers(download);
+  }
+
+  @Test
+  public void theOfflineResolverFillsTheSameLayers() throws Exception {
+    installApplication();
+    File download = new File(dir, "download");
+
+    download(download, "--offline");
+
+    assertLayers(download);
+  }
+
+  /** Installs an application whose name sorts after its dependencies'. */
+  private void installApplication() throws IOException {
+    File local = new File(dir, "local");
+    install(local, "g", "zapp", "1.0", dep("g", "lib", "1.0"), dep("g", "snap", "2.0-SNAPSHOT"));
+    install(local, "g", "lib", "1.0");
+    install(local, "g", "snap", "2.0-SNAPSHOT");
+  }
+
+  private void download(File download, String... options) {
+    List<String> args = new ArrayList<String>(Arrays.asList(options));
+    args.addAll(Arrays.asList("--download=" + download.getPath(), "--layered", "g:zapp:1.0"));
+    Settings settings = new SettingsModule().provideSettings(logger, args);
+    MavenArtifactResolution.using(settings, logger, settings.mavenRepoUrl()).downloadArtifacts("g:zapp:1.0");
+  }
+
+  private static void assertLayers(File download) throws IOException {
+    assertThat(new File(download, "application/zapp-1.0.jar").isFile()).isTrue();
+    assertThat(new File(download, "dependencies/lib-1.0.jar").isFile()).isTrue();
+    assertThat(new File(download, "snapshot-dependencies/snap-2.0-SNAPSHOT.jar").isFile()).isTrue();
+    assertThat(read(new File(download, "layers.idx"))).isEqualTo(
+      "- \"dependencies\":\n" +
+      "  - \"dependencies/lib-1.0.jar\"\n" +
+      "- \"snapshot-dependencies\":\n" +
+      "  - \"snapshot-dependencies/snap-2.0-SNAPSHOT.jar\"\n" +
+      "- \"application\":\n" +
+      "  - \"application/zapp-1.0.jar\"\n");
+    assertThat(read(new File(download, StandaloneLauncher.CLASSPATH_FILE))).isEqualTo(
+      "application/zapp-1.0.jar\ndependencies/lib-1.0.jar\nsnapshot-dependencies/snap-2.0-SNAPSHOT.jar\n");
+  }
+}
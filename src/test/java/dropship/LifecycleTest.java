@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import dropship.logging.Logger;
+import dropship.logging.LoggingModule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static dropship.TestRepositories.delete;
+import static org.fest.assertions.Assertions.assertThat;
+
+public class LifecycleTest {
+
+  private static final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+  private static final List<LifecycleEvent> events = Collections.synchronizedList(new ArrayList<LifecycleEvent>());
+
+  private final Logger logger = new LoggingModule().provideLogger(new SimpleDateFormat(), "myvm", System.err);
+  private File services;
+
+  @Before public void setup() throws IOException {
+    calls.clear();
+    events.clear();
+    services = File.createTempFile("dropship-services", "");
+    assertThat(services.delete()).isTrue();
+    File registration = new File(services, "META-INF/services/dropship.LifecycleListener");
+    assertThat(registration.getParentFile().mkdirs()).isTrue();
+    FileOutputStream out = new FileOutputStream(registration);
+    try {
+      out.write((RecordingListener.class.getName() + "\n" + FailingListener.class.getName() + "\n").getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+  }
+
+  @After public void cleanup() {
+    System.clearProperty("dropship.additional-paths");
+    delete(services);
+  }
+
+  @Test
+  public void noAdditionalPathsMeansNoListeners() {
+    Lifecycle lifecycle = Lifecycle.discover(settings(), logger);
+    assertThat(lifecycle.hasListeners()).isFalse();
+    lifecycle.onExit();
+    assertThat(calls).isEmpty();
+  }
+
+  @Test
+  public void listenersOnAdditionalPathsReceiveTimedEvents() throws Exception {
+    System.setProperty("dropship.additional-paths", services.getPath());
+    Lifecycle lifecycle = Lifecycle.discover(settings(), logger);
+    assertThat(lifecycle.hasListeners()).isTrue();
+
+    lifecycle.resolutionComplete(Arrays.asList(new File("a.jar")));
+    lifecycle.classLoaderBuilt(getClass().getClassLoader());
+    lifecycle.beforeMain(LifecycleTest.class, LifecycleTest.class.getMethod("setup"), new String[] { "x" });
+    lifecycle.onError(new IllegalStateException("boom"));
+    lifecycle.onExit();
+
+    assertThat(calls).containsExactly("resolutionComplete [a.jar]", "classLoaderBuilt", "beforeMain LifecycleTest", "onError boom", "onExit");
+    for (int i = 1; i < events.size(); i++) {
+      assertThat(events.get(i).nanoTime()).isGreaterThanOrEqualTo(events.get(i - 1).nanoTime());
+    }
+    assertThat(events.get(0).elapsedNanos()).isGreaterThanOrEqualTo(0L);
+    assertThat(events.get(0).groupArtifactString()).isEqualTo("joda-time:joda-time:1.6.2");
+    assertThat(events.get(0).properties().getProperty("dropship.additional-paths")).isEqualTo(services.getPath());
+  }
+
+  private Settings settings() {
+    return new SettingsModule().provideSettings(logger, Arrays.asList("joda-time:joda-time:1.6.2", "org.joda.time.DateTime"));
+  }
+
+  public static final class RecordingListener extends LifecycleListener {
+
+    @Override
+    public void resolutionComplete(LifecycleEvent event, List<File> classpath) {
+      record(event, "resolutionComplete " + classpath);
+    }
+
+    @Override
+    public void classLoaderBuilt(LifecycleEvent event, ClassLoader loader) {
+      record(event, "classLoaderBuilt");
+    }
+
+    @Override
+    public void beforeMain(LifecycleEvent event, Class<?> mainClass, Method mainMethod, String[] arguments) {
+      record(event, "beforeMain " + mainClass.getSimpleName());
+    }
+
+    @Override
+    public void onError(LifecycleEvent event, Throwable error) {
+      record(event, "onError " + error.getMessage());
+    }
+
+    @Override
+    public void onExit(LifecycleEvent event) {
+      record(event, "onExit");
+    }
+
+    private static void record(LifecycleEvent event, String call) {
+      events.add(event);
+      calls.add(call);
+    }
+  }
+
+  /** Must not keep other listeners from hearing about events. */
+  public static final class FailingListener extends LifecycleListener {
+
+    @Override
+    public void onExit(LifecycleEvent event) {
+      throw new RuntimeException("listener failure");
+    }
+  }
+}
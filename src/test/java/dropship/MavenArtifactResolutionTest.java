@@ -17,22 +17,30 @@ package dropship;
 
 import dropship.logging.Logger;
 import dropship.logging.LoggingModule;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.sonatype.aether.util.artifact.DefaultArtifact;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Method;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
 
+import static dropship.TestRepositories.delete;
+import static dropship.TestRepositories.tempDir;
 import static org.fest.assertions.Assertions.assertThat;
 
 public class MavenArtifactResolutionTest {
 
   private Settings settings;
   private Logger logger;
+  private File repo;
 
-  @Before public void setup() {
+  @Before public void setup() throws IOException {
+    repo = tempDir("dropship-resolution");
+    System.setProperty("repo.local-path", repo.getPath());
     logger = new LoggingModule().provideLogger(new SimpleDateFormat(), "myvm", System.err);
     settings = new SettingsModule().provideSettings(
       logger,
@@ -40,6 +48,11 @@ public class MavenArtifactResolutionTest {
     );
   }
 
+  @After public void cleanup() {
+    System.clearProperty("repo.local-path");
+    delete(repo);
+  }
+
   @Test
   public void jodaTime() throws Exception {
     String gav = "joda-time:joda-time:[1.6,)";
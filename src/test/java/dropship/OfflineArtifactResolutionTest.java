@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import dropship.logging.Logger;
+import dropship.logging.LoggingModule;
+import org.apache.maven.repository.internal.MavenRepositorySystemSession;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonatype.aether.RepositorySystem;
+import org.sonatype.aether.artifact.Artifact;
+import org.sonatype.aether.collection.CollectRequest;
+import org.sonatype.aether.graph.Dependency;
+import org.sonatype.aether.graph.DependencyNode;
+import org.sonatype.aether.repository.LocalRepository;
+import org.sonatype.aether.repository.RemoteRepository;
+import org.sonatype.aether.resolution.DependencyRequest;
+import org.sonatype.aether.util.artifact.DefaultArtifact;
+import org.sonatype.aether.util.graph.PreorderNodeListGenerator;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import static dropship.TestRepositories.delete;
+import static dropship.TestRepositories.dep;
+import static dropship.TestRepositories.install;
+import static dropship.TestRepositories.installRaw;
+import static dropship.TestRepositories.tempDir;
+import static dropship.TestRepositories.write;
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class OfflineArtifactResolutionTest {
+
+  private File repo;
+  private Settings settings;
+  private Logger logger;
+
+  @Before public void setup() throws IOException {
+    logger = new LoggingModule().provideLogger(new SimpleDateFormat(), "myvm", System.err);
+    settings = new SettingsModule().provideSettings(logger, Arrays.asList("--offline", "g:root", "Main"));
+    repo = tempDir("dropship-offline");
+  }
+
+  @After public void cleanup() {
+    RepositorySystemProvider.shutdown();
+    delete(repo);
+  }
+
+  @Test
+  public void nearestVersionWins() throws Exception {
+    install(repo, "g", "root", "1", dep("g", "a", "1"), dep("g", "b", "1"));
+    install(repo, "g", "a", "1", dep("g", "c", "1"));
+    install(repo, "g", "b", "1", dep("g", "d", "1"));
+    install(repo, "g", "d", "1", dep("g", "c", "2"));
+    install(repo, "g", "c", "1");
+    install(repo, "g", "c", "2");
+
+    assertThat(fast("g:root:1")).isEqualTo(Arrays.asList("g:root:1", "g:a:1", "g:c:1", "g:b:1", "g:d:1"));
+    assertThat(fast("g:root:1")).isEqualTo(full("g:root:1"));
+  }
+
+  @Test
+  public void losingSubtreesArePruned() throws Exception {
+    install(repo, "g", "root", "1", dep("g", "a", "1"), dep("g", "b", "1"));
+    install(repo, "g", "a", "1", dep("g", "x", "1"));
+    install(repo, "g", "a", "2", dep("g", "y", "1"));
+    install(repo, "g", "b", "1", dep("g", "a", "2"), dep("g", "y", "2"));
+    install(repo, "g", "x", "1");
+    install(repo, "g", "y", "1");
+    install(repo, "g", "y", "2");
+
+    assertThat(fast("g:root:1")).isEqualTo(full("g:root:1"));
+  }
+
+  @Test
+  public void scopesOptionalsAndExclusions() throws Exception {
+    install(repo, "g", "root", "1",
+      dep("g", "t", "1", "<scope>test</scope>"),
+      dep("g", "p", "1", "<scope>provided</scope>"),
+      dep("g", "o", "1", "<optional>true</optional>"),
+      dep("g", "a", "1", "<exclusions><exclusion><groupId>g</groupId><artifactId>e</artifactId></exclusion></exclusions>"));
+    install(repo, "g", "a", "1", dep("g", "e", "1"), dep("g", "o2", "1", "<optional>true</optional>"), dep("g", "r", "1", "<scope>runtime</scope>"));
+    install(repo, "g", "t", "1");
+    install(repo, "g", "p", "1");
+    install(repo, "g", "o", "1");
+    install(repo, "g", "o2", "1");
+    install(repo, "g", "e", "1");
+    install(repo, "g", "r", "1");
+
+    assertThat(fast("g:root:1")).isEqualTo(Arrays.asList("g:root:1", "g:o:1", "g:a:1", "g:r:1"));
+    assertThat(fast("g:root:1")).isEqualTo(full("g:root:1"));
+  }
+
+  @Test
+  public void inheritanceManagementAndImports() throws Exception {
+    installRaw(repo, "g", "parent", "1", "pom",
+      "<properties><c.version>1</c.version></properties>" +
+      "<dependencies>" + dep("g", "a", "${project.version}") + "</dependencies>" +
+      "<dependencyManagement><dependencies>" +
+      dep("g", "bom", "1", "<type>pom</type><scope>import</scope>") +
+      dep("g", "c", "${c.version}") +
+      "</dependencies></dependencyManagement>");
+    installRaw(repo, "g", "bom", "1", "pom",
+      "<dependencyManagement><dependencies>" + dep("g", "d", "2") + "</dependencies></dependencyManagement>");
+    installRaw(repo, "g", "root", "1", "jar",
+      "<parent><groupId>g</groupId><artifactId>parent</artifactId><version>1</version></parent>" +
+      "<dependencies>" + dep("g", "b", "1") + "</dependencies>");
+    install(repo, "g", "a", "1", dep("g", "c", "5"));
+    install(repo, "g", "b", "1", dep("g", "d", "1"));
+    install(repo, "g", "c", "1");
+    install(repo, "g", "c", "5");
+    install(repo, "g", "d", "1");
+    install(repo, "g", "d", "2");
+
+    List<String> fast = fast("g:root:1");
+    assertThat(fast).contains("g:c:1", "g:d:2");
+    assertThat(fast).isEqualTo(full("g:root:1"));
+  }
+
+  @Test
+  public void rootVersionRangeUsesLocalMetadata() throws Exception {
+    install(repo, "g", "root", "1.0");
+    install(repo, "g", "root", "1.1");
+    install(repo, "g", "root", "2.0");
+    writeMetadata("g", "root", "1.0", "1.1", "2.0");
+
+    assertThat(fast("g:root:[1.0,2.0)")).isEqualTo(Arrays.asList("g:root:1.1"));
+    assertThat(fast("g:root:[1.0,2.0)")).isEqualTo(full("g:root:[1.0,2.0)"));
+  }
+
+  @Test
+  public void configuredScopesOptionalsAndExclusions() throws Exception {
+    System.setProperty("dropship.scopes", "compile,runtime,provided");
+    System.setProperty("dropship.exclude-optional", "true");
+    System.setProperty("dropship.exclusions", "g.logging, g:heavy-*");
+    try {
+      install(repo, "g", "root", "1",
+        dep("g", "o", "1", "<optional>true</optional>"),
+        dep("g", "p", "1", "<scope>provided</scope>"),
+        dep("g", "a", "1"));
+      install(repo, "g", "a", "1", dep("g.logging", "bridge", "1"), dep("g", "heavy-stuff", "1"), dep("g", "r", "1"));
+      install(repo, "g", "o", "1");
+      install(repo, "g", "p", "1");
+      install(repo, "g.logging", "bridge", "1");
+      install(repo, "g", "heavy-stuff", "1");
+      install(repo, "g", "r", "1");
+
+      assertThat(fast("g:root:1")).isEqualTo(Arrays.asList("g:root:1", "g:p:1", "g:a:1", "g:r:1"));
+      assertThat(fast("g:root:1")).isEqualTo(full("g:root:1"));
+    } finally {
+      System.clearProperty("dropship.scopes");
+      System.clearProperty("dropship.exclude-optional");
+      System.clearProperty("dropship.exclusions");
+    }
+  }
+
+  @Test
+  public void artifactsDownloadedFromOtherRepositoriesAreRejected() throws Exception {
+    install(repo, "g", "root", "1", dep("g", "a", "1"));
+    install(repo, "g", "a", "1");
+    File tracking = new File(repo, "g/a/1/_maven.repositories");
+    write(tracking, "a-1.pom>central=\na-1.jar>central=\n");
+    assertThat(fast("g:root:1")).isEqualTo(full("g:root:1"));
+
+    write(tracking, "a-1.pom>other=\na-1.jar>other=\n");
+    try {
+      full("g:root:1");
+      fail("Expected the resolver to reject an artifact from another repository");
+    } catch (Exception expected) {
+      // not available from central
+    }
+    try {
+      fast("g:root:1");
+      fail("Expected the offline resolution to reject an artifact from another repository");
+    } catch (OfflineArtifactResolution.UnsupportedGraphException e) {
+      assertThat(e.getMessage()).contains("g:a");
+    }
+  }
+
+  @Test(expected = OfflineArtifactResolution.UnsupportedGraphException.class)
+  public void transitiveVersionRangesAreUnsupported() throws Exception {
+    install(repo, "g", "root", "1", dep("g", "a", "[1,2)"));
+    install(repo, "g", "a", "1");
+
+    fast("g:root:1");
+  }
+
+  @Test(expected = OfflineArtifactResolution.UnsupportedGraphException.class)
+  public void missingArtifactsAreUnsupported() throws Exception {
+    install(repo, "g", "root", "1", dep("g", "a", "1"));
+
+    fast("g:root:1");
+  }
+
+  private List<String> fast(String gav) throws Exception {
+    OfflineArtifactResolution resolution = new OfflineArtifactResolution(
+      repo, Collections.singletonList(new RemoteRepository("central", "default", "http://localhost/")), new HashMap<String, String>(),
+      DependencySelection.from(settings));
+    return coordinates(resolution.resolve(new DefaultArtifact(gav)));
+  }
+
+  private List<String> full(String gav) throws Exception {
+    RepositorySystem system = RepositorySystemProvider.get(settings, logger);
+    MavenRepositorySystemSession session = new MavenRepositorySystemSession();
+    session.setOffline(true);
+    session.setDependencySelector(DependencySelection.from(settings).toDependencySelector());
+    session.setLocalRepositoryManager(system.newLocalRepositoryManager(new LocalRepository(repo)));
+
+    CollectRequest request = new CollectRequest();
+    request.setRoot(new Dependency(new DefaultArtifact(gav), null));
+    request.addRepository(new RemoteRepository("central", "default", "http://localhost/"));
+    DependencyNode node = system.collectDependencies(session, request).getRoot();
+    system.resolveDependencies(session, new DependencyRequest(node, null));
+
+    PreorderNodeListGenerator nlg = new PreorderNodeListGenerator();
+    node.accept(nlg);
+    return coordinates(nlg.getArtifacts(false));
+  }
+
+  private static List<String> coordinates(List<Artifact> artifacts) {
+    List<String> coordinates = new ArrayList<String>();
+    for (Artifact artifact : artifacts) {
+      assertThat(artifact.getFile()).isNotNull();
+      coordinates.add(artifact.getGroupId() + ':' + artifact.getArtifactId() + ':' + artifact.getVersion());
+    }
+    return coordinates;
+  }
+
+  private void writeMetadata(String groupId, String artifactId, String... versions) throws IOException {
+    StringBuilder xml = new StringBuilder("<metadata><groupId>").append(groupId).append("</groupId><artifactId>")
+      .append(artifactId).append("</artifactId><versioning><versions>");
+    for (String version : versions) {
+      xml.append("<version>").append(version).append("</version>");
+    }
+    xml.append("</versions></versioning></metadata>");
+    write(new File(repo, groupId.replace('.', '/') + '/' + artifactId + "/maven-metadata-local.xml"), xml.toString());
+  }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static dropship.TestRepositories.delete;
+import static dropship.TestRepositories.tempDir;
+import static dropship.TestRepositories.write;
+import static org.fest.assertions.Assertions.assertThat;
+
+public class PackedRepositoryTest {
+
+  private File dir;
+
+  @Before public void setup() throws IOException {
+    dir = tempDir("dropship-pack");
+  }
+
+  @After public void cleanup() {
+    delete(dir);
+  }
+
+  @Test
+  public void readsPackedFilesThroughASortedIndex() throws IOException {
+    File repo = new File(dir, "repo");
+    file(repo, "g/b/1.0/b-1.0.pom", "<project/>");
+    file(repo, "g/a/1.0/a-1.0.jar", "not really a jar");
+    file(repo, "g/a/1.0/empty.txt", "");
+    File packFile = new File(dir, "repo.pack");
+
+    PackedRepository.write(repo, Arrays.asList("g/b/1.0/b-1.0.pom", "g/a/1.0/a-1.0.jar", "g/a/1.0/empty.txt"), packFile);
+    PackedRepository pack = PackedRepository.open(packFile);
+
+    assertThat(pack.paths()).containsExactly("g/a/1.0/a-1.0.jar", "g/a/1.0/empty.txt", "g/b/1.0/b-1.0.pom");
+    assertThat(read(pack.open("g/b/1.0/b-1.0.pom"))).isEqualTo("<project/>");
+    assertThat(read(pack.open("g/a/1.0/a-1.0.jar"))).isEqualTo("not really a jar");
+    assertThat(read(pack.open("g/a/1.0/empty.txt"))).isEqualTo("");
+    assertThat(pack.contains("g/a/1.0/a-1.0.pom")).isFalse();
+    assertThat(pack.entry("g/a/1.0/a-1.0.pom")).isNull();
+
+    File packed = new File(pack.root(), "g/b/1.0/b-1.0.pom");
+    assertThat(pack.pathOf(packed)).isEqualTo("g/b/1.0/b-1.0.pom");
+    assertThat(pack.pathOf(new File(repo, "g/b/1.0/b-1.0.pom"))).isNull();
+  }
+
+  @Test
+  public void loadsClassesAndResourcesStraightFromPackedJars() throws Exception {
+    File repo = new File(dir, "repo");
+    byte[] hello = bytes(getClass().getResourceAsStream("PackedRepositoryTest$Hello.class"));
+    jar(new File(repo, "g/a/1.0/a-1.0.jar"), true,
+      "dropship/PackedRepositoryTest$Hello.class", hello,
+      "shared.txt", "shared in a".getBytes("UTF-8"),
+      "dir with space/", new byte[0],
+      "dir with space/a b.txt", "spaced".getBytes("UTF-8"));
+    jar(new File(repo, "g/b/1.0/b-1.0.jar"), false,
+      "shared.txt", "shared in b".getBytes("UTF-8"));
+    File packFile = new File(dir, "repo.pack");
+    PackedRepository.write(repo, Arrays.asList("g/a/1.0/a-1.0.jar", "g/b/1.0/b-1.0.jar"), packFile);
+
+    PackedClassLoader loader = new PackedClassLoader(PackedRepository.open(packFile),
+      Arrays.asList("g/a/1.0/a-1.0.jar", "g/b/1.0/b-1.0.jar"), Collections.<URL>emptyList());
+
+    Class<?> type = loader.loadClass("dropship.PackedRepositoryTest$Hello");
+    assertThat(type.getClassLoader()).isSameAs(loader);
+    assertThat(type.newInstance().toString()).isEqualTo("hello");
+    assertThat(type.getPackage().getImplementationTitle()).isEqualTo("packed");
+
+    List<URL> shared = Collections.list(loader.getResources("shared.txt"));
+    assertThat(shared).hasSize(2);
+    assertThat(read(shared.get(0).openStream())).isEqualTo("shared in a");
+    assertThat(read(shared.get(1).openStream())).isEqualTo("shared in b");
+    assertThat(read(loader.getResourceAsStream("dir with space/a b.txt"))).isEqualTo("spaced");
+    assertThat(loader.getResource("dir with space")).isNotNull();
+    assertThat(loader.getResource("missing.txt")).isNull();
+
+    // Libraries rebuild resource URLs from their strings
+    URL rebuilt = new URL(loader.getResource("dir with space/a b.txt").toString());
+    assertThat(read(rebuilt.openStream())).isEqualTo("spaced");
+    assertThat(read(shared.get(1).toURI().toURL().openStream())).isEqualTo("shared in b");
+    try {
+      loader.loadClass("dropship.Missing");
+      throw new AssertionError("Loaded a class that is not in the pack");
+    } catch (ClassNotFoundException expected) {
+      // expected
+    }
+  }
+
+  public static final class Hello {
+    @Override
+    public String toString() {
+      return "hello";
+    }
+  }
+
+  private static void file(File root, String path, String content) throws IOException {
+    File file = new File(root, path);
+    assertThat(file.getParentFile().mkdirs() || file.getParentFile().isDirectory()).isTrue();
+    write(file, content);
+  }
+
+  /** Writes a jar of name and content pairs, with a manifest if asked. */
+  private static void jar(File file, boolean manifest, Object... entries) throws IOException {
+    assertThat(file.getParentFile().mkdirs() || file.getParentFile().isDirectory()).isTrue();
+    ZipOutputStream jar = new ZipOutputStream(new FileOutputStream(file));
+    try {
+      if (manifest) {
+        Manifest mf = new Manifest();
+        mf.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        mf.getMainAttributes().put(Attributes.Name.IMPLEMENTATION_TITLE, "packed");
+        jar.putNextEntry(new ZipEntry(JarFile.MANIFEST_NAME));
+        mf.write(jar);
+        jar.closeEntry();
+      }
+      for (int i = 0; i < entries.length; i += 2) {
+        String name = (String) entries[i];
+        jar.putNextEntry(new ZipEntry(name));
+        jar.write((byte[]) entries[i + 1]);
+        jar.closeEntry();
+      }
+    } finally {
+      jar.close();
+    }
+  }
+
+  private static String read(InputStream in) throws IOException {
+    return new String(bytes(in), "UTF-8");
+  }
+
+  private static byte[] bytes(InputStream in) throws IOException {
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import dropship.logging.Logger;
+import dropship.logging.LoggingModule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static dropship.TestRepositories.delete;
+import static dropship.TestRepositories.dep;
+import static dropship.TestRepositories.installRaw;
+import static dropship.TestRepositories.tempDir;
+import static dropship.TestRepositories.write;
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class PipelinedClassLoaderTest {
+
+  private File dir;
+  private ExecutorService executor;
+
+  @Before public void setup() throws IOException {
+    dir = tempDir("dropship-pipeline");
+    executor = Executors.newSingleThreadExecutor();
+  }
+
+  @After public void cleanup() {
+    executor.shutdownNow();
+    delete(dir);
+  }
+
+  @Test
+  public void lookupsWaitOnlyForTheFirstJarContainingTheName() throws Exception {
+    File first = jar("first.jar", "shared.txt", "only-first.txt");
+    File second = jar("second.jar", "shared.txt", "only-second.txt");
+    PipelinedClassLoader loader = new PipelinedClassLoader(2, Collections.<URL>emptyList());
+
+    Future<URL> onlySecond = find(loader, "only-second.txt");
+    loader.ready(1, second, PipelinedResolution.indexAndWarm(second));
+    try {
+      onlySecond.get(200, TimeUnit.MILLISECONDS);
+      fail("a later jar must not be visible before the jars ahead of it");
+    } catch (TimeoutException expected) {
+      // still waiting for first.jar
+    }
+
+    loader.ready(0, first, PipelinedResolution.indexAndWarm(first));
+    assertThat(onlySecond.get(5, TimeUnit.SECONDS).toString()).contains("second.jar");
+    assertThat(loader.findResource("shared.txt").toString()).contains("first.jar");
+    assertThat(Collections.list(loader.findResources("shared.txt"))).hasSize(2);
+  }
+
+  @Test
+  public void failedResolutionStopsWaiting() throws Exception {
+    File first = jar("first.jar", "a.txt");
+    PipelinedClassLoader loader = new PipelinedClassLoader(2, Collections.<URL>emptyList());
+    loader.ready(0, first, PipelinedResolution.indexAndWarm(first));
+
+    assertThat(loader.findResource("a.txt")).isNotNull();
+    Future<URL> missing = find(loader, "b.txt");
+    loader.failed(new IOException("boom"));
+    assertThat(missing.get(5, TimeUnit.SECONDS)).isNull();
+
+    try {
+      loader.loadClass("does.not.Exist");
+      fail();
+    } catch (ClassNotFoundException e) {
+      assertThat(e.getMessage()).contains("boom");
+    }
+  }
+
+  @Test
+  public void hintedLookupsFetchOnlyTheJarHoldingThePackage() throws Exception {
+    final File first = jar("first.jar", "shared.txt", "first/a.txt");
+    final File second = jar("second.jar", "shared.txt", "second/b.txt");
+    InputStream main = getClass().getClassLoader().getResourceAsStream("dropship/SyntheticMain.class");
+    try {
+      add(second, "dropship/SyntheticMain.class", main);
+    } finally {
+      main.close();
+    }
+    Logger logger = new LoggingModule().provideLogger(new SimpleDateFormat(), "myvm", System.err);
+    List<String> coordinates = Arrays.asList("g:first:jar:1.0", "g:second:jar:1.0");
+
+    PackageHints earlier = new PackageHints(dir, coordinates, logger);
+    earlier.recordPackages(0, PipelinedResolution.indexAndWarm(first));
+    earlier.recordPackages(1, PipelinedResolution.indexAndWarm(second));
+    earlier.recordUse(1);
+    earlier.save();
+
+    PackageHints hints = new PackageHints(dir, coordinates, logger);
+    assertThat(hints.load()).isTrue();
+    assertThat(hints.priorityOrder()).containsExactly(1);
+
+    final PipelinedClassLoader loader = new PipelinedClassLoader(2, Collections.<URL>emptyList());
+    final Set<Integer> fetched = new LinkedHashSet<Integer>();
+    loader.useHints(hints, new PipelinedClassLoader.Fetcher() {
+      @Override
+      public void fetch(int index) {
+        if (!fetched.add(index)) {
+          return;
+        }
+        try {
+          loader.ready(index, index == 0 ? first : second, PipelinedResolution.indexAndWarm(index == 0 ? first : second));
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+
+    assertThat(loader.findResource("second/b.txt").toString()).contains("second.jar");
+    Class<?> type = loader.loadClass("dropship.SyntheticMain");
+    assertThat(type.getClassLoader()).isSameAs(loader);
+    assertThat(type.getProtectionDomain().getCodeSource().getLocation().toString()).contains("second.jar");
+    assertThat(fetched).containsOnly(1);
+    assertThat(loader.isComplete()).isFalse();
+  }
+
+  @Test
+  public void pomDependenciesStayOffTheClasspath() throws Exception {
+    File remote = new File(dir, "remote");
+    installRaw(remote, "g", "bom", "1", "pom", "");
+    installRaw(remote, "g", "root", "1", "jar", "<dependencies>" + dep("g", "bom", "1", "<type>pom</type>") + "</dependencies>");
+    assertThat(jar("root-1.jar", "root.txt").renameTo(new File(remote, "g/root/1/root-1.jar"))).isTrue();
+    for (String path : Arrays.asList("g/bom/1/bom-1.pom", "g/root/1/root-1.pom", "g/root/1/root-1.jar")) {
+      File file = new File(remote, path);
+      write(new File(file.getPath() + ".sha1"), Files.hex(Files.digest(file, "SHA-1")));
+    }
+    System.setProperty("repo.remote-url", remote.toURI().toString());
+    System.setProperty("repo.local-path", new File(dir, "local").getPath());
+    System.setProperty("dropship.pipelined-startup", "true");
+    try {
+      Logger logger = new LoggingModule().provideLogger(new SimpleDateFormat(), "myvm", System.err);
+      Settings settings = new SettingsModule().provideSettings(logger, Arrays.asList("g:root:1", "Main"));
+      URLClassLoader loader = MavenArtifactResolution.using(settings, logger, settings.mavenRepoUrl()).createClassLoader("g:root:1");
+
+      assertThat(Collections.list(loader.getResources("root.txt"))).hasSize(1);
+      assertThat(loader.getURLs()).hasSize(1);
+      try {
+        loader.loadClass("does.not.Exist");
+        fail();
+      } catch (ClassNotFoundException e) {
+        assertThat(e.getMessage()).isEqualTo("does.not.Exist");
+      }
+    } finally {
+      System.clearProperty("repo.remote-url");
+      System.clearProperty("repo.local-path");
+      System.clearProperty("dropship.pipelined-startup");
+      RepositorySystemProvider.shutdown();
+    }
+  }
+
+  private Future<URL> find(final PipelinedClassLoader loader, final String name) {
+    return executor.submit(new Callable<URL>() {
+      @Override
+      public URL call() {
+        return loader.findResource(name);
+      }
+    });
+  }
+
+  /** Rewrites {@code jar} with one more entry. */
+  private static void add(File jar, String name, InputStream content) throws IOException {
+    ZipFile zip = new ZipFile(jar);
+    File rewritten = new File(jar.getPath() + ".new");
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(rewritten));
+    try {
+      for (ZipEntry entry : Collections.list(zip.entries())) {
+        out.putNextEntry(new ZipEntry(entry.getName()));
+        copy(zip.getInputStream(entry), out);
+        out.closeEntry();
+      }
+      out.putNextEntry(new ZipEntry(name));
+      copy(content, out);
+      out.closeEntry();
+    } finally {
+      out.close();
+      zip.close();
+    }
+    assertThat(rewritten.renameTo(jar)).isTrue();
+  }
+
+  private static void copy(InputStream in, OutputStream out) throws IOException {
+    byte[] buffer = new byte[8192];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+  }
+
+  private File jar(String name, String... entries) throws IOException {
+    File jar = new File(dir, name);
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+    try {
+      for (String entry : entries) {
+        out.putNextEntry(new ZipEntry(entry));
+        out.write(entry.getBytes("UTF-8"));
+        out.closeEntry();
+      }
+    } finally {
+      out.close();
+    }
+    return jar;
+  }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import dropship.logging.Logger;
+import dropship.logging.LoggingModule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonatype.aether.SyncContext;
+import org.sonatype.aether.util.artifact.DefaultArtifact;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static dropship.TestRepositories.delete;
+import static dropship.TestRepositories.tempDir;
+import static org.fest.assertions.Assertions.assertThat;
+
+public class RepositoryEvictionTest {
+
+  private static final int STRIPES = 4;
+
+  private final Logger logger = new LoggingModule().provideLogger(new SimpleDateFormat(), "myvm", System.err);
+  private File root;
+
+  @Before public void setup() throws IOException {
+    root = tempDir("dropship-eviction");
+  }
+
+  @After public void cleanup() {
+    delete(root);
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsedVersionsFirst() throws IOException {
+    File oldest = artifact("a", "1.0", 1000, 1000L);
+    File older = artifact("b", "1.0", 1000, 2000L);
+    File used = artifact("c", "1.0", 1000, 3000L);
+    File newest = artifact("d", "1.0", 1000, 4000L);
+
+    RepositoryEviction eviction = new RepositoryEviction(root, STRIPES, logger);
+    eviction.recordAccess(Arrays.asList(new File(used, "c-1.0.jar")));
+
+    long freed = eviction.collect(2500, Collections.<File>emptyList());
+
+    assertThat(freed).isGreaterThanOrEqualTo(2000L);
+    assertThat(oldest.exists()).isFalse();
+    assertThat(older.exists()).isFalse();
+    assertThat(used.exists()).isTrue();
+    assertThat(newest.exists()).isTrue();
+    assertThat(eviction.due(60000)).isFalse();
+  }
+
+  @Test
+  public void keepsPinnedVersionsAndTheirParents() throws IOException {
+    File parent = artifact("parent", "1", 100, 1000L);
+    File pinned = artifact("pinned", "1.0", 1000, 2000L);
+    write(new File(pinned, "pinned-1.0.pom"),
+      "<project><parent><groupId>g</groupId><artifactId>parent</artifactId><version>1</version></parent></project>", 2000L);
+    File other = artifact("other", "1.0", 1000, 3000L);
+
+    new RepositoryEviction(root, STRIPES, logger).collect(0, Arrays.asList(pinned));
+
+    assertThat(pinned.exists()).isTrue();
+    assertThat(parent.exists()).isTrue();
+    assertThat(other.exists()).isFalse();
+    assertThat(new File(root, "g/other").exists()).isFalse();
+  }
+
+  @Test
+  public void artifactMetadataIsNotTakenForAVersion() throws IOException {
+    File artifact = new File(root, "org/apache/maven/maven-x");
+    File version = new File(artifact, "1.0");
+    assertThat(version.mkdirs()).isTrue();
+    write(new File(version, "maven-x-1.0.jar"), new String(new char[1000]), 2000L);
+    File metadata = new File(artifact, "maven-metadata-central.xml");
+    write(metadata, new String(new char[100]), 1000L);
+    File snapshot = new File(artifact, "2.0-SNAPSHOT");
+    assertThat(snapshot.mkdirs()).isTrue();
+    write(new File(snapshot, "maven-x-2.0-20140101.120000-1.jar"), new String(new char[1000]), 1500L);
+
+    long freed = new RepositoryEviction(root, STRIPES, logger).collect(0, Arrays.asList(version));
+
+    assertThat(freed).isEqualTo(1000L);
+    assertThat(snapshot.exists()).isFalse();
+    assertThat(version.exists()).isTrue();
+    assertThat(metadata.exists()).isTrue();
+  }
+
+  @Test
+  public void evictsCacheEntriesAlongWithVersions() throws IOException {
+    File version = artifact("a", "1.0", 1000, 3000L);
+    File cache = new File(root, ".classpaths");
+    assertThat(cache.mkdirs()).isTrue();
+    File stale = new File(cache, "stale");
+    write(stale, new String(new char[500]), 1000L);
+    File lock = new File(root, RepositoryLocks.LOCK_DIRECTORY + "/artifact-0.lock");
+    assertThat(lock.getParentFile().mkdirs()).isTrue();
+    write(lock, new String(new char[500]), 1000L);
+
+    long freed = new RepositoryEviction(root, STRIPES, logger).collect(1200, Collections.<File>emptyList());
+
+    assertThat(freed).isEqualTo(500L);
+    assertThat(stale.exists()).isFalse();
+    assertThat(version.exists()).isTrue();
+    assertThat(lock.exists()).isTrue();
+  }
+
+  @Test
+  public void countsLinkedArtifactsAsFreedOnceTheirBlobGoes() throws IOException {
+    File first = artifact("a", "1.0", 1000, 1000L);
+    File second = artifact("b", "1.0", 1000, 2000L);
+    ContentAddressedStore store = new ContentAddressedStore(new File(root, ContentAddressedStore.DIRECTORY), logger);
+    File blob = store.intern(new File(first, "a-1.0.jar"));
+    assertThat(blob).isNotNull();
+    assertThat(store.intern(new File(second, "b-1.0.jar"))).isEqualTo(blob);
+
+    RepositoryEviction eviction = new RepositoryEviction(root, STRIPES, logger);
+    assertThat(eviction.collect(0, Arrays.asList(second))).isEqualTo(0L);
+    assertThat(first.exists()).isFalse();
+    assertThat(blob.exists()).isTrue();
+
+    assertThat(eviction.collect(0, Collections.<File>emptyList())).isEqualTo(1000L);
+    assertThat(second.exists()).isFalse();
+    assertThat(blob.exists()).isFalse();
+  }
+
+  @Test
+  public void waitsForResolutionsOfTheVersionItDeletes() throws Exception {
+    final File version = artifact("locked", "1.0", 1000, 1000L);
+    SyncContext resolution = new RepositoryLocks(STRIPES, logger).lockArtifact(root, new DefaultArtifact("g:locked:jar:1.0"));
+    Thread collector = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          new RepositoryEviction(root, STRIPES, logger).collect(0, Collections.<File>emptyList());
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+    try {
+      collector.start();
+      collector.join(500);
+      assertThat(version.exists()).isTrue();
+    } finally {
+      resolution.release();
+    }
+    collector.join();
+    assertThat(version.exists()).isFalse();
+  }
+
+  private File artifact(String artifactId, String version, int bytes, long modified) throws IOException {
+    File dir = RepositoryEviction.versionDirectory(root, "g", artifactId, version);
+    assertThat(dir.mkdirs()).isTrue();
+    write(new File(dir, artifactId + "-" + version + ".jar"), new String(new char[bytes]), modified);
+    return dir;
+  }
+
+  private static void write(File file, String content, long modified) throws IOException {
+    TestRepositories.write(file, content);
+    assertThat(file.setLastModified(modified)).isTrue();
+  }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import com.sun.net.httpserver.HttpServer;
+import dropship.logging.Logger;
+import dropship.logging.LoggingModule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URLClassLoader;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static dropship.TestRepositories.delete;
+import static dropship.TestRepositories.tempDir;
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Runs dozens of concurrent resolutions, spread over several JVMs, against
+ * one empty local repository and checks that every artifact was downloaded
+ * exactly once and that every resolution saw complete jars.
+ */
+public class RepositoryLocksTest {
+
+  private static final int PROCESSES = 4;
+  private static final int THREADS = 6;
+  private static final String RESOLVED = "RESOLVED ";
+
+  private File dir;
+
+  @Before public void setup() throws IOException {
+    dir = tempDir("dropship-locks");
+  }
+
+  @After public void cleanup() {
+    delete(dir);
+  }
+
+  @Test
+  public void concurrentProcessesDownloadEachArtifactOnce() throws Exception {
+    SyntheticRepository repository = new SyntheticRepository(new File(dir, "remote")).artifacts(40).depth(3).rangeFraction(0).jarBytes(64 * 1024);
+    repository.generate();
+    HttpServer server = repository.serve(10);
+    try {
+      Properties properties = new Properties();
+      properties.setProperty("repo.remote-url", "http://127.0.0.1:" + server.getAddress().getPort() + "/");
+      properties.setProperty("repo.local-path", new File(dir, "local").getAbsolutePath());
+      FileOutputStream out = new FileOutputStream(new File(dir, "dropship.properties"));
+      try {
+        properties.store(out, null);
+      } finally {
+        out.close();
+      }
+
+      List<Process> processes = new ArrayList<Process>();
+      List<Output> outputs = new ArrayList<Output>();
+      for (int i = 0; i < PROCESSES; i++) {
+        List<String> command = new ArrayList<String>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        command.add("-cp");
+        command.add(System.getProperty("surefire.test.class.path", System.getProperty("java.class.path")));
+        command.add(ConcurrentResolutions.class.getName());
+        command.add(repository.rootArtifact());
+        command.add(String.valueOf(THREADS));
+        Process process = new ProcessBuilder(command).directory(dir).redirectErrorStream(true).start();
+        Output output = new Output(process);
+        output.start();
+        processes.add(process);
+        outputs.add(output);
+      }
+
+      StringBuilder output = new StringBuilder();
+      for (int i = 0; i < PROCESSES; i++) {
+        int exit = processes.get(i).waitFor();
+        outputs.get(i).join();
+        output.append(outputs.get(i).lines);
+        assertThat(exit).as(output.toString()).isEqualTo(0);
+      }
+      // stdout and stderr share a pipe, so count reports rather than whole lines
+      int resolved = output.toString().split(RESOLVED + 40, -1).length - 1;
+      assertThat(resolved).as(output.toString()).isEqualTo(PROCESSES * THREADS);
+    } finally {
+      server.stop(0);
+    }
+
+    int jars = 0;
+    for (Map.Entry<String, AtomicInteger> download : repository.downloads().entrySet()) {
+      if (download.getKey().endsWith(".jar") || download.getKey().endsWith(".pom")) {
+        assertThat(download.getValue().get()).as(download.getKey()).isEqualTo(1);
+        jars += download.getKey().endsWith(".jar") ? 1 : 0;
+      }
+    }
+    assertThat(jars).isGreaterThanOrEqualTo(40);
+  }
+
+  /** Drains a process's output so that it never blocks on a full pipe. */
+  private static final class Output extends Thread {
+    final StringBuffer lines = new StringBuffer();
+    private final Process process;
+
+    Output(Process process) {
+      this.process = process;
+    }
+
+    @Override
+    public void run() {
+      try {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+        try {
+          String line;
+          while ((line = reader.readLine()) != null) {
+            lines.append(line).append('\n');
+          }
+        } finally {
+          reader.close();
+        }
+      } catch (IOException e) {
+        lines.append(e).append('\n');
+      }
+    }
+  }
+
+  /**
+   * Resolves an artifact on several threads at once, each with its own
+   * builder, and prints how many of the artifacts' resources each found.
+   */
+  public static final class ConcurrentResolutions {
+
+    public static void main(final String[] args) throws Exception {
+      final Logger logger = new LoggingModule().provideLogger(new SimpleDateFormat(), "locks", System.err);
+      final Settings settings = new SettingsModule().provideSettings(logger, Arrays.asList(args[0], SyntheticRepository.MAIN_CLASS));
+      int threads = Integer.parseInt(args[1]);
+      final CountDownLatch start = new CountDownLatch(1);
+      final AtomicInteger failures = new AtomicInteger();
+      List<Thread> workers = new ArrayList<Thread>();
+      for (int i = 0; i < threads; i++) {
+        Thread worker = new Thread() {
+          @Override
+          public void run() {
+            try {
+              start.await();
+              URLClassLoader loader = MavenArtifactResolution.using(settings, logger, settings.mavenRepoUrl()).createClassLoader(args[0]);
+              BufferedReader index = new BufferedReader(new InputStreamReader(loader.getResourceAsStream(SyntheticMain.RESOURCE_INDEX), "UTF-8"));
+              int found = 0;
+              String name;
+              while ((name = index.readLine()) != null) {
+                if (loader.getResource(name) != null) {
+                  found++;
+                }
+              }
+              index.close();
+              System.out.println(RESOLVED + found);
+            } catch (Throwable e) {
+              failures.incrementAndGet();
+              e.printStackTrace();
+            }
+          }
+        };
+        worker.start();
+        workers.add(worker);
+      }
+      start.countDown();
+      for (Thread worker : workers) {
+        worker.join();
+      }
+      System.exit(failures.get());
+    }
+  }
+}
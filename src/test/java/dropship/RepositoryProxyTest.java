@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import dropship.logging.Logger;
+import dropship.logging.LoggingModule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static dropship.TestRepositories.delete;
+import static dropship.TestRepositories.tempDir;
+import static org.fest.assertions.Assertions.assertThat;
+
+public class RepositoryProxyTest {
+
+  private File upstream;
+  private File local;
+  private RepositoryProxy proxy;
+  private String base;
+
+  @Before public void setup() throws IOException {
+    upstream = tempDir("dropship-upstream");
+    local = tempDir("dropship-proxy");
+
+    Logger logger = new LoggingModule().provideLogger(new SimpleDateFormat(), "myvm", System.err);
+    Settings settings = new SettingsModule().provideSettings(logger, Arrays.asList("--serve-repo=0"));
+    proxy = new RepositoryProxy(local, upstream.toURI().toString(), new PooledHttpTransport(settings, logger), logger);
+    base = "http://127.0.0.1:" + proxy.start(0).getPort() + "/";
+  }
+
+  @After public void cleanup() {
+    proxy.stop();
+    delete(upstream);
+    delete(local);
+  }
+
+  @Test
+  public void concurrentRequestsShareOneUpstreamFetch() throws Exception {
+    final byte[] jar = new byte[4 * 1024 * 1024];
+    new Random(7).nextBytes(jar);
+    write(new File(upstream, "g/a/1/a-1.jar"), jar);
+
+    ExecutorService clients = Executors.newFixedThreadPool(16);
+    try {
+      List<Future<byte[]>> responses = new ArrayList<Future<byte[]>>();
+      for (int i = 0; i < 16; i++) {
+        responses.add(clients.submit(new Callable<byte[]>() {
+          @Override
+          public byte[] call() throws IOException {
+            return get("g/a/1/a-1.jar");
+          }
+        }));
+      }
+      for (Future<byte[]> response : responses) {
+        assertThat(response.get()).isEqualTo(jar);
+      }
+    } finally {
+      clients.shutdown();
+    }
+
+    assertThat(proxy.upstreamRequests()).isEqualTo(1);
+    assertThat(new File(local, "g/a/1/a-1.jar").length()).isEqualTo(jar.length);
+  }
+
+  @Test
+  public void checksumsArePassedThroughFromUpstream() throws IOException {
+    write(new File(upstream, "g/a/1/a-1.jar"), "hello".getBytes("UTF-8"));
+    write(new File(upstream, "g/a/1/a-1.jar.sha1"), "aaf4c61ddcc5e8a2dabede0f3b482cd9aea9434d".getBytes("US-ASCII"));
+
+    get("g/a/1/a-1.jar");
+    write(new File(local, "g/a/1/a-1.jar"), "corrupt".getBytes("UTF-8"));
+    assertThat(new String(get("g/a/1/a-1.jar.sha1"), "US-ASCII")).isEqualTo("aaf4c61ddcc5e8a2dabede0f3b482cd9aea9434d");
+
+    HttpURLConnection connection = (HttpURLConnection) new URL(base + "g/a/1/a-1.jar.md5").openConnection();
+    assertThat(connection.getResponseCode()).isEqualTo(404);
+    connection.disconnect();
+  }
+
+  @Test
+  public void metadataIsRefreshedAndMissingFilesAre404() throws IOException {
+    write(new File(upstream, "g/a/maven-metadata.xml"), "<metadata>1</metadata>".getBytes("UTF-8"));
+    assertThat(new String(get("g/a/maven-metadata.xml"), "UTF-8")).isEqualTo("<metadata>1</metadata>");
+
+    write(new File(upstream, "g/a/maven-metadata.xml"), "<metadata>2</metadata>".getBytes("UTF-8"));
+    assertThat(new String(get("g/a/maven-metadata.xml"), "UTF-8")).isEqualTo("<metadata>2</metadata>");
+
+    HttpURLConnection connection = (HttpURLConnection) new URL(base + "g/missing/1/missing-1.jar").openConnection();
+    assertThat(connection.getResponseCode()).isEqualTo(404);
+    connection.disconnect();
+  }
+
+  private byte[] get(String path) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(base + path).openConnection();
+    InputStream in = connection.getInputStream();
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void write(File file, byte[] content) throws IOException {
+    assertThat(file.getParentFile().isDirectory() || file.getParentFile().mkdirs()).isTrue();
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(content);
+    } finally {
+      out.close();
+    }
+  }
+}
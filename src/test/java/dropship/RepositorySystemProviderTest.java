@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import dropship.logging.Logger;
+import dropship.logging.LoggingModule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonatype.aether.RepositorySystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.net.URLClassLoader;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+
+import static dropship.TestRepositories.delete;
+import static dropship.TestRepositories.install;
+import static dropship.TestRepositories.tempDir;
+import static org.fest.assertions.Assertions.assertThat;
+
+public class RepositorySystemProviderTest {
+
+  private final Logger logger = new LoggingModule().provideLogger(new SimpleDateFormat(), "myvm", System.err);
+  private File dir;
+
+  @Before public void setup() throws IOException {
+    dir = tempDir("dropship-provider");
+    File remote = new File(dir, "remote");
+    assertThat(remote.mkdirs()).isTrue();
+    System.setProperty("repo.remote-url", remote.toURI().toString());
+    System.setProperty("repo.local-path", new File(dir, "local").getPath());
+  }
+
+  @After public void cleanup() {
+    System.clearProperty("repo.remote-url");
+    System.clearProperty("repo.local-path");
+    RepositorySystemProvider.shutdown();
+    delete(dir);
+  }
+
+  @Test
+  public void resolutionStateIsUnreachableOnceClosed() throws Exception {
+    install(new File(dir, "local"), "g", "a", "1.0");
+    Settings settings = new SettingsModule().provideSettings(logger, Arrays.asList("g:a:1.0", "Main"));
+    RepositorySystemProvider.shutdown();
+    WeakReference<RepositorySystem> system = new WeakReference<RepositorySystem>(RepositorySystemProvider.get(settings, logger));
+
+    MavenArtifactResolution.ArtifactResolutionBuilder resolution =
+      MavenArtifactResolution.using(settings, logger, settings.mavenRepoUrl());
+    URLClassLoader loader = resolution.createClassLoader("g:a:1.0");
+    resolution.close();
+    resolution = null;
+
+    for (int i = 0; i < 50 && system.get() != null; i++) {
+      System.gc();
+      Thread.sleep(20);
+    }
+    assertThat(system.get()).isNull();
+    // The application's class loader outlives resolution without holding on to it
+    assertThat(loader.getURLs()).hasSize(1);
+  }
+}
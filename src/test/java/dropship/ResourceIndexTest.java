@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import dropship.logging.Logger;
+import dropship.logging.LoggingModule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static dropship.TestRepositories.delete;
+import static dropship.TestRepositories.tempDir;
+import static dropship.TestRepositories.write;
+import static org.fest.assertions.Assertions.assertThat;
+
+public class ResourceIndexTest {
+
+  private static final ClassLoader SHARE_NOTHING = null;
+
+  private final Logger logger = new LoggingModule().provideLogger(new SimpleDateFormat(), "myvm", System.err);
+  private File dir;
+
+  @Before public void setup() throws IOException {
+    dir = tempDir("dropship-resource-index");
+  }
+
+  @After public void cleanup() {
+    delete(dir);
+  }
+
+  @Test
+  public void answersLookupsLikeAPlainClassLoader() throws Exception {
+    File first = jar("first.jar", "shared.txt", "only/first.txt", "dir with space/a b.txt");
+    File second = jar("second.jar", "shared.txt", "only/second.txt");
+    File extra = new File(dir, "extra");
+    assertThat(new File(extra, "only").mkdirs()).isTrue();
+    assertThat(new File(extra, "shared.txt").createNewFile()).isTrue();
+    List<URL> additional = Collections.singletonList(extra.toURI().toURL());
+
+    RecordingClassLoader indexed = indexedLoader(Arrays.asList(first, second), additional);
+    URLClassLoader plain = new URLClassLoader(
+      new URL[] { first.toURI().toURL(), second.toURI().toURL(), extra.toURI().toURL() }, SHARE_NOTHING);
+
+    for (String name : Arrays.asList("shared.txt", "only/first.txt", "only/second.txt", "only", "only/",
+      "dir with space/a b.txt", "missing.txt")) {
+      assertThat(urls(indexed.getResources(name))).as(name).isEqualTo(urls(plain.getResources(name)));
+      assertThat(String.valueOf(indexed.getResource(name))).as(name).isEqualTo(String.valueOf(plain.getResource(name)));
+    }
+    assertThat(indexed.getResource("dir with space/a b.txt").openStream().read()).isEqualTo('d');
+  }
+
+  @Test
+  public void rebuildsTheIndexWhenAJarChanges() throws Exception {
+    File jar = jar("app.jar", "before.txt");
+    indexedLoader(Collections.singletonList(jar), Collections.<URL>emptyList());
+
+    assertThat(jar.delete()).isTrue();
+    jar("app.jar", "after.txt", "another.txt");
+    assertThat(jar.setLastModified(jar.lastModified() + 2000)).isTrue();
+    RecordingClassLoader loader = indexedLoader(Collections.singletonList(jar), Collections.<URL>emptyList());
+
+    assertThat(loader.getResource("before.txt")).isNull();
+    assertThat(loader.getResource("after.txt")).isNotNull();
+  }
+
+  @Test
+  public void nonArchiveEntriesHoldNoResources() throws Exception {
+    File jar = jar("app.jar", "a.txt");
+    File pom = new File(dir, "bom-1.pom");
+    write(pom, "<project/>");
+    RecordingClassLoader loader = indexedLoader(Arrays.asList(pom, jar), Collections.<URL>emptyList());
+
+    assertThat(new File(dir, ".resources").list()).hasSize(1);
+    assertThat(urls(loader.getResources("a.txt"))).hasSize(1);
+    assertThat(loader.getResource("bom-1.pom")).isNull();
+  }
+
+  /** Returns a loader whose index has been built or read. */
+  private RecordingClassLoader indexedLoader(List<File> jars, List<URL> additional) throws Exception {
+    List<URL> urls = new ArrayList<URL>();
+    for (File jar : jars) {
+      urls.add(jar.toURI().toURL());
+    }
+    urls.addAll(additional);
+    RecordingClassLoader loader = new RecordingClassLoader(urls.toArray(new URL[urls.size()]), SHARE_NOTHING);
+    ResourceIndex index = new ResourceIndex(new File(dir, ".resources"), jars, logger);
+    loader.useResourceIndex(index, additional);
+    long deadline = System.currentTimeMillis() + 10000;
+    while (!index.isReady()) {
+      assertThat(System.currentTimeMillis()).isLessThan(deadline);
+      Thread.sleep(10);
+    }
+    return loader;
+  }
+
+  private File jar(String name, String... entries) throws IOException {
+    File file = new File(dir, name);
+    ZipOutputStream jar = new ZipOutputStream(new FileOutputStream(file));
+    try {
+      for (String entry : entries) {
+        jar.putNextEntry(new ZipEntry(entry));
+        jar.write((entry + " in " + name).getBytes("UTF-8"));
+        jar.closeEntry();
+      }
+    } finally {
+      jar.close();
+    }
+    return file;
+  }
+
+  private static List<String> urls(Enumeration<URL> urls) {
+    List<String> strings = new ArrayList<String>();
+    for (URL url : Collections.list(urls)) {
+      strings.add(url.toString());
+    }
+    return strings;
+  }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static dropship.TestRepositories.delete;
+import static org.fest.assertions.Assertions.assertThat;
+import static org.fest.assertions.Fail.fail;
+
+public class ResumableDownloadsTest {
+
+  private HttpServer server;
+  private CloseableHttpClient client;
+  private File partials;
+  private String url;
+
+  private volatile byte[] content = bytes(1, 256 * 1024);
+  private volatile String etag = "\"v1\"";
+  private volatile int truncateAt = -1;
+  private final List<String> ranges = new CopyOnWriteArrayList<String>();
+
+  @Before public void setup() throws IOException {
+    partials = File.createTempFile("dropship-partial", "");
+    assertThat(partials.delete()).isTrue();
+
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/", new RangeHandler());
+    server.start();
+    url = "http://127.0.0.1:" + server.getAddress().getPort() + "/big.jar";
+    client = HttpClients.createDefault();
+  }
+
+  @After public void cleanup() throws IOException {
+    client.close();
+    server.stop(0);
+    delete(partials);
+  }
+
+  @Test
+  public void interruptedDownloadResumesWithRange() throws IOException {
+    ResumableDownloads downloads = new ResumableDownloads(partials, 1024, 1, Long.MAX_VALUE);
+
+    truncateAt = 100 * 1024;
+    readInterrupted(downloads);
+    long kept = partialBytes();
+    assertThat(kept).isGreaterThan(0);
+
+    truncateAt = -1;
+    assertThat(readFully(downloads)).isEqualTo(content);
+    assertThat(ranges.get(ranges.size() - 1)).isEqualTo("bytes=" + kept + "-");
+    assertThat(partials.list()).isEmpty();
+  }
+
+  @Test
+  public void changedResourceIsDownloadedAgain() throws IOException {
+    ResumableDownloads downloads = new ResumableDownloads(partials, 1024, 1, Long.MAX_VALUE);
+
+    truncateAt = 100 * 1024;
+    readInterrupted(downloads);
+
+    truncateAt = -1;
+    content = bytes(2, 200 * 1024);
+    etag = "\"v2\"";
+    assertThat(readFully(downloads)).isEqualTo(content);
+    assertThat(partials.list()).isEmpty();
+  }
+
+  @Test
+  public void smallDownloadsLeaveNothingBehind() throws IOException {
+    ResumableDownloads downloads = new ResumableDownloads(partials, content.length + 1, 1, Long.MAX_VALUE);
+
+    truncateAt = 100 * 1024;
+    readInterrupted(downloads);
+    assertThat(partials.exists()).isFalse();
+  }
+
+  @Test
+  public void largeDownloadsAreFetchedInParallelSegments() throws IOException {
+    ResumableDownloads downloads = new ResumableDownloads(partials, 1024, 4, 1024);
+
+    assertThat(readFully(downloads)).isEqualTo(content);
+    List<String> segments = new ArrayList<String>(ranges.subList(ranges.size() - 4, ranges.size()));
+    Collections.sort(segments);
+    assertThat(segments).isEqualTo(Arrays.asList(
+      "bytes=0-65535", "bytes=131072-196607", "bytes=196608-262143", "bytes=65536-131071"));
+    assertThat(partials.list()).isEmpty();
+  }
+
+  private byte[] readFully(ResumableDownloads downloads) throws IOException {
+    HttpClientContext context = HttpClientContext.create();
+    context.setRequestConfig(RequestConfig.custom().setSocketTimeout(500).build());
+    InputStream in = downloads.open(client, context, url).content;
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+  private void readInterrupted(ResumableDownloads downloads) {
+    try {
+      readFully(downloads);
+      fail("download should have been cut short");
+    } catch (IOException expected) {
+      // the server stalled before the full content length arrived
+    }
+  }
+
+  private long partialBytes() {
+    long total = 0;
+    for (File file : partials.listFiles()) {
+      if (file.getName().contains(".part")) {
+        total += file.length();
+      }
+    }
+    return total;
+  }
+
+  private static byte[] bytes(long seed, int length) {
+    byte[] bytes = new byte[length];
+    new Random(seed).nextBytes(bytes);
+    return bytes;
+  }
+
+  private final class RangeHandler implements HttpHandler {
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      byte[] body = content;
+      int start = 0;
+      int end = body.length - 1;
+      int status = 200;
+
+      String range = exchange.getRequestHeaders().getFirst("Range");
+      String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+      if (range != null && (ifRange == null || ifRange.equals(etag))) {
+        ranges.add(range);
+        String[] bounds = range.substring("bytes=".length()).split("-", -1);
+        start = Integer.parseInt(bounds[0]);
+        if (!bounds[1].isEmpty()) {
+          end = Math.min(end, Integer.parseInt(bounds[1]));
+        }
+        status = 206;
+        exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + body.length);
+      }
+
+      exchange.getResponseHeaders().set("ETag", etag);
+      exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+      int length = end - start + 1;
+      exchange.sendResponseHeaders(status, length);
+      OutputStream out = exchange.getResponseBody();
+      try {
+        out.write(body, start, truncateAt >= 0 ? Math.min(length, truncateAt) : length);
+      } finally {
+        try {
+          out.close();
+        } catch (IOException ignored) {
+          // a truncated body leaves the client waiting until its read times out
+        }
+        exchange.close();
+      }
+    }
+  }
+}
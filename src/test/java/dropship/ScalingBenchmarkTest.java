@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static dropship.TestRepositories.delete;
+import static dropship.TestRepositories.tempDir;
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Launches Dropship in a fresh JVM against {@link SyntheticRepository}
+ * graphs and reports time-to-main, bytes read, allocation and peak heap
+ * for cold (empty local repository), warm and offline launches.
+ *
+ * <p>Only a small smoke run happens during a normal build. The full
+ * benchmark runs with</p>
+ *
+ * <pre>
+ * mvn test -Dtest=ScalingBenchmarkTest -Ddropship.benchmark=true
+ *   [-Ddropship.benchmark.sizes=100,1000,5000] [-Ddropship.benchmark.depth=6]
+ *   [-Ddropship.benchmark.fan-out=4] [-Ddropship.benchmark.jar-bytes=16384]
+ *   [-Ddropship.benchmark.latency-ms=20]
+ * </pre>
+ *
+ * <p>With a latency, the repository is served over a local HTTP server
+ * that waits that long before each response; otherwise it is read through
+ * a {@code file://} URL.</p>
+ */
+public class ScalingBenchmarkTest {
+
+  private File dir;
+
+  @Before public void setup() throws IOException {
+    dir = tempDir("dropship-benchmark");
+  }
+
+  @After public void cleanup() {
+    delete(dir);
+  }
+
+  @Test
+  public void smallGraphLaunchesColdAndOffline() throws Exception {
+    SyntheticRepository repository = new SyntheticRepository(new File(dir, "remote")).artifacts(30).depth(3).jarBytes(1024);
+    repository.generate();
+
+    Map<String, String> cold = launch(repository, repository.root().toURI().toString(), false);
+    assertThat(cold.get("found")).isEqualTo("30");
+
+    Map<String, String> offline = launch(repository, repository.root().toURI().toString(), true);
+    assertThat(offline.get("found")).isEqualTo("30");
+  }
+
+  @Test
+  public void benchmark() throws Exception {
+    assumeTrue(Boolean.getBoolean("dropship.benchmark"));
+
+    int depth = Integer.getInteger("dropship.benchmark.depth", 6);
+    int fanOut = Integer.getInteger("dropship.benchmark.fan-out", 4);
+    int jarBytes = Integer.getInteger("dropship.benchmark.jar-bytes", 16 * 1024);
+    int latency = Integer.getInteger("dropship.benchmark.latency-ms", 0);
+
+    System.out.printf("%8s %8s %10s %12s %10s %14s %14s %14s%n",
+      "size", "launch", "wall-ms", "to-main-ms", "lookup-ms", "read-bytes", "alloc-bytes", "peak-heap");
+    for (String size : Settings.split(System.getProperty("dropship.benchmark.sizes", "100,1000,5000"))) {
+      File sizeDir = new File(dir, size);
+      SyntheticRepository repository = new SyntheticRepository(new File(sizeDir, "remote"))
+        .artifacts(Integer.parseInt(size))
+        .depth(depth)
+        .fanOut(fanOut)
+        .jarBytes(jarBytes);
+      repository.generate();
+
+      HttpServer server = latency > 0 ? repository.serve(latency) : null;
+      try {
+        String url = server != null
+          ? "http://127.0.0.1:" + server.getAddress().getPort() + "/"
+          : repository.root().toURI().toString();
+        report(size, "cold", launch(repository, url, false));
+        report(size, "warm", launch(repository, url, false));
+        report(size, "offline", launch(repository, url, true));
+      } finally {
+        if (server != null) {
+          server.stop(0);
+        }
+      }
+      delete(sizeDir);
+    }
+  }
+
+  private static void report(String size, String launch, Map<String, String> result) {
+    System.out.printf("%8s %8s %10s %12s %10s %14s %14s %14s%n", size, launch,
+      result.get("wall-ms"), result.get("time-to-main-ms"), result.get("lookup-ms"),
+      result.get("read-bytes"), result.get("allocated-bytes"), result.get("peak-heap-bytes"));
+  }
+
+  /**
+   * Runs Dropship for the repository's root artifact in a new JVM, sharing
+   * one local repository between launches of the same repository.
+   */
+  private Map<String, String> launch(SyntheticRepository repository, String remoteUrl, boolean offline) throws Exception {
+    File work = repository.root().getParentFile();
+    Properties properties = new Properties();
+    properties.setProperty("repo.remote-url", remoteUrl);
+    properties.setProperty("repo.local-path", new File(work, "local").getAbsolutePath());
+    FileOutputStream out = new FileOutputStream(new File(work, "dropship.properties"));
+    try {
+      properties.store(out, null);
+    } finally {
+      out.close();
+    }
+
+    List<String> command = new ArrayList<String>();
+    command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+    command.add("-cp");
+    command.add(System.getProperty("surefire.test.class.path", System.getProperty("java.class.path")));
+    if (offline) {
+      command.add("-Ddropship.offline=true");
+    }
+    command.add(Dropship.class.getName());
+    command.add(repository.rootArtifact());
+    command.add(SyntheticRepository.MAIN_CLASS);
+
+    long start = System.nanoTime();
+    Process process = new ProcessBuilder(command).directory(work).redirectErrorStream(true).start();
+    StringBuilder output = new StringBuilder();
+    String report = null;
+    BufferedReader lines = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+    try {
+      String line;
+      while ((line = lines.readLine()) != null) {
+        output.append(line).append('\n');
+        if (line.startsWith(SyntheticMain.REPORT_PREFIX)) {
+          report = line.substring(SyntheticMain.REPORT_PREFIX.length());
+        }
+      }
+    } finally {
+      lines.close();
+    }
+    int exit = process.waitFor();
+    long wallMillis = (System.nanoTime() - start) / 1000000;
+
+    if (exit != 0 || report == null) {
+      throw new AssertionError("Launch failed with exit code " + exit + ":\n" + output);
+    }
+
+    Map<String, String> result = new HashMap<String, String>();
+    for (String field : report.split(" ")) {
+      int equals = field.indexOf('=');
+      result.put(field.substring(0, equals), field.substring(equals + 1));
+    }
+    result.put("wall-ms", Long.toString(wallMillis));
+    return result;
+  }
+}
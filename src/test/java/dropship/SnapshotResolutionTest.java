@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import dropship.logging.Logger;
+import dropship.logging.LoggingModule;
+import org.apache.maven.repository.internal.MavenRepositorySystemSession;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonatype.aether.RepositorySystemSession;
+import org.sonatype.aether.impl.VersionResolver;
+import org.sonatype.aether.impl.internal.EnhancedLocalRepositoryManager;
+import org.sonatype.aether.repository.RemoteRepository;
+import org.sonatype.aether.resolution.VersionRequest;
+import org.sonatype.aether.resolution.VersionResult;
+import org.sonatype.aether.util.artifact.DefaultArtifact;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static dropship.TestRepositories.delete;
+import static dropship.TestRepositories.tempDir;
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class SnapshotResolutionTest {
+
+  private final MavenRepositorySystemSession session = new MavenRepositorySystemSession();
+  private final RemoteRepository central = new RemoteRepository("central", "default", "http://localhost/");
+  private final CountingResolver resolver = new CountingResolver();
+  private File repo;
+  private Logger logger;
+
+  @Before public void setup() throws IOException {
+    logger = new LoggingModule().provideLogger(new SimpleDateFormat(), "myvm", System.err);
+    repo = tempDir("dropship-snapshots");
+    session.setLocalRepositoryManager(new EnhancedLocalRepositoryManager(repo));
+  }
+
+  @After public void cleanup() {
+    System.clearProperty("dropship.snapshot-ttl-seconds");
+    System.clearProperty("dropship.snapshot-pins");
+    delete(repo);
+  }
+
+  @Test
+  public void reusesTheResolvedBuildUntilTheTtlExpires() throws Exception {
+    System.setProperty("dropship.snapshot-ttl-seconds", "60");
+    VersionResolver versions = versions();
+
+    resolver.version = "1.0-20140101.120000-1";
+    assertThat(resolve(versions, "g:a:1.0-SNAPSHOT").getVersion()).isEqualTo("1.0-20140101.120000-1");
+    resolver.version = "1.0-20140102.120000-2";
+    VersionResult cached = resolve(versions, "g:a:1.0-SNAPSHOT");
+    assertThat(cached.getVersion()).isEqualTo("1.0-20140101.120000-1");
+    assertThat(cached.getRepository()).isSameAs(central);
+    assertThat(resolver.calls).isEqualTo(1);
+
+    // Other classifiers and extensions may be deployed in other builds
+    assertThat(resolve(versions, "g:a:jar:tests:1.0-SNAPSHOT").getVersion()).isEqualTo("1.0-20140102.120000-2");
+    assertThat(resolve(versions, "g:a:pom:1.0-SNAPSHOT").getVersion()).isEqualTo("1.0-20140102.120000-2");
+    assertThat(resolver.calls).isEqualTo(3);
+
+    // Releases and other snapshots are always resolved
+    resolve(versions, "g:a:1.0");
+    resolve(versions, "g:b:1.0-SNAPSHOT");
+    assertThat(resolver.calls).isEqualTo(5);
+
+    File[] entries = new File(repo, ".snapshots").listFiles();
+    assertThat(entries).isNotNull();
+    for (File entry : entries) {
+      assertThat(entry.setLastModified(System.currentTimeMillis() - 61000)).isTrue();
+    }
+    assertThat(resolve(versions, "g:a:1.0-SNAPSHOT").getVersion()).isEqualTo("1.0-20140102.120000-2");
+    assertThat(resolver.calls).isEqualTo(6);
+  }
+
+  @Test
+  public void pinnedSnapshotsAreNeverResolved() throws Exception {
+    System.setProperty("dropship.snapshot-pins", "g:a:1.0-20140101.120000-1, g:b:2.0-20140202.020000-7");
+    VersionResolver versions = versions();
+
+    assertThat(resolve(versions, "g:a:1.0-SNAPSHOT").getVersion()).isEqualTo("1.0-20140101.120000-1");
+    assertThat(resolve(versions, "g:b:2.0-SNAPSHOT").getVersion()).isEqualTo("2.0-20140202.020000-7");
+    assertThat(resolver.calls).isEqualTo(0);
+    resolve(versions, "g:b:3.0-SNAPSHOT");
+    assertThat(resolver.calls).isEqualTo(1);
+
+    System.setProperty("dropship.snapshot-pins", "g:a:1.0-SNAPSHOT");
+    try {
+      versions();
+      fail("Expected a pin without a timestamp to be rejected");
+    } catch (DropshipRuntimeException e) {
+      assertThat(e.getMessage()).contains("g:a:1.0-SNAPSHOT");
+    }
+  }
+
+  private VersionResolver versions() {
+    Settings settings = new SettingsModule().provideSettings(logger, Arrays.asList("g:a:1.0-SNAPSHOT", "Main"));
+    return new SnapshotResolution(settings, logger).new Versions(resolver);
+  }
+
+  private VersionResult resolve(VersionResolver versions, String gav) throws Exception {
+    return versions.resolveVersion(session,
+      new VersionRequest(new DefaultArtifact(gav), Collections.singletonList(central), null));
+  }
+
+  private final class CountingResolver implements VersionResolver {
+
+    String version;
+    int calls = 0;
+
+    @Override
+    public VersionResult resolveVersion(RepositorySystemSession session, VersionRequest request) {
+      calls++;
+      VersionResult result = new VersionResult(request);
+      result.setVersion(request.getArtifact().isSnapshot() ? version : request.getArtifact().getVersion());
+      result.setRepository(central);
+      return result;
+    }
+  }
+}
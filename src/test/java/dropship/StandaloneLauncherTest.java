@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import dropship.logging.Logger;
+import dropship.logging.LoggingModule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+
+import static dropship.TestRepositories.delete;
+import static dropship.TestRepositories.read;
+import static dropship.TestRepositories.tempDir;
+import static dropship.TestRepositories.write;
+import static org.fest.assertions.Assertions.assertThat;
+
+public class StandaloneLauncherTest {
+
+  private final Logger logger = new LoggingModule().provideLogger(new SimpleDateFormat(), "myvm", System.err);
+  private File dir;
+
+  @Before public void setup() throws IOException {
+    dir = tempDir("dropship-launcher");
+  }
+
+  @After public void cleanup() {
+    System.clearProperty("dropship.jvm-options");
+    delete(dir);
+  }
+
+  @Test
+  public void writesTheClasspathAManifestJarAndAQuotedScript() throws Exception {
+    System.setProperty("dropship.jvm-options", "-Xmx64m -Dgreeting='hello world' -Dquote=it\\'s");
+    Settings settings = new SettingsModule().provideSettings(logger, Arrays.asList("g:a:1.0", "com.example.Main"));
+
+    new StandaloneLauncher(settings, logger).write(dir, Arrays.asList("lib/a-1.0.jar", "lib/with space/b-2.0.jar"));
+
+    assertThat(read(new File(dir, StandaloneLauncher.CLASSPATH_FILE))).isEqualTo("lib/a-1.0.jar\nlib/with space/b-2.0.jar\n");
+
+    JarFile jar = new JarFile(new File(dir, StandaloneLauncher.LAUNCHER_JAR));
+    try {
+      Attributes attributes = jar.getManifest().getMainAttributes();
+      assertThat(attributes.getValue(Attributes.Name.CLASS_PATH)).isEqualTo("lib/a-1.0.jar lib/with%20space/b-2.0.jar");
+      assertThat(attributes.getValue(Attributes.Name.MAIN_CLASS)).isEqualTo("com.example.Main");
+    } finally {
+      jar.close();
+    }
+
+    File script = new File(dir, StandaloneLauncher.LAUNCHER_SCRIPT);
+    assertThat(script.canExecute()).isTrue();
+    assertThat(read(script)).endsWith(
+      "exec java '-Xmx64m' '-Dgreeting=hello world' '-Dquote=it'\\''s' $JAVA_OPTS -cp \"$DIR/launcher.jar\" com.example.Main \"$@\"\n");
+  }
+
+  @Test
+  public void theScriptPassesEachWordThroughToJava() throws Exception {
+    System.setProperty("dropship.jvm-options", "-Dgreeting='hello world' -Dquote=\"it's\"");
+    Settings settings = new SettingsModule().provideSettings(logger, Arrays.asList("g:a:1.0", "com.example.Main"));
+    new StandaloneLauncher(settings, logger).write(dir, Arrays.asList("lib/a-1.0.jar"));
+
+    // A java that prints its arguments, one per line
+    File bin = new File(dir, "bin");
+    assertThat(bin.mkdirs()).isTrue();
+    File java = new File(bin, "java");
+    write(java, "#!/bin/sh\nfor arg in \"$@\"; do printf '%s\\n' \"$arg\"; done\n");
+    assertThat(java.setExecutable(true)).isTrue();
+
+    ProcessBuilder builder = new ProcessBuilder("sh", new File(dir, StandaloneLauncher.LAUNCHER_SCRIPT).getPath(), "an argument");
+    builder.environment().put("PATH", bin.getPath() + File.pathSeparator + System.getenv("PATH"));
+    builder.environment().remove("JAVA_OPTS");
+    builder.redirectErrorStream(true);
+    Process process = builder.start();
+    List<String> words = lines(process.getInputStream());
+    assertThat(process.waitFor()).isEqualTo(0);
+
+    assertThat(words).containsExactly("-Dgreeting=hello world", "-Dquote=it's",
+      "-cp", new File(dir.getCanonicalFile(), StandaloneLauncher.LAUNCHER_JAR).getPath(), "com.example.Main", "an argument");
+  }
+
+  private static List<String> lines(InputStream in) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        lines.add(line);
+      }
+    } finally {
+      reader.close();
+    }
+    return lines;
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import dropship.logging.Logger;
+import dropship.logging.LoggingModule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static dropship.TestRepositories.delete;
+import static dropship.TestRepositories.tempDir;
+import static org.fest.assertions.Assertions.assertThat;
+
+public class SupervisorTest {
+
+  private final Logger logger = new LoggingModule().provideLogger(new SimpleDateFormat(), "myvm", System.err);
+  private File dir;
+
+  @Before public void setup() throws IOException {
+    dir = tempDir("dropship-supervisor");
+    System.setProperty("repo.local-path", dir.getPath());
+    System.setProperty("dropship.supervise-backoff-ms", "10");
+  }
+
+  @After public void cleanup() {
+    System.clearProperty("repo.local-path");
+    System.clearProperty("dropship.supervise-backoff-ms");
+    System.clearProperty("dropship.supervise-max-restarts");
+    System.clearProperty("dropship.jvm-options");
+    delete(dir);
+  }
+
+  @Test
+  public void relaunchesTheChildUntilItSucceeds() throws Exception {
+    File launches = new File(dir, "launches");
+    Supervisor supervisor = new Supervisor(settings(launches, "3"), logger);
+
+    assertThat(supervisor.supervise(testClasspath())).isEqualTo(0);
+    assertThat(supervisor.restarts()).isEqualTo(2);
+    assertThat(lines(launches)).containsExactly("0", "1", "2");
+  }
+
+  @Test
+  public void givesUpAfterTheMostRestartsAllowed() throws Exception {
+    System.setProperty("dropship.supervise-max-restarts", "1");
+    File launches = new File(dir, "launches");
+    Supervisor supervisor = new Supervisor(settings(launches, "100"), logger);
+
+    assertThat(supervisor.supervise(testClasspath())).isEqualTo(3);
+    assertThat(supervisor.restarts()).isEqualTo(1);
+    assertThat(lines(launches)).containsExactly("0", "1");
+  }
+
+  @Test
+  public void splitsJvmOptionsAsTheLauncherScriptDoes() throws Exception {
+    System.setProperty("dropship.jvm-options", "-Dsingle='a b'  -Ddouble=\"c \\\"d\\\"\" -Dplain=e\\ f");
+    File output = new File(dir, "properties");
+    Settings settings = new SettingsModule().provideSettings(logger,
+      Arrays.asList("--supervise", "g:a:1.0", PropertiesMain.class.getName(), output.getPath()));
+
+    assertThat(new Supervisor(settings, logger).supervise(testClasspath())).isEqualTo(0);
+    assertThat(lines(output)).containsExactly("a b", "c \"d\"", "e f", "true");
+  }
+
+  /** Writes the system properties the supervisor sets to the file {@code args[0]}. */
+  public static final class PropertiesMain {
+    public static void main(String[] args) throws IOException {
+      StringBuilder lines = new StringBuilder();
+      for (String property : Arrays.asList("single", "double", "plain", "dropship.running")) {
+        lines.append(System.getProperty(property)).append('\n');
+      }
+      TestRepositories.write(new File(args[0]), lines.toString());
+    }
+  }
+
+  /**
+   * Appends its restart count to the file {@code args[0]}, then exits with
+   * 3 until it has been launched {@code args[1]} times.
+   */
+  public static final class FlakyMain {
+    public static void main(String[] args) throws IOException {
+      File file = new File(args[0]);
+      FileOutputStream out = new FileOutputStream(file, true);
+      try {
+        out.write((System.getProperty("dropship.restarts") + "\n").getBytes("UTF-8"));
+      } finally {
+        out.close();
+      }
+      System.exit(lines(file).size() < Integer.parseInt(args[1]) ? 3 : 0);
+    }
+  }
+
+  private Settings settings(File launches, String succeedOnLaunch) {
+    return new SettingsModule().provideSettings(logger,
+      Arrays.asList("--supervise", "g:a:1.0", FlakyMain.class.getName(), launches.getPath(), succeedOnLaunch));
+  }
+
+  private static List<File> testClasspath() throws Exception {
+    return Collections.singletonList(new File(SupervisorTest.class.getProtectionDomain().getCodeSource().getLocation().toURI()));
+  }
+
+  private static List<String> lines(File file) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        lines.add(line);
+      }
+    } finally {
+      reader.close();
+    }
+    return lines;
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.Properties;
+
+/**
+ * The main class of a {@link SyntheticRepository}'s root artifact. It is
+ * copied into the root jar, so it may only use the JDK. It looks up one
+ * resource from every jar on the classpath and prints what the launch cost
+ * on a single {@code SYNTHETIC} line.
+ */
+public final class SyntheticMain {
+
+  static final String REPORT_PREFIX = "SYNTHETIC ";
+  static final String RESOURCE_INDEX = "synthetic/index.txt";
+
+  private SyntheticMain() {}
+
+  public static void main(String[] args) throws IOException {
+    long timeToMainMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+
+    ClassLoader loader = SyntheticMain.class.getClassLoader();
+    long start = System.nanoTime();
+    int resources = 0;
+    int found = 0;
+    BufferedReader index = new BufferedReader(new InputStreamReader(loader.getResourceAsStream(RESOURCE_INDEX), "UTF-8"));
+    try {
+      String name;
+      while ((name = index.readLine()) != null) {
+        resources++;
+        if (loader.getResource(name) != null) {
+          found++;
+        }
+      }
+    } finally {
+      index.close();
+    }
+    long lookupMillis = (System.nanoTime() - start) / 1000000;
+
+    long peakHeap = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        peakHeap += pool.getPeakUsage().getUsed();
+      }
+    }
+
+    System.out.println(REPORT_PREFIX
+      + "time-to-main-ms=" + timeToMainMillis
+      + " lookup-ms=" + lookupMillis
+      + " resources=" + resources
+      + " found=" + found
+      + " read-bytes=" + readBytes()
+      + " allocated-bytes=" + allocatedBytes()
+      + " peak-heap-bytes=" + peakHeap);
+  }
+
+  /** Returns the bytes allocated by threads that are still alive, or -1 where that is not measurable. */
+  private static long allocatedBytes() {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+      return -1;
+    }
+    long total = 0;
+    for (long allocated : ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(threads.getAllThreadIds())) {
+      if (allocated > 0) {
+        total += allocated;
+      }
+    }
+    return total;
+  }
+
+  /** Returns the bytes this process has read through system calls, or -1 if not on Linux. */
+  private static long readBytes() {
+    try {
+      Properties io = new Properties();
+      InputStream in = new FileInputStream("/proc/self/io");
+      try {
+        io.load(in);
+      } finally {
+        in.close();
+      }
+      return Long.parseLong(io.getProperty("rchar", "-1").trim());
+    } catch (IOException e) {
+      return -1;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes a Maven repository with a generated dependency graph, for
+ * measuring resolution and class loading without a network. Artifact
+ * {@code 0} is the root; the rest are spread over {@code depth} levels and
+ * each depends on up to {@code fanOut} artifacts of the next level. Some
+ * artifacts are published in two versions that different dependents ask
+ * for ({@code conflicts}), and some dependencies are declared as version
+ * ranges. Every jar carries a {@code synthetic/a<n>.txt} resource and
+ * {@code jarBytes} of incompressible padding; the root jar also carries
+ * {@link SyntheticMain} and an index of every resource.
+ */
+final class SyntheticRepository {
+
+  static final String MAIN_CLASS = SyntheticMain.class.getName();
+
+  private final File root;
+  private int artifacts = 100;
+  private int depth = 4;
+  private int fanOut = 3;
+  private double rangeFraction = 0.1;
+  private double conflictFraction = 0.05;
+  private int jarBytes = 16 * 1024;
+  private long seed = 1;
+  private final ConcurrentMap<String, AtomicInteger> downloads = new ConcurrentHashMap<String, AtomicInteger>();
+
+  SyntheticRepository(File root) {
+    this.root = root;
+  }
+
+  SyntheticRepository artifacts(int artifacts) {
+    this.artifacts = artifacts;
+    return this;
+  }
+
+  SyntheticRepository depth(int depth) {
+    this.depth = depth;
+    return this;
+  }
+
+  SyntheticRepository fanOut(int fanOut) {
+    this.fanOut = fanOut;
+    return this;
+  }
+
+  SyntheticRepository rangeFraction(double rangeFraction) {
+    this.rangeFraction = rangeFraction;
+    return this;
+  }
+
+  SyntheticRepository conflictFraction(double conflictFraction) {
+    this.conflictFraction = conflictFraction;
+    return this;
+  }
+
+  SyntheticRepository jarBytes(int jarBytes) {
+    this.jarBytes = jarBytes;
+    return this;
+  }
+
+  SyntheticRepository seed(long seed) {
+    this.seed = seed;
+    return this;
+  }
+
+  File root() {
+    return root;
+  }
+
+  /** Returns the root artifact as {@code group:artifact:version}. */
+  String rootArtifact() {
+    return groupId(0) + ":" + artifactId(0) + ":1.0";
+  }
+
+  /** Returns how many times {@link #serve(int)} has sent each path in full, by request path. */
+  Map<String, AtomicInteger> downloads() {
+    return downloads;
+  }
+
+  /** Writes the repository, returning the total size of its files. */
+  long generate() throws IOException {
+    Random random = new Random(seed);
+
+    int[] level = new int[artifacts];
+    List<List<Integer>> levels = new ArrayList<List<Integer>>();
+    for (int l = 0; l <= depth; l++) {
+      levels.add(new ArrayList<Integer>());
+    }
+    levels.get(0).add(0);
+    for (int i = 1; i < artifacts; i++) {
+      level[i] = 1 + (int) ((long) (i - 1) * depth / Math.max(1, artifacts - 1));
+      levels.get(level[i]).add(i);
+    }
+
+    boolean[] conflicted = new boolean[artifacts];
+    for (int i = 1; i < artifacts; i++) {
+      conflicted[i] = random.nextDouble() < conflictFraction;
+    }
+
+    // Every artifact gets one parent on the level above so all are reachable, then extra edges up to fanOut
+    List<Set<Integer>> dependencies = new ArrayList<Set<Integer>>();
+    for (int i = 0; i < artifacts; i++) {
+      dependencies.add(new TreeSet<Integer>());
+    }
+    for (int i = 1; i < artifacts; i++) {
+      List<Integer> parents = levels.get(level[i] - 1);
+      dependencies.get(parents.get(random.nextInt(parents.size()))).add(i);
+    }
+    for (int i = 0; i < artifacts; i++) {
+      if (level[i] < depth) {
+        List<Integer> children = levels.get(level[i] + 1);
+        while (dependencies.get(i).size() < fanOut && dependencies.get(i).size() < children.size()) {
+          dependencies.get(i).add(children.get(random.nextInt(children.size())));
+        }
+      }
+    }
+
+    long bytes = 0;
+    for (int i = 0; i < artifacts; i++) {
+      StringBuilder deps = new StringBuilder();
+      for (int dependency : dependencies.get(i)) {
+        String version = conflicted[dependency] && random.nextBoolean() ? "1.1" : "1.0";
+        if (random.nextDouble() < rangeFraction) {
+          version = "[1.0,2.0)";
+        }
+        deps.append("    <dependency><groupId>").append(groupId(dependency)).append("</groupId><artifactId>")
+          .append(artifactId(dependency)).append("</artifactId><version>").append(version).append("</version></dependency>\n");
+      }
+
+      List<String> versions = new ArrayList<String>();
+      versions.add("1.0");
+      if (conflicted[i]) {
+        versions.add("1.1");
+      }
+      for (String version : versions) {
+        bytes += publish(i, version, deps.toString(), random);
+      }
+      bytes += metadata(i, versions);
+    }
+    return bytes;
+  }
+
+  /**
+   * Serves the repository over HTTP, waiting {@code latencyMillis} before
+   * answering each request.
+   */
+  HttpServer serve(final int latencyMillis) throws IOException {
+    HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          if (latencyMillis > 0) {
+            Thread.sleep(latencyMillis);
+          }
+          File file = new File(root, exchange.getRequestURI().getPath());
+          if (!file.isFile()) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+          }
+          boolean head = "HEAD".equals(exchange.getRequestMethod());
+          if (!head) {
+            downloads.putIfAbsent(exchange.getRequestURI().getPath(), new AtomicInteger());
+            downloads.get(exchange.getRequestURI().getPath()).incrementAndGet();
+          }
+          exchange.sendResponseHeaders(200, head ? -1 : file.length());
+          if (!head) {
+            OutputStream out = exchange.getResponseBody();
+            InputStream in = new FileInputStream(file);
+            try {
+              copy(in, out);
+            } finally {
+              in.close();
+              out.close();
+            }
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+    server.setExecutor(Executors.newFixedThreadPool(16));
+    server.start();
+    return server;
+  }
+
+  private long publish(int i, String version, String dependencies, Random random) throws IOException {
+    File dir = new File(root, groupId(i).replace('.', '/') + "/" + artifactId(i) + "/" + version);
+    String base = artifactId(i) + "-" + version;
+
+    String pom =
+      "<project xmlns=\"http://maven.apache.org/POM/4.0.0\">\n" +
+      "  <modelVersion>4.0.0</modelVersion>\n" +
+      "  <groupId>" + groupId(i) + "</groupId>\n" +
+      "  <artifactId>" + artifactId(i) + "</artifactId>\n" +
+      "  <version>" + version + "</version>\n" +
+      "  <dependencies>\n" + dependencies + "  </dependencies>\n" +
+      "</project>\n";
+
+    ByteArrayOutputStream jarBytesOut = new ByteArrayOutputStream();
+    ZipOutputStream jar = new ZipOutputStream(jarBytesOut);
+    jar.setLevel(Deflater.NO_COMPRESSION);
+    entry(jar, "synthetic/" + artifactId(i) + ".txt", (artifactId(i) + " " + version + "\n").getBytes("UTF-8"));
+    byte[] padding = new byte[jarBytes];
+    random.nextBytes(padding);
+    entry(jar, "synthetic/" + artifactId(i) + ".bin", padding);
+    if (i == 0) {
+      StringBuilder index = new StringBuilder();
+      for (int n = 0; n < artifacts; n++) {
+        index.append("synthetic/").append(artifactId(n)).append(".txt\n");
+      }
+      entry(jar, SyntheticMain.RESOURCE_INDEX, index.toString().getBytes("UTF-8"));
+      String mainClass = MAIN_CLASS.replace('.', '/') + ".class";
+      entry(jar, mainClass, read(SyntheticRepository.class.getClassLoader().getResourceAsStream(mainClass)));
+    }
+    jar.close();
+
+    return write(new File(dir, base + ".pom"), pom.getBytes("UTF-8"))
+      + write(new File(dir, base + ".jar"), jarBytesOut.toByteArray());
+  }
+
+  private long metadata(int i, List<String> versions) throws IOException {
+    StringBuilder listed = new StringBuilder();
+    for (String version : versions) {
+      listed.append("<version>").append(version).append("</version>");
+    }
+    String latest = versions.get(versions.size() - 1);
+    String metadata =
+      "<metadata><groupId>" + groupId(i) + "</groupId><artifactId>" + artifactId(i) + "</artifactId>" +
+      "<versioning><latest>" + latest + "</latest><release>" + latest + "</release>" +
+      "<versions>" + listed + "</versions><lastUpdated>20140101000000</lastUpdated></versioning></metadata>\n";
+    File dir = new File(root, groupId(i).replace('.', '/') + "/" + artifactId(i));
+    return write(new File(dir, "maven-metadata.xml"), metadata.getBytes("UTF-8"));
+  }
+
+  private static String groupId(int i) {
+    return "synthetic.g" + (i % 10);
+  }
+
+  private static String artifactId(int i) {
+    return "a" + i;
+  }
+
+  private static void entry(ZipOutputStream jar, String name, byte[] content) throws IOException {
+    jar.putNextEntry(new ZipEntry(name));
+    jar.write(content);
+    jar.closeEntry();
+  }
+
+  /** Writes {@code content} and its SHA-1, returning the bytes written. */
+  private static long write(File file, byte[] content) throws IOException {
+    if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs()) {
+      throw new IOException("Could not create " + file.getParentFile());
+    }
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(content);
+    } finally {
+      out.close();
+    }
+
+    byte[] sha1 = sha1(content).getBytes("US-ASCII");
+    out = new FileOutputStream(new File(file.getPath() + ".sha1"));
+    try {
+      out.write(sha1);
+    } finally {
+      out.close();
+    }
+    return content.length + sha1.length;
+  }
+
+  private static String sha1(byte[] content) {
+    try {
+      StringBuilder hex = new StringBuilder();
+      for (byte b : MessageDigest.getInstance("SHA-1").digest(content)) {
+        hex.append(String.format("%02x", b & 0xff));
+      }
+      return hex.toString();
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static byte[] read(InputStream in) throws IOException {
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      copy(in, out);
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void copy(InputStream in, OutputStream out) throws IOException {
+    byte[] buffer = new byte[8192];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+  }
+}
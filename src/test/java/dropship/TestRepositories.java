@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2014 zulily, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dropship;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/** Temporary directories and hand-written Maven repositories for tests. */
+final class TestRepositories {
+
+  private TestRepositories() {}
+
+  /** Creates an empty temporary directory. */
+  static File tempDir(String prefix) throws IOException {
+    File dir = File.createTempFile(prefix, "");
+    assertThat(dir.delete()).isTrue();
+    assertThat(dir.mkdirs()).isTrue();
+    return dir;
+  }
+
+  /** Deletes {@code file} and, if it is a directory, everything under it. */
+  static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    //noinspection ResultOfMethodCallIgnored
+    file.delete();
+  }
+
+  static void write(File file, String content) throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(content.getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+  }
+
+  static String read(File file) throws IOException {
+    FileInputStream in = new FileInputStream(file);
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+      return out.toString("UTF-8");
+    } finally {
+      in.close();
+    }
+  }
+
+  /** Returns a POM {@code <dependency>} element; {@code extra} elements such as scope are appended. */
+  static String dep(String groupId, String artifactId, String version, String... extra) {
+    StringBuilder xml = new StringBuilder("<dependency><groupId>").append(groupId)
+      .append("</groupId><artifactId>").append(artifactId)
+      .append("</artifactId><version>").append(version).append("</version>");
+    for (String element : extra) {
+      xml.append(element);
+    }
+    return xml.append("</dependency>").toString();
+  }
+
+  /** Installs an empty jar into {@code repo} whose POM declares {@code dependencies}. */
+  static void install(File repo, String groupId, String artifactId, String version, String... dependencies) throws IOException {
+    StringBuilder body = new StringBuilder("<dependencies>");
+    for (String dependency : dependencies) {
+      body.append(dependency);
+    }
+    installRaw(repo, groupId, artifactId, version, "jar", body.append("</dependencies>").toString());
+  }
+
+  /**
+   * Installs a POM with {@code body} after its coordinates into {@code repo},
+   * with an empty jar beside it if {@code packaging} is jar.
+   */
+  static void installRaw(File repo, String groupId, String artifactId, String version, String packaging, String body)
+    throws IOException {
+    File dir = new File(repo, groupId.replace('.', '/') + '/' + artifactId + '/' + version);
+    assertThat(dir.isDirectory() || dir.mkdirs()).isTrue();
+    write(new File(dir, artifactId + '-' + version + ".pom"),
+      "<project><modelVersion>4.0.0</modelVersion><groupId>" + groupId + "</groupId><artifactId>" + artifactId +
+      "</artifactId><version>" + version + "</version><packaging>" + packaging + "</packaging>" + body + "</project>");
+    if ("jar".equals(packaging)) {
+      write(new File(dir, artifactId + '-' + version + ".jar"), "");
+    }
+  }
+}